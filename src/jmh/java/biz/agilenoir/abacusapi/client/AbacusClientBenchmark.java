@@ -0,0 +1,78 @@
+package biz.agilenoir.abacusapi.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of one call to Abacus: encoding the invoice, decoding the answer, and the whole call over loopback
+ * against an {@link AbacusStub}.
+ * The encode and decode benchmarks use a mapper configured like the client's own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbacusClientBenchmark {
+    private ObjectWriter invoiceRequestWriter;
+    private ObjectReader processResponseReader;
+    private AbacusClient.InvoiceRequest invoiceRequest;
+    private AbacusStub abacus;
+    private AbacusClient abacusClient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ObjectMapper objectMapper = AbacusClient.newObjectMapper();
+        invoiceRequestWriter = objectMapper.writerFor(AbacusClient.InvoiceRequest.class);
+        processResponseReader = objectMapper.readerFor(AbacusClient.ProcessResponse.class);
+
+        invoiceRequest = new AbacusClient.InvoiceRequest();
+        invoiceRequest.setCustomer("Acme Corp");
+        invoiceRequest.setAmount(1250.0);
+        invoiceRequest.setDate(LocalDate.of(2023, 1, 15));
+
+        abacus = new AbacusStub();
+        AbacusClient.Settings settings = new AbacusClient.Settings();
+        // Every call is answered at once, so hedging would only add noise
+        settings.setHedgePercentile(0);
+        abacusClient = new AbacusClient(abacus.getBasePath(), settings);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        abacus.close();
+    }
+
+    @Benchmark
+    public byte[] encodeInvoiceRequest() throws IOException {
+        return invoiceRequestWriter.writeValueAsBytes(invoiceRequest);
+    }
+
+    @Benchmark
+    public AbacusClient.ProcessResponse decodeProcessResponse() throws IOException {
+        return processResponseReader.readValue(AbacusStub.ACCEPTED);
+    }
+
+    @Benchmark
+    public AbacusClient.ProcessResponse processInvoice() throws IOException, InterruptedException {
+        return abacusClient.processInvoice(invoiceRequest);
+    }
+}
@@ -0,0 +1,73 @@
+package biz.agilenoir.abacusapi.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-process Abacus that accepts every invoice at once, so benchmarks measure the invoice service and not Abacus
+ */
+public class AbacusStub implements AutoCloseable {
+    static final byte[] ACCEPTED = "{\"transactionId\": \"TRX-12345\", \"status\": \"ACCEPTED\", \"message\": \"Invoice processed successfully\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper objectMapper = AbacusClient.newObjectMapper();
+    private final HttpServer server;
+
+    /**
+     * Start the stub on a free loopback port
+     */
+    public AbacusStub() throws IOException {
+        // Answer without waiting on Nagle's algorithm, as a real Abacus would
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/process", this::process);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getBasePath() {
+        return "http://localhost:" + getPort();
+    }
+
+    private void process(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        byte[] response;
+        if (exchange.getRequestURI().getPath().endsWith("/batch")) {
+            // One response per invoice of the batch
+            int count = objectMapper.readTree(body).size();
+            StringBuilder responses = new StringBuilder("[");
+            for (int i = 0; i < count; i++) {
+                responses.append(i == 0 ? "" : ",").append(new String(ACCEPTED, StandardCharsets.UTF_8));
+            }
+            response = responses.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        } else {
+            response = ACCEPTED;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(201, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,110 @@
+package biz.agilenoir.invoiceapi;
+
+import biz.agilenoir.abacusapi.client.AbacusClient;
+import biz.agilenoir.invoiceapi.store.ConcurrentInvoiceStore;
+import biz.agilenoir.invoiceapi.store.InvoiceStore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding stored invoices as JSON, the hand-written way and with Jackson, and reading a POSTed invoice request,
+ * from bytes and from a request body stream through the pooled {@link RequestBodyReader}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvoiceSerializationBenchmark {
+    private static final int PAGE_SIZE = 100;
+    private static final byte[] INVOICE_REQUEST = "{\"customer\": \"Acme Corp\", \"amount\": 1250.0, \"date\": \"2023-01-15\", \"status\": \"NEW\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper objectMapper = AbacusClient.newObjectMapper();
+    private final RequestBodyReader requestBodies = new RequestBodyReader(new RequestBodyReader.Settings());
+    private Map<String, Object> invoice;
+    private List<Map<String, Object>> page;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        page = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("customer", "Customer " + i);
+            fields.put("amount", 1000 + i / 100.0);
+            fields.put("date", "2023-02-20");
+            fields.put("status", "PENDING");
+            page.add(store.create(fields));
+        }
+        invoice = page.get(0);
+    }
+
+    @Benchmark
+    public String convertToJson() {
+        return InvoiceMicroservice.convertToJson(invoice);
+    }
+
+    @Benchmark
+    public byte[] jacksonDatabind() throws IOException {
+        return objectMapper.writeValueAsBytes(invoice);
+    }
+
+    @Benchmark
+    public byte[] jacksonStreaming() {
+        return InvoiceMicroservice.toJsonBytes(invoice);
+    }
+
+    @Benchmark
+    public String convertPageToJson() {
+        return InvoiceMicroservice.convertToJson(page);
+    }
+
+    @Benchmark
+    public byte[] jacksonDatabindPage() throws IOException {
+        return objectMapper.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public InvoiceMicroservice.InvoiceRequest readInvoiceRequest() throws IOException {
+        return InvoiceMicroservice.readInvoiceRequest(INVOICE_REQUEST);
+    }
+
+    @Benchmark
+    public AbacusClient.InvoiceRequest readPostedInvoice() throws IOException {
+        try (RequestBodyReader.Body body = requestBodies.read(requestBody())) {
+            return InvoiceMicroservice.readAbacusInvoiceRequest(body.getBuffer(), body.getLength());
+        }
+    }
+
+    /**
+     * @return The invoice request as a stream that, like the HttpServer's request body, reads all bytes the way
+     * InputStream does
+     */
+    private static InputStream requestBody() {
+        return new FilterInputStream(new ByteArrayInputStream(INVOICE_REQUEST)) {
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package biz.agilenoir.invoiceapi;
+
+import biz.agilenoir.abacusapi.client.AbacusStub;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second through the whole invoice service, over loopback, with an {@link AbacusStub} behind it.
+ * Several client threads send requests at once, as several consumers of the API would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class InvoiceServiceBenchmark {
+    private static final String INVOICE_REQUEST = "{\"customer\": \"Acme Corp\", \"amount\": 1250.0, \"date\": \"2023-01-15\", \"status\": \"NEW\"}";
+
+    private AbacusStub abacus;
+    private HttpClient client;
+    private HttpRequest getById;
+    private HttpRequest getPage;
+    private HttpRequest create;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        abacus = new AbacusStub();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        InvoiceMicroservice.main(new String[]{String.valueOf(port), String.valueOf(abacus.getPort())});
+
+        client = HttpClient.newHttpClient();
+        String invoices = "http://localhost:" + port + "/api/invoices";
+        getById = HttpRequest.newBuilder(URI.create(invoices + "?id=INV-001")).GET().build();
+        getPage = HttpRequest.newBuilder(URI.create(invoices + "?limit=100")).GET().build();
+        create = HttpRequest.newBuilder(URI.create(invoices))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(INVOICE_REQUEST))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        abacus.close();
+    }
+
+    @Benchmark
+    public int getInvoiceById() throws IOException, InterruptedException {
+        return send(getById, 200);
+    }
+
+    @Benchmark
+    public int getInvoicePage() throws IOException, InterruptedException {
+        return send(getPage, 200);
+    }
+
+    @Benchmark
+    public int createInvoice() throws IOException, InterruptedException {
+        return send(create, 201);
+    }
+
+    private int send(HttpRequest request, int expectedStatus) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != expectedStatus) {
+            throw new IllegalStateException(request.method() + " " + request.uri() + " answered " + response.statusCode());
+        }
+        return response.body().length;
+    }
+}
@@ -0,0 +1,108 @@
+package biz.agilenoir.invoiceapi;
+
+import biz.agilenoir.abacusapi.client.AbacusClient;
+import biz.agilenoir.invoiceapi.store.ConcurrentInvoiceStore;
+import biz.agilenoir.invoiceapi.store.InvoiceStore;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading a list of invoices, and reading a POSTed invoice, in each format a client can ask for.
+ * Each trial also prints the size of the encoded list next to its size as JSON, so the run shows what each format
+ * costs in time and saves in bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaFormatBenchmark {
+    private static final int LIST_SIZE = 1000;
+
+    @Param({"JSON", "CBOR", "SMILE"})
+    public MediaFormat format;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(128 * 1024);
+    private List<Map<String, Object>> invoices;
+    private byte[] encodedList;
+    private byte[] invoiceRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        invoices = new ArrayList<>(LIST_SIZE);
+        for (int i = 0; i < LIST_SIZE; i++) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("customer", "Customer " + (i % 50));
+            fields.put("amount", 1000 + i / 100.0);
+            fields.put("date", "2023-02-" + (10 + i % 19));
+            fields.put("status", i % 3 == 0 ? "PAID" : "PENDING");
+            invoices.add(store.create(fields));
+        }
+        encodedList = writeList();
+
+        ObjectMapper objectMapper = AbacusClient.newObjectMapper();
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        try (JsonGenerator generator = format.createGenerator(request)) {
+            objectMapper.writeValue(generator, Map.of("customer", "Acme Corp", "amount", 1250.0, "date", "2023-01-15"));
+        }
+        invoiceRequest = request.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void reportPayloadSize() throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        InvoiceMicroservice.writeInvoices(MediaFormat.JSON, json, invoices);
+        System.out.printf("%n%d invoices as %s: %d bytes, %.0f%% of JSON%n",
+                LIST_SIZE, format, encodedList.length, 100.0 * encodedList.length / json.size());
+    }
+
+    @Benchmark
+    public byte[] writeList() throws IOException {
+        out.reset();
+        InvoiceMicroservice.writeInvoices(format, out, invoices);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public int readList() throws IOException {
+        int values = 0;
+        try (JsonParser parser = format.createParser(encodedList, 0, encodedList.length)) {
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                if (token.isScalarValue()) {
+                    values++;
+                }
+            }
+        }
+        return values;
+    }
+
+    @Benchmark
+    public AbacusClient.InvoiceRequest readPostedInvoice() throws IOException {
+        return InvoiceMicroservice.readAbacusInvoiceRequest(format, invoiceRequest, invoiceRequest.length);
+    }
+}
@@ -0,0 +1,120 @@
+package biz.agilenoir.invoiceapi;
+
+import biz.agilenoir.invoiceapi.store.ConcurrentInvoiceStore;
+import biz.agilenoir.invoiceapi.store.InvoiceStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming a JSON list of invoices into a response as it is, gzipped and deflated, at a fast and the default
+ * compression level. The time is the CPU a response costs; each trial also prints the bytes that go over the wire,
+ * so the run shows what each setting of invoice.compression.level buys in bandwidth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCompressionBenchmark {
+    private static final int LIST_SIZE = 1000;
+
+    @Param({"identity", "gzip", "deflate"})
+    public String coding;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private final CountingStream wire = new CountingStream();
+    private ResponseCompression compression;
+    private ResponseCompression.ContentCoding contentCoding;
+    private List<Map<String, Object>> invoices;
+    private byte[] encodedList;
+
+    /**
+     * Stands in for the socket, counting the bytes sent
+     */
+    private static final class CountingStream extends OutputStream {
+        private long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ResponseCompression.Settings settings = new ResponseCompression.Settings();
+        settings.setLevel(level);
+        compression = new ResponseCompression(settings);
+        contentCoding = compression.negotiate(coding);
+
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        invoices = new ArrayList<>(LIST_SIZE);
+        for (int i = 0; i < LIST_SIZE; i++) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("customer", "Customer " + (i % 50));
+            fields.put("amount", 1000 + i / 100.0);
+            fields.put("date", "2023-02-" + (10 + i % 19));
+            fields.put("status", i % 3 == 0 ? "PAID" : "PENDING");
+            invoices.add(store.create(fields));
+        }
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        InvoiceMicroservice.writeInvoices(MediaFormat.JSON, json, invoices);
+        encodedList = json.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void reportWireSize() throws IOException {
+        wire.bytes = 0;
+        compressList();
+        System.out.printf("%n%d invoices, %s at level %d: %d bytes, %.1f%% of %d bytes of JSON%n",
+                LIST_SIZE, coding, level, wire.bytes, 100.0 * wire.bytes / encodedList.length, encodedList.length);
+    }
+
+    /**
+     * Compress a list that is already encoded, so the time is the compression alone
+     */
+    @Benchmark
+    public long compressList() throws IOException {
+        try (OutputStream out = compression.open(contentCoding, (chosen, length) -> wire)) {
+            out.write(encodedList);
+        }
+        return wire.bytes;
+    }
+
+    /**
+     * Encode a list into a response as the service does, so the time is what a GET /api/invoices costs
+     */
+    @Benchmark
+    public long writeList() throws IOException {
+        InvoiceMicroservice.writeInvoices(MediaFormat.JSON, compression.open(contentCoding, (chosen, length) -> wire), invoices);
+        return wire.bytes;
+    }
+}
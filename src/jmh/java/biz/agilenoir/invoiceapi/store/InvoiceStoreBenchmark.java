@@ -0,0 +1,81 @@
+package biz.agilenoir.invoiceapi.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up invoices by ID, and summarizing them, as the store grows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class InvoiceStoreBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    private int invoiceCount;
+
+    private InvoiceStore store;
+    private String[] ids;
+    private InvoiceQuery paid;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new ConcurrentInvoiceStore();
+        ids = new String[invoiceCount];
+        for (int i = 0; i < invoiceCount; i++) {
+            ids[i] = (String) store.create(newInvoice(i)).get("id");
+        }
+        paid = new InvoiceQuery();
+        paid.setStatus("PAID");
+    }
+
+    /**
+     * The fields of a new invoice, built the way the invoice handler builds them
+     */
+    private static Map<String, Object> newInvoice(int n) {
+        Map<String, Object> invoice = new HashMap<>();
+        invoice.put("customer", "Customer " + (n % 1000));
+        invoice.put("amount", (n % 100_000) / 100.0);
+        invoice.put("date", String.valueOf(LocalDate.of(2023, 1, 1).plusDays(n % 730)));
+        invoice.put("status", n % 2 == 0 ? "PAID" : "PENDING");
+        return invoice;
+    }
+
+    @Benchmark
+    public Map<String, Object> findById() {
+        return store.findById(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    @Benchmark
+    public Map<String, Object> findMissingId() {
+        return store.findById("INV-MISSING");
+    }
+
+    @Benchmark
+    public InvoiceSummary summarizeAll() {
+        return store.summarize(new InvoiceQuery());
+    }
+
+    @Benchmark
+    public InvoiceSummary summarizePaid() {
+        return store.summarize(paid);
+    }
+}
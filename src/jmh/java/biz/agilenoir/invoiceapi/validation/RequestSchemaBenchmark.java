@@ -0,0 +1,62 @@
+package biz.agilenoir.invoiceapi.validation;
+
+import biz.agilenoir.abacusapi.client.AbacusClient;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binding a POSTed invoice request to the Abacus request with and without checking it against the InvoiceRequest
+ * schema of the spec, so the difference is the cost of validation per request
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestSchemaBenchmark {
+    private static final byte[] INVOICE_REQUEST = "{\"customer\": \"Acme Corp\", \"amount\": 1250.0, \"date\": \"2023-01-15\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper objectMapper = AbacusClient.newObjectMapper();
+    private final ObjectReader invoiceRequestReader = objectMapper.readerFor(AbacusClient.InvoiceRequest.class);
+    private RequestSchema invoiceRequestSchema;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        try (InputStream spec = RequestSchemaBenchmark.class.getResourceAsStream("/InvoiceAPISpec.yaml")) {
+            invoiceRequestSchema = RequestSchema.fromOpenApi(spec, "InvoiceRequest");
+        }
+    }
+
+    @Benchmark
+    public AbacusClient.InvoiceRequest bind() throws IOException {
+        try (JsonParser parser = objectMapper.createParser(INVOICE_REQUEST)) {
+            return invoiceRequestReader.readValue(parser);
+        }
+    }
+
+    @Benchmark
+    public AbacusClient.InvoiceRequest validateAndBind() throws IOException {
+        try (JsonParser parser = invoiceRequestSchema.validate(objectMapper.createParser(INVOICE_REQUEST))) {
+            return invoiceRequestReader.readValue(parser);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package biz.agilenoir.abacusapi.client;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Protects the service from a slow or failing Abacus.
+ * Every call to Abacus passes through three checks, and a call that fails one is refused straight away with an
+ * {@link AbacusUnavailableException} instead of waiting on Abacus:
+ * <ul>
+ *     <li>A circuit breaker opens after a run of consecutive failures and refuses every call while open. Once the open
+ *     time has passed it lets one trial call through; the circuit closes again if that call succeeds.</li>
+ *     <li>A bulkhead caps the number of calls in flight at once.</li>
+ *     <li>An adaptive limit, at most the bulkhead size, follows Abacus latency with additive increase and
+ *     multiplicative decrease. A call that fails or takes longer than the latency threshold shrinks the limit by a
+ *     tenth. A fast call grows it by about one per limit's worth of calls, but only while the limit is in use.</li>
+ * </ul>
+ * One instance is shared by every caller.
+ */
+public class AbacusCallGuard {
+    private static final double LIMIT_BACKOFF_RATIO = 0.9;
+
+    /**
+     * States of the circuit breaker
+     */
+    public enum CircuitState {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls are refused until the open time has passed. */
+        OPEN,
+        /** One trial call decides whether the circuit closes or opens again. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int maxConcurrentCalls;
+    private final int minLimit;
+    private final long latencyThresholdNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private CircuitState circuitState = CircuitState.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean trialCallInFlight;
+    private int inFlight;
+    private double limit;
+    private long rejectedCalls;
+
+    /**
+     * Constructor
+     * @param settings Thresholds for the breaker, the bulkhead and the adaptive limit
+     */
+    public AbacusCallGuard(Settings settings) {
+        if (settings.getMaxConcurrentCalls() < 1 || settings.getMinLimit() < 1 || settings.getFailureThreshold() < 1) {
+            throw new IllegalArgumentException("failureThreshold, maxConcurrentCalls and minLimit must be at least 1");
+        }
+        this.failureThreshold = settings.getFailureThreshold();
+        this.openNanos = settings.getOpenDuration().toNanos();
+        this.maxConcurrentCalls = settings.getMaxConcurrentCalls();
+        this.minLimit = Math.min(settings.getMinLimit(), maxConcurrentCalls);
+        this.latencyThresholdNanos = settings.getLatencyThreshold().toNanos();
+        this.limit = Math.max(minLimit, Math.min(settings.getInitialLimit(), maxConcurrentCalls));
+    }
+
+    /**
+     * Make a call to Abacus if the guard allows it
+     * @param abacusCall Starts the call, for example {@code () -> abacusClient.processInvoiceAsync(request)}
+     * @return The call's result. Completes exceptionally with an AbacusUnavailableException, without starting the call,
+     * if the guard refuses it.
+     */
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> abacusCall) {
+        Permit permit;
+        try {
+            permit = acquire();
+        } catch (AbacusUnavailableException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<T> result;
+        try {
+            result = abacusCall.get();
+        } catch (RuntimeException e) {
+            release(permit, false);
+            return CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((response, failure) -> release(permit, failure == null));
+    }
+
+    private Permit acquire() throws AbacusUnavailableException {
+        lock.lock();
+        try {
+            boolean trialCall = false;
+            if (circuitState == CircuitState.OPEN) {
+                if (System.nanoTime() - openedAtNanos < openNanos) {
+                    rejectedCalls++;
+                    throw new AbacusUnavailableException("Circuit to Abacus is open");
+                }
+                circuitState = CircuitState.HALF_OPEN;
+            }
+            if (circuitState == CircuitState.HALF_OPEN) {
+                if (trialCallInFlight) {
+                    rejectedCalls++;
+                    throw new AbacusUnavailableException("Circuit to Abacus is half open and its trial call is in flight");
+                }
+                trialCallInFlight = true;
+                trialCall = true;
+            }
+            if (inFlight >= concurrencyLimit()) {
+                if (trialCall) {
+                    trialCallInFlight = false;
+                }
+                rejectedCalls++;
+                throw new AbacusUnavailableException("Too many calls to Abacus in flight: " + inFlight);
+            }
+            inFlight++;
+            return new Permit(trialCall, System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Permit permit, boolean succeeded) {
+        long latencyNanos = System.nanoTime() - permit.startNanos;
+        lock.lock();
+        try {
+            boolean limitInUse = inFlight >= limit / 2;
+            inFlight--;
+
+            if (permit.trialCall) {
+                trialCallInFlight = false;
+                if (succeeded) {
+                    closeCircuit();
+                } else {
+                    openCircuit();
+                }
+            } else if (circuitState == CircuitState.CLOSED) {
+                if (succeeded) {
+                    consecutiveFailures = 0;
+                } else if (++consecutiveFailures >= failureThreshold) {
+                    openCircuit();
+                }
+            }
+
+            if (!succeeded || latencyNanos > latencyThresholdNanos) {
+                limit = Math.max(minLimit, limit * LIMIT_BACKOFF_RATIO);
+            } else if (limitInUse) {
+                limit = Math.min(maxConcurrentCalls, limit + 1 / limit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void openCircuit() {
+        circuitState = CircuitState.OPEN;
+        openedAtNanos = System.nanoTime();
+    }
+
+    private void closeCircuit() {
+        circuitState = CircuitState.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    private int concurrencyLimit() {
+        return Math.min(maxConcurrentCalls, (int) limit);
+    }
+
+    /**
+     * @return The breaker's state. An open circuit whose open time has passed reports OPEN until the next call.
+     */
+    public CircuitState getCircuitState() {
+        lock.lock();
+        try {
+            return circuitState;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The most calls the adaptive limit lets into flight right now
+     */
+    public int getConcurrencyLimit() {
+        lock.lock();
+        try {
+            return concurrencyLimit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return How many calls have been refused since the guard was built
+     */
+    public long getRejectedCalls() {
+        lock.lock();
+        try {
+            return rejectedCalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Permit {
+        private final boolean trialCall;
+        private final long startNanos;
+
+        private Permit(boolean trialCall, long startNanos) {
+            this.trialCall = trialCall;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * Thresholds for the guard
+     */
+    public static class Settings {
+        private int failureThreshold = 5;
+        private Duration openDuration = Duration.ofSeconds(5);
+        private int maxConcurrentCalls = 64;
+        private int initialLimit = 16;
+        private int minLimit = 1;
+        private Duration latencyThreshold = Duration.ofSeconds(1);
+
+        /**
+         * @return How many consecutive failures open the circuit
+         */
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+        /**
+         * @return How long the circuit stays open before a trial call is let through
+         */
+        public Duration getOpenDuration() {
+            return openDuration;
+        }
+        public void setOpenDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+        }
+        /**
+         * @return The bulkhead size: the most calls in flight at once, whatever the adaptive limit
+         */
+        public int getMaxConcurrentCalls() {
+            return maxConcurrentCalls;
+        }
+        public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+            this.maxConcurrentCalls = maxConcurrentCalls;
+        }
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+        public int getMinLimit() {
+            return minLimit;
+        }
+        public void setMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+        }
+        /**
+         * @return Calls slower than this shrink the adaptive limit
+         */
+        public Duration getLatencyThreshold() {
+            return latencyThreshold;
+        }
+        public void setLatencyThreshold(Duration latencyThreshold) {
+            this.latencyThreshold = latencyThreshold;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package biz.agilenoir.abacusapi.client;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 import java.io.IOException;
@@ -8,15 +15,58 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 /**
  * A simple client for the Abacus API
+ * One instance is meant to be shared by every caller: it is thread-safe and keeps its connections to Abacus alive between calls.
  */
 public class AbacusClient {
+    /** Header that lets Abacus recognise repeated attempts of one call, so each invoice is processed once. */
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    /** Header of a batch call that gives each of its invoices a key of its own, so each is processed once whatever batch it is in. */
+    public static final String INVOICE_IDEMPOTENCY_KEYS_HEADER = "Invoice-Idempotency-Keys";
+    private static final long MAX_RETRY_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int RETRY_BUDGET_MAX_TOKENS = 10;
+
     private final String basePath;
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
+    private final ObjectWriter invoiceRequestWriter;
+    private final ObjectReader processResponseReader;
+    private final ObjectReader healthResponseReader;
+    private final ObjectWriter invoiceRequestListWriter;
+    private final ObjectReader processResponseListReader;
+    private final URI healthUri;
+    private final URI processUri;
+    private final URI processBatchUri;
+    private final Duration requestTimeout;
+    private final int maxRetries;
+    private final long retryBackoffNanos;
+    private final long latencyBudgetNanos;
+    private final double hedgePercentile;
+    private final RetryBudget retryBudget;
+    private final LatencyTracker processLatencies;
+    private final LatencyTracker processBatchLatencies;
+    private final Encoding processEncoding;
+    private final ObjectWriter binaryInvoiceRequestWriter;
+    private final ObjectReader binaryProcessResponseReader;
+    private final ObjectReader binaryHealthResponseReader;
+    private final AtomicReference<CompletableFuture<Encoding>> negotiatedProcessEncoding = new AtomicReference<>();
 
     public String getBasePath() { return basePath; }
     /**
@@ -24,10 +74,60 @@ public class AbacusClient {
      * @param basePath The base path of the API
      */
     public AbacusClient(String basePath) {
+        this(basePath, new Settings());
+    }
+
+    /**
+     * Constructor
+     * @param basePath The base path of the API
+     * @param settings Connection settings
+     */
+    public AbacusClient(String basePath, Settings settings) {
         this.basePath = basePath;
-        this.httpClient = HttpClient.newHttpClient();
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.registerModule(new JavaTimeModule());
+        this.requestTimeout = settings.getRequestTimeout();
+        this.httpClient = HttpClient.newBuilder()
+                .version(settings.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(settings.getConnectTimeout())
+                .build();
+        this.objectMapper = settings.getObjectMapper() != null ? settings.getObjectMapper() : newObjectMapper();
+        this.invoiceRequestWriter = objectMapper.writerFor(InvoiceRequest.class);
+        this.processResponseReader = objectMapper.readerFor(ProcessResponse.class);
+        this.healthResponseReader = objectMapper.readerFor(HealthResponse.class);
+        this.invoiceRequestListWriter = objectMapper.writerFor(objectMapper.getTypeFactory().constructCollectionType(List.class, InvoiceRequest.class));
+        this.processResponseListReader = objectMapper.readerForListOf(ProcessResponse.class);
+        this.healthUri = URI.create(basePath + "/api/health");
+        this.processUri = URI.create(basePath + "/api/process");
+        this.processBatchUri = URI.create(basePath + "/api/process/batch");
+        this.maxRetries = settings.getMaxRetries();
+        this.retryBackoffNanos = settings.getRetryBackoff().toNanos();
+        this.latencyBudgetNanos = settings.getLatencyBudget().toNanos();
+        this.hedgePercentile = settings.getHedgePercentile();
+        this.retryBudget = new RetryBudget(settings.getRetryBudgetRatio(), RETRY_BUDGET_MAX_TOKENS);
+        this.processLatencies = new LatencyTracker(hedgePercentile);
+        this.processBatchLatencies = new LatencyTracker(hedgePercentile);
+        this.processEncoding = settings.getProcessEncoding();
+        if (processEncoding == Encoding.JSON) {
+            this.binaryInvoiceRequestWriter = null;
+            this.binaryProcessResponseReader = null;
+            this.binaryHealthResponseReader = null;
+            negotiatedProcessEncoding.set(CompletableFuture.completedFuture(Encoding.JSON));
+        } else {
+            ObjectMapper binaryMapper = objectMapper.copyWith(processEncoding.newFactory());
+            this.binaryInvoiceRequestWriter = binaryMapper.writerFor(InvoiceRequest.class);
+            this.binaryProcessResponseReader = binaryMapper.readerFor(ProcessResponse.class);
+            this.binaryHealthResponseReader = binaryMapper.readerFor(HealthResponse.class);
+        }
+    }
+
+    /**
+     * @return An ObjectMapper that reads and writes LocalDate as ISO-8601 text, the way the Abacus API specifies dates.
+     * ObjectMapper is thread-safe and costly to build, so build one and share it.
+     */
+    public static ObjectMapper newObjectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule()); // necessary to work with DateTime with Jackson.
+        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        return objectMapper;
     }
 
     /**
@@ -37,18 +137,38 @@ public class AbacusClient {
      * @throws InterruptedException If the operation is interrupted
      */
     public HealthResponse getHealth() throws IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(basePath + "/api/health"))
+        return readHealthResponse(httpClient.send(healthRequest(), HttpResponse.BodyHandlers.ofByteArray()));
+    }
+
+    /**
+     * Get the health status of the API without blocking the calling thread
+     * @return The health response. Completes exceptionally with an IOException if the call fails.
+     */
+    public CompletableFuture<HealthResponse> getHealthAsync() {
+        return httpClient.sendAsync(healthRequest(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    try {
+                        return readHealthResponse(response);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    private HttpRequest healthRequest() {
+        return HttpRequest.newBuilder()
+                .uri(healthUri)
+                .timeout(requestTimeout)
                 .GET()
                 .build();
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
+    private HealthResponse readHealthResponse(HttpResponse<byte[]> response) throws IOException {
         if (response.statusCode() != 200) {
             throw new IOException("Unexpected status code: " + response.statusCode());
         }
 
-        return objectMapper.readValue(response.body(), HealthResponse.class);
+        return healthResponseReader.readValue(response.body());
     }
 
     /**
@@ -59,19 +179,497 @@ public class AbacusClient {
      * @throws InterruptedException If the operation is interrupted
      */
     public ProcessResponse processInvoice(InvoiceRequest invoiceRequest) throws IOException, InterruptedException {
+        return await(processInvoiceAsync(invoiceRequest));
+    }
+
+    /**
+     * Process an invoice without blocking the calling thread.
+     * The call is hedged and retried as described on {@link Settings}.
+     * @param invoiceRequest The invoice request
+     * @return The process response. Completes exceptionally with an IOException if the call fails.
+     */
+    public CompletableFuture<ProcessResponse> processInvoiceAsync(InvoiceRequest invoiceRequest) {
+        return processInvoiceAsync(invoiceRequest, newIdempotencyKey());
+    }
+
+    /**
+     * Process an invoice without blocking the calling thread, under an idempotency key of the caller's.
+     * A caller that sends the same invoice again, after a failure or a restart, passes the same key, so Abacus can
+     * recognise the invoice and process it once.
+     * @param invoiceRequest The invoice request
+     * @param idempotencyKey The {@link #IDEMPOTENCY_KEY_HEADER} value every attempt of the call carries
+     * @return The process response. Completes exceptionally with an IOException if the call fails.
+     */
+    public CompletableFuture<ProcessResponse> processInvoiceAsync(InvoiceRequest invoiceRequest, String idempotencyKey) {
+        CompletableFuture<Encoding> encoding = processEncoding();
+        if (encoding.isDone()) {
+            return processInvoiceAsync(invoiceRequest, idempotencyKey, encoding.join());
+        }
+        CompletableFuture<ProcessResponse> result = new CompletableFuture<>();
+        encoding.thenAccept(negotiated -> processInvoiceAsync(invoiceRequest, idempotencyKey, negotiated).whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        }));
+        return result;
+    }
+
+    private CompletableFuture<ProcessResponse> processInvoiceAsync(InvoiceRequest invoiceRequest, String idempotencyKey, Encoding encoding) {
+        byte[] body;
+        try {
+            body = (encoding == Encoding.JSON ? invoiceRequestWriter : binaryInvoiceRequestWriter).writeValueAsBytes(invoiceRequest);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(new Call<>(processUri, encoding.getMediaType(), body, this::readProcessResponse, processLatencies, idempotencyKey, null));
+    }
+
+    /**
+     * The encoding invoices are sent to /api/process in. A binary encoding is used only once Abacus has shown it
+     * speaks it: the first call asks for its health in that encoding, and Abacus must answer in it. If Abacus answers
+     * in JSON, every call uses JSON. If the check fails outright, this call uses JSON and a later call checks again.
+     * @return The encoding to use
+     */
+    CompletableFuture<Encoding> processEncoding() {
+        CompletableFuture<Encoding> negotiated = negotiatedProcessEncoding.get();
+        if (negotiated != null) {
+            return negotiated;
+        }
+        CompletableFuture<Encoding> check = new CompletableFuture<>();
+        if (!negotiatedProcessEncoding.compareAndSet(null, check)) {
+            return negotiatedProcessEncoding.get();
+        }
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(basePath + "/api/process"))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(invoiceRequest)))
+                .uri(healthUri)
+                .timeout(requestTimeout)
+                .header("Accept", processEncoding.getMediaType())
+                .GET()
                 .build();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, failure) -> {
+            if (failure != null) {
+                negotiatedProcessEncoding.compareAndSet(check, null);
+                check.complete(Encoding.JSON);
+                return;
+            }
+            check.complete(speaksProcessEncoding(response) ? processEncoding : Encoding.JSON);
+        });
+        return check;
+    }
+
+    private boolean speaksProcessEncoding(HttpResponse<byte[]> response) {
+        if (response.statusCode() != 200 || Encoding.of(response.headers().firstValue("Content-Type").orElse(null)) != processEncoding) {
+            return false;
+        }
+        try {
+            binaryHealthResponseReader.readValue(response.body());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Process several invoices with one call to Abacus
+     * @param invoiceRequests The invoice requests
+     * @return One process response per request, in the same order as the requests
+     * @throws IOException If an I/O error occurs
+     * @throws InterruptedException If the operation is interrupted
+     */
+    public List<ProcessResponse> processInvoices(List<InvoiceRequest> invoiceRequests) throws IOException, InterruptedException {
+        return await(processInvoicesAsync(invoiceRequests));
+    }
+
+    /**
+     * Process several invoices with one call to Abacus, without blocking the calling thread.
+     * The call is hedged and retried as described on {@link Settings}.
+     * @param invoiceRequests The invoice requests
+     * @return One process response per request, in the same order as the requests.
+     * Completes exceptionally with an IOException if the call fails.
+     */
+    public CompletableFuture<List<ProcessResponse>> processInvoicesAsync(List<InvoiceRequest> invoiceRequests) {
+        List<String> idempotencyKeys = new ArrayList<>(invoiceRequests.size());
+        for (int i = 0; i < invoiceRequests.size(); i++) {
+            idempotencyKeys.add(newIdempotencyKey());
+        }
+        return processInvoicesAsync(invoiceRequests, idempotencyKeys);
+    }
+
+    /**
+     * Process several invoices with one call to Abacus, without blocking the calling thread, each under an
+     * idempotency key of the caller's. The keys go in the {@link #INVOICE_IDEMPOTENCY_KEYS_HEADER}, so an invoice
+     * sent again in a batch with other invoices is still recognised by its own key. The call itself carries a key
+     * derived from them, the same for every attempt.
+     * @param invoiceRequests The invoice requests
+     * @param idempotencyKeys One key per request, in the same order as the requests. A key must not hold a comma.
+     * @return One process response per request, in the same order as the requests.
+     * Completes exceptionally with an IOException if the call fails.
+     */
+    public CompletableFuture<List<ProcessResponse>> processInvoicesAsync(List<InvoiceRequest> invoiceRequests, List<String> idempotencyKeys) {
+        if (idempotencyKeys.size() != invoiceRequests.size()) {
+            throw new IllegalArgumentException("Expected " + invoiceRequests.size() + " idempotency keys but got " + idempotencyKeys.size());
+        }
+        byte[] body;
+        try {
+            body = invoiceRequestListWriter.writeValueAsBytes(invoiceRequests);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        String invoiceKeys = String.join(",", idempotencyKeys);
+        return send(new Call<>(processBatchUri, Encoding.JSON.getMediaType(), body, response -> readProcessResponses(response, invoiceRequests.size()),
+                processBatchLatencies, idempotencyKeyOf(invoiceKeys), invoiceKeys));
+    }
+
+    /**
+     * @return A key for a call that no other call shares
+     */
+    public static String newIdempotencyKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * @return The same key every time for the same name, such as the ID of an invoice, and a different key for
+     * different names
+     */
+    public static String idempotencyKeyOf(String name) {
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static <T> T await(CompletableFuture<T> result) throws IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Send a call, retrying failures that may pass and hedging slow attempts, until it succeeds, fails for good,
+     * runs out of retries or retry budget, or runs out of latency budget.
+     */
+    private <T> CompletableFuture<T> send(Call<T> call) {
+        retryBudget.recordRequest();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, 0, result);
+        return result;
+    }
+
+    private <T> void attempt(Call<T> call, int retry, CompletableFuture<T> result) {
+        hedged(call).whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            long backoffNanos = ThreadLocalRandom.current().nextLong(Math.min(retryBackoffNanos << retry, MAX_RETRY_BACKOFF_NANOS) + 1);
+            if (retry < maxRetries && retryable(cause)
+                    && System.nanoTime() + backoffNanos < call.deadlineNanos
+                    && retryBudget.tryWithdraw()) {
+                CompletableFuture.delayedExecutor(backoffNanos, TimeUnit.NANOSECONDS).execute(() -> attempt(call, retry + 1, result));
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * Send one attempt. If it has not answered once the usual latency has passed, send the same request again
+     * and take whichever answers first. Both carry the call's idempotency key, so Abacus processes the invoice once.
+     */
+    private <T> CompletableFuture<T> hedged(Call<T> call) {
+        long hedgeDelayNanos = hedgePercentile > 0 ? call.latencies.percentileNanos() : -1;
+        if (hedgeDelayNanos < 0) {
+            return sendOnce(call);
+        }
+
+        CompletableFuture<T> firstAnswer = new CompletableFuture<>();
+        AtomicInteger attemptsInFlight = new AtomicInteger(1);
+        BiConsumer<T, Throwable> settle = (value, failure) -> {
+            if (failure == null) {
+                firstAnswer.complete(value);
+            } else if (attemptsInFlight.decrementAndGet() == 0) {
+                firstAnswer.completeExceptionally(failure);
+            }
+        };
+        sendOnce(call).whenComplete(settle);
+        CompletableFuture.delayedExecutor(hedgeDelayNanos, TimeUnit.NANOSECONDS).execute(() -> {
+            if (firstAnswer.isDone() || System.nanoTime() >= call.deadlineNanos || !retryBudget.tryWithdraw()) {
+                return;
+            }
+            if (attemptsInFlight.getAndUpdate(inFlight -> inFlight == 0 ? 0 : inFlight + 1) == 0) {
+                return; // The first attempt failed in the meantime and will be retried instead
+            }
+            sendOnce(call).whenComplete(settle);
+        });
+        return firstAnswer;
+    }
+
+    private <T> CompletableFuture<T> sendOnce(Call<T> call) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(call.uri)
+                .timeout(requestTimeout)
+                .header("Content-Type", call.contentType)
+                .header("Accept", call.contentType)
+                .header(IDEMPOTENCY_KEY_HEADER, call.idempotencyKey);
+        if (call.invoiceIdempotencyKeys != null) {
+            builder.header(INVOICE_IDEMPOTENCY_KEYS_HEADER, call.invoiceIdempotencyKeys);
+        }
+        HttpRequest request = builder.POST(HttpRequest.BodyPublishers.ofByteArray(call.body)).build();
+        long startNanos = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    try {
+                        T value = call.reader.read(response);
+                        call.latencies.record(System.nanoTime() - startNanos);
+                        return value;
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * @return True for failures that another attempt may not hit: no connection, no answer in time, or a status
+     * that says Abacus is overloaded or broken. An answer that could not be read is not retried.
+     */
+    private static boolean retryable(Throwable failure) {
+        if (failure instanceof UnexpectedResponseException) {
+            return ((UnexpectedResponseException) failure).isRetryable();
+        }
+        return failure instanceof IOException && !(failure instanceof JsonProcessingException);
+    }
 
+    private List<ProcessResponse> readProcessResponses(HttpResponse<byte[]> response, int expectedCount) throws IOException {
         if (response.statusCode() != 200 && response.statusCode() != 201) {
-            throw new IOException("Unexpected status code: " + response.statusCode());
+            throw UnexpectedResponseException.forStatus(response.statusCode());
+        }
+
+        List<ProcessResponse> processResponses = processResponseListReader.readValue(response.body());
+        if (processResponses.size() != expectedCount) {
+            throw new UnexpectedResponseException("Expected " + expectedCount + " process responses but received " + processResponses.size(), false);
+        }
+        return processResponses;
+    }
+
+    private ProcessResponse readProcessResponse(HttpResponse<byte[]> response) throws IOException {
+        if (response.statusCode() != 200 && response.statusCode() != 201) {
+            throw UnexpectedResponseException.forStatus(response.statusCode());
+        }
+
+        Encoding encoding = Encoding.of(response.headers().firstValue("Content-Type").orElse(null));
+        return (encoding == processEncoding && encoding != Encoding.JSON ? binaryProcessResponseReader : processResponseReader).readValue(response.body());
+    }
+
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(HttpResponse<byte[]> response) throws IOException;
+    }
+
+    /**
+     * One logical call to Abacus, shared by all of its attempts
+     */
+    private final class Call<T> {
+        private final URI uri;
+        private final String contentType;
+        private final byte[] body;
+        private final ResponseReader<T> reader;
+        private final LatencyTracker latencies;
+        private final String idempotencyKey;
+        private final String invoiceIdempotencyKeys;
+        private final long deadlineNanos = System.nanoTime() + latencyBudgetNanos;
+
+        /**
+         * @param invoiceIdempotencyKeys The key of each invoice of a batch call, comma separated, or null
+         */
+        private Call(URI uri, String contentType, byte[] body, ResponseReader<T> reader, LatencyTracker latencies,
+                     String idempotencyKey, String invoiceIdempotencyKeys) {
+            this.uri = uri;
+            this.contentType = contentType;
+            this.body = body;
+            this.reader = reader;
+            this.latencies = latencies;
+            this.idempotencyKey = idempotencyKey;
+            this.invoiceIdempotencyKeys = invoiceIdempotencyKeys;
+        }
+    }
+
+    /**
+     * How invoices are encoded on the way to /api/process and back. CBOR and Smile are binary encodings of the same
+     * fields as JSON: smaller, and cheaper for both sides to write and parse.
+     */
+    public enum Encoding {
+        JSON("application/json"),
+        CBOR("application/cbor"),
+        SMILE("application/x-jackson-smile");
+
+        private final String mediaType;
+
+        Encoding(String mediaType) {
+            this.mediaType = mediaType;
         }
 
-        return objectMapper.readValue(response.body(), ProcessResponse.class);
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        private JsonFactory newFactory() {
+            switch (this) {
+                case CBOR:
+                    return new CBORFactory();
+                case SMILE:
+                    return new SmileFactory();
+                default:
+                    return new JsonFactory();
+            }
+        }
+
+        /**
+         * @return The encoding a Content-Type names, or null if it names none of them
+         */
+        static Encoding of(String contentType) {
+            if (contentType == null) {
+                return null;
+            }
+            String mediaType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+            for (Encoding encoding : values()) {
+                if (encoding.mediaType.equals(mediaType)) {
+                    return encoding;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Abacus answered, but not with a response the client can use
+     */
+    static class UnexpectedResponseException extends IOException {
+        private final boolean retryable;
+
+        UnexpectedResponseException(String message, boolean retryable) {
+            super(message);
+            this.retryable = retryable;
+        }
+
+        static UnexpectedResponseException forStatus(int statusCode) {
+            return new UnexpectedResponseException("Unexpected status code: " + statusCode, statusCode == 429 || statusCode >= 500);
+        }
+
+        boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    /**
+     * Connection settings for the client.
+     * Idle HTTP/1.1 connections are kept alive and reused by the client's connection pool. The JDK sizes that pool
+     * with the jdk.httpclient.connectionPoolSize and jdk.httpclient.keepalive.timeout system properties.
+     * <p>
+     * Invoice processing calls are hedged: once an attempt has taken longer than the hedge percentile of recent
+     * successful calls, the same request is sent again and the first answer wins. Failed attempts are retried after a
+     * random backoff of up to retryBackoff doubled per retry, if the failure may pass (no connection, a timeout,
+     * 429 or 5xx). Hedges and retries together are held to retryBudgetRatio of the calls made, and none starts once
+     * the latency budget of the call is spent. Every attempt of a call sends the same Idempotency-Key.
+     * <p>
+     * Invoices can be sent to /api/process in a binary encoding instead of JSON. The client checks that Abacus speaks
+     * it before using it, as described on processEncoding, and falls back to JSON if it does not. Batches are always
+     * sent as JSON.
+     */
+    public static class Settings {
+        private Duration connectTimeout = Duration.ofSeconds(2);
+        private Duration requestTimeout = Duration.ofSeconds(10);
+        private boolean http2;
+        private ObjectMapper objectMapper;
+        private int maxRetries = 2;
+        private Duration retryBackoff = Duration.ofMillis(50);
+        private double retryBudgetRatio = 0.1;
+        private Duration latencyBudget = Duration.ofSeconds(10);
+        private double hedgePercentile = 0.95;
+        private Encoding processEncoding = Encoding.JSON;
+
+        public Duration getConnectTimeout() {
+            return connectTimeout;
+        }
+        public void setConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+        public Duration getRequestTimeout() {
+            return requestTimeout;
+        }
+        public void setRequestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+        }
+        /**
+         * @return True to ask Abacus for HTTP/2, falling back to HTTP/1.1 when the server does not support it.
+         */
+        public boolean isHttp2() {
+            return http2;
+        }
+        public void setHttp2(boolean http2) {
+            this.http2 = http2;
+        }
+        public ObjectMapper getObjectMapper() {
+            return objectMapper;
+        }
+        /**
+         * @param objectMapper A shared mapper to use instead of building one. It must handle LocalDate as ISO-8601 text.
+         */
+        public void setObjectMapper(ObjectMapper objectMapper) {
+            this.objectMapper = objectMapper;
+        }
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+        public void setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+        public Duration getRetryBackoff() {
+            return retryBackoff;
+        }
+        public void setRetryBackoff(Duration retryBackoff) {
+            this.retryBackoff = retryBackoff;
+        }
+        /**
+         * @return Hedged and retried requests allowed per call, for example 0.1 for one in ten
+         */
+        public double getRetryBudgetRatio() {
+            return retryBudgetRatio;
+        }
+        public void setRetryBudgetRatio(double retryBudgetRatio) {
+            this.retryBudgetRatio = retryBudgetRatio;
+        }
+        /**
+         * @return How long after a call starts its last hedge or retry may start
+         */
+        public Duration getLatencyBudget() {
+            return latencyBudget;
+        }
+        public void setLatencyBudget(Duration latencyBudget) {
+            this.latencyBudget = latencyBudget;
+        }
+        /**
+         * @return The latency percentile, between 0 and 1, after which an attempt is hedged. 0 turns hedging off.
+         */
+        public double getHedgePercentile() {
+            return hedgePercentile;
+        }
+        public void setHedgePercentile(double hedgePercentile) {
+            this.hedgePercentile = hedgePercentile;
+        }
+        /**
+         * @return The encoding to send single invoices to Abacus in, if Abacus answers a GET /api/health that accepts
+         * only this encoding in it. JSON, the default, skips the check.
+         */
+        public Encoding getProcessEncoding() {
+            return processEncoding;
+        }
+        public void setProcessEncoding(Encoding processEncoding) {
+            this.processEncoding = processEncoding;
+        }
     }
 
     /**
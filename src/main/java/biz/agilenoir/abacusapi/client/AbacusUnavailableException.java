@@ -0,0 +1,13 @@
+package biz.agilenoir.abacusapi.client;
+
+import java.io.IOException;
+
+/**
+ * A call to Abacus was refused without being sent, because the circuit to Abacus is open or too many calls are
+ * already waiting on it.
+ */
+public class AbacusUnavailableException extends IOException {
+    public AbacusUnavailableException(String message) {
+        super(message);
+    }
+}
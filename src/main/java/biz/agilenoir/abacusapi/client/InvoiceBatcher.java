@@ -0,0 +1,200 @@
+package biz.agilenoir.abacusapi.client;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Groups invoices submitted one at a time into batched calls to the Abacus API.
+ * An invoice waits at most the linger time for others to join its batch. A batch is sent as soon as it is full.
+ * A batch holding a single invoice goes to the single invoice operation, so a linger time of zero sends every
+ * lone invoice straight through. Each caller gets the process response for its own invoice.
+ * Every batch is one call through the {@link AbacusCallGuard}, so a refused batch fails each of its invoices at once.
+ * Every invoice is sent under its own idempotency key, alone or in a batch, so Abacus recognises an invoice sent again
+ * whichever invoices share its batch.
+ */
+public class InvoiceBatcher {
+    private final AbacusClient abacusClient;
+    private final AbacusCallGuard callGuard;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final ScheduledExecutorService lingerTimer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private List<PendingInvoice> pending = new ArrayList<>();
+    private long batchGeneration;
+    private boolean lingerTimerStarted;
+
+    /**
+     * Constructor for a batcher whose calls pass through a guard with the default settings
+     * @param abacusClient The client that sends the batches
+     * @param maxBatchSize The most invoices sent in one call to Abacus
+     * @param maxLinger The longest an invoice waits for others to join its batch
+     */
+    public InvoiceBatcher(AbacusClient abacusClient, int maxBatchSize, Duration maxLinger) {
+        this(abacusClient, new AbacusCallGuard(new AbacusCallGuard.Settings()), maxBatchSize, maxLinger);
+    }
+
+    /**
+     * Constructor
+     * @param abacusClient The client that sends the batches
+     * @param callGuard The guard every call to Abacus passes through
+     * @param maxBatchSize The most invoices sent in one call to Abacus
+     * @param maxLinger The longest an invoice waits for others to join its batch
+     */
+    public InvoiceBatcher(AbacusClient abacusClient, AbacusCallGuard callGuard, int maxBatchSize, Duration maxLinger) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1 but was " + maxBatchSize);
+        }
+        this.abacusClient = abacusClient;
+        this.callGuard = callGuard;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = maxLinger.toNanos();
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("abacus-batch-linger").factory());
+    }
+
+    public AbacusCallGuard getCallGuard() {
+        return callGuard;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public Duration getMaxLinger() {
+        return Duration.ofNanos(maxLingerNanos);
+    }
+
+    /**
+     * Submit one invoice to be processed in the next batch
+     * @param invoiceRequest The invoice request
+     * @return The process response for this invoice. Completes exceptionally with an IOException if its batch fails,
+     * or with an AbacusUnavailableException if the guard refuses its batch.
+     */
+    public CompletableFuture<AbacusClient.ProcessResponse> submit(AbacusClient.InvoiceRequest invoiceRequest) {
+        return submitAll(List.of(invoiceRequest)).get(0);
+    }
+
+    /**
+     * Submit several invoices at once. They are cut into batches of at most the maximum batch size and may share
+     * a batch with invoices submitted concurrently by other callers.
+     * @param invoiceRequests The invoice requests
+     * @return One future process response per request, in the same order as the requests
+     */
+    public List<CompletableFuture<AbacusClient.ProcessResponse>> submitAll(List<AbacusClient.InvoiceRequest> invoiceRequests) {
+        return submitAll(invoiceRequests, null);
+    }
+
+    /**
+     * Submit several invoices at once, each with the idempotency key it was sent under before, if it was
+     * @param invoiceRequests The invoice requests
+     * @param idempotencyKeys One key per request, in the same order as the requests, or null for a new key for each
+     * @return One future process response per request, in the same order as the requests
+     */
+    public List<CompletableFuture<AbacusClient.ProcessResponse>> submitAll(List<AbacusClient.InvoiceRequest> invoiceRequests,
+                                                                         List<String> idempotencyKeys) {
+        List<CompletableFuture<AbacusClient.ProcessResponse>> results = new ArrayList<>(invoiceRequests.size());
+        List<List<PendingInvoice>> readyBatches = new ArrayList<>();
+
+        lock.lock();
+        try {
+            for (int i = 0; i < invoiceRequests.size(); i++) {
+                String idempotencyKey = idempotencyKeys == null ? AbacusClient.newIdempotencyKey() : idempotencyKeys.get(i);
+                PendingInvoice pendingInvoice = new PendingInvoice(invoiceRequests.get(i), idempotencyKey);
+                results.add(pendingInvoice.result);
+                pending.add(pendingInvoice);
+                if (pending.size() >= maxBatchSize) {
+                    readyBatches.add(takePending());
+                }
+            }
+            if (!pending.isEmpty()) {
+                if (maxLingerNanos <= 0) {
+                    readyBatches.add(takePending());
+                } else if (!lingerTimerStarted) {
+                    // The first invoice of a new batch starts the linger timer
+                    long generation = batchGeneration;
+                    lingerTimer.schedule(() -> flush(generation), maxLingerNanos, TimeUnit.NANOSECONDS);
+                    lingerTimerStarted = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (List<PendingInvoice> batch : readyBatches) {
+            send(batch);
+        }
+        return results;
+    }
+
+    private void flush(long generation) {
+        List<PendingInvoice> batch;
+        lock.lock();
+        try {
+            if (generation != batchGeneration || pending.isEmpty()) {
+                return; // That batch already filled up and was sent
+            }
+            batch = takePending();
+        } finally {
+            lock.unlock();
+        }
+        send(batch);
+    }
+
+    private List<PendingInvoice> takePending() {
+        List<PendingInvoice> batch = pending;
+        pending = new ArrayList<>();
+        batchGeneration++;
+        lingerTimerStarted = false;
+        return batch;
+    }
+
+    private void send(List<PendingInvoice> batch) {
+        if (batch.size() == 1) {
+            PendingInvoice only = batch.get(0);
+            callGuard.call(() -> abacusClient.processInvoiceAsync(only.request, only.idempotencyKey)).whenComplete((response, failure) -> {
+                if (failure != null) {
+                    only.result.completeExceptionally(failure);
+                } else {
+                    only.result.complete(response);
+                }
+            });
+            return;
+        }
+
+        List<AbacusClient.InvoiceRequest> requests = new ArrayList<>(batch.size());
+        List<String> idempotencyKeys = new ArrayList<>(batch.size());
+        for (PendingInvoice pendingInvoice : batch) {
+            requests.add(pendingInvoice.request);
+            idempotencyKeys.add(pendingInvoice.idempotencyKey);
+        }
+        callGuard.call(() -> abacusClient.processInvoicesAsync(requests, idempotencyKeys)).whenComplete((responses, failure) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                if (failure != null) {
+                    batch.get(i).result.completeExceptionally(failure);
+                } else if (responses.get(i) == null) {
+                    batch.get(i).result.completeExceptionally(new IOException("Abacus returned no response for invoice " + i + " of the batch"));
+                } else {
+                    batch.get(i).result.complete(responses.get(i));
+                }
+            }
+        });
+    }
+
+    private static final class PendingInvoice {
+        private final AbacusClient.InvoiceRequest request;
+        private final String idempotencyKey;
+        private final CompletableFuture<AbacusClient.ProcessResponse> result = new CompletableFuture<>();
+
+        private PendingInvoice(AbacusClient.InvoiceRequest request, String idempotencyKey) {
+            this.request = request;
+            this.idempotencyKey = idempotencyKey;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package biz.agilenoir.abacusapi.client;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets identical invoices submitted at about the same time share one call to Abacus.
+ * <p>
+ * Invoices are identical when they have the same customer, ignoring surrounding whitespace, the same amount and the
+ * same date. An invoice identical to one whose call is still in flight joins that call and gets its process
+ * response. With a window greater than zero, an invoice also joins a call that started less than the window ago and
+ * has already been answered. A call that failed is never shared once it has failed, so the next identical invoice
+ * makes a new call.
+ * <p>
+ * A disabled coalescer hands every invoice straight to the {@link InvoiceBatcher}. Either way it counts the invoices
+ * submitted and the calls saved by coalescing.
+ */
+public class InvoiceRequestCoalescer {
+    private final InvoiceBatcher invoiceBatcher;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Constructor
+     * @param invoiceBatcher The batcher the invoices that do not join a call are submitted to
+     * @param enabled False to submit every invoice to the batcher
+     * @param window How long after it started a call that has been answered can still be joined
+     */
+    public InvoiceRequestCoalescer(InvoiceBatcher invoiceBatcher, boolean enabled, Duration window) {
+        if (window.isNegative()) {
+            throw new IllegalArgumentException("window must not be negative but was " + window);
+        }
+        this.invoiceBatcher = invoiceBatcher;
+        this.enabled = enabled;
+        this.windowNanos = window.toNanos();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Duration getWindow() {
+        return Duration.ofNanos(windowNanos);
+    }
+
+    /**
+     * @return The number of invoices submitted
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return The number of invoices that joined another invoice's call instead of making their own
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Submit one invoice, joining the call of an identical invoice if there is one
+     * @param invoiceRequest The invoice request
+     * @return The process response for this invoice, as {@link InvoiceBatcher#submit} gives it
+     */
+    public CompletableFuture<AbacusClient.ProcessResponse> submit(AbacusClient.InvoiceRequest invoiceRequest) {
+        return submitAll(List.of(invoiceRequest)).get(0);
+    }
+
+    /**
+     * Submit several invoices at once. Each joins the call of an identical invoice if there is one, including an
+     * earlier invoice in the same list. The rest are submitted to the batcher together.
+     * @param invoiceRequests The invoice requests
+     * @return One future process response per request, in the same order as the requests
+     */
+    public List<CompletableFuture<AbacusClient.ProcessResponse>> submitAll(List<AbacusClient.InvoiceRequest> invoiceRequests) {
+        return submitAll(invoiceRequests, null);
+    }
+
+    /**
+     * Submit several invoices at once, each with the idempotency key it was sent under before, if it was.
+     * An invoice that joins another invoice's call shares that call's key.
+     * @param invoiceRequests The invoice requests
+     * @param idempotencyKeys One key per request, in the same order as the requests, or null for a new key for each
+     * @return One future process response per request, in the same order as the requests
+     */
+    public List<CompletableFuture<AbacusClient.ProcessResponse>> submitAll(List<AbacusClient.InvoiceRequest> invoiceRequests,
+                                                                         List<String> idempotencyKeys) {
+        submitted.add(invoiceRequests.size());
+        if (!enabled) {
+            return invoiceBatcher.submitAll(invoiceRequests, idempotencyKeys);
+        }
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> results = new ArrayList<>(invoiceRequests.size());
+        List<AbacusClient.InvoiceRequest> toSubmit = new ArrayList<>();
+        List<String> toSubmitIdempotencyKeys = idempotencyKeys == null ? null : new ArrayList<>();
+        List<Key> newKeys = new ArrayList<>();
+        List<Flight> newFlights = new ArrayList<>();
+        for (int i = 0; i < invoiceRequests.size(); i++) {
+            AbacusClient.InvoiceRequest invoiceRequest = invoiceRequests.get(i);
+            Key key = Key.of(invoiceRequest);
+            Flight candidate = new Flight();
+            Flight flight = join(key, candidate);
+            if (flight == candidate) {
+                toSubmit.add(invoiceRequest);
+                if (toSubmitIdempotencyKeys != null) {
+                    toSubmitIdempotencyKeys.add(idempotencyKeys.get(i));
+                }
+                newKeys.add(key);
+                newFlights.add(flight);
+            } else {
+                coalesced.increment();
+            }
+            // A copy, so a caller that cancels its result does not cancel the call for everyone sharing it
+            results.add(flight.response.copy());
+        }
+
+        if (!toSubmit.isEmpty()) {
+            List<CompletableFuture<AbacusClient.ProcessResponse>> responses = invoiceBatcher.submitAll(toSubmit, toSubmitIdempotencyKeys);
+            for (int i = 0; i < responses.size(); i++) {
+                Key key = newKeys.get(i);
+                Flight flight = newFlights.get(i);
+                responses.get(i).whenComplete((response, failure) -> land(key, flight, response, failure));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param candidate A new flight, registered under the key if there is no flight to join
+     * @return The flight to join, or the candidate if it was registered and the caller must make its call
+     */
+    private Flight join(Key key, Flight candidate) {
+        while (true) {
+            Flight existing = flights.get(key);
+            if (existing != null && existing.isJoinable(System.nanoTime(), windowNanos)) {
+                return existing;
+            }
+            boolean registered = existing == null
+                    ? flights.putIfAbsent(key, candidate) == null
+                    : flights.replace(key, existing, candidate);
+            if (registered) {
+                return candidate;
+            }
+            // Another caller registered a flight for this key first; try to join it
+        }
+    }
+
+    private void land(Key key, Flight flight, AbacusClient.ProcessResponse response, Throwable failure) {
+        if (failure != null) {
+            flight.response.completeExceptionally(failure);
+            flights.remove(key, flight);
+            return;
+        }
+        flight.response.complete(response);
+        long remainingNanos = flight.startedNanos + windowNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+            flights.remove(key, flight);
+        } else {
+            CompletableFuture.delayedExecutor(remainingNanos, TimeUnit.NANOSECONDS).execute(() -> flights.remove(key, flight));
+        }
+    }
+
+    /**
+     * One call to Abacus that identical invoices share
+     */
+    private static class Flight {
+        private final long startedNanos = System.nanoTime();
+        private final CompletableFuture<AbacusClient.ProcessResponse> response = new CompletableFuture<>();
+
+        boolean isJoinable(long nowNanos, long windowNanos) {
+            if (!response.isDone()) {
+                return true;
+            }
+            return !response.isCompletedExceptionally() && nowNanos - startedNanos < windowNanos;
+        }
+    }
+
+    /**
+     * The normalized fields that make two invoices identical
+     */
+    private static final class Key {
+        private final String customer;
+        private final Double amount;
+        private final LocalDate date;
+
+        private Key(String customer, Double amount, LocalDate date) {
+            this.customer = customer;
+            this.amount = amount;
+            this.date = date;
+        }
+
+        static Key of(AbacusClient.InvoiceRequest invoiceRequest) {
+            String customer = invoiceRequest.getCustomer() == null ? null : invoiceRequest.getCustomer().strip();
+            Double amount = invoiceRequest.getAmount();
+            if (amount != null && amount == 0) {
+                amount = 0.0; // -0.0 is the same amount
+            }
+            return new Key(customer, amount, invoiceRequest.getDate());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return Objects.equals(customer, key.customer) && Objects.equals(amount, key.amount) && Objects.equals(date, key.date);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(customer, amount, date);
+        }
+    }
+}
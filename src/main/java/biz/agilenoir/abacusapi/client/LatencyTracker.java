@@ -0,0 +1,52 @@
+package biz.agilenoir.abacusapi.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the latencies of the most recent successful calls and a percentile of them.
+ * Recording is lock-free. The percentile is recomputed every {@link #REFRESH_INTERVAL} samples, so reading it is cheap.
+ */
+class LatencyTracker {
+    static final int WINDOW = 256;
+    static final int REFRESH_INTERVAL = 16;
+    static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final AtomicLongArray samples = new AtomicLongArray(WINDOW);
+    private final AtomicLong sampleCount = new AtomicLong();
+    private volatile long percentileNanos = -1;
+
+    /**
+     * @param percentile The percentile to keep, between 0 and 1. For example 0.95.
+     */
+    LatencyTracker(double percentile) {
+        this.percentile = percentile;
+    }
+
+    void record(long latencyNanos) {
+        long count = sampleCount.getAndIncrement();
+        samples.set((int) (count % WINDOW), latencyNanos);
+        if (count + 1 >= MIN_SAMPLES && (count + 1) % REFRESH_INTERVAL == 0) {
+            percentileNanos = computePercentile((int) Math.min(count + 1, WINDOW));
+        }
+    }
+
+    /**
+     * @return The latency percentile of the recent calls, or -1 until enough calls have been recorded
+     */
+    long percentileNanos() {
+        return percentileNanos;
+    }
+
+    private long computePercentile(int size) {
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        // A percentile of 0, as kept when hedging is off, is the fastest call
+        return sorted[Math.max(0, Math.min(size - 1, (int) Math.ceil(percentile * size) - 1))];
+    }
+}
@@ -0,0 +1,44 @@
+package biz.agilenoir.abacusapi.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries and hedged requests to a share of the original requests, so that a struggling Abacus is not sent
+ * several times its normal load. Every original request earns the ratio of a token, up to a cap, and every extra
+ * request spends a whole token. The budget starts full so that a quiet service can still retry.
+ */
+class RetryBudget {
+    private static final long MILLI_TOKENS_PER_TOKEN = 1000;
+
+    private final long depositMilliTokens;
+    private final long maxMilliTokens;
+    private final AtomicLong milliTokens;
+
+    /**
+     * @param ratio Extra requests allowed per original request, for example 0.1
+     * @param maxTokens The most extra requests that can be saved up
+     */
+    RetryBudget(double ratio, int maxTokens) {
+        this.depositMilliTokens = Math.round(ratio * MILLI_TOKENS_PER_TOKEN);
+        this.maxMilliTokens = maxTokens * MILLI_TOKENS_PER_TOKEN;
+        this.milliTokens = new AtomicLong(maxMilliTokens);
+    }
+
+    void recordRequest() {
+        milliTokens.getAndUpdate(balance -> Math.min(maxMilliTokens, balance + depositMilliTokens));
+    }
+
+    /**
+     * @return True if an extra request may be sent. Its token has been spent.
+     */
+    boolean tryWithdraw() {
+        long balance = milliTokens.get();
+        while (balance >= MILLI_TOKENS_PER_TOKEN) {
+            if (milliTokens.compareAndSet(balance, balance - MILLI_TOKENS_PER_TOKEN)) {
+                return true;
+            }
+            balance = milliTokens.get();
+        }
+        return false;
+    }
+}
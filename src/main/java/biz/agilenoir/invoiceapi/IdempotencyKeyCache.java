@@ -0,0 +1,157 @@
+package biz.agilenoir.invoiceapi;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the response to each request that carried an Idempotency-Key, so a client that repeats the request gets
+ * the original response instead of a second invoice.
+ * The first request with a key registers a future for its response; requests with the same key that arrive while it
+ * is in flight wait on that future rather than racing it. The cache holds at most maxKeys keys, dropping the least
+ * recently used, and forgets a key once its time to live has passed.
+ */
+public class IdempotencyKeyCache {
+    private final int maxKeys;
+    private final long timeToLiveNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Entry> entries;
+
+    /**
+     * Constructor
+     * @param maxKeys The most keys to remember
+     * @param timeToLive How long a key is remembered after its first request
+     */
+    public IdempotencyKeyCache(int maxKeys, Duration timeToLive) {
+        this.maxKeys = maxKeys;
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > IdempotencyKeyCache.this.maxKeys;
+            }
+        };
+    }
+
+    /**
+     * Claim a key for a request, unless an earlier request holds it
+     * @param key The request's Idempotency-Key
+     * @param requestFingerprint Identifies the request body, so a key reused for a different request can be told apart
+     * @param response The future this request will complete with its response, if the key is claimed
+     * @return Null if this request claimed the key and must complete the response. Otherwise the earlier request's entry.
+     */
+    public Entry claim(String key, byte[] requestFingerprint, CompletableFuture<CachedResponse> response) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Entry earlier = entries.get(key);
+            if (earlier != null && now - earlier.createdNanos < timeToLiveNanos) {
+                return earlier;
+            }
+            entries.put(key, new Entry(requestFingerprint, response, now));
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget a key whose request failed in a way the client may retry
+     * @param response The response future the key was claimed with. A later claim of the same key is left alone.
+     */
+    public void release(String key, CompletableFuture<CachedResponse> response) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.response == response) {
+                entries.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The request that claimed a key and its response
+     */
+    public static final class Entry {
+        private final byte[] requestFingerprint;
+        private final CompletableFuture<CachedResponse> response;
+        private final long createdNanos;
+
+        private Entry(byte[] requestFingerprint, CompletableFuture<CachedResponse> response, long createdNanos) {
+            this.requestFingerprint = requestFingerprint;
+            this.response = response;
+            this.createdNanos = createdNanos;
+        }
+
+        /**
+         * @return True if the request that claimed the key had the same fingerprint
+         */
+        public boolean isSameRequest(byte[] requestFingerprint) {
+            return Arrays.equals(this.requestFingerprint, requestFingerprint);
+        }
+
+        public CompletableFuture<CachedResponse> getResponse() {
+            return response;
+        }
+    }
+
+    /**
+     * A response as it was sent to the client
+     */
+    public static final class CachedResponse {
+        private final int statusCode;
+        private final byte[] body;
+        private final String eTag;
+        private final String location;
+
+        public CachedResponse(int statusCode, byte[] body, String eTag) {
+            this(statusCode, body, eTag, null);
+        }
+
+        public CachedResponse(int statusCode, byte[] body, String eTag, String location) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.eTag = eTag;
+            this.location = location;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return The encoded body. Callers must not change the array.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return The ETag of the response, or null if it had none
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return The Location of the response, or null if it had none
+         */
+        public String getLocation() {
+            return location;
+        }
+    }
+}
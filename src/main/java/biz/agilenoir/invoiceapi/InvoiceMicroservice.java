@@ -1,20 +1,63 @@
 package biz.agilenoir.invoiceapi;
 
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.sun.net.httpserver.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import biz.agilenoir.abacusapi.client.AbacusCallGuard;
 import biz.agilenoir.abacusapi.client.AbacusClient;
+import biz.agilenoir.abacusapi.client.AbacusUnavailableException;
+import biz.agilenoir.abacusapi.client.InvoiceBatcher;
+import biz.agilenoir.abacusapi.client.InvoiceRequestCoalescer;
+import biz.agilenoir.invoiceapi.logging.AsyncLogWriter;
+import biz.agilenoir.invoiceapi.logging.LogLevel;
+import biz.agilenoir.invoiceapi.logging.Logger;
+import biz.agilenoir.invoiceapi.logging.Logging;
+import biz.agilenoir.invoiceapi.metrics.MetricsFilter;
+import biz.agilenoir.invoiceapi.metrics.ServiceMetrics;
+import biz.agilenoir.invoiceapi.store.ConcurrentInvoiceStore;
+import biz.agilenoir.invoiceapi.store.InvoiceJournal;
+import biz.agilenoir.invoiceapi.store.InvoicePage;
+import biz.agilenoir.invoiceapi.store.InvoiceQuery;
+import biz.agilenoir.invoiceapi.store.InvoiceStatus;
+import biz.agilenoir.invoiceapi.store.InvoiceStore;
+import biz.agilenoir.invoiceapi.store.InvoiceSummary;
+import biz.agilenoir.invoiceapi.store.JournaledInvoiceStore;
+import biz.agilenoir.invoiceapi.validation.InvalidRequestException;
+import biz.agilenoir.invoiceapi.validation.RequestSchema;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.exc.StreamReadException;
+import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -57,61 +100,325 @@ public class InvoiceMicroservice {
 
 
     public static class ConfigurationArgumentIndices {
-        public static final int ARRAY_SIZE = 2;  // If adding more indices, increase this number
+        public static final int ARRAY_SIZE = 3;  // If adding more indices, increase this number
         public static final int INVOICE_SERVICE_PORT = 0;
         public static final int ABACUS_SERVICE_PORT = 1;
+        public static final int EXECUTOR_MODE = 2;
     }
 
-    // In-memory storage for invoices
-    private static final List<Map<String, Object>> invoices = new ArrayList<>();
+    /**
+     * How the HttpServer runs request handlers.
+     * Set with the EXECUTOR_MODE configuration argument: "virtual", "pooled", "pooled:{threads}" or "dispatcher".
+     */
+    public enum ExecutorMode {
+        /** A new virtual thread for every request. The default. */
+        VIRTUAL,
+        /** A fixed number of platform threads. */
+        POOLED,
+        /** Every request runs on the HttpServer's single dispatcher thread. */
+        DISPATCHER;
+
+        static final int DEFAULT_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+        /**
+         * @return The executor to hand to HttpServer.setExecutor. Null selects the dispatcher thread.
+         */
+        Executor createExecutor(int poolSize) {
+            switch (this) {
+                case VIRTUAL:
+                    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("invoice-request-", 0).factory());
+                case POOLED:
+                    return Executors.newFixedThreadPool(poolSize, Thread.ofPlatform().name("invoice-request-", 0).factory());
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * System properties that tune the connection to Abacus.
+     */
+    public static class AbacusConnectionProperties {
+        public static final String CONNECT_TIMEOUT_MILLIS = "abacus.connectTimeoutMillis";
+        public static final String REQUEST_TIMEOUT_MILLIS = "abacus.requestTimeoutMillis";
+        public static final String HTTP2 = "abacus.http2";
+        public static final String MAX_RETRIES = "abacus.maxRetries";
+        public static final String RETRY_BUDGET_RATIO = "abacus.retryBudgetRatio";
+        public static final String HEDGE_PERCENTILE = "abacus.hedgePercentile";
+        public static final String PROCESS_ENCODING = "abacus.processEncoding";
+        public static final String BATCH_MAX_SIZE = "abacus.batch.maxSize";
+        public static final String BATCH_LINGER_MILLIS = "abacus.batch.lingerMillis";
+        public static final String COALESCE_ENABLED = "abacus.coalesce.enabled";
+        public static final String COALESCE_WINDOW_MILLIS = "abacus.coalesce.windowMillis";
+        public static final String BREAKER_FAILURE_THRESHOLD = "abacus.breaker.failureThreshold";
+        public static final String BREAKER_OPEN_MILLIS = "abacus.breaker.openMillis";
+        public static final String MAX_CONCURRENT_CALLS = "abacus.maxConcurrentCalls";
+        public static final String LIMIT_LATENCY_THRESHOLD_MILLIS = "abacus.limit.latencyThresholdMillis";
+    }
+
+    /**
+     * System properties that tune the invoice service itself.
+     */
+    public static class ServiceProperties {
+        public static final String JSON_CACHE_MAX_BYTES = "invoice.jsonCache.maxBytes";
+        public static final String IDEMPOTENCY_MAX_KEYS = "invoice.idempotency.maxKeys";
+        public static final String IDEMPOTENCY_TTL_SECONDS = "invoice.idempotency.ttlSeconds";
+        public static final String JOURNAL_DIR = "invoice.journal.dir";
+        public static final String JOURNAL_SYNC_WRITES = "invoice.journal.syncWrites";
+        public static final String JOURNAL_GROUP_COMMIT_MICROS = "invoice.journal.groupCommitMicros";
+        public static final String JOURNAL_SEGMENT_BYTES = "invoice.journal.segmentBytes";
+        public static final String JOURNAL_SNAPSHOT_EVERY_SEGMENTS = "invoice.journal.snapshotEverySegments";
+        public static final String HTTP_SERVER_NODELAY = "sun.net.httpserver.nodelay";
+        public static final String LOG_LEVEL = "invoice.log.level";
+        public static final String LOG_BUFFER_SIZE = "invoice.log.bufferSize";
+        public static final String LOG_OVERFLOW = "invoice.log.overflow";
+        public static final String LOG_REQUEST_SAMPLE_RATE = "invoice.log.requestSampleRate";
+        public static final String ASYNC_BY_DEFAULT = "invoice.async.default";
+        public static final String OUTBOX_WORKERS = "invoice.outbox.workers";
+        public static final String OUTBOX_BATCH_SIZE = "invoice.outbox.batchSize";
+        public static final String OUTBOX_RETRY_BACKOFF_MILLIS = "invoice.outbox.retryBackoffMillis";
+        public static final String OUTBOX_MAX_RETRY_BACKOFF_MILLIS = "invoice.outbox.maxRetryBackoffMillis";
+        public static final String OUTBOX_REVIEW_POLL_MILLIS = "invoice.outbox.reviewPollMillis";
+        public static final String REQUEST_MAX_BYTES = "invoice.request.maxBytes";
+        public static final String REQUEST_BUFFER_BYTES = "invoice.request.bufferBytes";
+        public static final String REQUEST_BATCH_MAX_BYTES = "invoice.request.batchMaxBytes";
+        public static final String COMPRESSION_ENABLED = "invoice.compression.enabled";
+        public static final String COMPRESSION_MIN_BYTES = "invoice.compression.minBytes";
+        public static final String COMPRESSION_LEVEL = "invoice.compression.level";
+    }
+
+    private static final Logger log = Logging.getLogger(InvoiceMicroservice.class);
+    // Lines written for every request; only a share of them is written if the sample rate is below 1
+    private static final Logger requestLog = log.sampled(Double.parseDouble(System.getProperty(ServiceProperties.LOG_REQUEST_SAMPLE_RATE, "1")));
+    // Storage for invoices: in memory, and journaled to disk if a journal directory is configured
+    private static final InvoiceStore invoices = createInvoiceStore();
+    // JSON mapper shared by every request. A configured ObjectMapper is thread-safe.
+    private static final ObjectMapper objectMapper = AbacusClient.newObjectMapper();
+    private static final ObjectReader invoiceRequestReader = objectMapper.readerFor(InvoiceRequest.class);
+    // Bind POSTed invoices straight to the requests sent to Abacus, accepting and dropping the id and status an
+    // InvoiceRequest may carry
+    private static final ObjectMapper postedInvoiceMapper = objectMapper.copy()
+            .addMixIn(AbacusClient.InvoiceRequest.class, PostedInvoiceRequest.class);
+    private static final ObjectReader abacusInvoiceRequestReader = postedInvoiceMapper.readerFor(AbacusClient.InvoiceRequest.class);
+    private static final ObjectReader abacusInvoiceRequestListReader = postedInvoiceMapper.readerForListOf(AbacusClient.InvoiceRequest.class);
+    // The rules of a POSTed invoice, compiled once from the OpenAPI spec and checked while the body is parsed
+    private static final RequestSchema invoiceRequestSchema = loadInvoiceRequestSchema();
+    // gzip or deflate for response bodies long enough to be worth it, for clients that accept them
+    private static final ResponseCompression responseCompression = createResponseCompression();
     private int portNumber;
-    private static int abacusPortNumber;
+    private int abacusPortNumber;
+    private ExecutorMode executorMode = ExecutorMode.VIRTUAL;
+    private int executorPoolSize = ExecutorMode.DEFAULT_POOL_SIZE;
 
     /**
      * Service entry point. AKA a "main."
      * @param configurationSettings first array element is port number for InvoiceMicroservice. The second element is for Abacus.
+     *                              The optional third element selects the {@link ExecutorMode}.
      * @throws IOException Raised if there is a network problem.
      */
     public static void main(String[] configurationSettings) throws IOException {
         InvoiceMicroservice invoiceMicroservice = new InvoiceMicroservice();
         processConfigurationSettings(configurationSettings, invoiceMicroservice);
+        configureLogging();
 
         // Initialize with some sample data
         initializeSampleData();
 
+        // Send responses at once. Otherwise the HttpServer lets Nagle's algorithm hold the body back until the client
+        // acknowledges the headers, which costs a delayed ACK (about 40 ms) per response. Read when the server starts.
+        if (System.getProperty(ServiceProperties.HTTP_SERVER_NODELAY) == null) {
+            System.setProperty(ServiceProperties.HTTP_SERVER_NODELAY, "true");
+        }
+
         // Create HTTP server on port
         HttpServer server = HttpServer.create(new InetSocketAddress(invoiceMicroservice.portNumber), 0);
 
+        // One Abacus client for the life of the service, so connections to Abacus are reused
+        AbacusClient abacusClient = createAbacusClient(invoiceMicroservice.abacusPortNumber);
+        System.out.println("AbacusClient connecting to service at " + abacusClient.getBasePath());
+        AbacusCallGuard abacusCallGuard = createAbacusCallGuard();
+        InvoiceBatcher invoiceBatcher = new InvoiceBatcher(abacusClient, abacusCallGuard,
+                Integer.getInteger(AbacusConnectionProperties.BATCH_MAX_SIZE, 50),
+                Duration.ofMillis(Long.getLong(AbacusConnectionProperties.BATCH_LINGER_MILLIS, 0)));
+        InvoiceRequestCoalescer invoiceRequestCoalescer = new InvoiceRequestCoalescer(invoiceBatcher,
+                Boolean.getBoolean(AbacusConnectionProperties.COALESCE_ENABLED),
+                Duration.ofMillis(Long.getLong(AbacusConnectionProperties.COALESCE_WINDOW_MILLIS, 0)));
+
+        SerializedInvoiceCache serializedInvoices = new SerializedInvoiceCache(InvoiceMicroservice::toJsonBytes,
+                Long.getLong(ServiceProperties.JSON_CACHE_MAX_BYTES, 64L * 1024 * 1024));
+
+        RequestBodyReader.Settings requestBodySettings = new RequestBodyReader.Settings();
+        requestBodySettings.setMaxBytes(Integer.getInteger(ServiceProperties.REQUEST_MAX_BYTES, requestBodySettings.getMaxBytes()));
+        requestBodySettings.setBufferSize(Integer.getInteger(ServiceProperties.REQUEST_BUFFER_BYTES, requestBodySettings.getBufferSize()));
+        RequestBodyReader requestBodies = new RequestBodyReader(requestBodySettings);
+        // Batches hold up to MAX_BATCH_INVOICES invoices, so they get a limit of their own and fewer, larger buffers
+        RequestBodyReader.Settings batchBodySettings = new RequestBodyReader.Settings();
+        batchBodySettings.setMaxBytes(Integer.getInteger(ServiceProperties.REQUEST_BATCH_MAX_BYTES, 1024 * 1024));
+        batchBodySettings.setBufferSize(64 * 1024);
+        batchBodySettings.setPoolSize(16);
+        RequestBodyReader batchRequestBodies = new RequestBodyReader(batchBodySettings);
+
+        InvoiceOutbox invoiceOutbox = new InvoiceOutbox(invoices, invoiceBatcher, serializedInvoices, outboxSettings());
+        int recoveredInvoices = invoiceOutbox.recover();
+        if (recoveredInvoices > 0) {
+            System.out.println("Queued " + recoveredInvoices + " invoices still waiting for Abacus");
+        }
+
+        IdempotencyKeyCache idempotentResponses = new IdempotencyKeyCache(
+                Integer.getInteger(ServiceProperties.IDEMPOTENCY_MAX_KEYS, 10_000),
+                Duration.ofSeconds(Long.getLong(ServiceProperties.IDEMPOTENCY_TTL_SECONDS, 24 * 60 * 60)));
+
+        ServiceMetrics metrics = new ServiceMetrics(invoices::size, invoiceRequestCoalescer::getCoalesced);
+        MetricsFilter metricsFilter = new MetricsFilter(metrics);
+
         // Define API endpoints
-        server.createContext("/api/invoices", new InvoiceHandler());
-        server.createContext("/api/health", new HealthCheckHandler());
+        server.createContext("/api/invoices", new InvoiceHandler(invoices, invoiceRequestCoalescer, invoiceOutbox, serializedInvoices, idempotentResponses,
+                        requestBodies, batchRequestBodies, metrics, Boolean.getBoolean(ServiceProperties.ASYNC_BY_DEFAULT)))
+                .getFilters().add(metricsFilter);
+        server.createContext("/api/health", new HealthCheckHandler(abacusCallGuard)).getFilters().add(metricsFilter);
+        server.createContext("/api/metrics", new MetricsHandler(metrics)).getFilters().add(metricsFilter);
 
         // Set executor and start server
-        server.setExecutor(null);
+        server.setExecutor(invoiceMicroservice.executorMode.createExecutor(invoiceMicroservice.executorPoolSize));
         server.start();
 
         System.out.println("API Server started on port " + invoiceMicroservice.portNumber );
+        System.out.println("Executor mode: " + invoiceMicroservice.executorMode
+                + (invoiceMicroservice.executorMode == ExecutorMode.POOLED ? " (" + invoiceMicroservice.executorPoolSize + " threads)" : ""));
         System.out.println("Available endpoints:");
         System.out.println("  GET  /api/health - Health check endpoint");
         System.out.println("  GET  /api/invoices - List all invoices");
         System.out.println("  GET  /api/invoices?id={id} - Get invoice by ID");
+        System.out.println("  GET  /api/invoices?limit={n}&cursor={cursor} - Get one page of invoices");
+        System.out.println("  GET  /api/invoices?customer=&status=&dateFrom=&dateTo=&amountMin=&amountMax= - Get the invoices that match the filters");
         System.out.println("  POST /api/invoices - Create a new invoice (send JSON in request body)");
+        System.out.println("  POST /api/invoices with Prefer: respond-async - Accept a new invoice now and send it to Abacus in the background");
+        System.out.println("  GET  /api/invoices/summary - Get invoice counts and totals by status, customer and month");
+        System.out.println("  POST /api/invoices/batch - Create several invoices (send a JSON array in request body)");
     }
 
     private static void processConfigurationSettings(String[] args, InvoiceMicroservice invoiceMicroservice) {
         if (args.length < 1) invoiceMicroservice.portNumber = 8090;
         if( args.length >= 1 ) invoiceMicroservice.portNumber = Integer.parseInt(args[ConfigurationArgumentIndices.INVOICE_SERVICE_PORT]);
         if( args.length >= 2 ) invoiceMicroservice.abacusPortNumber = Integer.parseInt(args[ConfigurationArgumentIndices.ABACUS_SERVICE_PORT]);
+        if( args.length >= 3 && args[ConfigurationArgumentIndices.EXECUTOR_MODE] != null ) processExecutorMode(args[ConfigurationArgumentIndices.EXECUTOR_MODE], invoiceMicroservice);
         if (args.length > ConfigurationArgumentIndices.ARRAY_SIZE) {
             System.out.println("Invalid number of arguments. Expected " + ConfigurationArgumentIndices.ARRAY_SIZE + " but received " + args.length);
             System.exit(1);
         }
     }
 
+    private static void configureLogging() {
+        AsyncLogWriter.Settings settings = new AsyncLogWriter.Settings();
+        settings.setLevel(LogLevel.valueOf(System.getProperty(ServiceProperties.LOG_LEVEL, settings.getLevel().name()).toUpperCase(Locale.ROOT)));
+        settings.setBufferSize(Integer.getInteger(ServiceProperties.LOG_BUFFER_SIZE, settings.getBufferSize()));
+        settings.setOverflow(AsyncLogWriter.Overflow.valueOf(System.getProperty(ServiceProperties.LOG_OVERFLOW, settings.getOverflow().name()).toUpperCase(Locale.ROOT)));
+        Logging.configure(settings);
+    }
+
+    private static AbacusClient createAbacusClient(int abacusPortNumber) {
+        AbacusClient.Settings settings = new AbacusClient.Settings();
+        settings.setConnectTimeout(Duration.ofMillis(Long.getLong(AbacusConnectionProperties.CONNECT_TIMEOUT_MILLIS, settings.getConnectTimeout().toMillis())));
+        settings.setRequestTimeout(Duration.ofMillis(Long.getLong(AbacusConnectionProperties.REQUEST_TIMEOUT_MILLIS, settings.getRequestTimeout().toMillis())));
+        settings.setHttp2(Boolean.getBoolean(AbacusConnectionProperties.HTTP2));
+        settings.setMaxRetries(Integer.getInteger(AbacusConnectionProperties.MAX_RETRIES, settings.getMaxRetries()));
+        settings.setRetryBudgetRatio(Double.parseDouble(System.getProperty(AbacusConnectionProperties.RETRY_BUDGET_RATIO, String.valueOf(settings.getRetryBudgetRatio()))));
+        settings.setHedgePercentile(Double.parseDouble(System.getProperty(AbacusConnectionProperties.HEDGE_PERCENTILE, String.valueOf(settings.getHedgePercentile()))));
+        settings.setProcessEncoding(AbacusClient.Encoding.valueOf(System.getProperty(AbacusConnectionProperties.PROCESS_ENCODING, settings.getProcessEncoding().name()).toUpperCase(Locale.ROOT)));
+        settings.setObjectMapper(objectMapper);
+        return new AbacusClient("http://localhost:" + abacusPortNumber, settings);
+    }
+
+    private static ResponseCompression createResponseCompression() {
+        ResponseCompression.Settings settings = new ResponseCompression.Settings();
+        settings.setEnabled(Boolean.parseBoolean(System.getProperty(ServiceProperties.COMPRESSION_ENABLED, String.valueOf(settings.isEnabled()))));
+        settings.setMinBytes(Integer.getInteger(ServiceProperties.COMPRESSION_MIN_BYTES, settings.getMinBytes()));
+        settings.setLevel(Integer.getInteger(ServiceProperties.COMPRESSION_LEVEL, settings.getLevel()));
+        return new ResponseCompression(settings);
+    }
+
+    private static AbacusCallGuard createAbacusCallGuard() {
+        AbacusCallGuard.Settings settings = new AbacusCallGuard.Settings();
+        settings.setFailureThreshold(Integer.getInteger(AbacusConnectionProperties.BREAKER_FAILURE_THRESHOLD, settings.getFailureThreshold()));
+        settings.setOpenDuration(Duration.ofMillis(Long.getLong(AbacusConnectionProperties.BREAKER_OPEN_MILLIS, settings.getOpenDuration().toMillis())));
+        settings.setMaxConcurrentCalls(Integer.getInteger(AbacusConnectionProperties.MAX_CONCURRENT_CALLS, settings.getMaxConcurrentCalls()));
+        settings.setLatencyThreshold(Duration.ofMillis(Long.getLong(AbacusConnectionProperties.LIMIT_LATENCY_THRESHOLD_MILLIS, settings.getLatencyThreshold().toMillis())));
+        return new AbacusCallGuard(settings);
+    }
+
     /**
-     * Initialize sample invoice data
+     * @param setting executor mode name, optionally followed by ":" and a thread count for the pooled mode. For example "pooled:32".
+     */
+    private static void processExecutorMode(String setting, InvoiceMicroservice invoiceMicroservice) {
+        String[] parts = setting.trim().split(":", 2);
+        try {
+            invoiceMicroservice.executorMode = ExecutorMode.valueOf(parts[0].toUpperCase(Locale.ROOT));
+            if (parts.length == 2) invoiceMicroservice.executorPoolSize = Integer.parseInt(parts[1]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid executor mode '" + setting + "'. Expected virtual, pooled, pooled:{threads} or dispatcher");
+            System.exit(1);
+        }
+        if (invoiceMicroservice.executorPoolSize < 1) {
+            System.out.println("Invalid executor pool size " + invoiceMicroservice.executorPoolSize);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return The outbox settings, from the OUTBOX_ service properties
+     */
+    private static InvoiceOutbox.Settings outboxSettings() {
+        InvoiceOutbox.Settings settings = new InvoiceOutbox.Settings();
+        settings.setWorkers(Integer.getInteger(ServiceProperties.OUTBOX_WORKERS, settings.getWorkers()));
+        settings.setBatchSize(Integer.getInteger(ServiceProperties.OUTBOX_BATCH_SIZE, settings.getBatchSize()));
+        settings.setRetryBackoff(Duration.ofMillis(Long.getLong(ServiceProperties.OUTBOX_RETRY_BACKOFF_MILLIS,
+                settings.getRetryBackoff().toMillis())));
+        settings.setMaxRetryBackoff(Duration.ofMillis(Long.getLong(ServiceProperties.OUTBOX_MAX_RETRY_BACKOFF_MILLIS,
+                settings.getMaxRetryBackoff().toMillis())));
+        settings.setReviewPollInterval(Duration.ofMillis(Long.getLong(ServiceProperties.OUTBOX_REVIEW_POLL_MILLIS,
+                settings.getReviewPollInterval().toMillis())));
+        return settings;
+    }
+
+    /**
+     * Create the invoice store. With {@link ServiceProperties#JOURNAL_DIR} set, invoices are journaled to that
+     * directory and the journal is replayed now.
+     */
+    private static InvoiceStore createInvoiceStore() {
+        String journalDirectory = System.getProperty(ServiceProperties.JOURNAL_DIR);
+        if (journalDirectory == null) {
+            return new ConcurrentInvoiceStore();
+        }
+        InvoiceJournal.Settings settings = new InvoiceJournal.Settings();
+        settings.setSegmentBytes(Integer.getInteger(ServiceProperties.JOURNAL_SEGMENT_BYTES, settings.getSegmentBytes()));
+        settings.setGroupCommitWindow(Duration.ofNanos(1000 * Long.getLong(ServiceProperties.JOURNAL_GROUP_COMMIT_MICROS, 0)));
+        settings.setSnapshotEverySegments(Integer.getInteger(ServiceProperties.JOURNAL_SNAPSHOT_EVERY_SEGMENTS, settings.getSnapshotEverySegments()));
+        boolean syncWrites = Boolean.parseBoolean(System.getProperty(ServiceProperties.JOURNAL_SYNC_WRITES, "true"));
+        try {
+            long started = System.nanoTime();
+            JournaledInvoiceStore store = new JournaledInvoiceStore(Path.of(journalDirectory), settings, syncWrites);
+            System.out.println("Recovered " + store.getRecoveredInvoices() + " invoices from " + store.getReplayedRecords()
+                    + " journal records in " + journalDirectory + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            return store;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the invoice journal in " + journalDirectory, e);
+        }
+    }
+
+    /**
+     * Initialize sample invoice data. Invoices recovered from a journal are kept instead.
      */
     private static void initializeSampleData() {
+        if (invoices instanceof JournaledInvoiceStore && ((JournaledInvoiceStore) invoices).getRecoveredInvoices() > 0) {
+            return;
+        }
         invoices.clear();
 
         // Sample invoice 1
@@ -139,10 +446,67 @@ public class InvoiceMicroservice {
      * Handler for invoice-related endpoints
      */
     static class InvoiceHandler implements HttpHandler {
+        static final String BATCH_PATH = "/api/invoices/batch";
+        static final String SUMMARY_PATH = "/api/invoices/summary";
+        static final int MAX_BATCH_INVOICES = 1000;
+        static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+        static final String RESPOND_ASYNC = "respond-async";
+        private static final byte[] SERVICE_UNAVAILABLE_BODY = "{\"error\": \"Internal Server Error\"}".getBytes(StandardCharsets.UTF_8);
+
+        private final InvoiceStore invoiceStore;
+        private final InvoiceRequestCoalescer invoiceRequestCoalescer;
+        private final InvoiceOutbox invoiceOutbox;
+        private final SerializedInvoiceCache serializedInvoices;
+        private final IdempotencyKeyCache idempotentResponses;
+        private final RequestBodyReader requestBodies;
+        private final RequestBodyReader batchRequestBodies;
+        private final ServiceMetrics metrics;
+        // Store versions count from the same start on every boot, so list and summary ETags also hash this boot's epoch
+        private final String eTagEpoch = Long.toHexString(new SecureRandom().nextLong());
+        private final boolean asyncByDefault;
+
+        /**
+         * @param requestBodies Reads the body of a POST of one invoice
+         * @param batchRequestBodies Reads the body of a POST of a batch of invoices, with a larger limit
+         * @param asyncByDefault True to accept every new invoice at once and send it to Abacus through the outbox,
+         *                       not only those whose request asks for it with Prefer: respond-async
+         */
+        InvoiceHandler(InvoiceStore invoiceStore, InvoiceRequestCoalescer invoiceRequestCoalescer, InvoiceOutbox invoiceOutbox,
+                       SerializedInvoiceCache serializedInvoices, IdempotencyKeyCache idempotentResponses,
+                       RequestBodyReader requestBodies, RequestBodyReader batchRequestBodies, ServiceMetrics metrics,
+                       boolean asyncByDefault) {
+            this.invoiceStore = invoiceStore;
+            this.invoiceRequestCoalescer = invoiceRequestCoalescer;
+            this.invoiceOutbox = invoiceOutbox;
+            this.serializedInvoices = serializedInvoices;
+            this.idempotentResponses = idempotentResponses;
+            this.requestBodies = requestBodies;
+            this.batchRequestBodies = batchRequestBodies;
+            this.metrics = metrics;
+            this.asyncByDefault = asyncByDefault;
+        }
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             String method = exchange.getRequestMethod();
 
+            if (BATCH_PATH.equals(exchange.getRequestURI().getPath())) {
+                if ("POST".equals(method)) {
+                    handleCreateInvoiceBatch(exchange);
+                } else {
+                    sendResponse(exchange, 405, "Method Not Allowed");
+                }
+                return;
+            }
+            if (SUMMARY_PATH.equals(exchange.getRequestURI().getPath())) {
+                if ("GET".equals(method)) {
+                    handleGetSummary(exchange);
+                } else {
+                    sendResponse(exchange, 405, "Method Not Allowed");
+                }
+                return;
+            }
+
             switch (method) {
                 case "GET":
                     handleGetInvoices(exchange);
@@ -156,120 +520,506 @@ public class InvoiceMicroservice {
         }
 
         /**
-         * Handle GET requests for invoices
+         * Handle GET requests for invoices.
+         * Every successful response carries a strong ETag, and a request whose If-None-Match holds the current ETag
+         * gets a 304 without a body. A single invoice's ETag and body come from the serialized invoice cache.
+         * A list's ETag is derived from the store version and the query, so it is known before anything is serialized.
+         * <p>
+         * Invoices are sent as JSON unless the Accept header prefers CBOR or Smile. Binary invoices are encoded for
+         * each request, and every ETag differs between formats, so a cache never serves one format for another.
          */
         private void handleGetInvoices(HttpExchange exchange) throws IOException {
-            String query = exchange.getRequestURI().getQuery();
-            String response;
+            Map<String, String> parameters = queryParameters(exchange.getRequestURI());
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            MediaFormat format = negotiateFormat(exchange);
 
-            if (query != null && query.startsWith("id=")) {
+            if (parameters.containsKey("id")) {
                 // Get invoice by ID
-                String id = query.substring(3);
+                String id = parameters.get("id");
                 Map<String, Object> invoice = findInvoiceById(id);
 
                 if (invoice != null) {
-                    response = convertToJson(invoice);
-                    sendResponse(exchange, 200, response);
+                    byte[] body;
+                    String eTag;
+                    if (format.isBinary()) {
+                        body = toBytes(format, invoice);
+                        eTag = SerializedInvoiceCache.strongETag(body);
+                    } else {
+                        SerializedInvoiceCache.SerializedInvoice serialized = serializedInvoices.get(invoice);
+                        body = serialized.getBody();
+                        eTag = serialized.getETag();
+                    }
+                    if (SerializedInvoiceCache.matchesIfNoneMatch(ifNoneMatch, eTag)) {
+                        sendNotModified(exchange, eTag);
+                    } else {
+                        exchange.getResponseHeaders().set("ETag", eTag);
+                        sendResponse(exchange, 200, format.getMediaType(), body);
+                    }
                 } else {
                     sendResponse(exchange, 404, "{\"error\": \"Invoice not found\"}");
                 }
-            } else {
+                return;
+            }
+
+            // Taken before the list is streamed, so a change that lands meanwhile can be in a body under this ETag.
+            // The version has grown by then, so the next conditional request gets the current list, never a wrong 304.
+            String listETag = SerializedInvoiceCache.strongETag((eTagEpoch + ":" + invoiceStore.version() + "?"
+                    + exchange.getRequestURI().getRawQuery() + formatSuffix(format)).getBytes(StandardCharsets.UTF_8));
+            if (SerializedInvoiceCache.matchesIfNoneMatch(ifNoneMatch, listETag)) {
+                sendNotModified(exchange, listETag);
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", listETag);
+
+            if (parameters.isEmpty()) {
                 // Get all invoices
-                response = convertToJson(invoices);
-                sendResponse(exchange, 200, response);
+                sendInvoiceList(exchange, format, invoiceStore.findAll());
+            } else {
+                // Get the invoices that match the filters, all of them or one page
+                InvoiceQuery invoiceQuery;
+                try {
+                    invoiceQuery = toInvoiceQuery(parameters);
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    sendResponse(exchange, 400, convertToJson(Map.of("error", "Invalid query parameter: " + e.getMessage())));
+                    return;
+                }
+
+                if (parameters.containsKey("limit") || parameters.containsKey("cursor")) {
+                    InvoicePage page;
+                    try {
+                        page = invoiceStore.findPage(invoiceQuery);
+                    } catch (IllegalArgumentException e) {
+                        sendResponse(exchange, 400, convertToJson(Map.of("error", "cursor must come from a previous page")));
+                        return;
+                    }
+                    sendInvoicePage(exchange, format, page);
+                } else {
+                    sendInvoiceList(exchange, format, invoiceStore.findMatching(invoiceQuery));
+                }
             }
         }
 
         /**
-         * Handle POST requests to create a new invoice
+         * Handle GET requests for the invoice summary.
+         * Like a list, the summary's ETag is derived from the boot epoch, the store version, the query and the format,
+         * and is taken before the summary is computed.
          */
-        private void handleCreateInvoice(HttpExchange exchange) throws IOException {
-            if (!invoiceProcessedByAbacus(exchange)) {
-                    sendResponse(exchange, 503, "{\"error\": \"Internal Server Error\"}");
+        private void handleGetSummary(HttpExchange exchange) throws IOException {
+            MediaFormat format = negotiateFormat(exchange);
+            String eTag = SerializedInvoiceCache.strongETag((eTagEpoch + ":" + invoiceStore.version() + SUMMARY_PATH + "?"
+                    + exchange.getRequestURI().getRawQuery() + formatSuffix(format)).getBytes(StandardCharsets.UTF_8));
+            if (SerializedInvoiceCache.matchesIfNoneMatch(exchange.getRequestHeaders().getFirst("If-None-Match"), eTag)) {
+                sendNotModified(exchange, eTag);
+                return;
             }
 
-            // In a real application, we would parse the JSON from the request body
-            // For simplicity, we'll just create a dummy invoice
-            Map<String, Object> newInvoice = new HashMap<>();
-            newInvoice.put("id", "INV-" + (invoices.size() + 1));
-            newInvoice.put("customer", "New Customer");
-            newInvoice.put("amount", 500.00);
-            newInvoice.put("date", "2023-03-01");
-            newInvoice.put("status", "NEW");
+            InvoiceQuery invoiceQuery;
+            try {
+                invoiceQuery = toInvoiceQuery(queryParameters(exchange.getRequestURI()));
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                sendResponse(exchange, 400, convertToJson(Map.of("error", "Invalid query parameter: " + e.getMessage())));
+                return;
+            }
 
-            invoices.add(newInvoice);
+            InvoiceSummary summary = invoiceStore.summarize(invoiceQuery);
+            Map<String, Object> body = totalsJson(summary.getOverall());
+            body.put("byStatus", totalsJson(summary.getByStatus()));
+            body.put("byCustomer", totalsJson(summary.getByCustomer()));
+            body.put("byMonth", totalsJson(summary.getByMonth()));
+            exchange.getResponseHeaders().set("ETag", eTag);
+            sendResponse(exchange, 200, format.getMediaType(), toBytes(format, body));
+        }
 
-            sendResponse(exchange, 201, convertToJson(newInvoice));
+        /**
+         * @return The format the Accept header asks for. The response varies with Accept, whatever the format.
+         */
+        private static MediaFormat negotiateFormat(HttpExchange exchange) {
+            exchange.getResponseHeaders().set("Vary", "Accept");
+            return MediaFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
         }
 
         /**
-         *
-         * @param exchange request from client of microservice
-         * @return True if Abacus successfully processed request. False if otherwires.
+         * @return What to add to a list or summary ETag's input, so that each format has its own ETag. Nothing for
+         * JSON, so JSON ETags stay as they were.
          */
-        private boolean invoiceProcessedByAbacus(HttpExchange exchange) {
-            // prepare the request body
-            String body;
-
-            try (InputStream inputStream = exchange.getRequestBody()) {
-                body = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
-            } catch (Exception e) {
-                System.err.println("Request to InvoiceService interrupted");
-                e.printStackTrace();
-                return false;
+        private static String formatSuffix(MediaFormat format) {
+            return format.isBinary() ? " " + format.getMediaType() : "";
+        }
+
+        private static Map<String, Object> totalsJson(InvoiceSummary.Totals totals) {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("count", totals.getCount());
+            json.put("totalAmount", totals.getTotalAmount());
+            return json;
+        }
+
+        private static Map<String, Object> totalsJson(Map<String, InvoiceSummary.Totals> groups) {
+            Map<String, Object> json = new LinkedHashMap<>();
+            groups.forEach((group, totals) -> json.put(group, totalsJson(totals)));
+            return json;
+        }
+
+        /**
+         * @throws IllegalArgumentException If limit, amountMin or amountMax is not a number, or limit is out of range
+         * @throws DateTimeParseException If dateFrom or dateTo is not an ISO-8601 date
+         */
+        private static InvoiceQuery toInvoiceQuery(Map<String, String> parameters) {
+            InvoiceQuery invoiceQuery = new InvoiceQuery();
+            if (parameters.containsKey("limit")) invoiceQuery.setLimit(Integer.parseInt(parameters.get("limit")));
+            invoiceQuery.setCursor(parameters.get("cursor"));
+            invoiceQuery.setCustomer(parameters.get("customer"));
+            invoiceQuery.setStatus(parameters.get("status"));
+            if (parameters.containsKey("dateFrom")) invoiceQuery.setDateFrom(LocalDate.parse(parameters.get("dateFrom")));
+            if (parameters.containsKey("dateTo")) invoiceQuery.setDateTo(LocalDate.parse(parameters.get("dateTo")));
+            if (parameters.containsKey("amountMin")) invoiceQuery.setAmountMin(Double.parseDouble(parameters.get("amountMin")));
+            if (parameters.containsKey("amountMax")) invoiceQuery.setAmountMax(Double.parseDouble(parameters.get("amountMax")));
+            return invoiceQuery;
+        }
+
+        /**
+         * Handle POST requests to create a new invoice.
+         * The exchange is completed once Abacus answers, on a thread of the AbacusClient, so this handler's thread
+         * is free again as soon as the request to Abacus is sent.
+         * <p>
+         * A request with an Idempotency-Key header is answered with the response to the first request that carried the
+         * key, waiting for it if that request is still in flight, so a retried POST neither creates a second invoice
+         * nor calls Abacus again. A key reused for a different body is refused with 422. A 503 is not remembered,
+         * so the client can retry it with the same key.
+         * <p>
+         * A request with a Prefer: respond-async header, or any request if the service accepts invoices asynchronously
+         * by default, does not wait for Abacus. The invoice is stored with the status PENDING_ABACUS and answered with
+         * a 202 whose Location is the invoice's URL, which shows the outcome once the {@link InvoiceOutbox} has it.
+         * <p>
+         * The body is read into a pooled buffer and bound straight to the request sent to Abacus, and checked against
+         * the InvoiceRequest schema of the spec as it is parsed. A body that is not a valid invoice gets a 400 saying
+         * what is wrong, before Abacus is called, and one longer than the reader's maximum a 413.
+         */
+        private void handleCreateInvoice(HttpExchange exchange) throws IOException {
+            boolean respondAsync = asyncByDefault || prefersRespondAsync(exchange);
+            String idempotencyKey = exchange.getRequestHeaders().getFirst(IDEMPOTENCY_KEY_HEADER);
+            boolean idempotent = idempotencyKey != null && !idempotencyKey.isBlank();
+
+            MediaFormat format = MediaFormat.ofContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+
+            AbacusClient.InvoiceRequest abacusInvoiceRequest;
+            byte[] requestFingerprint = null;
+            try (InputStream inputStream = exchange.getRequestBody();
+                 RequestBodyReader.Body body = requestBodies.read(inputStream)) {
+                if (!format.isBinary() && requestLog.isEnabled(LogLevel.TRACE)) {
+                    String receivedBody = new String(body.getBuffer(), 0, body.getLength(), StandardCharsets.UTF_8);
+                    requestLog.trace(() -> "Received request body: " + receivedBody);
+                }
+                if (idempotent) {
+                    requestFingerprint = fingerprint(body);
+                }
+                abacusInvoiceRequest = parseAbacusInvoiceRequest(format, body);
+            } catch (InvalidRequestException e) {
+                requestLog.info("Invoice request refused: {}", e.getMessage());
+                sendResponse(exchange, 400, errorJson(e.getMessage()));
+                return;
+            } catch (RequestBodyReader.BodyTooLargeException e) {
+                requestLog.warn("Invoice request refused: {}", e.getMessage());
+                sendResponse(exchange, 413, "{\"error\": \"Request body must be at most " + requestBodies.getMaxBytes() + " bytes\"}");
+                return;
+            } catch (IOException e) {
+                log.warn("Request to InvoiceService interrupted", e);
+                sendResponse(exchange, 400, "{\"error\": \"Request body could not be read\"}");
+                return;
             }
 
-            if (body.length() == 0) {
-                System.err.println("Empty body received in invoice request. Aborting to call Abacus with a bad request.");
+            if (!idempotent) {
+                createInvoice(abacusInvoiceRequest, respondAsync).whenComplete((response, failure) -> sendCreateResponse(exchange, response, failure, false));
+                return;
+            }
+
+            CompletableFuture<IdempotencyKeyCache.CachedResponse> response = new CompletableFuture<>();
+            IdempotencyKeyCache.Entry earlier = idempotentResponses.claim(idempotencyKey, requestFingerprint, response);
+            if (earlier != null) {
+                if (!earlier.isSameRequest(requestFingerprint)) {
+                    sendCreateResponse(exchange, new IdempotencyKeyCache.CachedResponse(422,
+                            "{\"error\": \"Idempotency-Key was already used for a different request\"}".getBytes(StandardCharsets.UTF_8), null), null, false);
+                    return;
+                }
+                earlier.getResponse().whenComplete((earlierResponse, failure) -> sendCreateResponse(exchange, earlierResponse, failure, true));
+                return;
+            }
+
+            createInvoice(abacusInvoiceRequest, respondAsync).whenComplete((created, failure) -> {
+                if (failure != null || created.getStatusCode() >= 500) {
+                    idempotentResponses.release(idempotencyKey, response);
+                }
+                if (failure != null) {
+                    response.completeExceptionally(failure);
+                } else {
+                    response.complete(created);
+                }
+            });
+            response.whenComplete((created, failure) -> sendCreateResponse(exchange, created, failure, false));
+        }
+
+        private static boolean prefersRespondAsync(HttpExchange exchange) {
+            List<String> preferences = exchange.getRequestHeaders().get("Prefer");
+            if (preferences == null) {
                 return false;
             }
-            System.out.println("Received request body: " + body);
+            for (String preference : preferences) {
+                for (String token : preference.split(",")) {
+                    if (RESPOND_ASYNC.equalsIgnoreCase(token.strip())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
 
-            // Prepare the abacus request
-            AbacusClient abacusClient = new AbacusClient("http://localhost:" + abacusPortNumber);
-            System.out.println("AbacusClient connecting to service at " + abacusClient.getBasePath());
-            // Deserialize JSON into InvoiceRequest
-            ObjectMapper objectMapper = new ObjectMapper();
-            objectMapper.registerModule(new JavaTimeModule()); // necessary to work with DateTime with Jackson.
-            objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        /**
+         * @param abacusInvoiceRequest the valid invoice the request body holds
+         * @param respondAsync True to accept the invoice without waiting for Abacus
+         * @return Completes with a 201 and the created invoice once Abacus has accepted the invoice, or with a 503.
+         * With respondAsync, completes at once with a 202 and the accepted invoice.
+         */
+        private CompletableFuture<IdempotencyKeyCache.CachedResponse> createInvoice(AbacusClient.InvoiceRequest abacusInvoiceRequest,
+                                                                                   boolean respondAsync) {
+            if (respondAsync) {
+                return CompletableFuture.completedFuture(acceptInvoice(abacusInvoiceRequest));
+            }
+            return invoiceProcessedByAbacus(abacusInvoiceRequest).thenApply(accepted -> {
+                if (!accepted) {
+                    return new IdempotencyKeyCache.CachedResponse(503, SERVICE_UNAVAILABLE_BODY, null);
+                }
+                Map<String, Object> createdInvoice = invoiceStore.create(newInvoice(abacusInvoiceRequest));
+                SerializedInvoiceCache.SerializedInvoice serialized = serializedInvoices.put(createdInvoice);
+                return new IdempotencyKeyCache.CachedResponse(201, serialized.getBody(), serialized.getETag());
+            });
+        }
+
+        /**
+         * Store the invoice as PENDING_ABACUS and queue it in the outbox. The invoice is stored, and journaled if the
+         * store has a journal, before the 202 is sent, so the outbox finds it again after a restart.
+         * @param abacusInvoiceRequest the valid invoice the request body holds
+         * @return A 202 with the accepted invoice
+         */
+        private IdempotencyKeyCache.CachedResponse acceptInvoice(AbacusClient.InvoiceRequest abacusInvoiceRequest) {
+            Map<String, Object> acceptedInvoice = invoiceStore.create(newInvoice(abacusInvoiceRequest, InvoiceStatus.PENDING_ABACUS));
+            String id = (String) acceptedInvoice.get("id");
+            SerializedInvoiceCache.SerializedInvoice serialized = serializedInvoices.put(acceptedInvoice);
+            invoiceOutbox.enqueue(id);
+            return new IdempotencyKeyCache.CachedResponse(202, serialized.getBody(), serialized.getETag(), "/api/invoices?id=" + id);
+        }
 
+        private static void sendCreateResponse(HttpExchange exchange, IdempotencyKeyCache.CachedResponse response,
+                                               Throwable failure, boolean replayed) {
             try {
-                InvoiceRequest invoiceRequest = objectMapper.readValue(body, InvoiceRequest.class);
-                // map request to the upstream dependency, AbacusClient's invoice request
-                System.out.println("InvoiceRequest deserialized: " + invoiceRequest);
-                AbacusClient.InvoiceRequest abacusInvoiceRequest = new AbacusClient.InvoiceRequest();
-                // copy data into abacusinvoiceRequest which only requires customer, amount and date to process the invoice.
+                if (failure != null) {
+                    sendResponse(exchange, 503, SERVICE_UNAVAILABLE_BODY);
+                    return;
+                }
+                if (response.getETag() != null) {
+                    exchange.getResponseHeaders().set("ETag", response.getETag());
+                }
+                if (response.getLocation() != null) {
+                    exchange.getResponseHeaders().set("Location", response.getLocation());
+                }
+                if (response.getStatusCode() == 202) {
+                    exchange.getResponseHeaders().set("Preference-Applied", RESPOND_ASYNC);
+                }
+                if (replayed) {
+                    exchange.getResponseHeaders().set("Idempotent-Replayed", "true");
+                }
+                sendResponse(exchange, response.getStatusCode(), response.getBody());
+            } catch (IOException e) {
+                log.warn("Could not send the response to the invoice request", e);
+                exchange.close();
+            }
+        }
 
-                abacusInvoiceRequest.setCustomer(invoiceRequest.getCustomer());
-                abacusInvoiceRequest.setAmount(invoiceRequest.getAmount());
-                abacusInvoiceRequest.setDate(invoiceRequest.getDate());
+        private static byte[] fingerprint(RequestBodyReader.Body body) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(body.getBuffer(), 0, body.getLength());
+                return digest.digest();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Every Java platform supports SHA-256", e);
+            }
+        }
 
-                // Call the upstream API we depend on
-                AbacusClient.ProcessResponse response = abacusClient.processInvoice(abacusInvoiceRequest);
+        /**
+         * Handle POST requests to create several invoices at once.
+         * The invoices are sent to Abacus in batches, and the response holds one result per invoice in request order:
+         * a 201 status with the created invoice, a 503 status with an error, or a 500 status with an error when Abacus
+         * accepted the invoice but it could not be saved.
+         */
+        private void handleCreateInvoiceBatch(HttpExchange exchange) throws IOException {
+            List<AbacusClient.InvoiceRequest> abacusInvoiceRequests;
+            MediaFormat format = MediaFormat.ofContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+            try (InputStream inputStream = exchange.getRequestBody();
+                 RequestBodyReader.Body body = batchRequestBodies.read(inputStream)) {
+                abacusInvoiceRequests = readAbacusInvoiceRequests(format, body.getBuffer(), body.getLength());
+            } catch (RequestBodyReader.BodyTooLargeException e) {
+                requestLog.warn("Invoice batch refused: {}", e.getMessage());
+                sendResponse(exchange, 413, "{\"error\": \"Request body must be at most " + batchRequestBodies.getMaxBytes() + " bytes\"}");
+                return;
+            } catch (IOException e) {
+                InvalidRequestException invalid = invalidRequest(e, "Request body must be a JSON array of invoices");
+                requestLog.info("Invoice batch refused: {}", invalid.getMessage());
+                sendResponse(exchange, 400, errorJson(invalid.getMessage()));
+                return;
+            }
+            if (abacusInvoiceRequests == null || abacusInvoiceRequests.isEmpty() || abacusInvoiceRequests.size() > MAX_BATCH_INVOICES) {
+                sendResponse(exchange, 400, "{\"error\": \"A batch must hold between 1 and " + MAX_BATCH_INVOICES + " invoices\"}");
+                return;
+            }
+
+            long submittedNanos = System.nanoTime();
+            List<CompletableFuture<AbacusClient.ProcessResponse>> processResponses = invoiceRequestCoalescer.submitAll(abacusInvoiceRequests);
+
+            List<CompletableFuture<Map<String, Object>>> results = new ArrayList<>(processResponses.size());
+            for (int i = 0; i < processResponses.size(); i++) {
+                AbacusClient.InvoiceRequest abacusInvoiceRequest = abacusInvoiceRequests.get(i);
+                results.add(acceptedByAbacus(processResponses.get(i), submittedNanos).thenApply(accepted -> {
+                    if (!accepted) {
+                        return batchResult(503, "error", "Abacus did not process the invoice");
+                    }
+                    Map<String, Object> createdInvoice = invoiceStore.create(newInvoice(abacusInvoiceRequest));
+                    serializedInvoices.put(createdInvoice);
+                    return batchResult(201, "invoice", createdInvoice);
+                }).exceptionally(failure -> {
+                    // Such as a journal that could not save the invoice; the other invoices of the batch still get theirs
+                    log.error("Invoice of a batch accepted by Abacus could not be created", failure);
+                    return batchResult(500, "error", "The invoice could not be saved");
+                }));
+            }
+
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).whenComplete((ignored, failure) -> {
+                try {
+                    List<Map<String, Object>> body = new ArrayList<>(results.size());
+                    for (CompletableFuture<Map<String, Object>> result : results) {
+                        body.add(result.join());
+                    }
+                    sendResponse(exchange, 200, objectMapper.writeValueAsString(body));
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not send the response to the invoice batch request", e);
+                    exchange.close();
+                }
+            });
+        }
+
+        private static Map<String, Object> batchResult(int status, String key, Object value) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("status", status);
+            result.put(key, value);
+            return result;
+        }
+
+        /**
+         * @param abacusInvoiceRequest an invoice request Abacus has accepted
+         * @return the fields of the invoice to store
+         */
+        private static Map<String, Object> newInvoice(AbacusClient.InvoiceRequest abacusInvoiceRequest) {
+            return newInvoice(abacusInvoiceRequest, InvoiceStatus.NEW);
+        }
+
+        /**
+         * @param abacusInvoiceRequest an invoice request
+         * @param status the status of the new invoice
+         * @return the fields of the invoice to store
+         */
+        private static Map<String, Object> newInvoice(AbacusClient.InvoiceRequest abacusInvoiceRequest, InvoiceStatus status) {
+            Map<String, Object> newInvoice = new HashMap<>();
+            newInvoice.put("customer", abacusInvoiceRequest.getCustomer());
+            newInvoice.put("amount", abacusInvoiceRequest.getAmount());
+            newInvoice.put("date", String.valueOf(abacusInvoiceRequest.getDate()));
+            newInvoice.put("status", status.name());
+            return newInvoice;
+        }
+
+        /**
+         * @param format the format named by the request's Content-Type
+         * @param body request body from client of microservice
+         * @return The request to send to Abacus
+         * @throws InvalidRequestException If the body is empty, is not in the format or is not a valid invoice request
+         */
+        private static AbacusClient.InvoiceRequest parseAbacusInvoiceRequest(MediaFormat format, RequestBodyReader.Body body) throws InvalidRequestException {
+            if (body.isEmpty()) {
+                throw new InvalidRequestException("Request body must be a JSON invoice");
+            }
+            try {
+                // Deserialize straight into the upstream dependency's invoice request
+                AbacusClient.InvoiceRequest abacusInvoiceRequest = readAbacusInvoiceRequest(format, body.getBuffer(), body.getLength());
+                requestLog.debug("InvoiceRequest deserialized: {}", abacusInvoiceRequest);
+                return abacusInvoiceRequest;
+            } catch (IOException e) {
+                throw invalidRequest(e, "Request body must be a JSON invoice");
+            }
+        }
+
+        /**
+         * @param failure Why a request body could not be read
+         * @param otherwise The message for a failure that is neither a broken rule, an unknown property nor bad JSON
+         * @return The failure as a message for the client
+         */
+        private static InvalidRequestException invalidRequest(IOException failure, String otherwise) {
+            for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+                if (cause instanceof InvalidRequestException) {
+                    return (InvalidRequestException) cause;
+                }
+                if (cause instanceof UnrecognizedPropertyException) {
+                    return new InvalidRequestException(((UnrecognizedPropertyException) cause).getPropertyName() + " is not a property of an invoice");
+                }
+                if (cause instanceof StreamReadException) {
+                    return new InvalidRequestException("Request body is not valid JSON: " + ((StreamReadException) cause).getOriginalMessage());
+                }
+            }
+            return new InvalidRequestException(otherwise);
+        }
+
+        private static String errorJson(String message) {
+            return "{\"error\": \"" + new String(JsonStringEncoder.getInstance().quoteAsString(message)) + "\"}";
+        }
+
+        /**
+         * @param abacusInvoiceRequest the invoice to send to Abacus
+         * @return Completes with true if Abacus successfully processed request. False if otherwise.
+         */
+        private CompletableFuture<Boolean> invoiceProcessedByAbacus(AbacusClient.InvoiceRequest abacusInvoiceRequest) {
+            // Call the upstream API we depend on
+            return acceptedByAbacus(invoiceRequestCoalescer.submit(abacusInvoiceRequest), System.nanoTime());
+        }
 
-                if (response.getStatus().equals("ACCEPTED")) {
-                    System.out.println("Abacus processed invoice successfully");
+        /**
+         * @param submittedNanos When the invoice was handed to the batcher, to time the Abacus call
+         */
+        private CompletableFuture<Boolean> acceptedByAbacus(CompletableFuture<AbacusClient.ProcessResponse> processResponse, long submittedNanos) {
+            return processResponse.handle((response, failure) -> {
+                long durationNanos = System.nanoTime() - submittedNanos;
+                if (failure instanceof AbacusUnavailableException
+                        || failure != null && failure.getCause() instanceof AbacusUnavailableException) {
+                    metrics.abacusCallFinished(ServiceMetrics.AbacusOutcome.UNAVAILABLE, durationNanos);
+                    // Refused without calling Abacus; a stack trace per refused invoice would flood the log
+                    requestLog.info("Abacus call refused: {}", failure.getMessage());
+                    return false;
+                }
+                if (failure != null) {
+                    metrics.abacusCallFinished(ServiceMetrics.AbacusOutcome.FAILED, durationNanos);
+                    log.warn("AbacusClient interrupted while processing invoice", failure);
+                    return false;
+                }
+                metrics.abacusCallFinished(ServiceMetrics.AbacusOutcome.ofStatus(response.getStatus()), durationNanos);
+                if ("ACCEPTED".equals(response.getStatus())) {
+                    requestLog.info("Abacus processed invoice successfully");
                     return true;
                 } else {
-                    System.out.println("Abacus failed to process invoice");
+                    requestLog.info("Abacus failed to process invoice");
                     return false;
                 }
-
-            } catch (Throwable e) {
-                System.out.println("AbacusClient interrupted while processing invoice");
-                e.printStackTrace();
-            }
-            return false;
+            });
         }
 
         /**
          * Find an invoice by ID
          */
         private Map<String, Object> findInvoiceById(String id) {
-            return invoices.stream()
-                    .filter(inv -> id.equals(inv.get("id")))
-                    .findFirst()
-                    .orElse(null);
+            return invoiceStore.findById(id);
         }
     }
 
@@ -277,10 +1027,50 @@ public class InvoiceMicroservice {
      * Handler for health check endpoint
      */
     static class HealthCheckHandler implements HttpHandler {
+        private final AbacusCallGuard abacusCallGuard;
+
+        HealthCheckHandler(AbacusCallGuard abacusCallGuard) {
+            this.abacusCallGuard = abacusCallGuard;
+        }
+
+        /**
+         * The service reports UP while it serves requests, whatever the state of Abacus.
+         * The abacus entry shows how the service currently protects itself from Abacus.
+         */
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("GET".equals(exchange.getRequestMethod())) {
-                sendResponse(exchange, 200, "{\"status\": \"UP\"}");
+                Map<String, Object> abacus = new LinkedHashMap<>();
+                abacus.put("circuitState", abacusCallGuard.getCircuitState().name());
+                abacus.put("concurrencyLimit", abacusCallGuard.getConcurrencyLimit());
+                abacus.put("maxConcurrentCalls", abacusCallGuard.getMaxConcurrentCalls());
+                abacus.put("inFlight", abacusCallGuard.getInFlight());
+                abacus.put("rejectedCalls", abacusCallGuard.getRejectedCalls());
+
+                Map<String, Object> health = new LinkedHashMap<>();
+                health.put("status", "UP");
+                health.put("abacus", abacus);
+                sendResponse(exchange, 200, objectMapper.writeValueAsString(health));
+            } else {
+                sendResponse(exchange, 405, "Method Not Allowed");
+            }
+        }
+    }
+
+    /**
+     * Handler for the metrics endpoint, which Prometheus scrapes
+     */
+    static class MetricsHandler implements HttpHandler {
+        private final ServiceMetrics metrics;
+
+        MetricsHandler(ServiceMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 200, ServiceMetrics.CONTENT_TYPE, metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8));
             } else {
                 sendResponse(exchange, 405, "Method Not Allowed");
             }
@@ -291,26 +1081,211 @@ public class InvoiceMicroservice {
      * Helper method to send HTTP response
      */
     private static void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, response.length());
+        sendResponse(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8));
+    }
 
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
+    private static void sendResponse(HttpExchange exchange, int statusCode, byte[] responseBytes) throws IOException {
+        sendResponse(exchange, statusCode, "application/json", responseBytes);
+    }
+
+    private static void sendResponse(HttpExchange exchange, int statusCode, String contentType, byte[] responseBytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        responseCompression.send(exchange, statusCode, responseBytes);
+    }
+
+    private static void sendNotModified(HttpExchange exchange, String eTag) throws IOException {
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.sendResponseHeaders(304, -1); // -1 means no body
+        exchange.close();
+    }
+
+    /**
+     * @return One invoice encoded as UTF-8 JSON, the same way it appears in a list
+     */
+    static byte[] toJsonBytes(Map<String, Object> invoice) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            writeJson(generator, invoice);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return A map of invoice fields or of totals, encoded in the format
+     */
+    static byte[] toBytes(MediaFormat format, Map<String, Object> map) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = format.createGenerator(out)) {
+            objectMapper.writeValue(generator, map);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Stream a list of invoices to the client as an array, in UTF-8 JSON or a binary format.
+     * Each invoice is written straight into the response body, compressed if the client accepts it, so the memory a
+     * request needs does not grow with the number of invoices. A list that is not short uses chunked transfer encoding.
+     */
+    private static void sendInvoiceList(HttpExchange exchange, MediaFormat format, Iterable<Map<String, Object>> invoices) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", format.getMediaType());
+
+        writeInvoices(format, responseCompression.open(exchange, 200), invoices);
+    }
+
+    /**
+     * Write a list of invoices as an array and close the stream
+     */
+    static void writeInvoices(MediaFormat format, OutputStream out, Iterable<Map<String, Object>> invoices) throws IOException {
+        try (JsonGenerator generator = format.createGenerator(out)) {
+            writeJson(generator, invoices);
+        }
+    }
+
+    /**
+     * Stream one page of invoices to the client as {"invoices": [...], "nextCursor": "..."}.
+     * nextCursor is left out on the last page.
+     */
+    private static void sendInvoicePage(HttpExchange exchange, MediaFormat format, InvoicePage page) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", format.getMediaType());
+
+        try (JsonGenerator generator = format.createGenerator(responseCompression.open(exchange, 200))) {
+            generator.writeStartObject();
+            generator.writeFieldName("invoices");
+            writeJson(generator, page.getInvoices());
+            if (page.getNextCursor() != null) {
+                generator.writeStringField("nextCursor", page.getNextCursor());
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writeJson(JsonGenerator generator, Iterable<Map<String, Object>> invoices) throws IOException {
+        generator.writeStartArray();
+        for (Map<String, Object> invoice : invoices) {
+            writeJson(generator, invoice);
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * @return The decoded query parameters of the URI. When a parameter repeats, the first value wins.
+     */
+    static Map<String, String> queryParameters(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        String rawQuery = uri.getRawQuery();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = URLDecoder.decode(separator < 0 ? pair : pair.substring(0, separator), StandardCharsets.UTF_8);
+            String value = separator < 0 ? "" : URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+            parameters.putIfAbsent(name, value);
+        }
+        return parameters;
+    }
+
+    private static void writeJson(JsonGenerator generator, Map<String, Object> map) throws IOException {
+        generator.writeStartObject();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            generator.writeFieldName(entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                generator.writeNull();
+            } else if (value instanceof Double) {
+                generator.writeNumber((Double) value);
+            } else if (value instanceof Integer || value instanceof Long) {
+                generator.writeNumber(((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                generator.writeBoolean((Boolean) value);
+            } else {
+                generator.writeString(value.toString());
+            }
         }
+        generator.writeEndObject();
+    }
+
+    /**
+     * @param body request body from client of microservice
+     * @return The invoice request the body holds
+     * @throws IOException If the body is not a JSON invoice request
+     */
+    static InvoiceRequest readInvoiceRequest(byte[] body) throws IOException {
+        return invoiceRequestReader.readValue(body);
+    }
+
+    /**
+     * @param body buffer holding the request body from client of microservice
+     * @param length the number of bytes of the body at the start of the buffer
+     * @return The request to send to Abacus that the body holds
+     * @throws IOException If the body is not a JSON invoice request
+     */
+    static AbacusClient.InvoiceRequest readAbacusInvoiceRequest(byte[] body, int length) throws IOException {
+        return readAbacusInvoiceRequest(MediaFormat.JSON, body, length);
+    }
+
+    /**
+     * @param format the format of the body
+     * @param body buffer holding the request body from client of microservice
+     * @param length the number of bytes of the body at the start of the buffer
+     * @return The request to send to Abacus that the body holds
+     * @throws IOException If the body is not an invoice request in the format
+     */
+    static AbacusClient.InvoiceRequest readAbacusInvoiceRequest(MediaFormat format, byte[] body, int length) throws IOException {
+        try (JsonParser parser = invoiceRequestSchema.validate(format.createParser(body, 0, length))) {
+            return abacusInvoiceRequestReader.readValue(parser);
+        }
+    }
+
+    /**
+     * @param format the format of the body
+     * @param body buffer holding the request body from client of microservice, an array of invoices
+     * @param length the number of bytes of the body at the start of the buffer
+     * @return The requests to send to Abacus that the body holds
+     * @throws IOException If the body is not an array of invoice requests in the format
+     */
+    static List<AbacusClient.InvoiceRequest> readAbacusInvoiceRequests(MediaFormat format, byte[] body, int length) throws IOException {
+        try (JsonParser parser = invoiceRequestSchema.validateEach(format.createParser(body, 0, length))) {
+            return abacusInvoiceRequestListReader.readValue(parser);
+        }
+    }
+
+    private static RequestSchema loadInvoiceRequestSchema() {
+        try (InputStream spec = InvoiceMicroservice.class.getResourceAsStream("/InvoiceAPISpec.yaml")) {
+            if (spec == null) {
+                throw new IllegalStateException("InvoiceAPISpec.yaml is not on the classpath");
+            }
+            return RequestSchema.fromOpenApi(spec, "InvoiceRequest");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read InvoiceAPISpec.yaml", e);
+        }
+    }
+
+    /**
+     * Mix-in for the fields of an {@link InvoiceRequest} that Abacus does not take
+     */
+    @JsonIgnoreProperties({"id", "status"})
+    private abstract static class PostedInvoiceRequest {
     }
 
     /**
      * Simple JSON conversion (in a real app, use a proper JSON library)
      */
-    private static String convertToJson(Object obj) {
-        if (obj instanceof List) {
-            List<?> list = (List<?>) obj;
+    static String convertToJson(Object obj) {
+        if (obj instanceof Collection) {
+            Collection<?> collection = (Collection<?>) obj;
             StringBuilder sb = new StringBuilder("[");
-            for (int i = 0; i < list.size(); i++) {
-                if (i > 0) {
+            boolean firstElement = true;
+            for (Object element : collection) {
+                if (!firstElement) {
                     sb.append(",");
                 }
-                sb.append(convertToJson(list.get(i)));
+                firstElement = false;
+                sb.append(convertToJson(element));
             }
             sb.append("]");
             return sb.toString();
@@ -327,7 +1302,7 @@ public class InvoiceMicroservice {
 
                 Object value = entry.getValue();
                 if (value instanceof String) {
-                    sb.append("\"").append(value).append("\"");
+                    sb.append("\"").append(JsonStringEncoder.getInstance().quoteAsString((String) value)).append("\"");
                 } else {
                     sb.append(value);
                 }
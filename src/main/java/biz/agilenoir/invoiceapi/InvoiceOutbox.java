@@ -0,0 +1,364 @@
+package biz.agilenoir.invoiceapi;
+
+import biz.agilenoir.abacusapi.client.AbacusClient;
+import biz.agilenoir.abacusapi.client.InvoiceBatcher;
+import biz.agilenoir.invoiceapi.logging.Logger;
+import biz.agilenoir.invoiceapi.logging.Logging;
+import biz.agilenoir.invoiceapi.store.InvoiceQuery;
+import biz.agilenoir.invoiceapi.store.InvoiceStatus;
+import biz.agilenoir.invoiceapi.store.InvoiceStore;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the invoices the service accepted without waiting for Abacus, and records on each invoice how Abacus decided.
+ * <p>
+ * The outbox is the invoice store itself: an invoice waiting to be sent has the status PENDING_ABACUS, and one that
+ * Abacus is reviewing has PENDING_REVIEW. Both are saved with the invoice, in the journal if the store has one, so
+ * {@link #recover} finds them again after a restart. In memory, the IDs of the invoices to send wait in a queue.
+ * A pool of worker threads takes them off the queue, up to a batch at a time, and submits each batch to the
+ * {@link InvoiceBatcher}, so invoices accepted at about the same time share calls to Abacus. They do not go through
+ * the coalescer: two stored invoices with the same customer, amount and date are still two invoices, and each needs
+ * a decision of its own.
+ * <p>
+ * When Abacus answers, the invoice is updated with the transaction ID and a status: NEW when Abacus accepted it,
+ * REJECTED, or PENDING_REVIEW. Abacus has no operation to look up a decision, so an invoice under review is sent again
+ * every review poll interval until Abacus accepts or rejects it. Abacus answers a key it has seen with its first
+ * response, so each poll goes out under a key of its own, and Abacus must treat it as a lookup of the decision on the
+ * invoice, not as a new invoice. After a restart the polls start again from the first poll key. An invoice whose call failed stays PENDING_ABACUS and
+ * is sent again after a jittered backoff that doubles with every failure, up to a maximum. Every time an invoice is
+ * sent, its idempotency key is derived from its ID, so Abacus sees the same key for every attempt of an invoice,
+ * including those after a restart, and for every attempt of one review poll.
+ */
+public class InvoiceOutbox implements Closeable {
+    private static final Logger log = Logging.getLogger(InvoiceOutbox.class);
+
+    private final InvoiceStore invoiceStore;
+    private final InvoiceBatcher invoiceBatcher;
+    private final SerializedInvoiceCache serializedInvoices;
+    private final int batchSize;
+    private final long retryBackoffNanos;
+    private final long maxRetryBackoffNanos;
+    private final long reviewPollNanos;
+
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    // IDs in the queue, so an invoice queued twice before it is sent is sent once
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> failedAttempts = new ConcurrentHashMap<>();
+    // How many times Abacus answered PENDING_REVIEW for an invoice, which numbers its next review poll
+    private final Map<String, Integer> reviewAnswers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final List<Thread> workers = new ArrayList<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Constructor. The workers start at once.
+     * @param invoiceStore The store holding the invoices to send
+     * @param invoiceBatcher Sends the invoices to Abacus
+     * @param serializedInvoices The cache whose entry for an invoice is dropped when the invoice changes
+     * @param settings Pool size, batch size and timing
+     */
+    public InvoiceOutbox(InvoiceStore invoiceStore, InvoiceBatcher invoiceBatcher,
+                         SerializedInvoiceCache serializedInvoices, Settings settings) {
+        if (settings.getWorkers() < 1 || settings.getBatchSize() < 1) {
+            throw new IllegalArgumentException("workers and batchSize must be at least 1 but were "
+                    + settings.getWorkers() + " and " + settings.getBatchSize());
+        }
+        this.invoiceStore = invoiceStore;
+        this.invoiceBatcher = invoiceBatcher;
+        this.serializedInvoices = serializedInvoices;
+        this.batchSize = settings.getBatchSize();
+        this.retryBackoffNanos = settings.getRetryBackoff().toNanos();
+        this.maxRetryBackoffNanos = settings.getMaxRetryBackoff().toNanos();
+        this.reviewPollNanos = settings.getReviewPollInterval().toNanos();
+        this.timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("invoice-outbox-timer").factory());
+        for (int i = 0; i < settings.getWorkers(); i++) {
+            workers.add(Thread.ofPlatform().daemon().name("invoice-outbox-worker-" + i).start(this::work));
+        }
+    }
+
+    /**
+     * Queue a stored invoice to be sent to Abacus
+     * @param id ID of an invoice with the status PENDING_ABACUS or PENDING_REVIEW
+     */
+    public void enqueue(String id) {
+        if (!closed && queued.add(id)) {
+            queue.add(id);
+        }
+    }
+
+    /**
+     * Queue every stored invoice that is waiting for Abacus, such as those accepted before a restart
+     * @return The number of invoices queued
+     */
+    public int recover() {
+        int recovered = 0;
+        for (InvoiceStatus status : new InvoiceStatus[]{InvoiceStatus.PENDING_ABACUS, InvoiceStatus.PENDING_REVIEW}) {
+            InvoiceQuery waiting = new InvoiceQuery();
+            waiting.setStatus(status.name());
+            for (Map<String, Object> invoice : invoiceStore.findMatching(waiting)) {
+                enqueue((String) invoice.get("id"));
+                recovered++;
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * @return The number of invoices waiting in the queue. Invoices waiting for a retry or a review poll are not counted.
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of times Abacus answered for an invoice of the outbox
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return The number of times an invoice of the outbox could not be sent and was left for a retry
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    private void work() {
+        List<String> ids = new ArrayList<>(batchSize);
+        while (!closed) {
+            try {
+                String first = queue.take();
+                ids.add(first);
+                queue.drainTo(ids, batchSize - 1);
+                ids.forEach(queued::remove);
+                send(ids);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // send gives every invoice an outcome or a retry itself; this only keeps the worker draining the queue
+                log.error("Outbox worker could not send invoices " + ids, e);
+                ids.forEach(id -> retryLater(id, e));
+            } finally {
+                ids.clear();
+            }
+        }
+    }
+
+    /**
+     * Send the invoices that are still waiting for Abacus, and wait until each has an outcome. An invoice that could
+     * not be sent, or whose outcome could not be recorded, is sent again later, so every ID taken off the queue is
+     * either recorded or rescheduled.
+     */
+    private void send(List<String> ids) throws InterruptedException {
+        List<String> sending = new ArrayList<>(ids.size());
+        List<AbacusClient.InvoiceRequest> invoiceRequests = new ArrayList<>(ids.size());
+        List<String> idempotencyKeys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            try {
+                Map<String, Object> invoice = invoiceStore.findById(id);
+                if (invoice != null && isWaiting(invoice)) {
+                    invoiceRequests.add(toAbacusInvoiceRequest(invoice));
+                    idempotencyKeys.add(InvoiceStatus.PENDING_REVIEW.name().equals(invoice.get("status"))
+                            ? reviewIdempotencyKeyOf(id, reviewAnswers.getOrDefault(id, 1))
+                            : idempotencyKeyOf(id));
+                    sending.add(id);
+                }
+            } catch (RuntimeException e) {
+                retryLater(id, e);
+            }
+        }
+        if (sending.isEmpty()) {
+            return;
+        }
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> responses;
+        try {
+            responses = invoiceBatcher.submitAll(invoiceRequests, idempotencyKeys);
+        } catch (RuntimeException e) {
+            sending.forEach(id -> retryLater(id, e));
+            return;
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            try {
+                record(sending.get(i), responses.get(i).get());
+            } catch (ExecutionException e) {
+                retryLater(sending.get(i), e.getCause());
+            } catch (RuntimeException e) {
+                retryLater(sending.get(i), e);
+            }
+        }
+    }
+
+    private void record(String id, AbacusClient.ProcessResponse response) {
+        String status = statusOf(response.getStatus());
+        if (status == null) {
+            retryLater(id, new IllegalStateException("Abacus answered with the unknown status " + response.getStatus()));
+            return;
+        }
+        sent.increment();
+        failedAttempts.remove(id);
+        invoiceStore.update(id, invoice -> isWaiting(invoice) ? withOutcome(invoice, status, response.getTransactionId()) : invoice);
+        serializedInvoices.invalidate(id);
+        if (InvoiceStatus.PENDING_REVIEW.name().equals(status)) {
+            reviewAnswers.merge(id, 1, Integer::sum);
+            timer.schedule(() -> enqueue(id), reviewPollNanos, TimeUnit.NANOSECONDS);
+        } else {
+            reviewAnswers.remove(id);
+        }
+    }
+
+    private void retryLater(String id, Throwable failure) {
+        failed.increment();
+        int attempts = failedAttempts.merge(id, 1, Integer::sum);
+        long backoffNanos = Math.min(retryBackoffNanos << Math.min(attempts - 1, 30), maxRetryBackoffNanos);
+        long delayNanos = backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1);
+        log.warn("Invoice {} was not sent to Abacus ({} failed attempts, next in {} ms): {}",
+                id, attempts, TimeUnit.NANOSECONDS.toMillis(delayNanos), failure);
+        timer.schedule(() -> enqueue(id), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The invoice status for an Abacus process status, or null if the status is not one Abacus documents
+     */
+    private static String statusOf(String abacusStatus) {
+        if (abacusStatus == null) {
+            return null;
+        }
+        switch (abacusStatus) {
+            case "ACCEPTED":
+                return InvoiceStatus.NEW.name();
+            case "REJECTED":
+                return InvoiceStatus.REJECTED.name();
+            case "PENDING_REVIEW":
+                return InvoiceStatus.PENDING_REVIEW.name();
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isWaiting(Map<String, Object> invoice) {
+        Object status = invoice.get("status");
+        return InvoiceStatus.PENDING_ABACUS.name().equals(status) || InvoiceStatus.PENDING_REVIEW.name().equals(status);
+    }
+
+    /**
+     * @return The invoice with the outcome, or the invoice itself if it already has that outcome
+     */
+    private static Map<String, Object> withOutcome(Map<String, Object> invoice, String status, String transactionId) {
+        if (status.equals(invoice.get("status")) && Objects.equals(transactionId, invoice.get("transactionId"))) {
+            return invoice;
+        }
+        Map<String, Object> changed = new HashMap<>(invoice);
+        changed.put("status", status);
+        changed.put("transactionId", transactionId);
+        return changed;
+    }
+
+    /**
+     * @return The idempotency key every attempt to send the invoice carries
+     */
+    static String idempotencyKeyOf(String id) {
+        return AbacusClient.idempotencyKeyOf("invoice:" + id);
+    }
+
+    /**
+     * @param poll The number of the review poll, from 1
+     * @return The idempotency key every attempt of one review poll of the invoice carries
+     */
+    static String reviewIdempotencyKeyOf(String id, int poll) {
+        return AbacusClient.idempotencyKeyOf("invoice:" + id + ":review:" + poll);
+    }
+
+    private static AbacusClient.InvoiceRequest toAbacusInvoiceRequest(Map<String, Object> invoice) {
+        AbacusClient.InvoiceRequest abacusInvoiceRequest = new AbacusClient.InvoiceRequest();
+        abacusInvoiceRequest.setCustomer((String) invoice.get("customer"));
+        abacusInvoiceRequest.setAmount(((Number) invoice.get("amount")).doubleValue());
+        abacusInvoiceRequest.setDate(LocalDate.parse((String) invoice.get("date")));
+        return abacusInvoiceRequest;
+    }
+
+    /**
+     * Stop the workers. An invoice being sent keeps its status and is sent again by {@link #recover}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        timer.shutdownNow();
+    }
+
+    public static class Settings {
+        private int workers = 4;
+        private int batchSize = 50;
+        private Duration retryBackoff = Duration.ofSeconds(1);
+        private Duration maxRetryBackoff = Duration.ofMinutes(1);
+        private Duration reviewPollInterval = Duration.ofMinutes(1);
+
+        /**
+         * @return The number of worker threads, which is the most batches in flight to Abacus at once
+         */
+        public int getWorkers() {
+            return workers;
+        }
+        public void setWorkers(int workers) {
+            this.workers = workers;
+        }
+        /**
+         * @return The most invoices a worker takes off the queue at once
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+        /**
+         * @return How long to wait before sending an invoice again after its first failure
+         */
+        public Duration getRetryBackoff() {
+            return retryBackoff;
+        }
+        public void setRetryBackoff(Duration retryBackoff) {
+            this.retryBackoff = retryBackoff;
+        }
+        public Duration getMaxRetryBackoff() {
+            return maxRetryBackoff;
+        }
+        public void setMaxRetryBackoff(Duration maxRetryBackoff) {
+            this.maxRetryBackoff = maxRetryBackoff;
+        }
+        /**
+         * @return How long to wait before sending an invoice under review again
+         */
+        public Duration getReviewPollInterval() {
+            return reviewPollInterval;
+        }
+        public void setReviewPollInterval(Duration reviewPollInterval) {
+            this.reviewPollInterval = reviewPollInterval;
+        }
+    }
+}
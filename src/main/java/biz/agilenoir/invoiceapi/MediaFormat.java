@@ -0,0 +1,130 @@
+package biz.agilenoir.invoiceapi;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * The formats invoices are exchanged in. JSON is the default; CBOR and Smile are binary encodings of the same
+ * data model that are smaller and cheaper to write and parse, for clients that ask for them.
+ * <p>
+ * Every format is read and written with Jackson's streaming API, so the code that writes an invoice does not
+ * depend on the format it is written in.
+ */
+public enum MediaFormat {
+    JSON("application/json", new JsonFactory()),
+    CBOR("application/cbor", new CBORFactory()),
+    SMILE("application/x-jackson-smile", new SmileFactory());
+
+    private final String mediaType;
+    private final JsonFactory factory;
+
+    MediaFormat(String mediaType, JsonFactory factory) {
+        this.mediaType = mediaType;
+        this.factory = factory;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public boolean isBinary() {
+        return this != JSON;
+    }
+
+    /**
+     * @return A generator that writes this format to the stream, as UTF-8 for JSON
+     */
+    public JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return factory.createGenerator(out);
+    }
+
+    public JsonParser createParser(byte[] content, int offset, int length) throws IOException {
+        return factory.createParser(content, offset, length);
+    }
+
+    public JsonParser createParser(InputStream in) throws IOException {
+        return factory.createParser(in);
+    }
+
+    /**
+     * Pick the format for a response from an Accept header.
+     * The format with the highest quality wins, and among equal qualities the one listed first.
+     * A wildcard stands for JSON, and so does a header that is missing or names none of the formats.
+     * @param accept The Accept header, or null
+     * @return The format to respond in
+     */
+    public static MediaFormat negotiate(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return JSON;
+        }
+        MediaFormat best = JSON;
+        double bestQuality = 0;
+        for (String mediaRange : accept.split(",")) {
+            String[] parameters = mediaRange.split(";");
+            MediaFormat format = forMediaRange(parameters[0]);
+            if (format == null) {
+                continue;
+            }
+            double quality = quality(parameters);
+            if (quality > bestQuality) {
+                best = format;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param contentType The Content-Type header of a request, or null
+     * @return The format the body is in. Anything that is not CBOR or Smile is read as JSON.
+     */
+    public static MediaFormat ofContentType(String contentType) {
+        if (contentType != null) {
+            String mediaType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+            for (MediaFormat format : values()) {
+                if (format.isBinary() && format.mediaType.equals(mediaType)) {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+
+    private static MediaFormat forMediaRange(String mediaRange) {
+        String mediaType = mediaRange.trim().toLowerCase(Locale.ROOT);
+        if (mediaType.equals("*/*") || mediaType.equals("application/*")) {
+            return JSON;
+        }
+        for (MediaFormat format : values()) {
+            if (format.mediaType.equals(mediaType)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The q parameter of a media range, 1 when it has none or it is not a number
+     */
+    private static double quality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+}
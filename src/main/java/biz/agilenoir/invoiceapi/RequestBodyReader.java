@@ -0,0 +1,178 @@
+package biz.agilenoir.invoiceapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads request bodies into reusable buffers, so that parsing a small POST allocates no byte array of its own.
+ * <p>
+ * A body is read into a buffer of bufferSize bytes taken from a pool, and handed back to the pool when the
+ * {@link Body} is closed. A body larger than the buffer is read into a larger array that is not pooled. A body larger
+ * than maxBytes is not read past maxBytes and fails with a {@link BodyTooLargeException}. The pool keeps at most
+ * poolSize buffers; when it is empty a new buffer is allocated, and when it is full a returned buffer is dropped.
+ * <p>
+ * The pool is shared rather than per thread, because request handlers run on virtual threads by default.
+ */
+public class RequestBodyReader {
+    private final int bufferSize;
+    private final int maxBytes;
+    private final BlockingQueue<byte[]> pool;
+
+    /**
+     * Constructor
+     * @param settings Buffer size, pool size and the largest body accepted
+     */
+    public RequestBodyReader(Settings settings) {
+        if (settings.getBufferSize() < 1 || settings.getMaxBytes() < 1 || settings.getPoolSize() < 1) {
+            throw new IllegalArgumentException("bufferSize, maxBytes and poolSize must be at least 1 but were "
+                    + settings.getBufferSize() + ", " + settings.getMaxBytes() + " and " + settings.getPoolSize());
+        }
+        this.bufferSize = Math.min(settings.getBufferSize(), settings.getMaxBytes());
+        this.maxBytes = settings.getMaxBytes();
+        this.pool = new ArrayBlockingQueue<>(settings.getPoolSize());
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The number of buffers waiting in the pool
+     */
+    public int getPooled() {
+        return pool.size();
+    }
+
+    /**
+     * Read a whole body. The stream is not closed.
+     * @param inputStream The request body
+     * @return The body, which must be closed to hand its buffer back
+     * @throws BodyTooLargeException If the body is longer than maxBytes
+     * @throws IOException If the body could not be read
+     */
+    public Body read(InputStream inputStream) throws IOException {
+        byte[] pooledBuffer = pool.poll();
+        if (pooledBuffer == null) {
+            pooledBuffer = new byte[bufferSize];
+        }
+        byte[] buffer = pooledBuffer;
+        int length = 0;
+        try {
+            while (true) {
+                if (length == buffer.length) {
+                    if (length == maxBytes) {
+                        if (inputStream.read() < 0) {
+                            break;
+                        }
+                        throw new BodyTooLargeException(maxBytes);
+                    }
+                    buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, maxBytes));
+                }
+                int read = inputStream.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+        } catch (IOException | RuntimeException e) {
+            release(pooledBuffer);
+            throw e;
+        }
+        if (buffer != pooledBuffer) {
+            release(pooledBuffer);
+        }
+        return new Body(buffer, length, buffer == pooledBuffer);
+    }
+
+    private void release(byte[] buffer) {
+        pool.offer(buffer);
+    }
+
+    /**
+     * A body read into a buffer. Only the first length bytes of the buffer are the body, and the buffer must not be
+     * used after the body is closed.
+     */
+    public final class Body implements AutoCloseable {
+        private byte[] buffer;
+        private final int length;
+        private final boolean pooled;
+
+        private Body(byte[] buffer, int length, boolean pooled) {
+            this.buffer = buffer;
+            this.length = length;
+            this.pooled = pooled;
+        }
+
+        public byte[] getBuffer() {
+            if (buffer == null) {
+                throw new IllegalStateException("The body was closed");
+            }
+            return buffer;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean isEmpty() {
+            return length == 0;
+        }
+
+        /**
+         * Hand the buffer back to the pool
+         */
+        @Override
+        public void close() {
+            if (buffer != null && pooled) {
+                release(buffer);
+            }
+            buffer = null;
+        }
+    }
+
+    /**
+     * Thrown when a request body is longer than the reader accepts
+     */
+    public static class BodyTooLargeException extends IOException {
+        public BodyTooLargeException(int maxBytes) {
+            super("Request body is longer than " + maxBytes + " bytes");
+        }
+    }
+
+    public static class Settings {
+        private int bufferSize = 4 * 1024;
+        private int maxBytes = 64 * 1024;
+        private int poolSize = 256;
+
+        /**
+         * @return The size of a pooled buffer, which should hold a typical body
+         */
+        public int getBufferSize() {
+            return bufferSize;
+        }
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+        /**
+         * @return The longest body accepted, in bytes
+         */
+        public int getMaxBytes() {
+            return maxBytes;
+        }
+        public void setMaxBytes(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        /**
+         * @return The most buffers kept for reuse
+         */
+        public int getPoolSize() {
+            return poolSize;
+        }
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package biz.agilenoir.invoiceapi;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses response bodies with gzip or deflate for clients whose Accept-Encoding allows it.
+ * <p>
+ * A body is compressed only if it is at least minBytes long, so small responses such as the health check cost
+ * nothing. The first bytes of a streamed body are held back until there are minBytes of them; a body that ends sooner
+ * is sent as it is. A longer body is compressed as it is written, so a streamed list is never held in memory whole.
+ * Streamed bodies use chunked transfer encoding whatever their length. Every response at least minBytes long says
+ * Vary: Accept-Encoding, and a compressed one has its ETag made weak, as its bytes differ from the uncompressed ones.
+ * <p>
+ * Deflaters are reused, as each holds native zlib memory that is costly to set up. The pool is shared rather than
+ * per thread, because request handlers run on virtual threads by default. It keeps at most poolSize deflaters of
+ * each kind; when it is empty a new one is made, and when it is full a returned one is ended.
+ */
+public class ResponseCompression {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final boolean enabled;
+    private final int minBytes;
+    private final int level;
+    private final int bufferSize;
+    private final BlockingQueue<Deflater> gzipDeflaters;
+    private final BlockingQueue<Deflater> deflateDeflaters;
+
+    /**
+     * The content codings the service can send. Without one, a body is sent as it is.
+     */
+    public enum ContentCoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        ContentCoding(String token) {
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param settings Whether to compress, from what size, how hard, and how many deflaters to keep
+     */
+    public ResponseCompression(Settings settings) {
+        if (settings.getMinBytes() < 1 || settings.getBufferSize() < 1 || settings.getPoolSize() < 1) {
+            throw new IllegalArgumentException("minBytes, bufferSize and poolSize must be at least 1 but were "
+                    + settings.getMinBytes() + ", " + settings.getBufferSize() + " and " + settings.getPoolSize());
+        }
+        if (settings.getLevel() != Deflater.DEFAULT_COMPRESSION && (settings.getLevel() < 1 || settings.getLevel() > 9)) {
+            throw new IllegalArgumentException("level must be between 1 and 9 but was " + settings.getLevel());
+        }
+        this.enabled = settings.isEnabled();
+        this.minBytes = settings.getMinBytes();
+        this.level = settings.getLevel();
+        this.bufferSize = settings.getBufferSize();
+        this.gzipDeflaters = new ArrayBlockingQueue<>(settings.getPoolSize());
+        this.deflateDeflaters = new ArrayBlockingQueue<>(settings.getPoolSize());
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    /**
+     * @return The number of deflaters waiting in the pool
+     */
+    public int getPooled() {
+        return gzipDeflaters.size() + deflateDeflaters.size();
+    }
+
+    /**
+     * Pick the content coding for a response from an Accept-Encoding header.
+     * The coding with the highest quality wins, and among equal qualities the one listed first. A wildcard stands
+     * for gzip.
+     * @param acceptEncoding The Accept-Encoding header, or null
+     * @return The coding to compress with, or null to send the body as it is
+     */
+    public ContentCoding negotiate(String acceptEncoding) {
+        if (!enabled || acceptEncoding == null || acceptEncoding.isBlank()) {
+            return null;
+        }
+        ContentCoding best = null;
+        double bestQuality = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            ContentCoding contentCoding = forToken(parameters[0]);
+            if (contentCoding == null) {
+                continue;
+            }
+            double quality = quality(parameters);
+            if (quality > bestQuality) {
+                best = contentCoding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Send a whole body, compressed if the request allows it and the body is long enough, and close the response.
+     * Content-Type and ETag must already be set.
+     */
+    public void send(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+        ContentCoding coding = body.length >= minBytes ? negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+        boolean varies = body.length >= minBytes;
+        if (coding == null) {
+            try (OutputStream out = startResponse(exchange, statusCode, null, body.length, varies)) {
+                out.write(body);
+            }
+            return;
+        }
+        try (OutputStream out = open(coding, (chosen, length) -> startResponse(exchange, statusCode, chosen, 0, varies))) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Start a response whose body is written to the stream returned, in chunks. The body is compressed if the
+     * request allows it and it turns out to be long enough. Content-Type and ETag must already be set.
+     * @return The response body, which must be closed to send the end of the response
+     */
+    public OutputStream open(HttpExchange exchange, int statusCode) {
+        ContentCoding coding = negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        // 0 selects chunked transfer encoding
+        return open(coding, (chosen, length) -> startResponse(exchange, statusCode, chosen, 0, length == 0));
+    }
+
+    /**
+     * @param coding The coding to use once the body reaches minBytes, or null to send it as it is
+     * @param start Sends the response headers once it is known whether the body is compressed and how long it is
+     */
+    OutputStream open(ContentCoding coding, ResponseStart start) {
+        return new ThresholdStream(coding, start);
+    }
+
+    /**
+     * Sends the response headers for a body that is compressed with a coding, or not if it is null. A length of 0
+     * means the body reached minBytes and its length is not known; otherwise the body is that long.
+     */
+    @FunctionalInterface
+    interface ResponseStart {
+        OutputStream start(ContentCoding coding, long length) throws IOException;
+    }
+
+    /**
+     * @param length The length of the body, or 0 to send it in chunks
+     * @param varies True if the body is long enough that Accept-Encoding decides whether it is compressed
+     */
+    private OutputStream startResponse(HttpExchange exchange, int statusCode, ContentCoding coding, long length, boolean varies) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        if (enabled && varies) {
+            String vary = headers.getFirst("Vary");
+            headers.set("Vary", vary == null ? "Accept-Encoding" : vary + ", Accept-Encoding");
+        }
+        if (coding != null) {
+            headers.set("Content-Encoding", coding.getToken());
+            String eTag = headers.getFirst("ETag");
+            if (eTag != null && !eTag.startsWith("W/")) {
+                headers.set("ETag", "W/" + eTag);
+            }
+        }
+        exchange.sendResponseHeaders(statusCode, length);
+        return exchange.getResponseBody();
+    }
+
+    private Deflater takeDeflater(ContentCoding coding) {
+        Deflater deflater = (coding == ContentCoding.GZIP ? gzipDeflaters : deflateDeflaters).poll();
+        if (deflater == null) {
+            // gzip wraps raw deflate data in its own header and trailer; deflate is the zlib format
+            deflater = new Deflater(level, coding == ContentCoding.GZIP);
+        }
+        return deflater;
+    }
+
+    private void releaseDeflater(ContentCoding coding, Deflater deflater) {
+        deflater.reset();
+        if (!(coding == ContentCoding.GZIP ? gzipDeflaters : deflateDeflaters).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private static ContentCoding forToken(String token) {
+        String coding = token.trim().toLowerCase(Locale.ROOT);
+        if (coding.equals("gzip") || coding.equals("x-gzip") || coding.equals("*")) {
+            return ContentCoding.GZIP;
+        }
+        if (coding.equals("deflate")) {
+            return ContentCoding.DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * @return The q parameter of a coding, 1 when it has none or it is not a number
+     */
+    private static double quality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Holds back the first minBytes of a body, then starts the response compressed, or sends the body as it is if it
+     * ends sooner
+     */
+    private final class ThresholdStream extends OutputStream {
+        private final ContentCoding coding;
+        private final ResponseStart start;
+        private byte[] held;
+        private int heldLength;
+        private OutputStream out;
+        private Deflater deflater;
+        private boolean closed;
+
+        private ThresholdStream(ContentCoding coding, ResponseStart start) {
+            this.coding = coding;
+            this.start = start;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("The response body was closed");
+            }
+            if (out == null) {
+                if (heldLength + len < minBytes) {
+                    if (held == null) {
+                        held = new byte[minBytes];
+                    }
+                    System.arraycopy(b, off, held, heldLength, len);
+                    heldLength += len;
+                    return;
+                }
+                startChunked();
+            }
+            out.write(b, off, len);
+        }
+
+        private void startChunked() throws IOException {
+            OutputStream body = start.start(coding, 0); // 0 selects chunked transfer encoding
+            if (coding == null) {
+                out = body;
+            } else {
+                deflater = takeDeflater(coding);
+                out = coding == ContentCoding.GZIP ? new GzipStream(body, deflater, bufferSize) : new DeflaterOutputStream(body, deflater, bufferSize);
+            }
+            if (heldLength > 0) {
+                out.write(held, 0, heldLength);
+            }
+            held = null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (out == null) {
+                try (OutputStream body = start.start(null, heldLength)) {
+                    if (heldLength > 0) {
+                        body.write(held, 0, heldLength);
+                    }
+                }
+                return;
+            }
+            try {
+                out.close();
+            } finally {
+                if (deflater != null) {
+                    releaseDeflater(coding, deflater);
+                    deflater = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Raw deflate data between a gzip header and trailer, written with a deflater of the pool where GZIPOutputStream
+     * would make its own
+     */
+    private static final class GzipStream extends DeflaterOutputStream {
+        private final CRC32 crc = new CRC32();
+
+        private GzipStream(OutputStream out, Deflater deflater, int bufferSize) throws IOException {
+            super(out, deflater, bufferSize);
+            out.write(GZIP_HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!def.finished()) {
+                super.finish();
+                writeLittleEndian((int) crc.getValue());
+                writeLittleEndian((int) def.getBytesRead());
+            }
+        }
+
+        private void writeLittleEndian(int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    public static class Settings {
+        private boolean enabled = true;
+        private int minBytes = 1024;
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private int bufferSize = 8 * 1024;
+        private int poolSize = 32;
+
+        /**
+         * @return False to send every body as it is, whatever the request accepts
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        /**
+         * @return The shortest body that is compressed, in bytes
+         */
+        public int getMinBytes() {
+            return minBytes;
+        }
+        public void setMinBytes(int minBytes) {
+            this.minBytes = minBytes;
+        }
+        /**
+         * @return The compression level, from 1 (fastest) to 9 (smallest), or -1 for zlib's default, which is 6
+         */
+        public int getLevel() {
+            return level;
+        }
+        public void setLevel(int level) {
+            this.level = level;
+        }
+        /**
+         * @return The size of the buffer compressed bytes are gathered in before they are written to the response
+         */
+        public int getBufferSize() {
+            return bufferSize;
+        }
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+        /**
+         * @return The most deflaters of each coding kept for reuse
+         */
+        public int getPoolSize() {
+            return poolSize;
+        }
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package biz.agilenoir.invoiceapi;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Cache of each invoice's encoded response body and its strong ETag.
+ * Stored invoices are read-only and a change replaces the stored map, so an entry is only used while it was built
+ * from the very invoice object being served; anything else is treated as stale and rebuilt.
+ * The cache holds at most maxBytes of encoded bodies and evicts the oldest entries first. Entries that were replaced
+ * or invalidated are dropped from the eviction order once they outnumber the live ones.
+ */
+public class SerializedInvoiceCache {
+    private final Function<Map<String, Object>, byte[]> serializer;
+    private final long maxBytes;
+    private final Map<String, SerializedInvoice> entries = new ConcurrentHashMap<>();
+    private final Queue<SerializedInvoice> evictionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedEntries = new AtomicInteger();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param serializer Encodes one invoice into the bytes of its response body
+     * @param maxBytes The most encoded bytes to keep
+     */
+    public SerializedInvoiceCache(Function<Map<String, Object>, byte[]> serializer, long maxBytes) {
+        this.serializer = serializer;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param invoice A stored invoice
+     * @return The invoice's encoded body and ETag, from the cache when it holds them for this invoice object
+     */
+    public SerializedInvoice get(Map<String, Object> invoice) {
+        SerializedInvoice cached = entries.get(idOf(invoice));
+        if (cached != null && cached.invoice == invoice) {
+            return cached;
+        }
+        return put(invoice);
+    }
+
+    /**
+     * Encode an invoice and cache the result, replacing any entry for the same ID
+     * @param invoice A stored invoice
+     * @return The invoice's encoded body and ETag
+     */
+    public SerializedInvoice put(Map<String, Object> invoice) {
+        byte[] body = serializer.apply(invoice);
+        SerializedInvoice serialized = new SerializedInvoice(invoice, body, strongETag(body));
+        if (body.length > maxBytes) {
+            return serialized; // Too big to ever fit
+        }
+
+        SerializedInvoice replaced = entries.put(idOf(invoice), serialized);
+        if (replaced != null) {
+            cachedBytes.addAndGet(-replaced.body.length);
+        }
+        evictionOrder.add(serialized);
+        if (queuedEntries.incrementAndGet() > 2 * entries.size() + 64) {
+            compactEvictionOrder();
+        }
+        cachedBytes.addAndGet(body.length);
+        evictOverflow();
+        return serialized;
+    }
+
+    /**
+     * Drop the cached body of an invoice that has changed
+     */
+    public void invalidate(String id) {
+        SerializedInvoice removed = entries.remove(id);
+        if (removed != null) {
+            cachedBytes.addAndGet(-removed.body.length);
+        }
+    }
+
+    /**
+     * @return The encoded bytes the cache holds now
+     */
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    private void evictOverflow() {
+        while (cachedBytes.get() > maxBytes) {
+            SerializedInvoice oldest = evictionOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            queuedEntries.decrementAndGet();
+            // Entries that were replaced or invalidated have already given back their bytes
+            if (entries.remove(idOf(oldest.invoice), oldest)) {
+                cachedBytes.addAndGet(-oldest.body.length);
+            }
+        }
+    }
+
+    /**
+     * Drop the entries that were replaced or invalidated from the eviction order, so an invoice that keeps changing
+     * does not grow it without bound
+     */
+    private void compactEvictionOrder() {
+        if (!compacting.compareAndSet(false, true)) {
+            return; // Another thread is at it
+        }
+        try {
+            evictionOrder.removeIf(queued -> entries.get(idOf(queued.invoice)) != queued);
+            queuedEntries.set(evictionOrder.size());
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * @return The number of entries in the eviction order, live or not
+     */
+    int getEvictionOrderLength() {
+        return evictionOrder.size();
+    }
+
+    private static String idOf(Map<String, Object> invoice) {
+        return String.valueOf(invoice.get("id"));
+    }
+
+    /**
+     * @return A strong ETag derived from the bytes of a response body
+     */
+    static String strongETag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return "\"" + HexFormat.of().formatHex(digest, 0, 12) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform supports SHA-256", e);
+        }
+    }
+
+    /**
+     * @param ifNoneMatch value of an If-None-Match request header, or null
+     * @param eTag the current ETag of the resource
+     * @return True if the client already holds the current representation
+     */
+    static boolean matchesIfNoneMatch(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            // If-None-Match uses the weak comparison, so a W/ prefix is ignored
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The encoded response body of one invoice and its strong ETag
+     */
+    public static final class SerializedInvoice {
+        private final Map<String, Object> invoice;
+        private final byte[] body;
+        private final String eTag;
+
+        private SerializedInvoice(Map<String, Object> invoice, byte[] body, String eTag) {
+            this.invoice = invoice;
+            this.body = body;
+            this.eTag = eTag;
+        }
+
+        /**
+         * @return The encoded body. Callers must not change the array.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}
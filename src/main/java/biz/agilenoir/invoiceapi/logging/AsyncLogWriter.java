@@ -0,0 +1,339 @@
+package biz.agilenoir.invoiceapi.logging;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Writes log lines from a background thread, so logging costs a request thread only a slot in a ring buffer.
+ * <p>
+ * Any number of threads publish lines into a bounded, lock-free ring buffer. Each slot carries a sequence number
+ * that tells a publisher when the slot is free and the writer thread when it is filled. The writer thread formats
+ * each line, so a message Supplier or a "{}" template is only turned into a String there, and flushes the output
+ * whenever it has caught up. When the buffer is full a line is dropped or its publisher waits, as set by
+ * {@link Settings#getOverflow()}; dropped lines are counted and reported by the writer.
+ * <p>
+ * Lines are written in logfmt: {@code time=... level=INFO logger=... thread=... msg="..."}, followed by the stack
+ * trace of a Throwable if the line has one.
+ */
+public class AsyncLogWriter implements Closeable {
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+    private static final int FLUSH_EVERY_LINES = 256;
+
+    private final LogLevel level;
+    private final Overflow overflow;
+    private final PrintStream out;
+    private final int mask;
+    private final AtomicReferenceArray<Event> events;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    // Read and written by the writer thread only
+    private long head;
+    private long droppedReported;
+    // Every line published before this sequence number has been written and flushed
+    private volatile long flushedUpTo;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    /**
+     * What a publisher does when the ring buffer is full
+     */
+    public enum Overflow {
+        /** Drop the line and count it. A request thread never waits for the log. */
+        DROP,
+        /** Wait until the writer has made room. No line is lost. */
+        BLOCK
+    }
+
+    public AsyncLogWriter(Settings settings) {
+        if (Integer.bitCount(settings.getBufferSize()) != 1) {
+            throw new IllegalArgumentException("bufferSize must be a power of two but was " + settings.getBufferSize());
+        }
+        this.level = settings.getLevel();
+        this.overflow = settings.getOverflow();
+        this.out = settings.getOut();
+        this.mask = settings.getBufferSize() - 1;
+        this.events = new AtomicReferenceArray<>(settings.getBufferSize());
+        this.sequences = new AtomicLongArray(settings.getBufferSize());
+        for (int i = 0; i < settings.getBufferSize(); i++) {
+            sequences.set(i, i);
+        }
+        this.writerThread = Thread.ofPlatform().daemon().name("invoice-log-writer").start(this::writeLines);
+    }
+
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled(LogLevel lineLevel) {
+        return lineLevel.compareTo(level) >= 0 && lineLevel != LogLevel.OFF;
+    }
+
+    /**
+     * @return The number of lines dropped because the ring buffer was full
+     */
+    public long getDroppedLines() {
+        return dropped.get();
+    }
+
+    /**
+     * Publish a line, unless its level is below this writer's level
+     * @param message A String, or a Supplier of the String that is only called on the writer thread
+     * @param arguments Values for the "{}" placeholders of a String message, or null
+     * @param thrown A Throwable whose stack trace follows the line, or null
+     */
+    void publish(LogLevel lineLevel, String logger, Object message, Object[] arguments, Throwable thrown) {
+        if (!isEnabled(lineLevel) || closed) {
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        Event event = new Event(System.currentTimeMillis(), lineLevel, logger, thread.getName(), thread.threadId(), message, arguments, thrown);
+        while (!offer(event)) {
+            if (overflow == Overflow.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(50_000);
+        }
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private boolean offer(Event event) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events.lazySet(slot, event);
+                    // Publishes the event to the writer thread
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false; // The writer has not freed this slot yet: the buffer is full
+            }
+            // Another publisher took this position first; try the next one
+        }
+    }
+
+    private Event poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        Event event = events.get(slot);
+        events.lazySet(slot, null);
+        // Frees the slot for the publisher that comes around the ring next
+        sequences.set(slot, head + mask + 1);
+        head++;
+        return event;
+    }
+
+    private void writeLines() {
+        int unflushed = 0;
+        while (true) {
+            Event event = poll();
+            if (event != null) {
+                write(event);
+                if (++unflushed >= FLUSH_EVERY_LINES) {
+                    flushOutput();
+                    unflushed = 0;
+                }
+                continue;
+            }
+            reportDroppedLines();
+            flushOutput();
+            unflushed = 0;
+            if (closed && tail.get() == head) {
+                return;
+            }
+            writerParked = true;
+            if (tail.get() == head) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+
+    private void flushOutput() {
+        out.flush();
+        flushedUpTo = head;
+    }
+
+    private void reportDroppedLines() {
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            out.println("time=" + Instant.now() + " level=WARN logger=" + AsyncLogWriter.class.getSimpleName()
+                    + " msg=\"" + (droppedNow - droppedReported) + " log lines dropped because the log buffer was full\"");
+            droppedReported = droppedNow;
+        }
+    }
+
+    private void write(Event event) {
+        try {
+            StringBuilder line = new StringBuilder(160);
+            line.append("time=").append(Instant.ofEpochMilli(event.timeMillis))
+                    .append(" level=").append(event.level)
+                    .append(" logger=").append(event.logger)
+                    .append(" thread=");
+            if (event.threadName.isEmpty()) {
+                line.append("virtual-").append(event.threadId);
+            } else {
+                line.append(event.threadName.replace(' ', '_'));
+            }
+            line.append(" msg=\"");
+            appendEscaped(line, event.formatMessage());
+            line.append('"');
+            out.println(line);
+            if (event.thrown != null) {
+                StringWriter stackTrace = new StringWriter();
+                event.thrown.printStackTrace(new PrintWriter(stackTrace));
+                out.print(stackTrace);
+            }
+        } catch (RuntimeException e) {
+            // A failing message Supplier or toString must not stop the writer
+            out.println("time=" + Instant.now() + " level=WARN logger=" + AsyncLogWriter.class.getSimpleName()
+                    + " msg=\"Could not format a log line from " + event.logger + ": " + e + "\"");
+        }
+    }
+
+    private static void appendEscaped(StringBuilder line, String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+    }
+
+    /**
+     * Wait until every line published so far has been written and flushed
+     */
+    public void flush() {
+        long target = tail.get();
+        while (flushedUpTo < target && writerThread.isAlive()) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * Write the lines already published and stop the writer thread. Lines published afterwards are ignored.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Event {
+        private final long timeMillis;
+        private final LogLevel level;
+        private final String logger;
+        private final String threadName;
+        private final long threadId;
+        private final Object message;
+        private final Object[] arguments;
+        private final Throwable thrown;
+
+        Event(long timeMillis, LogLevel level, String logger, String threadName, long threadId, Object message,
+              Object[] arguments, Throwable thrown) {
+            this.timeMillis = timeMillis;
+            this.level = level;
+            this.logger = logger;
+            this.threadName = threadName;
+            this.threadId = threadId;
+            this.message = message;
+            this.arguments = arguments;
+            this.thrown = thrown;
+        }
+
+        String formatMessage() {
+            String text = message instanceof Supplier ? String.valueOf(((Supplier<?>) message).get()) : String.valueOf(message);
+            if (arguments == null || arguments.length == 0) {
+                return text;
+            }
+            StringBuilder formatted = new StringBuilder(text.length() + 32);
+            int argument = 0;
+            int from = 0;
+            int placeholder;
+            while (argument < arguments.length && (placeholder = text.indexOf("{}", from)) >= 0) {
+                formatted.append(text, from, placeholder).append(arguments[argument++]);
+                from = placeholder + 2;
+            }
+            return formatted.append(text, from, text.length()).toString();
+        }
+    }
+
+    public static class Settings {
+        private LogLevel level = LogLevel.INFO;
+        private int bufferSize = 8192;
+        private Overflow overflow = Overflow.DROP;
+        private PrintStream out = System.out;
+
+        /**
+         * @return The least important level written
+         */
+        public LogLevel getLevel() {
+            return level;
+        }
+        public void setLevel(LogLevel level) {
+            this.level = level;
+        }
+        /**
+         * @return How many lines the ring buffer holds. Must be a power of two.
+         */
+        public int getBufferSize() {
+            return bufferSize;
+        }
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+        public Overflow getOverflow() {
+            return overflow;
+        }
+        public void setOverflow(Overflow overflow) {
+            this.overflow = overflow;
+        }
+        /**
+         * @return Where the lines are written. Only the writer thread writes to it.
+         */
+        public PrintStream getOut() {
+            return out;
+        }
+        public void setOut(PrintStream out) {
+            this.out = out;
+        }
+    }
+}
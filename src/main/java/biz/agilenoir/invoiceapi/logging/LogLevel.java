@@ -0,0 +1,15 @@
+package biz.agilenoir.invoiceapi.logging;
+
+/**
+ * How important a log line is. A logger writes the lines at or above its writer's level.
+ */
+public enum LogLevel {
+    /** Whole request and response bodies */
+    TRACE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    /** Writes nothing when set as the level */
+    OFF
+}
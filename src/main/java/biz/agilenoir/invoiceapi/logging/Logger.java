@@ -0,0 +1,86 @@
+package biz.agilenoir.invoiceapi.logging;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Logs lines under one name through the service's {@link AsyncLogWriter}.
+ * <p>
+ * A line below the writer's level costs a level comparison: a String message is not built on if it is passed as a
+ * "{}" template with arguments or as a Supplier, and a Supplier is only called on the writer thread. Guard a message
+ * whose arguments are expensive to compute, such as a decoded request body, with {@link #isEnabled}.
+ * <p>
+ * A {@link #sampled} logger writes only a share of its lines, for lines written on every request.
+ */
+public class Logger {
+    private final String name;
+    private final double sampleRate;
+
+    Logger(String name, double sampleRate) {
+        this.name = name;
+        this.sampleRate = sampleRate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param sampleRate The share of lines to write, between 0 and 1
+     * @return A logger with the same name that writes that share of its lines, picked at random
+     */
+    public Logger sampled(double sampleRate) {
+        return new Logger(name, sampleRate);
+    }
+
+    /**
+     * @return True if a line at this level would be written, or could be for a sampled logger
+     */
+    public boolean isEnabled(LogLevel level) {
+        return sampleRate > 0 && Logging.writer().isEnabled(level);
+    }
+
+    public void trace(Supplier<String> message) {
+        log(LogLevel.TRACE, message, null, null);
+    }
+
+    public void debug(Supplier<String> message) {
+        log(LogLevel.DEBUG, message, null, null);
+    }
+
+    public void debug(String message, Object... arguments) {
+        log(LogLevel.DEBUG, message, arguments, null);
+    }
+
+    public void info(String message, Object... arguments) {
+        log(LogLevel.INFO, message, arguments, null);
+    }
+
+    public void warn(String message, Object... arguments) {
+        log(LogLevel.WARN, message, arguments, null);
+    }
+
+    public void warn(String message, Throwable thrown) {
+        log(LogLevel.WARN, message, null, thrown);
+    }
+
+    public void error(String message, Object... arguments) {
+        log(LogLevel.ERROR, message, arguments, null);
+    }
+
+    public void error(String message, Throwable thrown) {
+        log(LogLevel.ERROR, message, null, thrown);
+    }
+
+    private void log(LogLevel level, Object message, Object[] arguments, Throwable thrown) {
+        AsyncLogWriter writer = Logging.writer();
+        if (!writer.isEnabled(level) || !sampledIn()) {
+            return;
+        }
+        writer.publish(level, name, message, arguments, thrown);
+    }
+
+    private boolean sampledIn() {
+        return sampleRate >= 1 || sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+}
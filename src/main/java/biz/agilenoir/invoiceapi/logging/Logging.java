@@ -0,0 +1,63 @@
+package biz.agilenoir.invoiceapi.logging;
+
+/**
+ * The service's one {@link AsyncLogWriter}, and the loggers that write through it.
+ * Until {@link #configure} is called, lines at INFO and above are written to System.out.
+ */
+public final class Logging {
+    private static volatile AsyncLogWriter writer;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            AsyncLogWriter current = writer;
+            if (current != null) {
+                current.close();
+            }
+        }, "invoice-log-shutdown"));
+    }
+
+    private Logging() {
+    }
+
+    /**
+     * @return A logger named after the simple name of the class
+     */
+    public static Logger getLogger(Class<?> owner) {
+        return new Logger(owner.getSimpleName(), 1);
+    }
+
+    /**
+     * Write from now on through a new writer with these settings. Lines published to the previous writer are written
+     * before it stops.
+     */
+    public static void configure(AsyncLogWriter.Settings settings) {
+        AsyncLogWriter previous;
+        synchronized (Logging.class) {
+            previous = writer;
+            writer = new AsyncLogWriter(settings);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Wait until every line logged so far has been written
+     */
+    public static void flush() {
+        writer().flush();
+    }
+
+    static AsyncLogWriter writer() {
+        AsyncLogWriter current = writer;
+        if (current == null) {
+            synchronized (Logging.class) {
+                if (writer == null) {
+                    writer = new AsyncLogWriter(new AsyncLogWriter.Settings());
+                }
+                current = writer;
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,55 @@
+package biz.agilenoir.invoiceapi.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies into fixed buckets, the way a Prometheus histogram reports them.
+ * Each bucket is a {@link LongAdder}, so recording neither allocates nor makes concurrent callers wait for each other.
+ */
+public class LatencyHistogram {
+    /**
+     * Upper bounds of the buckets in seconds, from half a millisecond to ten seconds
+     */
+    static final double[] BUCKET_BOUNDS_SECONDS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_SECONDS.length];
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = Math.round(BUCKET_BOUNDS_SECONDS[i] * 1e9);
+        }
+    }
+
+    // One more bucket than bounds, for latencies above the highest bound
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long latencyNanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && latencyNanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(latencyNanos);
+    }
+
+    /**
+     * @return The number of latencies recorded in each bucket, not cumulated. The last bucket holds the latencies above
+     * the highest bound.
+     */
+    long[] bucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
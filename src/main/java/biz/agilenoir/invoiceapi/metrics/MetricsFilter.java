@@ -0,0 +1,94 @@
+package biz.agilenoir.invoiceapi.metrics;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records every request of a context in the {@link ServiceMetrics}.
+ * <p>
+ * A request is finished when its response body is closed, so a response a handler sends later from another thread is
+ * timed until it is really sent. The response body is counted on its way out. A response without a body (a 304, or a
+ * 204) is finished when the handler returns, because the HttpServer never hands its body stream back to be closed.
+ */
+public class MetricsFilter extends Filter {
+    private final ServiceMetrics metrics;
+
+    public MetricsFilter(ServiceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long startNanos = System.nanoTime();
+        ServiceMetrics.Route route = ServiceMetrics.Route.of(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+        metrics.requestStarted(route);
+        RecordingOutputStream responseBody = new RecordingOutputStream(exchange.getResponseBody(), exchange, route, startNanos);
+        exchange.setStreams(null, responseBody);
+        try {
+            chain.doFilter(exchange);
+        } catch (IOException | RuntimeException e) {
+            // The HttpServer drops the connection without a response
+            responseBody.finish(500);
+            throw e;
+        }
+        int status = exchange.getResponseCode();
+        if (status == 304 || status == 204) {
+            responseBody.finish(status);
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Records request counts, latencies and response bytes";
+    }
+
+    private class RecordingOutputStream extends FilterOutputStream {
+        private final HttpExchange exchange;
+        private final ServiceMetrics.Route route;
+        private final long startNanos;
+        private long bytes;
+        private boolean finished;
+
+        RecordingOutputStream(OutputStream out, HttpExchange exchange, ServiceMetrics.Route route, long startNanos) {
+            super(out);
+            this.exchange = exchange;
+            this.route = route;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                finish(exchange.getResponseCode());
+            }
+        }
+
+        /**
+         * Record the request once, however many times its response is closed
+         */
+        synchronized void finish(int status) {
+            if (!finished) {
+                finished = true;
+                metrics.requestFinished(route, status, System.nanoTime() - startNanos, bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package biz.agilenoir.invoiceapi.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request and Abacus call metrics of the invoice service, written in the Prometheus text exposition format.
+ * <p>
+ * Every route, status and outcome has its own counters, found by index rather than by a map lookup. The counters are
+ * {@link LongAdder}s, so recording neither allocates nor makes concurrent requests wait for each other. The counter of
+ * a response status is created the first time a route answers with that status.
+ */
+public class ServiceMetrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int MIN_STATUS = 100;
+    private static final int MAX_STATUS = 599;
+    // The bucket bounds as Prometheus "le" labels, such as 0.0005 and 10
+    private static final String[] BUCKET_LABELS = new String[LatencyHistogram.BUCKET_BOUNDS_SECONDS.length];
+    static {
+        for (int i = 0; i < BUCKET_LABELS.length; i++) {
+            BUCKET_LABELS[i] = BigDecimal.valueOf(LatencyHistogram.BUCKET_BOUNDS_SECONDS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    /**
+     * The routes of the service. Requests to anything else are counted under OTHER.
+     */
+    public enum Route {
+        LIST_INVOICES("GET", "/api/invoices"),
+        CREATE_INVOICE("POST", "/api/invoices"),
+        CREATE_INVOICE_BATCH("POST", "/api/invoices/batch"),
+        INVOICE_SUMMARY("GET", "/api/invoices/summary"),
+        HEALTH("GET", "/api/health"),
+        METRICS("GET", "/api/metrics"),
+        OTHER("other", "other");
+
+        private final String method;
+        private final String path;
+
+        Route(String method, String path) {
+            this.method = method;
+            this.path = path;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The route a request is for, or OTHER
+         */
+        public static Route of(String method, String path) {
+            for (Route route : VALUES) {
+                if (route.path.equals(path) && route.method.equals(method)) {
+                    return route;
+                }
+            }
+            return OTHER;
+        }
+
+        private static final Route[] VALUES = values();
+    }
+
+    /**
+     * How an invoice sent to Abacus ended: the status Abacus answered with, or why there was no answer
+     */
+    public enum AbacusOutcome {
+        ACCEPTED,
+        REJECTED,
+        PENDING_REVIEW,
+        /** Abacus answered with a status this service does not know */
+        OTHER_STATUS,
+        /** The call guard refused the call without sending it */
+        UNAVAILABLE,
+        /** The call failed or timed out */
+        FAILED;
+
+        /**
+         * @return The outcome of an answer with the given ProcessResponse status
+         */
+        public static AbacusOutcome ofStatus(String status) {
+            if (status == null) {
+                return OTHER_STATUS;
+            }
+            switch (status) {
+                case "ACCEPTED":
+                    return ACCEPTED;
+                case "REJECTED":
+                    return REJECTED;
+                case "PENDING_REVIEW":
+                    return PENDING_REVIEW;
+                default:
+                    return OTHER_STATUS;
+            }
+        }
+    }
+
+    private final LongSupplier storeSize;
+    private final LongSupplier coalescedAbacusCalls;
+    private final RouteMetrics[] routes = new RouteMetrics[Route.values().length];
+    private final LatencyHistogram[] abacusCalls = new LatencyHistogram[AbacusOutcome.values().length];
+
+    /**
+     * @param storeSize Gives the number of stored invoices
+     */
+    public ServiceMetrics(LongSupplier storeSize) {
+        this(storeSize, () -> 0);
+    }
+
+    /**
+     * @param storeSize Gives the number of stored invoices
+     * @param coalescedAbacusCalls Gives the number of Abacus calls saved because an invoice joined the call of an
+     *                             identical invoice
+     */
+    public ServiceMetrics(LongSupplier storeSize, LongSupplier coalescedAbacusCalls) {
+        this.storeSize = storeSize;
+        this.coalescedAbacusCalls = coalescedAbacusCalls;
+        for (int i = 0; i < routes.length; i++) {
+            routes[i] = new RouteMetrics();
+        }
+        for (int i = 0; i < abacusCalls.length; i++) {
+            abacusCalls[i] = new LatencyHistogram();
+        }
+    }
+
+    public void requestStarted(Route route) {
+        routes[route.ordinal()].inFlight.increment();
+    }
+
+    /**
+     * @param status The response status
+     * @param durationNanos Time from the start of the request until its response was sent
+     * @param responseBytes The number of response body bytes sent
+     */
+    public void requestFinished(Route route, int status, long durationNanos, long responseBytes) {
+        RouteMetrics metrics = routes[route.ordinal()];
+        metrics.inFlight.decrement();
+        metrics.statusCounter(status).increment();
+        metrics.latencies.record(durationNanos);
+        metrics.responseBytes.add(responseBytes);
+    }
+
+    /**
+     * @param durationNanos Time from handing the invoice to the Abacus client until its outcome was known
+     */
+    public void abacusCallFinished(AbacusOutcome outcome, long durationNanos) {
+        abacusCalls[outcome.ordinal()].record(durationNanos);
+    }
+
+    /**
+     * @return Every metric in the Prometheus text exposition format
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder(8192);
+
+        header(text, "invoice_http_requests_total", "counter", "Requests answered, by route and response status");
+        for (Route route : Route.values()) {
+            RouteMetrics metrics = routes[route.ordinal()];
+            for (int status = MIN_STATUS; status <= MAX_STATUS; status++) {
+                LongAdder counter = metrics.statuses.get(status - MIN_STATUS);
+                if (counter != null) {
+                    text.append("invoice_http_requests_total{");
+                    routeLabels(text, route).append(",status=\"").append(status).append("\"} ").append(counter.sum()).append('\n');
+                }
+            }
+        }
+
+        header(text, "invoice_http_request_duration_seconds", "histogram", "Time from receiving a request until its response was sent");
+        for (Route route : Route.values()) {
+            StringBuilder labels = routeLabels(new StringBuilder(), route);
+            histogram(text, "invoice_http_request_duration_seconds", labels.toString(), routes[route.ordinal()].latencies);
+        }
+
+        header(text, "invoice_http_requests_in_flight", "gauge", "Requests received but not answered yet");
+        for (Route route : Route.values()) {
+            text.append("invoice_http_requests_in_flight{");
+            routeLabels(text, route).append("} ").append(routes[route.ordinal()].inFlight.sum()).append('\n');
+        }
+
+        header(text, "invoice_http_response_bytes_total", "counter", "Response body bytes sent");
+        for (Route route : Route.values()) {
+            text.append("invoice_http_response_bytes_total{");
+            routeLabels(text, route).append("} ").append(routes[route.ordinal()].responseBytes.sum()).append('\n');
+        }
+
+        header(text, "invoice_store_invoices", "gauge", "Invoices in the store");
+        text.append("invoice_store_invoices ").append(storeSize.getAsLong()).append('\n');
+
+        header(text, "invoice_abacus_call_duration_seconds", "histogram",
+                "Time until an invoice sent to Abacus had an outcome, by outcome");
+        for (AbacusOutcome outcome : AbacusOutcome.values()) {
+            histogram(text, "invoice_abacus_call_duration_seconds", "outcome=\"" + outcome.name() + "\"", abacusCalls[outcome.ordinal()]);
+        }
+
+        header(text, "invoice_abacus_calls_coalesced_total", "counter",
+                "Abacus calls saved because an invoice shared the call of an identical invoice");
+        text.append("invoice_abacus_calls_coalesced_total ").append(coalescedAbacusCalls.getAsLong()).append('\n');
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static StringBuilder routeLabels(StringBuilder text, Route route) {
+        return text.append("method=\"").append(route.getMethod()).append("\",route=\"").append(route.getPath()).append('"');
+    }
+
+    private static void histogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        long[] counts = histogram.bucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String bound = i < BUCKET_LABELS.length ? BUCKET_LABELS[i] : "+Inf";
+            text.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        text.append(name).append("_sum{").append(labels).append("} ").append(histogram.sumSeconds()).append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    private static class RouteMetrics {
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS - MIN_STATUS + 1);
+
+        LongAdder statusCounter(int status) {
+            int index = Math.min(Math.max(status, MIN_STATUS), MAX_STATUS) - MIN_STATUS;
+            LongAdder counter = statuses.get(index);
+            if (counter == null) {
+                statuses.compareAndSet(index, null, new LongAdder());
+                counter = statuses.get(index);
+            }
+            return counter;
+        }
+    }
+}
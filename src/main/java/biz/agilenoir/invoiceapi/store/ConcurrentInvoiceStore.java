@@ -0,0 +1,468 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.time.LocalDate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Thread-safe, in-memory invoice store.
+ * Invoices are indexed by ID in a ConcurrentHashMap, so lookups are O(1) and never block.
+ * A second, ordered index keyed on each invoice's sequence number remembers the order invoices were stored in.
+ * Listing and paging walk that index; a page cursor is the sequence number to continue after.
+ * <p>
+ * Secondary indexes map each customer and each status to the sequence numbers of its invoices, and a sorted index
+ * does the same for dates. A filtered query walks the smallest index that applies and checks the remaining filters
+ * against each invoice it finds. Indexes are written after the invoice itself, so a concurrent query sees an
+ * invoice either with all of its index entries or not at all.
+ * <p>
+ * Invoices are kept as {@link StoredInvoice}s, which share one String per customer name. Summaries are computed over
+ * an {@link InvoiceColumns} copy of the fields they need, which is appended to after the indexes.
+ * <p>
+ * A change to an invoice replaces it under the same sequence number. The changed invoice's index entries are added
+ * before it replaces the old one, and the old invoice's entries are removed after, so a concurrent query finds the
+ * invoice as it was or as it is, never neither. Changes are applied one at a time.
+ */
+public class ConcurrentInvoiceStore implements InvoiceStore {
+    private static final String ID_PREFIX = "INV-";
+
+    private final Map<String, Slot> slotsById = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Map<String, Object>> invoicesInOrder = new ConcurrentSkipListMap<>();
+    private final Map<String, IndexBucket> customerIndex = new ConcurrentHashMap<>();
+    private final Map<String, IndexBucket> statusIndex = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<LocalDate, IndexBucket> dateIndex = new ConcurrentSkipListMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+    private final Map<String, String> customerNames = new ConcurrentHashMap<>();
+    private final InvoiceColumns columns = new InvoiceColumns();
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    @Override
+    public Map<String, Object> findById(String id) {
+        Slot slot = slotsById.get(id);
+        return slot == null ? null : slot.invoice;
+    }
+
+    @Override
+    public Collection<Map<String, Object>> findAll() {
+        return Collections.unmodifiableCollection(invoicesInOrder.values());
+    }
+
+    @Override
+    public InvoicePage findPage(InvoiceQuery query) {
+        Iterator<Map.Entry<Long, Map<String, Object>>> matches = matching(query);
+
+        List<Map<String, Object>> page = new ArrayList<>(Math.min(query.getLimit(), 64));
+        long lastSequence = 0;
+        while (page.size() < query.getLimit() && matches.hasNext()) {
+            Map.Entry<Long, Map<String, Object>> match = matches.next();
+            page.add(match.getValue());
+            lastSequence = match.getKey();
+        }
+
+        boolean morePages = !page.isEmpty() && matches.hasNext();
+        return new InvoicePage(Collections.unmodifiableList(page), morePages ? InvoicePage.cursorAfter(lastSequence) : null);
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> findMatching(InvoiceQuery query) {
+        return () -> {
+            Iterator<Map.Entry<Long, Map<String, Object>>> matches = matching(query);
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return matches.hasNext();
+                }
+
+                @Override
+                public Map<String, Object> next() {
+                    return matches.next().getValue();
+                }
+            };
+        };
+    }
+
+    @Override
+    public InvoiceSummary summarize(InvoiceQuery query) {
+        return columns.summarize(query);
+    }
+
+    @Override
+    public Map<String, Object> add(Map<String, Object> invoice) {
+        Map.Entry<Long, Map<String, Object>> stored = addEntry(invoice);
+        return stored == null ? null : stored.getValue();
+    }
+
+    @Override
+    public Map<String, Object> create(Map<String, Object> invoice) {
+        return createEntry(invoice).getValue();
+    }
+
+    /**
+     * Like {@link #add}, but also tells the caller the sequence number the invoice was stored under
+     * @return The sequence number and the stored invoice, or null if an invoice with the same ID is already stored
+     */
+    Map.Entry<Long, Map<String, Object>> addEntry(Map<String, Object> invoice) {
+        long invoiceSequence = sequence.incrementAndGet();
+        Map<String, Object> stored = insert(invoiceSequence, freeze(invoice));
+        return stored == null ? null : new AbstractMap.SimpleImmutableEntry<>(invoiceSequence, stored);
+    }
+
+    /**
+     * Like {@link #create}, but also tells the caller the sequence number the invoice was stored under
+     * @return The sequence number and the stored invoice
+     */
+    Map.Entry<Long, Map<String, Object>> createEntry(Map<String, Object> invoice) {
+        while (true) {
+            long invoiceSequence = sequence.incrementAndGet();
+            Map<String, Object> stored = insert(invoiceSequence, withId(ID_PREFIX + invoiceSequence, invoice));
+            if (stored != null) {
+                return new AbstractMap.SimpleImmutableEntry<>(invoiceSequence, stored);
+            }
+            // The ID was taken by an invoice added with an explicit ID; try the next one.
+        }
+    }
+
+    @Override
+    public Map<String, Object> update(String id, UnaryOperator<Map<String, Object>> change) {
+        return update(id, change, (invoiceSequence, invoice) -> { });
+    }
+
+    /**
+     * Like {@link #update}, but also hands the changed invoice and its sequence number to a listener, while no other
+     * change can be applied, so the listener sees the changes of an invoice in the order they were applied
+     * @param changed Called with the sequence number and the stored invoice, if the invoice changed
+     */
+    Map<String, Object> update(String id, UnaryOperator<Map<String, Object>> change, BiConsumer<Long, Map<String, Object>> changed) {
+        updateLock.lock();
+        try {
+            Slot slot = slotsById.get(id);
+            if (slot == null) {
+                return null;
+            }
+            Map<String, Object> previous = slot.invoice;
+            Map<String, Object> fields = change.apply(previous);
+            if (fields == null || fields == previous) {
+                return previous;
+            }
+            Map<String, Object> current = withId(id, fields);
+            index(slot.sequence, current);
+            slot.invoice = current;
+            invoicesInOrder.put(slot.sequence, current);
+            unindexChanged(slot.sequence, previous, current);
+            columns.update(slot.row, current);
+            version.incrementAndGet();
+            changed.accept(slot.sequence, current);
+            return current;
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Put back an invoice read from persistent storage under the sequence number it was first stored with.
+     * An invoice already restored under the same sequence number is replaced, as a later change to it.
+     * Later creates continue numbering after the highest sequence number restored.
+     * @param invoice The invoice fields
+     * @return False if an invoice with the same ID is already stored under another sequence number
+     */
+    boolean restore(long invoiceSequence, Map<String, Object> invoice) {
+        sequence.accumulateAndGet(invoiceSequence, Math::max);
+        StoredInvoice restored = StoredInvoice.of(invoice, this::customerName);
+        if (insert(invoiceSequence, restored) != null) {
+            return true;
+        }
+        Slot slot = slotsById.get(restored.getId());
+        if (slot == null || slot.sequence != invoiceSequence) {
+            return false;
+        }
+        update(restored.getId(), previous -> restored);
+        return true;
+    }
+
+    /**
+     * Take back an invoice stored by add or create, as if it had never been stored. Nothing is removed if the ID now
+     * belongs to an invoice stored under another sequence number.
+     */
+    void remove(long invoiceSequence, String id) {
+        updateLock.lock();
+        try {
+            Slot slot = slotsById.get(id);
+            if (slot == null || slot.sequence != invoiceSequence || !slotsById.remove(id, slot)) {
+                return;
+            }
+            invoicesInOrder.remove(invoiceSequence);
+            unindex(invoiceSequence, slot.invoice);
+            columns.remove(slot.row);
+            version.incrementAndGet();
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * @return A live view of every stored invoice keyed by sequence number, in sequence order
+     */
+    Iterable<Map.Entry<Long, Map<String, Object>>> entries() {
+        return Collections.unmodifiableCollection(invoicesInOrder.entrySet());
+    }
+
+    @Override
+    public long version() {
+        return version.get();
+    }
+
+    @Override
+    public int size() {
+        return slotsById.size();
+    }
+
+    @Override
+    public void clear() {
+        slotsById.clear();
+        invoicesInOrder.clear();
+        customerIndex.clear();
+        statusIndex.clear();
+        dateIndex.clear();
+        customerNames.clear();
+        columns.clear();
+        sequence.set(0);
+        version.incrementAndGet();
+    }
+
+    private Map<String, Object> insert(long invoiceSequence, Map<String, Object> invoice) {
+        Object id = invoice.get("id");
+        if (!(id instanceof String)) {
+            throw new IllegalArgumentException("Invoice has no id: " + invoice);
+        }
+        Slot slot = new Slot(invoiceSequence, invoice);
+        if (slotsById.putIfAbsent((String) id, slot) != null) {
+            return null;
+        }
+        invoicesInOrder.put(invoiceSequence, invoice);
+        index(invoiceSequence, invoice);
+        slot.row = columns.append(invoice);
+        version.incrementAndGet();
+        return invoice;
+    }
+
+    private void index(long invoiceSequence, Map<String, Object> invoice) {
+        Object customer = invoice.get("customer");
+        if (customer instanceof String) {
+            customerIndex.computeIfAbsent((String) customer, key -> new IndexBucket()).add(invoiceSequence);
+        }
+        Object status = invoice.get("status");
+        if (status instanceof String) {
+            statusIndex.computeIfAbsent((String) status, key -> new IndexBucket()).add(invoiceSequence);
+        }
+        LocalDate date = InvoiceFields.date(invoice);
+        if (date != null) {
+            dateIndex.computeIfAbsent(date, key -> new IndexBucket()).add(invoiceSequence);
+        }
+    }
+
+    private void unindex(long invoiceSequence, Map<String, Object> invoice) {
+        unindexChanged(invoiceSequence, invoice, Collections.emptyMap());
+    }
+
+    /**
+     * Remove the index entries of the previous invoice that the current one does not share
+     */
+    private void unindexChanged(long invoiceSequence, Map<String, Object> previous, Map<String, Object> current) {
+        unindexChanged(customerIndex, previous.get("customer"), current.get("customer"), invoiceSequence);
+        unindexChanged(statusIndex, previous.get("status"), current.get("status"), invoiceSequence);
+        LocalDate previousDate = InvoiceFields.date(previous);
+        if (previousDate != null && !previousDate.equals(InvoiceFields.date(current))) {
+            IndexBucket bucket = dateIndex.get(previousDate);
+            if (bucket != null) {
+                bucket.remove(invoiceSequence);
+            }
+        }
+    }
+
+    private static void unindexChanged(Map<String, IndexBucket> index, Object previousKey, Object currentKey, long invoiceSequence) {
+        if (previousKey instanceof String && !previousKey.equals(currentKey)) {
+            IndexBucket bucket = index.get(previousKey);
+            if (bucket != null) {
+                bucket.remove(invoiceSequence);
+            }
+        }
+    }
+
+    /**
+     * @return The invoices that match the query and come after its cursor, in sequence order
+     */
+    private Iterator<Map.Entry<Long, Map<String, Object>>> matching(InvoiceQuery query) {
+        long afterSequence = query.getCursor() == null ? 0 : InvoicePage.sequenceOf(query.getCursor());
+        Iterator<Long> candidates = candidateSequences(query, afterSequence);
+        return new Iterator<>() {
+            private Map.Entry<Long, Map<String, Object>> nextMatch;
+
+            @Override
+            public boolean hasNext() {
+                while (nextMatch == null && candidates.hasNext()) {
+                    Long candidate = candidates.next();
+                    Map<String, Object> invoice = invoicesInOrder.get(candidate);
+                    if (invoice != null && query.matches(invoice)) {
+                        nextMatch = new AbstractMap.SimpleImmutableEntry<>(candidate, invoice);
+                    }
+                }
+                return nextMatch != null;
+            }
+
+            @Override
+            public Map.Entry<Long, Map<String, Object>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<Long, Map<String, Object>> match = nextMatch;
+                nextMatch = null;
+                return match;
+            }
+        };
+    }
+
+    /**
+     * Pick the most selective index for the query.
+     * @return Sequence numbers, in ascending order, of every invoice that might match the query
+     */
+    private Iterator<Long> candidateSequences(InvoiceQuery query, long afterSequence) {
+        IndexBucket smallest = null;
+        if (query.getCustomer() != null) {
+            smallest = customerIndex.get(query.getCustomer());
+            if (smallest == null) {
+                return Collections.emptyIterator();
+            }
+        }
+        if (query.getStatus() != null) {
+            IndexBucket statusBucket = statusIndex.get(query.getStatus());
+            if (statusBucket == null) {
+                return Collections.emptyIterator();
+            }
+            if (smallest == null || statusBucket.size() < smallest.size()) {
+                smallest = statusBucket;
+            }
+        }
+        if (query.hasDateRange()) {
+            NavigableMap<LocalDate, IndexBucket> dates = dateRange(query);
+            int limit = smallest == null ? Integer.MAX_VALUE : smallest.size();
+            if (countUpTo(dates, limit) < limit) {
+                return mergedSequences(dates, afterSequence);
+            }
+        }
+        if (smallest != null) {
+            return smallest.sequences.tailSet(afterSequence, false).iterator();
+        }
+        return invoicesInOrder.tailMap(afterSequence, false).keySet().iterator();
+    }
+
+    private NavigableMap<LocalDate, IndexBucket> dateRange(InvoiceQuery query) {
+        if (query.getDateFrom() != null && query.getDateTo() != null) {
+            if (query.getDateFrom().isAfter(query.getDateTo())) {
+                return Collections.emptyNavigableMap();
+            }
+            return dateIndex.subMap(query.getDateFrom(), true, query.getDateTo(), true);
+        }
+        if (query.getDateFrom() != null) {
+            return dateIndex.tailMap(query.getDateFrom(), true);
+        }
+        return dateIndex.headMap(query.getDateTo(), true);
+    }
+
+    /**
+     * @return The number of invoices in the date buckets, counting no further than the limit
+     */
+    private static int countUpTo(NavigableMap<LocalDate, IndexBucket> dates, int limit) {
+        long count = 0;
+        for (IndexBucket bucket : dates.values()) {
+            count += bucket.size();
+            if (count >= limit) {
+                return limit;
+            }
+        }
+        return (int) count;
+    }
+
+    /**
+     * The date index groups sequence numbers by date, so a range of dates is merged back into sequence order.
+     */
+    private static Iterator<Long> mergedSequences(NavigableMap<LocalDate, IndexBucket> dates, long afterSequence) {
+        List<Long> merged = new ArrayList<>();
+        for (IndexBucket bucket : dates.values()) {
+            merged.addAll(bucket.sequences.tailSet(afterSequence, false));
+        }
+        Collections.sort(merged);
+        return merged.iterator();
+    }
+
+    private Map<String, Object> withId(String id, Map<String, Object> invoice) {
+        return StoredInvoice.of(id, invoice, this::customerName);
+    }
+
+    private Map<String, Object> freeze(Map<String, Object> invoice) {
+        return StoredInvoice.of(invoice, this::customerName);
+    }
+
+    /**
+     * @return The one String the store keeps for this customer name
+     */
+    private String customerName(String name) {
+        String shared = customerNames.putIfAbsent(name, name);
+        return shared == null ? name : shared;
+    }
+
+    /**
+     * The sequence numbers of the invoices that share one index key, in ascending order.
+     * The size is kept separately because counting a ConcurrentSkipListSet walks the whole set.
+     */
+    private static final class IndexBucket {
+        private final ConcurrentSkipListSet<Long> sequences = new ConcurrentSkipListSet<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        void add(long invoiceSequence) {
+            if (sequences.add(invoiceSequence)) {
+                size.incrementAndGet();
+            }
+        }
+
+        void remove(long invoiceSequence) {
+            if (sequences.remove(invoiceSequence)) {
+                size.decrementAndGet();
+            }
+        }
+
+        int size() {
+            return size.get();
+        }
+    }
+
+    /**
+     * Where one invoice is stored: its sequence number, its row in the summary columns and its current fields
+     */
+    private static final class Slot {
+        private final long sequence;
+        private volatile Map<String, Object> invoice;
+        // Set once the row is appended, before add or create returns the invoice
+        private volatile int row;
+
+        Slot(long sequence, Map<String, Object> invoice) {
+            this.sequence = sequence;
+            this.invoice = invoice;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A column-wise copy of the fields an {@link InvoiceSummary} needs, one row per stored invoice.
+ * <p>
+ * Amounts are kept in cents and dates as epoch days, in primitive arrays. Status, customer and month are dictionary
+ * keys, so grouping by them indexes an array instead of hashing a String. Rows are appended under a lock and published
+ * with a volatile write, so a summary reads a consistent prefix of the rows without locking.
+ * <p>
+ * Running totals per status, customer and month are kept as rows are appended, which answers a summary without
+ * filters without reading any row. A filtered summary is a fork-join reduction over the columns.
+ * <p>
+ * A change to an invoice rewrites its row in place and moves its amount between the running totals. A filtered
+ * summary running at the same time may count that row as it was or as it is. A removed invoice's row stays, marked
+ * so that no filter matches it.
+ */
+final class InvoiceColumns {
+    private static final int NONE = -1;
+    private static final int REMOVED = -2;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final int MIN_ROWS_PER_TASK = 1 << 14;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Dictionary statuses = new Dictionary();
+    private final Dictionary customers = new Dictionary();
+    private final Dictionary months = new Dictionary();
+    private long totalCount;
+    private long totalCents;
+    private Columns columns = Columns.EMPTY;
+    private volatile Columns published = Columns.EMPTY;
+
+    /**
+     * Add an invoice's row and its amount to the running totals
+     * @return The number of the row
+     */
+    int append(Map<String, Object> invoice) {
+        long cents = amountCents(invoice);
+        LocalDate date = InvoiceFields.date(invoice);
+        Object status = invoice.get("status");
+        Object customer = invoice.get("customer");
+
+        lock.lock();
+        try {
+            int statusKey = status instanceof String ? statuses.keyOf(status) : NONE;
+            int customerKey = customer instanceof String ? customers.keyOf(customer) : NONE;
+            int monthKey = date == null ? NONE : months.keyOf(YearMonth.from(date));
+
+            totalCount++;
+            totalCents += cents;
+            statuses.add(statusKey, cents);
+            customers.add(customerKey, cents);
+            months.add(monthKey, cents);
+
+            columns = columns.append(cents, epochDay(date), statusKey, customerKey, monthKey,
+                    statuses.names(), customers.names(), months.names());
+            published = columns;
+            return columns.rows - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace a row with the fields of the changed invoice, and move its amount between the running totals
+     * @param row The number append returned for the invoice
+     */
+    void update(int row, Map<String, Object> invoice) {
+        long cents = amountCents(invoice);
+        LocalDate date = InvoiceFields.date(invoice);
+        Object status = invoice.get("status");
+        Object customer = invoice.get("customer");
+
+        lock.lock();
+        try {
+            if (row >= columns.rows) {
+                return; // The columns were cleared since the row was appended
+            }
+            long previousCents = columns.amountCents[row];
+            statuses.subtract(columns.statusKeys[row], previousCents);
+            customers.subtract(columns.customerKeys[row], previousCents);
+            months.subtract(columns.monthKeys[row], previousCents);
+
+            int statusKey = status instanceof String ? statuses.keyOf(status) : NONE;
+            int customerKey = customer instanceof String ? customers.keyOf(customer) : NONE;
+            int monthKey = date == null ? NONE : months.keyOf(YearMonth.from(date));
+
+            totalCents += cents - previousCents;
+            statuses.add(statusKey, cents);
+            customers.add(customerKey, cents);
+            months.add(monthKey, cents);
+
+            columns = columns.set(row, cents, epochDay(date), statusKey, customerKey, monthKey,
+                    statuses.names(), customers.names(), months.names());
+            published = columns;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a row's amount out of the running totals and mark it so that no summary counts it again
+     * @param row The number append returned for the invoice
+     */
+    void remove(int row) {
+        lock.lock();
+        try {
+            if (row >= columns.rows || columns.statusKeys[row] == REMOVED) {
+                return;
+            }
+            long previousCents = columns.amountCents[row];
+            statuses.subtract(columns.statusKeys[row], previousCents);
+            customers.subtract(columns.customerKeys[row], previousCents);
+            months.subtract(columns.monthKeys[row], previousCents);
+            totalCount--;
+            totalCents -= previousCents;
+
+            columns = columns.set(row, 0, NO_DATE, REMOVED, NONE, NONE,
+                    statuses.names(), customers.names(), months.names());
+            published = columns;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            statuses.clear();
+            customers.clear();
+            months.clear();
+            totalCount = 0;
+            totalCents = 0;
+            columns = Columns.EMPTY;
+            published = columns;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param query The filters the invoices must match. Its cursor and limit are ignored.
+     */
+    InvoiceSummary summarize(InvoiceQuery query) {
+        if (!query.hasFilters()) {
+            lock.lock();
+            try {
+                return new InvoiceSummary(new InvoiceSummary.Totals(totalCount, totalCents),
+                        statuses.totals(), customers.totals(), months.totals());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Columns snapshot = published;
+        Filter filter = new Filter(query, snapshot);
+        int rowsPerTask = Math.max(MIN_ROWS_PER_TASK, snapshot.rows / (4 * ForkJoinPool.getCommonPoolParallelism()));
+        Partial partial = filter.matchesNothing ? new Partial(snapshot)
+                : ForkJoinPool.commonPool().invoke(new SummaryTask(snapshot, filter, 0, snapshot.rows, rowsPerTask));
+        return partial.toSummary(snapshot);
+    }
+
+    private static int epochDay(LocalDate date) {
+        return date == null || date.toEpochDay() != (int) date.toEpochDay() ? NO_DATE : (int) date.toEpochDay();
+    }
+
+    private static long amountCents(Map<String, Object> invoice) {
+        if (invoice instanceof StoredInvoice && ((StoredInvoice) invoice).hasAmountCents()) {
+            return ((StoredInvoice) invoice).getAmountCents();
+        }
+        Object amount = invoice.get("amount");
+        return amount instanceof Number ? Math.round(((Number) amount).doubleValue() * 100) : 0;
+    }
+
+    /**
+     * Values of one grouping field, each with a dense key, and the running totals per key
+     */
+    private static final class Dictionary {
+        private final Map<Object, Integer> keys = new HashMap<>();
+        private Object[] names = new Object[16];
+        private long[] counts = new long[16];
+        private long[] cents = new long[16];
+
+        int keyOf(Object name) {
+            Integer key = keys.get(name);
+            if (key != null) {
+                return key;
+            }
+            int newKey = keys.size();
+            if (newKey == names.length) {
+                // Copied rather than grown in place, because published columns still read the old array
+                names = Arrays.copyOf(names, newKey * 2);
+                counts = Arrays.copyOf(counts, newKey * 2);
+                cents = Arrays.copyOf(cents, newKey * 2);
+            }
+            names[newKey] = name;
+            keys.put(name, newKey);
+            return newKey;
+        }
+
+        void add(int key, long amountCents) {
+            if (key != NONE) {
+                counts[key]++;
+                cents[key] += amountCents;
+            }
+        }
+
+        void subtract(int key, long amountCents) {
+            if (key != NONE) {
+                counts[key]--;
+                cents[key] -= amountCents;
+            }
+        }
+
+        Object[] names() {
+            return names;
+        }
+
+        Map<String, InvoiceSummary.Totals> totals() {
+            Map<String, InvoiceSummary.Totals> totals = new TreeMap<>();
+            for (int key = 0; key < keys.size(); key++) {
+                if (counts[key] > 0) {
+                    totals.put(names[key].toString(), new InvoiceSummary.Totals(counts[key], cents[key]));
+                }
+            }
+            return totals;
+        }
+
+        void clear() {
+            keys.clear();
+            names = new Object[16];
+            counts = new long[16];
+            cents = new long[16];
+        }
+    }
+
+    /**
+     * A view of the first rows of the column arrays. Appending writes past the rows of every earlier view, or into
+     * new arrays, so only a change to an invoice changes a row a view can see.
+     */
+    private static final class Columns {
+        static final Columns EMPTY = new Columns(0, new long[1024], new int[1024], new int[1024], new int[1024], new int[1024],
+                new Object[0], new Object[0], new Object[0]);
+
+        final int rows;
+        final long[] amountCents;
+        final int[] epochDays;
+        final int[] statusKeys;
+        final int[] customerKeys;
+        final int[] monthKeys;
+        final Object[] statusNames;
+        final Object[] customerNames;
+        final Object[] monthNames;
+
+        private Columns(int rows, long[] amountCents, int[] epochDays, int[] statusKeys, int[] customerKeys, int[] monthKeys,
+                        Object[] statusNames, Object[] customerNames, Object[] monthNames) {
+            this.rows = rows;
+            this.amountCents = amountCents;
+            this.epochDays = epochDays;
+            this.statusKeys = statusKeys;
+            this.customerKeys = customerKeys;
+            this.monthKeys = monthKeys;
+            this.statusNames = statusNames;
+            this.customerNames = customerNames;
+            this.monthNames = monthNames;
+        }
+
+        Columns append(long cents, int epochDay, int statusKey, int customerKey, int monthKey,
+                       Object[] statusNames, Object[] customerNames, Object[] monthNames) {
+            long[] amountCents = this.amountCents;
+            int[] epochDays = this.epochDays;
+            int[] statusKeys = this.statusKeys;
+            int[] customerKeys = this.customerKeys;
+            int[] monthKeys = this.monthKeys;
+            if (rows == amountCents.length || this == EMPTY) {
+                int capacity = this == EMPTY ? amountCents.length : rows * 2;
+                amountCents = Arrays.copyOf(amountCents, capacity);
+                epochDays = Arrays.copyOf(epochDays, capacity);
+                statusKeys = Arrays.copyOf(statusKeys, capacity);
+                customerKeys = Arrays.copyOf(customerKeys, capacity);
+                monthKeys = Arrays.copyOf(monthKeys, capacity);
+            }
+            amountCents[rows] = cents;
+            epochDays[rows] = epochDay;
+            statusKeys[rows] = statusKey;
+            customerKeys[rows] = customerKey;
+            monthKeys[rows] = monthKey;
+            return new Columns(rows + 1, amountCents, epochDays, statusKeys, customerKeys, monthKeys,
+                    statusNames, customerNames, monthNames);
+        }
+
+        Columns set(int row, long cents, int epochDay, int statusKey, int customerKey, int monthKey,
+                    Object[] statusNames, Object[] customerNames, Object[] monthNames) {
+            amountCents[row] = cents;
+            epochDays[row] = epochDay;
+            statusKeys[row] = statusKey;
+            customerKeys[row] = customerKey;
+            monthKeys[row] = monthKey;
+            return new Columns(rows, amountCents, epochDays, statusKeys, customerKeys, monthKeys,
+                    statusNames, customerNames, monthNames);
+        }
+    }
+
+    /**
+     * A query's filters translated to column values
+     */
+    private static final class Filter {
+        final int statusKey;
+        final int customerKey;
+        final boolean hasDateRange;
+        final long fromDay;
+        final long toDay;
+        final Double amountMin;
+        final Double amountMax;
+        final boolean matchesNothing;
+
+        Filter(InvoiceQuery query, Columns columns) {
+            statusKey = query.getStatus() == null ? NONE : keyOf(columns.statusNames, query.getStatus());
+            customerKey = query.getCustomer() == null ? NONE : keyOf(columns.customerNames, query.getCustomer());
+            hasDateRange = query.hasDateRange();
+            fromDay = query.getDateFrom() == null ? Long.MIN_VALUE : query.getDateFrom().toEpochDay();
+            toDay = query.getDateTo() == null ? Long.MAX_VALUE : query.getDateTo().toEpochDay();
+            amountMin = query.getAmountMin();
+            amountMax = query.getAmountMax();
+            // A status or customer no invoice has
+            matchesNothing = (query.getStatus() != null && statusKey == NONE) || (query.getCustomer() != null && customerKey == NONE);
+        }
+
+        private static int keyOf(Object[] names, String name) {
+            for (int key = 0; key < names.length && names[key] != null; key++) {
+                if (names[key].equals(name)) {
+                    return key;
+                }
+            }
+            return NONE;
+        }
+
+        boolean matches(Columns columns, int row) {
+            if (columns.statusKeys[row] == REMOVED) {
+                return false;
+            }
+            if (statusKey != NONE && columns.statusKeys[row] != statusKey) {
+                return false;
+            }
+            if (customerKey != NONE && columns.customerKeys[row] != customerKey) {
+                return false;
+            }
+            if (hasDateRange) {
+                int epochDay = columns.epochDays[row];
+                if (epochDay == NO_DATE || epochDay < fromDay || epochDay > toDay) {
+                    return false;
+                }
+            }
+            if (amountMin != null || amountMax != null) {
+                double amount = columns.amountCents[row] / 100.0;
+                return (amountMin == null || amount >= amountMin) && (amountMax == null || amount <= amountMax);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Counts and totals of the rows one task has read, indexed by dictionary key
+     */
+    private static final class Partial {
+        long count;
+        long cents;
+        final long[] statusCounts;
+        final long[] statusCents;
+        final long[] customerCounts;
+        final long[] customerCents;
+        final long[] monthCounts;
+        final long[] monthCents;
+
+        Partial(Columns columns) {
+            statusCounts = new long[columns.statusNames.length];
+            statusCents = new long[columns.statusNames.length];
+            customerCounts = new long[columns.customerNames.length];
+            customerCents = new long[columns.customerNames.length];
+            monthCounts = new long[columns.monthNames.length];
+            monthCents = new long[columns.monthNames.length];
+        }
+
+        void add(Columns columns, int row) {
+            long amountCents = columns.amountCents[row];
+            count++;
+            cents += amountCents;
+            add(statusCounts, statusCents, columns.statusKeys[row], amountCents);
+            add(customerCounts, customerCents, columns.customerKeys[row], amountCents);
+            add(monthCounts, monthCents, columns.monthKeys[row], amountCents);
+        }
+
+        private static void add(long[] counts, long[] cents, int key, long amountCents) {
+            // A row changed while the summary runs may hold a key added after the summary's view was taken, or be removed
+            if (key >= 0 && key < counts.length) {
+                counts[key]++;
+                cents[key] += amountCents;
+            }
+        }
+
+        Partial merge(Partial other) {
+            count += other.count;
+            cents += other.cents;
+            merge(statusCounts, other.statusCounts);
+            merge(statusCents, other.statusCents);
+            merge(customerCounts, other.customerCounts);
+            merge(customerCents, other.customerCents);
+            merge(monthCounts, other.monthCounts);
+            merge(monthCents, other.monthCents);
+            return this;
+        }
+
+        private static void merge(long[] into, long[] from) {
+            for (int i = 0; i < into.length; i++) {
+                into[i] += from[i];
+            }
+        }
+
+        InvoiceSummary toSummary(Columns columns) {
+            return new InvoiceSummary(new InvoiceSummary.Totals(count, cents),
+                    totals(columns.statusNames, statusCounts, statusCents),
+                    totals(columns.customerNames, customerCounts, customerCents),
+                    totals(columns.monthNames, monthCounts, monthCents));
+        }
+
+        private static Map<String, InvoiceSummary.Totals> totals(Object[] names, long[] counts, long[] cents) {
+            Map<String, InvoiceSummary.Totals> totals = new TreeMap<>();
+            for (int key = 0; key < counts.length; key++) {
+                if (counts[key] > 0) {
+                    totals.put(names[key].toString(), new InvoiceSummary.Totals(counts[key], cents[key]));
+                }
+            }
+            return totals;
+        }
+    }
+
+    private static final class SummaryTask extends RecursiveTask<Partial> {
+        private final Columns columns;
+        private final Filter filter;
+        private final int from;
+        private final int to;
+        private final int rowsPerTask;
+
+        SummaryTask(Columns columns, Filter filter, int from, int to, int rowsPerTask) {
+            this.columns = columns;
+            this.filter = filter;
+            this.from = from;
+            this.to = to;
+            this.rowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from <= rowsPerTask) {
+                Partial partial = new Partial(columns);
+                for (int row = from; row < to; row++) {
+                    if (filter.matches(columns, row)) {
+                        partial.add(columns, row);
+                    }
+                }
+                return partial;
+            }
+            int middle = (from + to) >>> 1;
+            SummaryTask left = new SummaryTask(columns, filter, from, middle, rowsPerTask);
+            left.fork();
+            Partial right = new SummaryTask(columns, filter, middle, to, rowsPerTask).compute();
+            return left.join().merge(right);
+        }
+    }
+}
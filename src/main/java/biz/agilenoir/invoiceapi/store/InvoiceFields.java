@@ -0,0 +1,37 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+
+/**
+ * Typed access to the entries of a stored invoice map
+ */
+final class InvoiceFields {
+    private InvoiceFields() {
+    }
+
+    /**
+     * @return The invoice date, or null if the invoice has no date that parses as ISO-8601
+     */
+    static LocalDate date(Map<String, Object> invoice) {
+        if (invoice instanceof StoredInvoice) {
+            LocalDate date = ((StoredInvoice) invoice).getDate();
+            if (date != null) {
+                return date; // Skips formatting the epoch day as a String only to parse it again
+            }
+        }
+        Object date = invoice.get("date");
+        if (date instanceof LocalDate) {
+            return (LocalDate) date;
+        }
+        if (date instanceof String) {
+            try {
+                return LocalDate.parse((String) date);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,555 @@
+package biz.agilenoir.invoiceapi.store;
+
+import biz.agilenoir.invoiceapi.logging.Logger;
+import biz.agilenoir.invoiceapi.logging.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, segmented write-ahead log of stored invoices, with snapshots that let startup replay only the tail.
+ * <p>
+ * Records are written into memory-mapped segment files of a fixed size. Each record is its length, a CRC32C of its
+ * bytes and an {@link InvoiceRecordCodec} encoded invoice. A zero length marks the end of a segment's records.
+ * The length is written last, and replay stops at the first record whose checksum does not match, so a record torn
+ * by a crash is dropped rather than misread.
+ * <p>
+ * A single sync thread forces the current segment to disk whenever records are waiting, so every record appended
+ * while one force runs is made durable by the next: fsyncs are shared by all concurrent writers (group commit).
+ * A writer that must not answer before its record is durable calls {@link #awaitDurable}.
+ * <p>
+ * A snapshot starts a new segment and then writes every invoice of the store to a snapshot file. The store holds an
+ * invoice before the journal does, so the snapshot covers every record of the older segments, which are deleted.
+ * It may also hold invoices appended after the new segment started. Replay hands over every record in order, and the
+ * store keeps the last record of each invoice, so a record replayed again over a later snapshot is overwritten by the
+ * records that follow it.
+ */
+public class InvoiceJournal implements Closeable {
+    private static final Logger log = Logging.getLogger(InvoiceJournal.class);
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x494E5653; // "INVS"
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long groupCommitNanos;
+    private final int snapshotEverySegments;
+    private final Supplier<Iterable<Map.Entry<Long, Map<String, Object>>>> snapshotSource;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition recordsAppended = lock.newCondition();
+    private final Condition recordsDurable = lock.newCondition();
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+    private int writePosition;
+    private long appendedRecords;
+    private long durableRecords;
+    private int segmentsSinceSnapshot;
+    private boolean closed;
+
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().daemon().name("invoice-journal-snapshot").factory());
+    private Thread syncThread;
+
+    /**
+     * Constructor. Call {@link #open} before appending.
+     * @param directory The directory holding the segment and snapshot files. It is created if missing.
+     * @param settings Segment size, group commit window and snapshot frequency
+     * @param snapshotSource Every stored invoice keyed by sequence number. Each invoice must be stored there before it
+     *                       is appended to the journal.
+     */
+    public InvoiceJournal(Path directory, Settings settings, Supplier<Iterable<Map.Entry<Long, Map<String, Object>>>> snapshotSource) {
+        this.directory = directory;
+        this.segmentBytes = settings.getSegmentBytes();
+        this.groupCommitNanos = settings.getGroupCommitWindow().toNanos();
+        this.snapshotEverySegments = settings.getSnapshotEverySegments();
+        this.snapshotSource = snapshotSource;
+    }
+
+    /**
+     * Replay the newest snapshot and the segments written after it, then get ready to append
+     * @param replayed Receives each sequence number and invoice, snapshot first and then in append order
+     * @return The number of records replayed
+     * @throws IOException If a snapshot or a segment other than the last one is damaged
+     */
+    public long open(BiConsumer<Long, Map<String, Object>> replayed) throws IOException {
+        Files.createDirectories(directory);
+        long[] replayedRecords = new long[1];
+        BiConsumer<Long, Map<String, Object>> counted = (invoiceSequence, invoice) -> {
+            replayedRecords[0]++;
+            replayed.accept(invoiceSequence, invoice);
+        };
+
+        List<Long> snapshots = fileNumbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long firstSegment = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        if (!snapshots.isEmpty()) {
+            replaySnapshot(snapshotPath(firstSegment), counted);
+        }
+
+        List<Long> segments = fileNumbers("", SEGMENT_SUFFIX);
+        for (long number : segments) {
+            if (number < firstSegment) {
+                Files.deleteIfExists(segmentPath(number)); // Covered by the snapshot; left by an interrupted cleanup
+            }
+        }
+        segments.removeIf(number -> number < firstSegment);
+
+        lock.lock();
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                boolean last = i == segments.size() - 1;
+                MappedByteBuffer buffer = map(segmentPath(segments.get(i)));
+                int end = replaySegment(buffer, counted);
+                if (!last && end + Integer.BYTES <= buffer.capacity() && buffer.getInt(end) != 0) {
+                    // Older segments were forced before the next one started, so this is not a crash
+                    throw new IOException("Journal segment " + segmentPath(segments.get(i)) + " is damaged at " + end);
+                }
+                if (last) {
+                    // Records after end were torn by a crash, or were never forced and reached the disk out of
+                    // order. None of them was acknowledged; clear them so they cannot reappear behind new appends.
+                    if (clear(buffer, end)) {
+                        buffer.force();
+                    }
+                    segmentNumber = segments.get(i);
+                    segment = buffer;
+                    writePosition = end;
+                }
+            }
+            if (segment == null) {
+                segmentNumber = firstSegment;
+                segment = map(segmentPath(segmentNumber));
+                writePosition = 0;
+                forceDirectory();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        syncThread = Thread.ofPlatform().daemon().name("invoice-journal-sync").start(this::syncLoop);
+        return replayedRecords[0];
+    }
+
+    /**
+     * Append one invoice to the journal
+     * @return The record's number, to pass to {@link #awaitDurable}
+     */
+    public long append(long invoiceSequence, Map<String, Object> invoice) {
+        byte[] record = InvoiceRecordCodec.encode(invoiceSequence, invoice);
+        if (RECORD_HEADER_BYTES + record.length + Integer.BYTES > segmentBytes) {
+            throw new IllegalArgumentException("Invoice record of " + record.length + " bytes does not fit in a journal segment");
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(record);
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            if (writePosition + RECORD_HEADER_BYTES + record.length + Integer.BYTES > segment.capacity()) {
+                startNewSegment();
+            }
+            segment.put(writePosition + RECORD_HEADER_BYTES, record);
+            segment.putInt(writePosition + Integer.BYTES, (int) checksum.getValue());
+            segment.putInt(writePosition, record.length); // Written last: a nonzero length means the record is complete
+            writePosition += RECORD_HEADER_BYTES + record.length;
+            appendedRecords++;
+            recordsAppended.signal();
+            return appendedRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a record has been forced to disk
+     * @param recordNumber A number returned by {@link #append}
+     * @throws IOException If the journal is closed first or the thread is interrupted
+     */
+    public void awaitDurable(long recordNumber) throws IOException {
+        lock.lock();
+        try {
+            while (durableRecords < recordNumber) {
+                if (closed) {
+                    throw new IOException("Journal closed before record " + recordNumber + " was durable");
+                }
+                recordsDurable.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the journal");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncLoop() {
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    while (!closed && durableRecords == appendedRecords) {
+                        recordsAppended.await();
+                    }
+                    if (closed) {
+                        return; // close() forces what is left
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                if (groupCommitNanos > 0) {
+                    LockSupport.parkNanos(groupCommitNanos); // Let more writers join this fsync
+                }
+                long target;
+                MappedByteBuffer toForce;
+                lock.lock();
+                try {
+                    target = appendedRecords;
+                    toForce = segment;
+                } finally {
+                    lock.unlock();
+                }
+                // Records up to target are all in this segment: starting a new segment forces the old one first
+                toForce.force();
+                markDurable(target);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void markDurable(long target) {
+        lock.lock();
+        try {
+            durableRecords = Math.max(durableRecords, target);
+            recordsDurable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Seal the filled segment and start the next one, and snapshot the store in the background once
+     * snapshotEverySegments segments have been filled since the last snapshot. Called with the lock held.
+     */
+    private void startNewSegment() {
+        rollSegment();
+        segmentsSinceSnapshot++;
+        if (snapshotEverySegments > 0 && segmentsSinceSnapshot >= snapshotEverySegments) {
+            segmentsSinceSnapshot = 0;
+            snapshotExecutor.execute(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    log.error("Invoice journal snapshot failed; the journal keeps every segment until the next one", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Seal the current segment and start the next one. The new segment does not count as a filled one, so a
+     * snapshot, which rolls the segment itself, does not lead to another. Called with the lock held.
+     */
+    private void rollSegment() {
+        try {
+            segment.force();
+            durableRecords = appendedRecords;
+            recordsDurable.signalAll();
+            segmentNumber++;
+            segment = map(segmentPath(segmentNumber));
+            writePosition = 0;
+            forceDirectory();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start journal segment " + segmentNumber, e);
+        }
+    }
+
+    /**
+     * Write a snapshot of the store and delete the segments it covers
+     */
+    public void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            long coveredSegments;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                rollSegment();
+                segmentsSinceSnapshot = 0;
+                coveredSegments = segmentNumber;
+            } finally {
+                lock.unlock();
+            }
+
+            Path temporary = directory.resolve(SNAPSHOT_PREFIX + coveredSegments + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                long count = 0;
+                CRC32C checksum = new CRC32C();
+                for (Map.Entry<Long, Map<String, Object>> stored : snapshotSource.get()) {
+                    byte[] record = InvoiceRecordCodec.encode(stored.getKey(), stored.getValue());
+                    checksum.reset();
+                    checksum.update(record);
+                    out.writeInt(record.length);
+                    out.writeInt((int) checksum.getValue());
+                    out.write(record);
+                    count++;
+                }
+                out.writeInt(0);
+                out.writeLong(count);
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.flush();
+                file.getChannel().force(true);
+            }
+            Files.move(temporary, snapshotPath(coveredSegments), StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+
+            for (long number : fileNumbers("", SEGMENT_SUFFIX)) {
+                if (number < coveredSegments) {
+                    Files.deleteIfExists(segmentPath(number));
+                }
+            }
+            for (long number : fileNumbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (number < coveredSegments) {
+                    Files.deleteIfExists(snapshotPath(number));
+                }
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Delete every record and snapshot
+     */
+    public void clear() throws IOException {
+        snapshotLock.lock();
+        try {
+            lock.lock();
+            try {
+                segment = null;
+                for (long number : fileNumbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                    Files.deleteIfExists(snapshotPath(number));
+                }
+                for (long number : fileNumbers("", SEGMENT_SUFFIX)) {
+                    Files.deleteIfExists(segmentPath(number));
+                }
+                segmentNumber = 0;
+                segment = map(segmentPath(segmentNumber));
+                writePosition = 0;
+                segmentsSinceSnapshot = 0;
+                forceDirectory();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Force every appended record to disk and stop the sync and snapshot threads
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotExecutor.shutdown();
+        try {
+            snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            segment.force();
+            durableRecords = appendedRecords;
+            closed = true;
+            recordsAppended.signalAll();
+            recordsDurable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (syncThread != null) {
+            try {
+                syncThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The position after the last intact record of the segment
+     */
+    private int replaySegment(MappedByteBuffer buffer, BiConsumer<Long, Map<String, Object>> replayed) throws IOException {
+        int position = 0;
+        CRC32C checksum = new CRC32C();
+        while (position + RECORD_HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > buffer.capacity()) {
+                return position;
+            }
+            byte[] record = new byte[length];
+            buffer.get(position + RECORD_HEADER_BYTES, record);
+            checksum.reset();
+            checksum.update(record);
+            if ((int) checksum.getValue() != buffer.getInt(position + Integer.BYTES)) {
+                return position;
+            }
+            replayed.accept(InvoiceRecordCodec.sequenceOf(record), InvoiceRecordCodec.invoiceOf(record));
+            position += RECORD_HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return True if any byte from the position on was not zero yet
+     */
+    private static boolean clear(MappedByteBuffer buffer, int from) {
+        boolean changed = false;
+        for (int position = from; position < buffer.capacity(); position++) {
+            if (buffer.get(position) != 0) {
+                buffer.put(position, (byte) 0);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static void replaySnapshot(Path snapshot, BiConsumer<Long, Map<String, Object>> replayed) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not an invoice snapshot: " + snapshot);
+            }
+            long count = 0;
+            CRC32C checksum = new CRC32C();
+            for (int length = in.readInt(); length != 0; length = in.readInt()) {
+                int expectedChecksum = in.readInt();
+                byte[] record = new byte[length];
+                in.readFully(record);
+                checksum.reset();
+                checksum.update(record);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    throw new IOException("Invoice snapshot " + snapshot + " is damaged at record " + count);
+                }
+                replayed.accept(InvoiceRecordCodec.sequenceOf(record), InvoiceRecordCodec.invoiceOf(record));
+                count++;
+            }
+            if (in.readLong() != count || in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Invoice snapshot " + snapshot + " is incomplete");
+            }
+        } catch (EOFException e) {
+            throw new IOException("Invoice snapshot " + snapshot + " is incomplete", e);
+        }
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping past the end of the file grows it; the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+        }
+    }
+
+    /**
+     * Make file creations, renames and deletions in the directory durable
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms cannot open or force a directory; their file systems order these updates themselves
+        }
+    }
+
+    private List<Long> fileNumbers(String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()))));
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%020d", number) + SEGMENT_SUFFIX);
+    }
+
+    private Path snapshotPath(long coveredSegments) {
+        return directory.resolve(SNAPSHOT_PREFIX + coveredSegments + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Journal settings
+     */
+    public static class Settings {
+        private int segmentBytes = 64 * 1024 * 1024;
+        private Duration groupCommitWindow = Duration.ZERO;
+        private int snapshotEverySegments = 4;
+
+        public int getSegmentBytes() {
+            return segmentBytes;
+        }
+        public void setSegmentBytes(int segmentBytes) {
+            this.segmentBytes = segmentBytes;
+        }
+        /**
+         * @return How long the sync thread waits for more records before each fsync. Zero syncs as soon as a record
+         * is waiting; records appended during that fsync still share the next one.
+         */
+        public Duration getGroupCommitWindow() {
+            return groupCommitWindow;
+        }
+        public void setGroupCommitWindow(Duration groupCommitWindow) {
+            this.groupCommitWindow = groupCommitWindow;
+        }
+        /**
+         * @return How many filled segments trigger a snapshot. 0 leaves snapshots to explicit {@link #snapshot} calls.
+         */
+        public int getSnapshotEverySegments() {
+            return snapshotEverySegments;
+        }
+        public void setSnapshotEverySegments(int snapshotEverySegments) {
+            this.snapshotEverySegments = snapshotEverySegments;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of invoices read from an {@link InvoiceStore}, and the cursor to read the page after it
+ */
+public class InvoicePage {
+    private final List<Map<String, Object>> invoices;
+    private final String nextCursor;
+
+    public InvoicePage(List<Map<String, Object>> invoices, String nextCursor) {
+        this.invoices = invoices;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Map<String, Object>> getInvoices() {
+        return invoices;
+    }
+
+    /**
+     * @return The cursor for the next page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @param sequence position of the last invoice on a page in the store's ordered index
+     * @return An opaque cursor that reads on from just after that invoice
+     */
+    static String cursorAfter(long sequence) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Long.toString(sequence).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @param cursor a cursor made by {@link #cursorAfter(long)}
+     * @return The position the cursor reads on from
+     * @throws IllegalArgumentException If the cursor was not made by this store
+     */
+    static long sequenceOf(String cursor) {
+        try {
+            return Long.parseLong(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Which invoices to read from an {@link InvoiceStore}: the filters they must match and which page of the matches.
+ * Every filter is optional; a filter left null matches any invoice. Date and amount ranges include both ends.
+ */
+public class InvoiceQuery {
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private String cursor;
+    private int limit = DEFAULT_LIMIT;
+    private String customer;
+    private String status;
+    private LocalDate dateFrom;
+    private LocalDate dateTo;
+    private Double amountMin;
+    private Double amountMax;
+
+    /**
+     * @return The next-page cursor of the previous page, or null for the first page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+    /**
+     * @return The most invoices on the page
+     */
+    public int getLimit() {
+        return limit;
+    }
+    public void setLimit(int limit) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT + " but was " + limit);
+        }
+        this.limit = limit;
+    }
+    public String getCustomer() {
+        return customer;
+    }
+    public void setCustomer(String customer) {
+        this.customer = customer;
+    }
+    public String getStatus() {
+        return status;
+    }
+    public void setStatus(String status) {
+        this.status = status;
+    }
+    public LocalDate getDateFrom() {
+        return dateFrom;
+    }
+    public void setDateFrom(LocalDate dateFrom) {
+        this.dateFrom = dateFrom;
+    }
+    public LocalDate getDateTo() {
+        return dateTo;
+    }
+    public void setDateTo(LocalDate dateTo) {
+        this.dateTo = dateTo;
+    }
+    public Double getAmountMin() {
+        return amountMin;
+    }
+    public void setAmountMin(Double amountMin) {
+        this.amountMin = amountMin;
+    }
+    public Double getAmountMax() {
+        return amountMax;
+    }
+    public void setAmountMax(Double amountMax) {
+        this.amountMax = amountMax;
+    }
+
+    /**
+     * @return True if any filter is set
+     */
+    public boolean hasFilters() {
+        return customer != null || status != null || hasDateRange() || amountMin != null || amountMax != null;
+    }
+
+    boolean hasDateRange() {
+        return dateFrom != null || dateTo != null;
+    }
+
+    /**
+     * @return True if the invoice matches every filter of this query
+     */
+    boolean matches(Map<String, Object> invoice) {
+        if (customer != null && !customer.equals(invoice.get("customer"))) {
+            return false;
+        }
+        if (status != null && !status.equals(invoice.get("status"))) {
+            return false;
+        }
+        if (hasDateRange()) {
+            LocalDate date = InvoiceFields.date(invoice);
+            if (date == null || (dateFrom != null && date.isBefore(dateFrom)) || (dateTo != null && date.isAfter(dateTo))) {
+                return false;
+            }
+        }
+        if (amountMin != null || amountMax != null) {
+            Object amount = invoice.get("amount");
+            if (!(amount instanceof Number)) {
+                return false;
+            }
+            double value = ((Number) amount).doubleValue();
+            return (amountMin == null || value >= amountMin) && (amountMax == null || value <= amountMax);
+        }
+        return true;
+    }
+}
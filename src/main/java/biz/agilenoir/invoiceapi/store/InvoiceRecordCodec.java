@@ -0,0 +1,128 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of one stored invoice and its sequence number, as written to the journal and to snapshots.
+ * Each field is its name followed by a one-byte type tag and the value. Strings, whole numbers, doubles, booleans and
+ * nulls keep their type; any other value is written as its string form. Names and strings are written as their UTF-8
+ * bytes after an int length, so a value of any length can be stored.
+ */
+final class InvoiceRecordCodec {
+    private static final byte NULL = 'N';
+    private static final byte STRING = 'S';
+    private static final byte DOUBLE = 'D';
+    private static final byte LONG = 'L';
+    private static final byte INTEGER = 'I';
+    private static final byte BOOLEAN = 'B';
+
+    private InvoiceRecordCodec() {
+    }
+
+    static byte[] encode(long invoiceSequence, Map<String, Object> invoice) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(invoiceSequence);
+            out.writeShort(invoice.size());
+            for (Map.Entry<String, Object> field : invoice.entrySet()) {
+                writeString(out, field.getKey());
+                writeValue(out, field.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // A DataOutputStream over a ByteArrayOutputStream does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else {
+            out.writeByte(STRING);
+            writeString(out, String.valueOf(value));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("String of " + length + " bytes does not fit in the invoice record");
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The sequence number of an encoded record
+     */
+    static long sequenceOf(byte[] record) {
+        long invoiceSequence = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            invoiceSequence = (invoiceSequence << 8) | (record[i] & 0xFF);
+        }
+        return invoiceSequence;
+    }
+
+    /**
+     * @return The invoice of an encoded record, in a new map the caller owns
+     * @throws IOException If the record is not one this codec wrote
+     */
+    static Map<String, Object> invoiceOf(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        in.skipNBytes(Long.BYTES);
+        int fieldCount = in.readUnsignedShort();
+        Map<String, Object> invoice = new LinkedHashMap<>(fieldCount * 2);
+        for (int i = 0; i < fieldCount; i++) {
+            String name = readString(in);
+            byte tag = in.readByte();
+            switch (tag) {
+                case NULL:
+                    invoice.put(name, null);
+                    break;
+                case STRING:
+                    invoice.put(name, readString(in));
+                    break;
+                case DOUBLE:
+                    invoice.put(name, in.readDouble());
+                    break;
+                case LONG:
+                    invoice.put(name, in.readLong());
+                    break;
+                case INTEGER:
+                    invoice.put(name, in.readInt());
+                    break;
+                case BOOLEAN:
+                    invoice.put(name, in.readBoolean());
+                    break;
+                default:
+                    throw new IOException("Unknown field type " + tag + " in invoice record");
+            }
+        }
+        return invoice;
+    }
+}
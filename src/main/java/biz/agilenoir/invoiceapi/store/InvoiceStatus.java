@@ -0,0 +1,34 @@
+package biz.agilenoir.invoiceapi.store;
+
+/**
+ * The statuses an invoice can have, as listed in the invoice API specification
+ */
+public enum InvoiceStatus {
+    NEW,
+    PENDING,
+    PAID,
+    /** Accepted by the service and waiting in the outbox to be sent to Abacus */
+    PENDING_ABACUS,
+    /** Abacus is reviewing the invoice; it is sent again later for the outcome */
+    PENDING_REVIEW,
+    /** Abacus rejected the invoice */
+    REJECTED;
+
+    private static final InvoiceStatus[] VALUES = values();
+
+    /**
+     * @return The status with this name, or null if there is none. Unlike valueOf, an unknown name is not an error.
+     */
+    static InvoiceStatus find(String name) {
+        for (InvoiceStatus status : VALUES) {
+            if (status.name().equals(name)) {
+                return status;
+            }
+        }
+        return null;
+    }
+
+    static InvoiceStatus ofOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
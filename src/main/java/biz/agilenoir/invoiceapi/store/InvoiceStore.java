@@ -0,0 +1,91 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Storage for the invoices served by the InvoiceMicroservice.
+ * Every request handler shares one store, so implementations must be safe to use from many threads at once.
+ * Stored invoices are read-only; a change to an invoice replaces the stored map.
+ */
+public interface InvoiceStore {
+
+    /**
+     * Find an invoice by ID
+     * @param id ID of the invoice, for example INV-001
+     * @return The invoice, or null if no invoice has that ID
+     */
+    Map<String, Object> findById(String id);
+
+    /**
+     * @return A read-only view of all invoices in the order they were stored
+     */
+    Collection<Map<String, Object>> findAll();
+
+    /**
+     * Read one page of invoices in the order they were stored.
+     * The page starts straight after the query's cursor, so reading a deep page costs the same as reading the first.
+     * @param query Which page to read
+     * @return The page, with a cursor for the next page if there is one
+     * @throws IllegalArgumentException If the query's cursor is not one this store handed out
+     */
+    InvoicePage findPage(InvoiceQuery query);
+
+    /**
+     * Read every invoice that matches the query's filters, starting after its cursor, in the order they were stored.
+     * The query's limit is ignored. Matches are found as the result is iterated, not up front.
+     * @param query The filters to match
+     * @return The matching invoices
+     * @throws IllegalArgumentException If the query's cursor is not one this store handed out
+     */
+    Iterable<Map<String, Object>> findMatching(InvoiceQuery query);
+
+    /**
+     * Count and total the invoices that match the query's filters, overall and by status, customer and month.
+     * The query's cursor and limit are ignored.
+     * @param query The filters to match
+     * @return The summary
+     */
+    InvoiceSummary summarize(InvoiceQuery query);
+
+    /**
+     * Store an invoice that already carries an "id" entry
+     * @param invoice The invoice to store
+     * @return The stored invoice, or null if an invoice with the same ID is already stored
+     */
+    Map<String, Object> add(Map<String, Object> invoice);
+
+    /**
+     * Give the invoice the next free ID and store it
+     * @param invoice The invoice fields, without an "id" entry
+     * @return The stored invoice, including its new ID
+     */
+    Map<String, Object> create(Map<String, Object> invoice);
+
+    /**
+     * Change a stored invoice. The changed invoice keeps its ID and its place in the order invoices were stored in,
+     * and replaces the stored map. Changes to one store are applied one at a time, so the change always sees the
+     * invoice as the previous change left it. An invoice can be changed once add or create has returned it.
+     * @param id ID of the invoice
+     * @param change Given the stored invoice, returns its new fields, or the same map or null to leave it as it is.
+     *               An "id" entry is ignored.
+     * @return The stored invoice after the change, or null if no invoice has that ID
+     */
+    Map<String, Object> update(String id, UnaryOperator<Map<String, Object>> change);
+
+    /**
+     * @return A number that grows every time the stored invoices change. It has grown by the time a change is visible.
+     */
+    long version();
+
+    /**
+     * @return The number of stored invoices
+     */
+    int size();
+
+    /**
+     * Remove every invoice and restart ID numbering
+     */
+    void clear();
+}
@@ -0,0 +1,77 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Invoice counts and amount totals, overall and grouped by status, by customer and by month.
+ * Amounts are summed in whole cents, so a total does not depend on the order invoices were added up in.
+ */
+public class InvoiceSummary {
+    private final Totals overall;
+    private final Map<String, Totals> byStatus;
+    private final Map<String, Totals> byCustomer;
+    private final Map<String, Totals> byMonth;
+
+    /**
+     * @param byStatus Totals per status, sorted by status
+     * @param byCustomer Totals per customer, sorted by customer
+     * @param byMonth Totals per month of the invoice date as yyyy-MM, sorted by month
+     */
+    public InvoiceSummary(Totals overall, Map<String, Totals> byStatus, Map<String, Totals> byCustomer, Map<String, Totals> byMonth) {
+        this.overall = overall;
+        this.byStatus = Collections.unmodifiableMap(byStatus);
+        this.byCustomer = Collections.unmodifiableMap(byCustomer);
+        this.byMonth = Collections.unmodifiableMap(byMonth);
+    }
+
+    public Totals getOverall() {
+        return overall;
+    }
+
+    /**
+     * @return Totals per status, sorted by status. Invoices without a status are left out.
+     */
+    public Map<String, Totals> getByStatus() {
+        return byStatus;
+    }
+
+    /**
+     * @return Totals per customer, sorted by customer. Invoices without a customer are left out.
+     */
+    public Map<String, Totals> getByCustomer() {
+        return byCustomer;
+    }
+
+    /**
+     * @return Totals per month as yyyy-MM, sorted by month. Invoices without a date are left out.
+     */
+    public Map<String, Totals> getByMonth() {
+        return byMonth;
+    }
+
+    /**
+     * The number of invoices in a group and the sum of their amounts
+     */
+    public static class Totals {
+        private final long count;
+        private final long amountCents;
+
+        public Totals(long count, long amountCents) {
+            this.count = count;
+            this.amountCents = amountCents;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getAmountCents() {
+            return amountCents;
+        }
+
+        public double getTotalAmount() {
+            return amountCents / 100.0;
+        }
+    }
+}
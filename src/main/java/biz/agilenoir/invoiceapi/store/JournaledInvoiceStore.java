@@ -0,0 +1,164 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * An in-memory {@link ConcurrentInvoiceStore} whose invoices survive a restart.
+ * Every invoice stored, and every change to one, is appended to an {@link InvoiceJournal}; opening the store replays
+ * the journal, and the last record of an invoice wins. With synchronous writes, add, create and update return only
+ * once the invoice is on disk. Concurrent writers share fsyncs, so the cost per invoice falls as the write rate rises.
+ * <p>
+ * A new invoice is stored in memory before it is appended, as the journal's snapshots require. If the append or the
+ * wait for the fsync fails, the invoice is removed again before the exception reaches the caller.
+ */
+public class JournaledInvoiceStore implements InvoiceStore, Closeable {
+    private final ConcurrentInvoiceStore invoices = new ConcurrentInvoiceStore();
+    private final InvoiceJournal journal;
+    private final boolean syncWrites;
+    private final long replayedRecords;
+    private final int recoveredInvoices;
+
+    /**
+     * Constructor. Replays the journal in the directory before returning.
+     * @param directory The journal directory. It is created if missing.
+     * @param settings Journal settings
+     * @param syncWrites True to wait until each invoice is on disk before add or create returns. False leaves at most
+     *                   the last fsync's worth of invoices to be lost in a crash of the machine, but not of the process.
+     */
+    public JournaledInvoiceStore(Path directory, InvoiceJournal.Settings settings, boolean syncWrites) throws IOException {
+        this.journal = new InvoiceJournal(directory, settings, invoices::entries);
+        this.syncWrites = syncWrites;
+        this.replayedRecords = journal.open(invoices::restore);
+        this.recoveredInvoices = invoices.size();
+    }
+
+    /**
+     * @return How many invoices the store held once the journal was replayed
+     */
+    public int getRecoveredInvoices() {
+        return recoveredInvoices;
+    }
+
+    /**
+     * @return How many journal records were replayed when the store was opened, counting every update of an invoice
+     */
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    @Override
+    public Map<String, Object> findById(String id) {
+        return invoices.findById(id);
+    }
+
+    @Override
+    public Collection<Map<String, Object>> findAll() {
+        return invoices.findAll();
+    }
+
+    @Override
+    public InvoicePage findPage(InvoiceQuery query) {
+        return invoices.findPage(query);
+    }
+
+    @Override
+    public Iterable<Map<String, Object>> findMatching(InvoiceQuery query) {
+        return invoices.findMatching(query);
+    }
+
+    @Override
+    public InvoiceSummary summarize(InvoiceQuery query) {
+        return invoices.summarize(query);
+    }
+
+    @Override
+    public Map<String, Object> add(Map<String, Object> invoice) {
+        Map.Entry<Long, Map<String, Object>> stored = invoices.addEntry(invoice);
+        if (stored == null) {
+            return null;
+        }
+        persist(stored);
+        return stored.getValue();
+    }
+
+    @Override
+    public Map<String, Object> create(Map<String, Object> invoice) {
+        Map.Entry<Long, Map<String, Object>> stored = invoices.createEntry(invoice);
+        persist(stored);
+        return stored.getValue();
+    }
+
+    @Override
+    public Map<String, Object> update(String id, UnaryOperator<Map<String, Object>> change) {
+        // Appended while the change is applied, so the journal holds the changes of an invoice in the order they were made
+        long[] recordNumber = {-1};
+        Map<String, Object> updated = invoices.update(id, change,
+                (invoiceSequence, invoice) -> recordNumber[0] = journal.append(invoiceSequence, invoice));
+        if (recordNumber[0] >= 0) {
+            awaitDurable(recordNumber[0], id);
+        }
+        return updated;
+    }
+
+    private void persist(Map.Entry<Long, Map<String, Object>> stored) {
+        Object id = stored.getValue().get("id");
+        try {
+            long recordNumber = journal.append(stored.getKey(), stored.getValue());
+            awaitDurable(recordNumber, id);
+        } catch (RuntimeException e) {
+            invoices.remove(stored.getKey(), (String) id);
+            throw e;
+        }
+    }
+
+    private void awaitDurable(long recordNumber, Object id) {
+        if (syncWrites) {
+            try {
+                journal.awaitDurable(recordNumber);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Invoice " + id + " was not saved", e);
+            }
+        }
+    }
+
+    @Override
+    public long version() {
+        return invoices.version();
+    }
+
+    @Override
+    public int size() {
+        return invoices.size();
+    }
+
+    /**
+     * Remove every invoice from memory and from disk
+     */
+    @Override
+    public void clear() {
+        invoices.clear();
+        try {
+            journal.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not clear the invoice journal", e);
+        }
+    }
+
+    /**
+     * Write a snapshot now, so the next startup replays fewer records
+     */
+    public void snapshot() throws IOException {
+        journal.snapshot();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -0,0 +1,291 @@
+package biz.agilenoir.invoiceapi.store;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * A stored invoice in compact form, read as an unmodifiable map.
+ * <p>
+ * The amount is kept in cents, the date as an epoch day and the status as an {@link InvoiceStatus} ordinal, and the
+ * store shares one String per customer name. Reading the map gives back exactly the values it was built from: a
+ * Double amount, an ISO-8601 date String and a status String. A value the compact fields cannot hold exactly, such as
+ * an amount with fractions of a cent, and any other field, is kept as it was.
+ * <p>
+ * Entries iterate in the order the service has always written created invoices: id, date, amount, customer, status,
+ * then any other fields in the order they were given.
+ */
+public final class StoredInvoice extends AbstractMap<String, Object> {
+    private static final String ID = "id";
+    private static final String DATE = "date";
+    private static final String AMOUNT = "amount";
+    private static final String CUSTOMER = "customer";
+    private static final String STATUS = "status";
+    private static final String[] FIELD_ORDER = {ID, DATE, AMOUNT, CUSTOMER, STATUS};
+
+    private static final long NO_AMOUNT = Long.MIN_VALUE;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final byte NO_STATUS = -1;
+    private static final long MAX_EXACT_CENTS = 1L << 53;
+    private static final Object ABSENT = new Object();
+
+    private final String id;
+    private final String customer;
+    private final long amountCents;
+    private final int epochDay;
+    private final byte status;
+    // Names and values, alternating, of the fields not held above. Null if there are none.
+    private final Object[] otherFields;
+
+    private StoredInvoice(String id, String customer, long amountCents, int epochDay, byte status, Object[] otherFields) {
+        this.id = id;
+        this.customer = customer;
+        this.amountCents = amountCents;
+        this.epochDay = epochDay;
+        this.status = status;
+        this.otherFields = otherFields;
+    }
+
+    /**
+     * @param invoice The invoice fields to copy
+     * @param customerNames Returns the shared String for a customer name
+     */
+    static StoredInvoice of(Map<String, Object> invoice, UnaryOperator<String> customerNames) {
+        return of(invoice.get(ID) instanceof String ? (String) invoice.get(ID) : null, invoice, customerNames);
+    }
+
+    /**
+     * @param id The invoice ID, which replaces any "id" entry of the invoice
+     * @param invoice The invoice fields to copy
+     * @param customerNames Returns the shared String for a customer name
+     */
+    static StoredInvoice of(String id, Map<String, Object> invoice, UnaryOperator<String> customerNames) {
+        String customer = null;
+        long amountCents = NO_AMOUNT;
+        int epochDay = NO_DATE;
+        byte status = NO_STATUS;
+        List<Object> otherFields = null;
+        for (Map.Entry<String, Object> field : invoice.entrySet()) {
+            String name = field.getKey();
+            Object value = field.getValue();
+            boolean compact;
+            switch (name) {
+                case ID:
+                    compact = id != null;
+                    break;
+                case CUSTOMER:
+                    compact = value instanceof String;
+                    if (compact) {
+                        customer = customerNames.apply((String) value);
+                    }
+                    break;
+                case AMOUNT:
+                    amountCents = cents(value);
+                    compact = amountCents != NO_AMOUNT;
+                    break;
+                case DATE:
+                    epochDay = epochDay(value);
+                    compact = epochDay != NO_DATE;
+                    break;
+                case STATUS:
+                    InvoiceStatus known = value instanceof String ? InvoiceStatus.find((String) value) : null;
+                    compact = known != null;
+                    if (compact) {
+                        status = (byte) known.ordinal();
+                    }
+                    break;
+                default:
+                    compact = false;
+            }
+            if (!compact) {
+                if (otherFields == null) {
+                    otherFields = new ArrayList<>(4);
+                }
+                otherFields.add(name);
+                otherFields.add(value);
+            }
+        }
+        return new StoredInvoice(id, customer, amountCents, epochDay, status, otherFields == null ? null : otherFields.toArray());
+    }
+
+    /**
+     * @return The amount in cents, or NO_AMOUNT if it is not a Double holding a whole number of cents
+     */
+    private static long cents(Object amount) {
+        if (!(amount instanceof Double)) {
+            return NO_AMOUNT;
+        }
+        double value = (Double) amount;
+        double scaled = value * 100;
+        if (!(Math.abs(scaled) < MAX_EXACT_CENTS)) {
+            return NO_AMOUNT;
+        }
+        long cents = Math.round(scaled);
+        // Double.compare, unlike ==, tells -0.0 from 0.0, so the amount reads back with the same sign
+        return Double.compare(cents / 100.0, value) == 0 ? cents : NO_AMOUNT;
+    }
+
+    /**
+     * @return The epoch day of an ISO-8601 date String, or NO_DATE if the String would not read back the same
+     */
+    private static int epochDay(Object date) {
+        if (!(date instanceof String)) {
+            return NO_DATE;
+        }
+        try {
+            LocalDate parsed = LocalDate.parse((String) date);
+            long epochDay = parsed.toEpochDay();
+            if (epochDay <= NO_DATE || epochDay > Integer.MAX_VALUE || !parsed.toString().equals(date)) {
+                return NO_DATE;
+            }
+            return (int) epochDay;
+        } catch (DateTimeException e) {
+            return NO_DATE;
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The customer name, or null if the invoice has no String customer
+     */
+    public String getCustomer() {
+        return customer;
+    }
+
+    /**
+     * @return True if the amount is held in cents
+     */
+    public boolean hasAmountCents() {
+        return amountCents != NO_AMOUNT;
+    }
+
+    /**
+     * @return The amount in cents. Only meaningful if {@link #hasAmountCents()}.
+     */
+    public long getAmountCents() {
+        return amountCents;
+    }
+
+    /**
+     * @return The invoice date, or null if the invoice has no date held as an epoch day
+     */
+    public LocalDate getDate() {
+        return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+
+    /**
+     * @return The status, or null if the invoice has no known status
+     */
+    public InvoiceStatus getStatus() {
+        return status == NO_STATUS ? null : InvoiceStatus.ofOrdinal(status);
+    }
+
+    /**
+     * @return The value of a compact field, the value of another field, or ABSENT
+     */
+    private Object field(Object name) {
+        if (name instanceof String) {
+            switch ((String) name) {
+                case ID:
+                    if (id != null) return id;
+                    break;
+                case CUSTOMER:
+                    if (customer != null) return customer;
+                    break;
+                case AMOUNT:
+                    if (amountCents != NO_AMOUNT) return amountCents / 100.0;
+                    break;
+                case DATE:
+                    if (epochDay != NO_DATE) return LocalDate.ofEpochDay(epochDay).toString();
+                    break;
+                case STATUS:
+                    if (status != NO_STATUS) return InvoiceStatus.ofOrdinal(status).name();
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (otherFields != null) {
+            for (int i = 0; i < otherFields.length; i += 2) {
+                if (otherFields[i].equals(name)) {
+                    return otherFields[i + 1];
+                }
+            }
+        }
+        return ABSENT;
+    }
+
+    @Override
+    public Object get(Object name) {
+        Object value = field(name);
+        return value == ABSENT ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return field(name) != ABSENT;
+    }
+
+    @Override
+    public int size() {
+        int size = otherFields == null ? 0 : otherFields.length / 2;
+        if (id != null) size++;
+        if (customer != null) size++;
+        if (amountCents != NO_AMOUNT) size++;
+        if (epochDay != NO_DATE) size++;
+        if (status != NO_STATUS) size++;
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return entries().iterator();
+            }
+
+            @Override
+            public int size() {
+                return StoredInvoice.this.size();
+            }
+        };
+    }
+
+    private List<Map.Entry<String, Object>> entries() {
+        List<Map.Entry<String, Object>> entries = new ArrayList<>(size());
+        for (String name : FIELD_ORDER) {
+            Object value = field(name);
+            if (value != ABSENT) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+            }
+        }
+        if (otherFields != null) {
+            for (int i = 0; i < otherFields.length; i += 2) {
+                if (!isOrdered(otherFields[i])) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>((String) otherFields[i], otherFields[i + 1]));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static boolean isOrdered(Object name) {
+        for (String ordered : FIELD_ORDER) {
+            if (ordered.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
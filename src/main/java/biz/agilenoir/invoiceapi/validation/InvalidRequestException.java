@@ -0,0 +1,28 @@
+package biz.agilenoir.invoiceapi.validation;
+
+import java.io.IOException;
+
+/**
+ * Thrown while a request body is parsed, at the first value that breaks its {@link RequestSchema}.
+ * The message names the property and the rule, and is meant for the client.
+ * <p>
+ * This is not a Jackson exception, so databind passes it on rather than wrapping it, except around the elements of a
+ * collection; use {@link #find} to look for it among the causes of what databind throws.
+ */
+public class InvalidRequestException extends IOException {
+    public InvalidRequestException(String message) {
+        super(message);
+    }
+
+    /**
+     * @return The InvalidRequestException that is the failure or one of its causes, or null if there is none
+     */
+    public static InvalidRequestException find(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InvalidRequestException) {
+                return (InvalidRequestException) cause;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,400 @@
+package biz.agilenoir.invoiceapi.validation;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rules of one object schema of the OpenAPI spec, compiled to check a request body while it is parsed.
+ * <p>
+ * {@link #validate} wraps a parser so that every token databind reads is checked as it goes by: no tree is built, and
+ * the first value that breaks a rule fails the read with an {@link InvalidRequestException} naming the property.
+ * Required properties are checked when the object ends. Properties the schema does not declare are not checked.
+ * <p>
+ * Only the keywords an object of flat properties needs are compiled: required, and per property type (string,
+ * number, integer or boolean), format (date is checked; others, such as double, are not), enum, minimum, maximum,
+ * minLength, maxLength and nullable. A schema using any other keyword is refused when it is compiled, so a rule is
+ * never silently left unchecked.
+ */
+public class RequestSchema {
+    private static final Set<String> ANNOTATIONS = Set.of("description", "example", "title", "deprecated");
+
+    private final String name;
+    private final Map<String, Property> properties;
+    private final List<Property> required;
+
+    private RequestSchema(String name, Map<String, Property> properties, List<Property> required) {
+        this.name = name;
+        this.properties = properties;
+        this.required = required;
+    }
+
+    /**
+     * Compile a schema of components.schemas of an OpenAPI spec
+     * @param spec The spec, in YAML or JSON
+     * @param schemaName The name of the schema
+     * @throws IOException If the spec could not be read
+     * @throws IllegalArgumentException If there is no such schema, or it uses a keyword that is not compiled
+     */
+    public static RequestSchema fromOpenApi(InputStream spec, String schemaName) throws IOException {
+        JsonNode schema = new YAMLMapper().readTree(spec).path("components").path("schemas").path(schemaName);
+        if (!schema.isObject()) {
+            throw new IllegalArgumentException("The spec has no schema " + schemaName);
+        }
+        return compile(schemaName, schema);
+    }
+
+    static RequestSchema compile(String schemaName, JsonNode schema) {
+        for (Iterator<String> keywords = schema.fieldNames(); keywords.hasNext(); ) {
+            String keyword = keywords.next();
+            if (!keyword.equals("type") && !keyword.equals("properties") && !keyword.equals("required") && !ANNOTATIONS.contains(keyword)) {
+                throw new IllegalArgumentException(schemaName + " uses " + keyword + ", which is not compiled");
+            }
+        }
+        if (!"object".equals(schema.path("type").asText("object"))) {
+            throw new IllegalArgumentException(schemaName + " is not an object schema");
+        }
+
+        Set<String> requiredNames = new HashSet<>();
+        schema.path("required").forEach(requiredName -> requiredNames.add(requiredName.asText()));
+        Map<String, Property> properties = new HashMap<>();
+        List<Property> required = new ArrayList<>();
+        for (Iterator<Map.Entry<String, JsonNode>> fields = schema.path("properties").fields(); fields.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            int requiredIndex = requiredNames.remove(field.getKey()) ? required.size() : -1;
+            Property property = Property.compile(schemaName, field.getKey(), field.getValue(), requiredIndex);
+            properties.put(field.getKey(), property);
+            if (requiredIndex >= 0) {
+                required.add(property);
+            }
+        }
+        if (!requiredNames.isEmpty()) {
+            throw new IllegalArgumentException(schemaName + " requires the undeclared properties " + requiredNames);
+        }
+        if (required.size() > Long.SIZE) {
+            throw new IllegalArgumentException(schemaName + " requires more than " + Long.SIZE + " properties");
+        }
+        return new RequestSchema(schemaName, Map.copyOf(properties), List.copyOf(required));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param parser A parser that has not read the body yet
+     * @return A parser that reads the same tokens, and fails unless they are one object that meets the schema
+     */
+    public JsonParser validate(JsonParser parser) {
+        return new ValidatingParser(parser, false);
+    }
+
+    /**
+     * @param parser A parser that has not read the body yet
+     * @return A parser that reads the same tokens, and fails unless they are an array of objects that meet the schema
+     */
+    public JsonParser validateEach(JsonParser parser) {
+        return new ValidatingParser(parser, true);
+    }
+
+    private enum Type {
+        STRING("a string"), NUMBER("a number"), INTEGER("an integer"), BOOLEAN("true or false");
+
+        private final String description;
+
+        Type(String description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * The compiled rules of one property
+     */
+    private static final class Property {
+        private static final Set<String> KEYWORDS = Set.of("type", "format", "enum", "minimum", "maximum",
+                "minLength", "maxLength", "nullable");
+
+        private final String name;
+        private final Type type;
+        private final boolean date;
+        private final Set<String> allowed;
+        private final Double minimum;
+        private final Double maximum;
+        private final int minLength;
+        private final int maxLength;
+        private final boolean nullable;
+        private final int requiredIndex;
+
+        private Property(String name, Type type, boolean date, Set<String> allowed, Double minimum, Double maximum,
+                         int minLength, int maxLength, boolean nullable, int requiredIndex) {
+            this.name = name;
+            this.type = type;
+            this.date = date;
+            this.allowed = allowed;
+            this.minimum = minimum;
+            this.maximum = maximum;
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            this.nullable = nullable;
+            this.requiredIndex = requiredIndex;
+        }
+
+        static Property compile(String schemaName, String name, JsonNode rules, int requiredIndex) {
+            for (Iterator<String> keywords = rules.fieldNames(); keywords.hasNext(); ) {
+                String keyword = keywords.next();
+                if (!KEYWORDS.contains(keyword) && !ANNOTATIONS.contains(keyword)) {
+                    throw new IllegalArgumentException(schemaName + "." + name + " uses " + keyword + ", which is not compiled");
+                }
+            }
+            Type type;
+            try {
+                type = Type.valueOf(rules.path("type").asText().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(schemaName + "." + name + " has the type '" + rules.path("type").asText()
+                        + "', which is not compiled", e);
+            }
+            Set<String> allowed = null;
+            if (rules.has("enum")) {
+                allowed = new HashSet<>();
+                for (JsonNode value : rules.get("enum")) {
+                    allowed.add(value.asText());
+                }
+                allowed = Set.copyOf(allowed);
+            }
+            return new Property(name, type,
+                    type == Type.STRING && "date".equals(rules.path("format").asText()),
+                    allowed,
+                    rules.has("minimum") ? rules.get("minimum").asDouble() : null,
+                    rules.has("maximum") ? rules.get("maximum").asDouble() : null,
+                    rules.path("minLength").asInt(0),
+                    rules.path("maxLength").asInt(Integer.MAX_VALUE),
+                    rules.path("nullable").asBoolean(false),
+                    requiredIndex);
+        }
+
+        /**
+         * @return Why the current value of the parser breaks this property's rules, or null if it does not
+         */
+        String check(JsonToken token, JsonParser parser) throws IOException {
+            if (token == JsonToken.VALUE_NULL) {
+                return nullable ? null : "must not be null";
+            }
+            switch (type) {
+                case STRING:
+                    if (token != JsonToken.VALUE_STRING) {
+                        return "must be " + type.description;
+                    }
+                    int length = parser.getTextLength();
+                    if (length < minLength) {
+                        return "must be at least " + minLength + " characters long";
+                    }
+                    if (length > maxLength) {
+                        return "must be at most " + maxLength + " characters long";
+                    }
+                    if (date && !isDate(parser.getTextCharacters(), parser.getTextOffset(), length)) {
+                        return "must be a date as yyyy-mm-dd";
+                    }
+                    break;
+                case NUMBER:
+                case INTEGER:
+                    if (token != JsonToken.VALUE_NUMBER_INT && (type == Type.INTEGER || token != JsonToken.VALUE_NUMBER_FLOAT)) {
+                        return "must be " + type.description;
+                    }
+                    if (minimum != null || maximum != null) {
+                        double value = parser.getDoubleValue();
+                        if (minimum != null && value < minimum) {
+                            return "must be at least " + minimum;
+                        }
+                        if (maximum != null && value > maximum) {
+                            return "must be at most " + maximum;
+                        }
+                    }
+                    break;
+                case BOOLEAN:
+                    if (token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+                        return "must be " + type.description;
+                    }
+                    break;
+            }
+            if (allowed != null && !allowed.contains(parser.getText())) {
+                return "must be one of " + allowed;
+            }
+            return null;
+        }
+
+        /**
+         * A calendar date as yyyy-mm-dd, checked without building a String
+         */
+        private static boolean isDate(char[] text, int offset, int length) {
+            if (length != 10 || text[offset + 4] != '-' || text[offset + 7] != '-') {
+                return false;
+            }
+            int year = digits(text, offset, 4);
+            int month = digits(text, offset + 5, 2);
+            int day = digits(text, offset + 8, 2);
+            if (year < 0 || month < 0 || day < 0) {
+                return false;
+            }
+            try {
+                LocalDate.of(year, month, day);
+                return true;
+            } catch (DateTimeException e) {
+                return false;
+            }
+        }
+
+        private static int digits(char[] text, int offset, int count) {
+            int value = 0;
+            for (int i = offset; i < offset + count; i++) {
+                char c = text[i];
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Checks each token on its way from the parser to the caller
+     */
+    private final class ValidatingParser extends JsonParserDelegate {
+        private final boolean array;
+        // The depth of the object being checked: 1 for the body itself, 2 for the elements of an array
+        private final int objectDepth;
+        private int depth;
+        private int index = -1;
+        private long present;
+        private Property property;
+
+        ValidatingParser(JsonParser parser, boolean array) {
+            super(parser);
+            this.array = array;
+            this.objectDepth = array ? 2 : 1;
+        }
+
+        @Override
+        public JsonToken nextToken() throws IOException {
+            JsonToken token = delegate.nextToken();
+            if (token != null) {
+                check(token);
+            }
+            return token;
+        }
+
+        @Override
+        public JsonToken nextValue() throws IOException {
+            JsonToken token = nextToken();
+            return token == JsonToken.FIELD_NAME ? nextToken() : token;
+        }
+
+        @Override
+        public JsonParser skipChildren() throws IOException {
+            JsonToken token = currentToken();
+            if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+                return this;
+            }
+            int open = 1;
+            while (open > 0) {
+                token = nextToken();
+                if (token == null) {
+                    return this;
+                }
+                if (token.isStructStart()) {
+                    open++;
+                } else if (token.isStructEnd()) {
+                    open--;
+                }
+            }
+            return this;
+        }
+
+        private void check(JsonToken token) throws IOException {
+            switch (token) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    if (depth == 0) {
+                        if (token != (array ? JsonToken.START_ARRAY : JsonToken.START_OBJECT)) {
+                            throw new InvalidRequestException("Request body must be a JSON " + (array ? "array" : "object"));
+                        }
+                    } else if (depth == 1 && array) {
+                        if (token != JsonToken.START_OBJECT) {
+                            throw new InvalidRequestException("[" + (index + 1) + "] must be a JSON object");
+                        }
+                    } else if (depth == objectDepth && property != null) {
+                        fail(token == JsonToken.START_OBJECT ? "must not be an object" : "must not be an array");
+                    }
+                    depth++;
+                    if (depth == objectDepth) {
+                        index++;
+                        present = 0;
+                        property = null;
+                    }
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    if (depth == objectDepth) {
+                        checkRequired();
+                    }
+                    depth--;
+                    break;
+                case FIELD_NAME:
+                    if (depth == objectDepth) {
+                        property = properties.get(delegate.currentName());
+                    }
+                    break;
+                default:
+                    if (depth == 0) {
+                        throw new InvalidRequestException("Request body must be a JSON " + (array ? "array" : "object"));
+                    }
+                    if (depth == 1 && array) {
+                        throw new InvalidRequestException("[" + (index + 1) + "] must be a JSON object");
+                    }
+                    if (depth == objectDepth && property != null) {
+                        String broken = property.check(token, delegate);
+                        if (broken != null) {
+                            fail(broken);
+                        }
+                        if (property.requiredIndex >= 0) {
+                            present |= 1L << property.requiredIndex;
+                        }
+                    }
+            }
+        }
+
+        private void checkRequired() throws InvalidRequestException {
+            long all = required.size() == Long.SIZE ? -1L : (1L << required.size()) - 1;
+            if (present != all) {
+                for (Property requiredProperty : required) {
+                    if ((present & (1L << requiredProperty.requiredIndex)) == 0) {
+                        throw new InvalidRequestException(path(requiredProperty) + " is required");
+                    }
+                }
+            }
+        }
+
+        private void fail(String broken) throws InvalidRequestException {
+            throw new InvalidRequestException(path(property) + " " + broken);
+        }
+
+        private String path(Property failing) {
+            return array ? "[" + index + "]." + failing.name : failing.name;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package biz.agilenoir.abacusapi.client;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.http.Fault;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for the circuit breaker, bulkhead and adaptive limit around Abacus calls, using WireMock to inject faults and latency
+ */
+public class AbacusCallGuardTest {
+    private WireMockServer wireMockServer;
+    private AbacusClient abacusClient;
+
+    @BeforeEach
+    void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+        wireMockServer.start();
+        WireMock.configureFor("localhost", wireMockServer.port());
+        // No retries or hedges, so every guarded call is exactly one request to Abacus
+        AbacusClient.Settings settings = new AbacusClient.Settings();
+        settings.setMaxRetries(0);
+        settings.setHedgePercentile(0);
+        abacusClient = new AbacusClient("http://localhost:" + wireMockServer.port(), settings);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wireMockServer.stop();
+    }
+
+    private static AbacusClient.InvoiceRequest invoiceRequest() {
+        AbacusClient.InvoiceRequest invoiceRequest = new AbacusClient.InvoiceRequest();
+        invoiceRequest.setCustomer("Test Customer");
+        invoiceRequest.setAmount(100.0);
+        invoiceRequest.setDate(LocalDate.of(2025, 1, 1));
+        return invoiceRequest;
+    }
+
+    private static void stubAccepted(int delayMillis) {
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(delayMillis)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-1\", \"status\": \"ACCEPTED\"}")));
+    }
+
+    private CompletableFuture<AbacusClient.ProcessResponse> process(AbacusCallGuard guard) {
+        return guard.call(() -> abacusClient.processInvoiceAsync(invoiceRequest()));
+    }
+
+    private static Throwable failureOf(CompletableFuture<?> call) {
+        CompletionException thrown = assertThrows(CompletionException.class, call::join);
+        return thrown.getCause();
+    }
+
+    @Test
+    @DisplayName("Connection faults open the circuit, and a successful trial call closes it again")
+    void testCircuitBreaker() throws Exception {
+        AbacusCallGuard.Settings settings = new AbacusCallGuard.Settings();
+        settings.setFailureThreshold(3);
+        settings.setOpenDuration(Duration.ofMillis(300));
+        AbacusCallGuard guard = new AbacusCallGuard(settings);
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)));
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(failureOf(process(guard)) instanceof AbacusUnavailableException);
+        }
+        assertEquals(AbacusCallGuard.CircuitState.OPEN, guard.getCircuitState());
+
+        // While open, calls fail fast without reaching Abacus
+        assertInstanceOf(AbacusUnavailableException.class, failureOf(process(guard)));
+        verify(3, postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(1, guard.getRejectedCalls());
+
+        TimeUnit.MILLISECONDS.sleep(400);
+        stubAccepted(0);
+        assertEquals("ACCEPTED", process(guard).get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(AbacusCallGuard.CircuitState.CLOSED, guard.getCircuitState());
+    }
+
+    @Test
+    @DisplayName("A failed trial call opens the circuit again")
+    void testFailedTrialCall() throws Exception {
+        AbacusCallGuard.Settings settings = new AbacusCallGuard.Settings();
+        settings.setFailureThreshold(1);
+        settings.setOpenDuration(Duration.ofMillis(200));
+        AbacusCallGuard guard = new AbacusCallGuard(settings);
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse().withStatus(500)));
+
+        failureOf(process(guard));
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertFalse(failureOf(process(guard)) instanceof AbacusUnavailableException);
+
+        assertEquals(AbacusCallGuard.CircuitState.OPEN, guard.getCircuitState());
+        assertInstanceOf(AbacusUnavailableException.class, failureOf(process(guard)));
+    }
+
+    @Test
+    @DisplayName("The bulkhead refuses calls beyond its size while Abacus is slow")
+    void testBulkhead() throws Exception {
+        AbacusCallGuard.Settings settings = new AbacusCallGuard.Settings();
+        settings.setMaxConcurrentCalls(4);
+        settings.setInitialLimit(4);
+        AbacusCallGuard guard = new AbacusCallGuard(settings);
+        stubAccepted(500);
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> calls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            calls.add(process(guard));
+        }
+
+        assertEquals(4, guard.getInFlight());
+        assertInstanceOf(AbacusUnavailableException.class, failureOf(calls.get(4)));
+        assertInstanceOf(AbacusUnavailableException.class, failureOf(calls.get(5)));
+        for (int i = 0; i < 4; i++) {
+            assertEquals("ACCEPTED", calls.get(i).get(5, TimeUnit.SECONDS).getStatus());
+        }
+        assertEquals(0, guard.getInFlight());
+        assertEquals(AbacusCallGuard.CircuitState.CLOSED, guard.getCircuitState());
+    }
+
+    @Test
+    @DisplayName("Slow Abacus responses shrink the adaptive limit")
+    void testAdaptiveLimitFollowsLatency() throws Exception {
+        AbacusCallGuard.Settings settings = new AbacusCallGuard.Settings();
+        settings.setInitialLimit(10);
+        settings.setLatencyThreshold(Duration.ofMillis(100));
+        AbacusCallGuard guard = new AbacusCallGuard(settings);
+        stubAccepted(200);
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> calls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            calls.add(process(guard));
+        }
+        for (CompletableFuture<AbacusClient.ProcessResponse> call : calls) {
+            call.get(5, TimeUnit.SECONDS);
+        }
+
+        assertTrue(guard.getConcurrencyLimit() < 10, "limit was " + guard.getConcurrencyLimit());
+        // Slow calls are not failures, so the circuit stays closed
+        assertEquals(AbacusCallGuard.CircuitState.CLOSED, guard.getCircuitState());
+    }
+}
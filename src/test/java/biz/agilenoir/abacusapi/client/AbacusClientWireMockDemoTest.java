@@ -1,8 +1,11 @@
 package biz.agilenoir.abacusapi.client;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
@@ -10,8 +13,14 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -88,7 +97,8 @@ public class AbacusClientWireMockDemoTest {
 
             // Verify the request was made
             verify(postRequestedFor(urlEqualTo("/api/process"))
-                    .withHeader("Content-Type", containing("application/json")));
+                    .withHeader("Content-Type", containing("application/json"))
+                    .withRequestBody(matchingJsonPath("$.date", equalTo(invoiceRequest.getDate().toString()))));
 
             // Verify the response
             assertNotNull(response);
@@ -101,4 +111,223 @@ public class AbacusClientWireMockDemoTest {
             fail("Exception thrown: " + e.getMessage());
         }
     }
+
+    @Test
+    @DisplayName("Test process invoice endpoint asynchronously")
+    void testProcessInvoiceAsync() throws Exception {
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withFixedDelay(200)
+                        .withBody("{\"transactionId\": \"TRX-12345\", \"status\": \"ACCEPTED\", \"message\": \"Invoice processed successfully\"}")));
+
+        AbacusClient.InvoiceRequest invoiceRequest = new AbacusClient.InvoiceRequest();
+        invoiceRequest.setCustomer("Test Customer");
+        invoiceRequest.setAmount(100.0);
+        invoiceRequest.setDate(LocalDate.now());
+
+        // The call returns before Abacus answers
+        CompletableFuture<AbacusClient.ProcessResponse> pending = abacusClient.processInvoiceAsync(invoiceRequest);
+        assertFalse(pending.isDone());
+
+        AbacusClient.ProcessResponse response = pending.get(5, TimeUnit.SECONDS);
+        assertEquals("TRX-12345", response.getTransactionId());
+        assertEquals("ACCEPTED", response.getStatus());
+    }
+
+    @Test
+    @DisplayName("Test asynchronous call fails with the status code Abacus returned")
+    void testProcessInvoiceAsyncFailure() {
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse().withStatus(500)));
+
+        AbacusClient.InvoiceRequest invoiceRequest = new AbacusClient.InvoiceRequest();
+        invoiceRequest.setCustomer("Test Customer");
+        invoiceRequest.setAmount(100.0);
+        invoiceRequest.setDate(LocalDate.now());
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> abacusClient.processInvoiceAsync(invoiceRequest).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, failure.getCause());
+        assertTrue(failure.getCause().getMessage().contains("500"));
+    }
+
+    @Test
+    @DisplayName("Test health endpoint asynchronously")
+    void testHealthEndpointAsync() throws Exception {
+        stubFor(get(urlEqualTo("/api/health"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"status\": \"UP\"}")));
+
+        assertEquals("UP", abacusClient.getHealthAsync().get(5, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    @DisplayName("Test process invoice batch endpoint")
+    void testProcessInvoices() throws Exception {
+        stubFor(post(urlEqualTo("/api/process/batch"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("[{\"transactionId\": \"TRX-1\", \"status\": \"ACCEPTED\"}," +
+                                " {\"transactionId\": \"TRX-2\", \"status\": \"REJECTED\"}]")));
+
+        AbacusClient.InvoiceRequest first = new AbacusClient.InvoiceRequest();
+        first.setCustomer("First Customer");
+        first.setAmount(100.0);
+        first.setDate(LocalDate.now());
+        AbacusClient.InvoiceRequest second = new AbacusClient.InvoiceRequest();
+        second.setCustomer("Second Customer");
+        second.setAmount(200.0);
+        second.setDate(LocalDate.now());
+
+        List<AbacusClient.ProcessResponse> responses = abacusClient.processInvoices(List.of(first, second));
+
+        verify(postRequestedFor(urlEqualTo("/api/process/batch"))
+                .withRequestBody(matchingJsonPath("$[1].customer", equalTo("Second Customer"))));
+        assertEquals(2, responses.size());
+        assertEquals("ACCEPTED", responses.get(0).getStatus());
+        assertEquals("TRX-2", responses.get(1).getTransactionId());
+        assertEquals("REJECTED", responses.get(1).getStatus());
+    }
+
+    private static AbacusClient.InvoiceRequest invoiceRequest() {
+        AbacusClient.InvoiceRequest invoiceRequest = new AbacusClient.InvoiceRequest();
+        invoiceRequest.setCustomer("Test Customer");
+        invoiceRequest.setAmount(100.0);
+        invoiceRequest.setDate(LocalDate.now());
+        return invoiceRequest;
+    }
+
+    private static final String ACCEPTED_BODY = "{\"transactionId\": \"TRX-12345\", \"status\": \"ACCEPTED\"}";
+
+    @Test
+    @DisplayName("Test a 503 from Abacus is retried with the same idempotency key")
+    void testRetryAfterUnavailable() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).inScenario("retry")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withStatus(503))
+                .willSetStateTo("recovered"));
+        stubFor(post(urlEqualTo("/api/process")).inScenario("retry")
+                .whenScenarioStateIs("recovered")
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(ACCEPTED_BODY)));
+
+        AbacusClient.ProcessResponse response = abacusClient.processInvoice(invoiceRequest());
+
+        assertEquals("ACCEPTED", response.getStatus());
+        List<LoggedRequest> attempts = findAll(postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(2, attempts.size());
+        String idempotencyKey = attempts.get(0).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER);
+        assertNotNull(idempotencyKey);
+        assertEquals(idempotencyKey, attempts.get(1).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER));
+    }
+
+    @Test
+    @DisplayName("Test a 400 from Abacus is not retried")
+    void testNoRetryAfterBadRequest() {
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse().withStatus(400)));
+
+        assertThrows(IOException.class, () -> abacusClient.processInvoice(invoiceRequest()));
+        verify(1, postRequestedFor(urlEqualTo("/api/process")));
+    }
+
+    @Test
+    @DisplayName("Test a slow attempt is hedged and the faster answer wins")
+    void testHedgedRequest() throws Exception {
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(ACCEPTED_BODY)));
+        // Learn the usual latency
+        for (int i = 0; i < 32; i++) {
+            abacusClient.processInvoice(invoiceRequest());
+        }
+        wireMockServer.resetAll();
+
+        stubFor(post(urlEqualTo("/api/process")).inScenario("hedge")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(3000)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-SLOW\", \"status\": \"ACCEPTED\"}"))
+                .willSetStateTo("hedged"));
+        stubFor(post(urlEqualTo("/api/process")).inScenario("hedge")
+                .whenScenarioStateIs("hedged")
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-FAST\", \"status\": \"ACCEPTED\"}")));
+
+        AbacusClient.ProcessResponse response = abacusClient.processInvoiceAsync(invoiceRequest()).get(2, TimeUnit.SECONDS);
+
+        assertEquals("TRX-FAST", response.getTransactionId());
+        List<LoggedRequest> attempts = findAll(postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(2, attempts.size());
+        assertEquals(attempts.get(0).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER),
+                attempts.get(1).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER));
+    }
+
+    private AbacusClient cborClient() {
+        AbacusClient.Settings settings = new AbacusClient.Settings();
+        settings.setProcessEncoding(AbacusClient.Encoding.CBOR);
+        return new AbacusClient("http://localhost:" + wireMockServer.port(), settings);
+    }
+
+    @Test
+    @DisplayName("Test invoices are sent as CBOR once Abacus answers a health check in CBOR")
+    void testCborProcessEncoding() throws Exception {
+        ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+        stubFor(get(urlEqualTo("/api/health"))
+                .withHeader("Accept", equalTo("application/cbor"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/cbor")
+                        .withBody(cborMapper.writeValueAsBytes(Map.of("status", "UP")))));
+        stubFor(post(urlEqualTo("/api/process"))
+                .withHeader("Content-Type", equalTo("application/cbor"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/cbor")
+                        .withBody(cborMapper.writeValueAsBytes(Map.of("transactionId", "TRX-CBOR", "status", "ACCEPTED")))));
+        AbacusClient client = cborClient();
+
+        assertEquals("TRX-CBOR", client.processInvoice(invoiceRequest()).getTransactionId());
+        assertEquals("TRX-CBOR", client.processInvoice(invoiceRequest()).getTransactionId());
+
+        verify(1, getRequestedFor(urlEqualTo("/api/health")));
+        LoggedRequest sent = findAll(postRequestedFor(urlEqualTo("/api/process"))).get(0);
+        Map<?, ?> invoice = cborMapper.readValue(sent.getBody(), Map.class);
+        assertEquals("Test Customer", invoice.get("customer"));
+        assertInstanceOf(String.class, invoice.get("date"));
+    }
+
+    @Test
+    @DisplayName("Test invoices are sent as JSON when Abacus answers a CBOR health check in JSON")
+    void testCborProcessEncodingFallsBackToJson() throws Exception {
+        stubFor(get(urlEqualTo("/api/health"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"status\": \"UP\"}")));
+        stubFor(post(urlEqualTo("/api/process"))
+                .withHeader("Content-Type", equalTo("application/json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(ACCEPTED_BODY)));
+        AbacusClient client = cborClient();
+
+        assertEquals("TRX-12345", client.processInvoice(invoiceRequest()).getTransactionId());
+        assertEquals(AbacusClient.Encoding.JSON, client.processEncoding().get(5, TimeUnit.SECONDS));
+        verify(1, postRequestedFor(urlEqualTo("/api/process")).withHeader("Content-Type", equalTo("application/json")));
+    }
 }
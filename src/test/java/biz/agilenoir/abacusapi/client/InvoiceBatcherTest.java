@@ -0,0 +1,131 @@
+package biz.agilenoir.abacusapi.client;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for grouping invoices into batched Abacus calls, using WireMock as Abacus
+ */
+public class InvoiceBatcherTest {
+    private WireMockServer wireMockServer;
+    private AbacusClient abacusClient;
+
+    @BeforeEach
+    void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+        wireMockServer.start();
+        WireMock.configureFor("localhost", wireMockServer.port());
+        abacusClient = new AbacusClient("http://localhost:" + wireMockServer.port());
+
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-SINGLE\", \"status\": \"ACCEPTED\"}")));
+    }
+
+    @AfterEach
+    void tearDown() {
+        wireMockServer.stop();
+    }
+
+    private static AbacusClient.InvoiceRequest invoiceRequest(String customer) {
+        AbacusClient.InvoiceRequest invoiceRequest = new AbacusClient.InvoiceRequest();
+        invoiceRequest.setCustomer(customer);
+        invoiceRequest.setAmount(100.0);
+        invoiceRequest.setDate(LocalDate.of(2025, 1, 1));
+        return invoiceRequest;
+    }
+
+    private static void stubBatchOf(int size) {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            body.append(i > 0 ? "," : "").append("{\"transactionId\": \"TRX-").append(i).append("\", \"status\": \"ACCEPTED\"}");
+        }
+        stubFor(post(urlEqualTo("/api/process/batch"))
+                .withRequestBody(matchingJsonPath("$.length()", equalTo(String.valueOf(size))))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(body.append("]").toString())));
+    }
+
+    @Test
+    @DisplayName("Invoices submitted within the linger time share one batch")
+    void testConcurrentSubmissionsShareABatch() throws Exception {
+        stubBatchOf(3);
+        InvoiceBatcher batcher = new InvoiceBatcher(abacusClient, 10, Duration.ofMillis(200));
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(batcher.submit(invoiceRequest("Customer " + i)));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("TRX-" + i, results.get(i).get(5, TimeUnit.SECONDS).getTransactionId());
+        }
+        verify(1, postRequestedFor(urlEqualTo("/api/process/batch")));
+        verify(0, postRequestedFor(urlEqualTo("/api/process")));
+    }
+
+    @Test
+    @DisplayName("A full batch is sent without waiting and the rest goes out alone")
+    void testFullBatchesAreCut() throws Exception {
+        stubBatchOf(2);
+        InvoiceBatcher batcher = new InvoiceBatcher(abacusClient, 2, Duration.ZERO);
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> results = batcher.submitAll(List.of(
+                invoiceRequest("A"), invoiceRequest("B"), invoiceRequest("C"), invoiceRequest("D"), invoiceRequest("E")));
+
+        assertEquals("TRX-0", results.get(0).get(5, TimeUnit.SECONDS).getTransactionId());
+        assertEquals("TRX-1", results.get(3).get(5, TimeUnit.SECONDS).getTransactionId());
+        assertEquals("TRX-SINGLE", results.get(4).get(5, TimeUnit.SECONDS).getTransactionId());
+        verify(2, postRequestedFor(urlEqualTo("/api/process/batch")));
+        verify(1, postRequestedFor(urlEqualTo("/api/process")));
+    }
+
+    @Test
+    @DisplayName("Each invoice of a batch carries its own idempotency key, whatever batch it is in")
+    void testBatchCarriesEveryInvoiceKey() throws Exception {
+        stubBatchOf(2);
+        InvoiceBatcher batcher = new InvoiceBatcher(abacusClient, 2, Duration.ZERO);
+
+        batcher.submitAll(List.of(invoiceRequest("A"), invoiceRequest("B")), List.of("key-a", "key-b")).get(1).get(5, TimeUnit.SECONDS);
+        batcher.submitAll(List.of(invoiceRequest("C"), invoiceRequest("A")), List.of("key-c", "key-a")).get(1).get(5, TimeUnit.SECONDS);
+
+        List<LoggedRequest> batches = findAll(postRequestedFor(urlEqualTo("/api/process/batch")));
+        assertEquals(2, batches.size());
+        assertEquals("key-a,key-b", batches.get(0).getHeader(AbacusClient.INVOICE_IDEMPOTENCY_KEYS_HEADER));
+        assertEquals("key-c,key-a", batches.get(1).getHeader(AbacusClient.INVOICE_IDEMPOTENCY_KEYS_HEADER));
+        assertNotEquals(batches.get(0).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER), batches.get(1).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER));
+    }
+
+    @Test
+    @DisplayName("A failed batch fails every invoice in it")
+    void testFailedBatchFailsEveryInvoice() {
+        stubFor(post(urlEqualTo("/api/process/batch")).willReturn(aResponse().withStatus(500)));
+        InvoiceBatcher batcher = new InvoiceBatcher(abacusClient, 2, Duration.ZERO);
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> results = batcher.submitAll(List.of(invoiceRequest("A"), invoiceRequest("B")));
+
+        for (CompletableFuture<AbacusClient.ProcessResponse> result : results) {
+            assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+        }
+    }
+}
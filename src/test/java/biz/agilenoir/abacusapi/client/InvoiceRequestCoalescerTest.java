@@ -0,0 +1,141 @@
+package biz.agilenoir.abacusapi.client;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for sharing one Abacus call between identical invoices, using WireMock as Abacus
+ */
+public class InvoiceRequestCoalescerTest {
+    private WireMockServer wireMockServer;
+    private InvoiceBatcher batcher;
+
+    @BeforeEach
+    void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+        wireMockServer.start();
+        WireMock.configureFor("localhost", wireMockServer.port());
+        batcher = new InvoiceBatcher(new AbacusClient("http://localhost:" + wireMockServer.port()), 10, Duration.ZERO);
+        stubSingle(200, 300);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wireMockServer.stop();
+    }
+
+    private static void stubSingle(int status, int delayMillis) {
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(status)
+                        .withFixedDelay(delayMillis)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-SINGLE\", \"status\": \"ACCEPTED\"}")));
+    }
+
+    private static AbacusClient.InvoiceRequest invoiceRequest(String customer) {
+        AbacusClient.InvoiceRequest invoiceRequest = new AbacusClient.InvoiceRequest();
+        invoiceRequest.setCustomer(customer);
+        invoiceRequest.setAmount(100.0);
+        invoiceRequest.setDate(LocalDate.of(2025, 1, 1));
+        return invoiceRequest;
+    }
+
+    @Test
+    @DisplayName("Identical invoices submitted while a call is in flight share it")
+    void testInFlightCallIsShared() throws Exception {
+        InvoiceRequestCoalescer coalescer = new InvoiceRequestCoalescer(batcher, true, Duration.ZERO);
+
+        CompletableFuture<AbacusClient.ProcessResponse> first = coalescer.submit(invoiceRequest("Acme Corp"));
+        CompletableFuture<AbacusClient.ProcessResponse> second = coalescer.submit(invoiceRequest("  Acme Corp "));
+        CompletableFuture<AbacusClient.ProcessResponse> other = coalescer.submit(invoiceRequest("Globex Inc"));
+
+        assertEquals("TRX-SINGLE", first.get(5, TimeUnit.SECONDS).getTransactionId());
+        assertSame(first.get(), second.get(5, TimeUnit.SECONDS));
+        assertNotSame(first.get(), other.get(5, TimeUnit.SECONDS));
+        verify(2, postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(3, coalescer.getSubmitted());
+        assertEquals(1, coalescer.getCoalesced());
+    }
+
+    @Test
+    @DisplayName("Identical invoices in one batch share a call, and the others are still batched")
+    void testDuplicatesInABatchAreShared() throws Exception {
+        stubFor(post(urlEqualTo("/api/process/batch"))
+                .withRequestBody(matchingJsonPath("$.length()", equalTo("2")))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("[{\"transactionId\": \"TRX-0\", \"status\": \"ACCEPTED\"},"
+                                + "{\"transactionId\": \"TRX-1\", \"status\": \"ACCEPTED\"}]")));
+        InvoiceRequestCoalescer coalescer = new InvoiceRequestCoalescer(batcher, true, Duration.ZERO);
+
+        List<CompletableFuture<AbacusClient.ProcessResponse>> results = coalescer.submitAll(List.of(
+                invoiceRequest("A"), invoiceRequest("B"), invoiceRequest("A")));
+
+        assertEquals("TRX-0", results.get(0).get(5, TimeUnit.SECONDS).getTransactionId());
+        assertEquals("TRX-1", results.get(1).get(5, TimeUnit.SECONDS).getTransactionId());
+        assertEquals("TRX-0", results.get(2).get(5, TimeUnit.SECONDS).getTransactionId());
+        verify(1, postRequestedFor(urlEqualTo("/api/process/batch")));
+        assertEquals(1, coalescer.getCoalesced());
+    }
+
+    @Test
+    @DisplayName("An answered call is shared within the window after it started, and not after")
+    void testAnsweredCallIsSharedWithinTheWindow() throws Exception {
+        stubSingle(200, 0);
+        InvoiceRequestCoalescer coalescer = new InvoiceRequestCoalescer(batcher, true, Duration.ofMillis(500));
+
+        coalescer.submit(invoiceRequest("Acme Corp")).get(5, TimeUnit.SECONDS);
+        coalescer.submit(invoiceRequest("Acme Corp")).get(5, TimeUnit.SECONDS);
+        verify(1, postRequestedFor(urlEqualTo("/api/process")));
+
+        Thread.sleep(600);
+        coalescer.submit(invoiceRequest("Acme Corp")).get(5, TimeUnit.SECONDS);
+        verify(2, postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(1, coalescer.getCoalesced());
+    }
+
+    @Test
+    @DisplayName("A failed call is not shared with invoices submitted after it failed")
+    void testFailedCallIsNotShared() throws Exception {
+        stubSingle(400, 0);
+        InvoiceRequestCoalescer coalescer = new InvoiceRequestCoalescer(batcher, true, Duration.ofSeconds(60));
+
+        CompletableFuture<AbacusClient.ProcessResponse> failed = coalescer.submit(invoiceRequest("Acme Corp"));
+        assertThrows(Exception.class, () -> failed.get(5, TimeUnit.SECONDS));
+
+        stubSingle(200, 0);
+        assertEquals("ACCEPTED", coalescer.submit(invoiceRequest("Acme Corp")).get(5, TimeUnit.SECONDS).getStatus());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    @Test
+    @DisplayName("A disabled coalescer makes a call for every invoice")
+    void testDisabled() throws Exception {
+        InvoiceRequestCoalescer coalescer = new InvoiceRequestCoalescer(batcher, false, Duration.ofSeconds(60));
+
+        CompletableFuture<AbacusClient.ProcessResponse> first = coalescer.submit(invoiceRequest("Acme Corp"));
+        CompletableFuture<AbacusClient.ProcessResponse> second = coalescer.submit(invoiceRequest("Acme Corp"));
+
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        verify(2, postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(2, coalescer.getSubmitted());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+}
@@ -0,0 +1,73 @@
+package biz.agilenoir.invoiceapi;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the Idempotency-Key response cache
+ */
+public class IdempotencyKeyCacheTest {
+    private static final byte[] REQUEST = "{\"customer\":\"Acme Corp\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    @DisplayName("A repeated key gets the first request's response, even while it is in flight")
+    void testRepeatedKey() {
+        IdempotencyKeyCache cache = new IdempotencyKeyCache(10, Duration.ofMinutes(1));
+        CompletableFuture<IdempotencyKeyCache.CachedResponse> first = new CompletableFuture<>();
+        assertNull(cache.claim("key-1", REQUEST, first));
+
+        IdempotencyKeyCache.Entry earlier = cache.claim("key-1", REQUEST, new CompletableFuture<>());
+
+        assertNotNull(earlier);
+        assertTrue(earlier.isSameRequest(REQUEST));
+        assertFalse(earlier.isSameRequest("{}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(earlier.getResponse().isDone());
+        first.complete(new IdempotencyKeyCache.CachedResponse(201, REQUEST, "\"etag\""));
+        assertEquals(201, earlier.getResponse().join().getStatusCode());
+    }
+
+    @Test
+    @DisplayName("A released key can be claimed again")
+    void testRelease() {
+        IdempotencyKeyCache cache = new IdempotencyKeyCache(10, Duration.ofMinutes(1));
+        CompletableFuture<IdempotencyKeyCache.CachedResponse> first = new CompletableFuture<>();
+        cache.claim("key-1", REQUEST, first);
+
+        cache.release("key-1", first);
+
+        assertNull(cache.claim("key-1", REQUEST, new CompletableFuture<>()));
+    }
+
+    @Test
+    @DisplayName("The least recently used key is dropped when the cache is full")
+    void testLeastRecentlyUsedKeyIsDropped() {
+        IdempotencyKeyCache cache = new IdempotencyKeyCache(2, Duration.ofMinutes(1));
+        cache.claim("key-1", REQUEST, new CompletableFuture<>());
+        cache.claim("key-2", REQUEST, new CompletableFuture<>());
+        assertNotNull(cache.claim("key-1", REQUEST, new CompletableFuture<>())); // key-1 is now the most recently used
+
+        cache.claim("key-3", REQUEST, new CompletableFuture<>());
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.claim("key-1", REQUEST, new CompletableFuture<>()));
+        assertNull(cache.claim("key-2", REQUEST, new CompletableFuture<>()));
+    }
+
+    @Test
+    @DisplayName("A key is forgotten once its time to live has passed")
+    void testExpiry() throws Exception {
+        IdempotencyKeyCache cache = new IdempotencyKeyCache(10, Duration.ofMillis(50));
+        cache.claim("key-1", REQUEST, new CompletableFuture<>());
+
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        assertNull(cache.claim("key-1", REQUEST, new CompletableFuture<>()));
+    }
+}
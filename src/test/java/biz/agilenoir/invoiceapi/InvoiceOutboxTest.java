@@ -0,0 +1,258 @@
+package biz.agilenoir.invoiceapi;
+
+import biz.agilenoir.abacusapi.client.AbacusClient;
+import biz.agilenoir.abacusapi.client.InvoiceBatcher;
+import biz.agilenoir.invoiceapi.store.ConcurrentInvoiceStore;
+import biz.agilenoir.invoiceapi.store.InvoiceStatus;
+import biz.agilenoir.invoiceapi.store.InvoiceStore;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for sending accepted invoices to Abacus in the background, using WireMock as Abacus
+ */
+public class InvoiceOutboxTest {
+    private WireMockServer wireMockServer;
+    private InvoiceStore invoiceStore;
+    private SerializedInvoiceCache serializedInvoices;
+    private InvoiceBatcher batcher;
+    private InvoiceOutbox outbox;
+
+    @BeforeEach
+    void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+        wireMockServer.start();
+        WireMock.configureFor("localhost", wireMockServer.port());
+        batcher = new InvoiceBatcher(new AbacusClient("http://localhost:" + wireMockServer.port()), 10, Duration.ZERO);
+        invoiceStore = new ConcurrentInvoiceStore();
+        serializedInvoices = new SerializedInvoiceCache(invoice -> invoice.toString().getBytes(), 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (outbox != null) {
+            outbox.close();
+        }
+        wireMockServer.stop();
+    }
+
+    private InvoiceOutbox newOutbox() {
+        InvoiceOutbox.Settings settings = new InvoiceOutbox.Settings();
+        settings.setWorkers(2);
+        settings.setRetryBackoff(Duration.ofMillis(50));
+        settings.setMaxRetryBackoff(Duration.ofMillis(200));
+        settings.setReviewPollInterval(Duration.ofMillis(100));
+        outbox = new InvoiceOutbox(invoiceStore, batcher, serializedInvoices, settings);
+        return outbox;
+    }
+
+    private String createPending(String customer) {
+        Map<String, Object> invoice = new HashMap<>();
+        invoice.put("customer", customer);
+        invoice.put("amount", 100.0);
+        invoice.put("date", "2025-01-01");
+        invoice.put("status", InvoiceStatus.PENDING_ABACUS.name());
+        return (String) invoiceStore.create(invoice).get("id");
+    }
+
+    private static String processAnswer(String status) {
+        return "{\"transactionId\": \"TRX-OUTBOX\", \"status\": \"" + status + "\"}";
+    }
+
+    private Map<String, Object> awaitStatus(String id, InvoiceStatus status) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (System.nanoTime() < deadline) {
+            Map<String, Object> invoice = invoiceStore.findById(id);
+            if (status.name().equals(invoice.get("status"))) {
+                return invoice;
+            }
+            Thread.sleep(20);
+        }
+        fail("Invoice " + id + " did not reach " + status + " but is " + invoiceStore.findById(id));
+        return null;
+    }
+
+    @Test
+    @DisplayName("An invoice Abacus accepts becomes NEW with the transaction ID")
+    void testAccepted() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).willReturn(okJson(processAnswer("ACCEPTED"))));
+        String id = createPending("Acme Corp");
+
+        newOutbox().enqueue(id);
+
+        assertEquals("TRX-OUTBOX", awaitStatus(id, InvoiceStatus.NEW).get("transactionId"));
+        assertEquals(1, outbox.getSent());
+        verify(1, postRequestedFor(urlEqualTo("/api/process")));
+    }
+
+    @Test
+    @DisplayName("Two invoices with the same customer, amount and date are each sent to Abacus")
+    void testIdenticalInvoicesAreNotCoalesced() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).willReturn(okJson(processAnswer("ACCEPTED"))));
+        stubFor(post(urlEqualTo("/api/process/batch")).willReturn(okJson(
+                "[" + processAnswer("ACCEPTED") + ", " + processAnswer("ACCEPTED") + "]")));
+        String first = createPending("Acme Corp");
+        String second = createPending("Acme Corp");
+
+        InvoiceOutbox outbox = newOutbox();
+        outbox.enqueue(first);
+        outbox.enqueue(second);
+
+        awaitStatus(first, InvoiceStatus.NEW);
+        awaitStatus(second, InvoiceStatus.NEW);
+        int invoicesSent = findAll(postRequestedFor(urlEqualTo("/api/process"))).size()
+                + 2 * findAll(postRequestedFor(urlEqualTo("/api/process/batch"))).size();
+        assertEquals(2, invoicesSent);
+    }
+
+    @Test
+    @DisplayName("An invoice under review is sent again until Abacus decides")
+    void testPendingReviewIsPolled() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).inScenario("review")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(okJson(processAnswer("PENDING_REVIEW")))
+                .willSetStateTo("reviewed"));
+        stubFor(post(urlEqualTo("/api/process")).inScenario("review")
+                .whenScenarioStateIs("reviewed")
+                .willReturn(okJson(processAnswer("REJECTED"))));
+        String id = createPending("Acme Corp");
+
+        newOutbox().enqueue(id);
+
+        awaitStatus(id, InvoiceStatus.REJECTED);
+        assertEquals(2, outbox.getSent());
+        verify(2, postRequestedFor(urlEqualTo("/api/process")));
+    }
+
+    @Test
+    @DisplayName("Every send of an invoice carries the same idempotency key, derived from its ID")
+    void testRetriedInvoiceKeepsItsIdempotencyKey() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).inScenario("outage")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(400))
+                .willSetStateTo("recovered"));
+        stubFor(post(urlEqualTo("/api/process")).inScenario("outage")
+                .whenScenarioStateIs("recovered")
+                .willReturn(okJson(processAnswer("ACCEPTED"))));
+        String id = createPending("Acme Corp");
+
+        newOutbox().enqueue(id);
+
+        awaitStatus(id, InvoiceStatus.NEW);
+        List<LoggedRequest> sends = findAll(postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(2, sends.size());
+        assertEquals(InvoiceOutbox.idempotencyKeyOf(id), sends.get(0).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER));
+        assertEquals(InvoiceOutbox.idempotencyKeyOf(id), sends.get(1).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER));
+        assertNotEquals(InvoiceOutbox.idempotencyKeyOf(id), InvoiceOutbox.idempotencyKeyOf(createPending("Globex Inc")));
+    }
+
+    @Test
+    @DisplayName("Review polls go out under keys of their own, so an Abacus that answers a seen key from its cache decides")
+    void testReviewPollsUseNewKeys() throws Exception {
+        String id = createPending("Acme Corp");
+        // Abacus answers the first key of the invoice with its first response, and a new key with its decision
+        stubFor(post(urlEqualTo("/api/process")).atPriority(1)
+                .withHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER, equalTo(InvoiceOutbox.idempotencyKeyOf(id)))
+                .willReturn(okJson(processAnswer("PENDING_REVIEW"))));
+        stubFor(post(urlEqualTo("/api/process")).atPriority(2).willReturn(okJson(processAnswer("REJECTED"))));
+
+        newOutbox().enqueue(id);
+
+        awaitStatus(id, InvoiceStatus.REJECTED);
+        List<LoggedRequest> sends = findAll(postRequestedFor(urlEqualTo("/api/process")));
+        assertEquals(2, sends.size());
+        assertEquals(InvoiceOutbox.reviewIdempotencyKeyOf(id, 1), sends.get(1).getHeader(AbacusClient.IDEMPOTENCY_KEY_HEADER));
+    }
+
+    @Test
+    @DisplayName("An invoice whose call fails stays PENDING_ABACUS and is sent again after a backoff")
+    void testFailureIsRetried() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).inScenario("outage")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(400))
+                .willSetStateTo("recovered"));
+        stubFor(post(urlEqualTo("/api/process")).inScenario("outage")
+                .whenScenarioStateIs("recovered")
+                .willReturn(okJson(processAnswer("ACCEPTED"))));
+        String id = createPending("Acme Corp");
+
+        newOutbox().enqueue(id);
+
+        awaitStatus(id, InvoiceStatus.NEW);
+        assertEquals(1, outbox.getFailed());
+        assertEquals(1, outbox.getSent());
+    }
+
+    @Test
+    @DisplayName("An invoice whose outcome could not be saved is sent again, and the rest of its batch is recorded")
+    void testFailedRecordIsRetried() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).willReturn(okJson(processAnswer("ACCEPTED"))));
+        stubFor(post(urlEqualTo("/api/process/batch")).willReturn(okJson(
+                "[" + processAnswer("ACCEPTED") + ", " + processAnswer("ACCEPTED") + "]")));
+        AtomicInteger unluckySaves = new AtomicInteger();
+        invoiceStore = new ConcurrentInvoiceStore() {
+            @Override
+            public Map<String, Object> update(String id, UnaryOperator<Map<String, Object>> change) {
+                if (id.equals("INV-1") && unluckySaves.getAndIncrement() == 0) {
+                    throw new UncheckedIOException(new IOException("Invoice " + id + " was not saved"));
+                }
+                return super.update(id, change);
+            }
+        };
+        String unlucky = createPending("Acme Corp");
+        String other = createPending("Globex Inc");
+
+        InvoiceOutbox outbox = newOutbox();
+        outbox.enqueue(unlucky);
+        outbox.enqueue(other);
+
+        awaitStatus(other, InvoiceStatus.NEW);
+        awaitStatus(unlucky, InvoiceStatus.NEW);
+        assertEquals(2, unluckySaves.get());
+        assertEquals(1, outbox.getFailed());
+    }
+
+    @Test
+    @DisplayName("Recovering queues every stored invoice still waiting for Abacus, and no other")
+    void testRecover() throws Exception {
+        stubFor(post(urlEqualTo("/api/process")).willReturn(okJson(processAnswer("ACCEPTED"))));
+        String pending = createPending("Acme Corp");
+        String underReview = createPending("Globex Inc");
+        invoiceStore.update(underReview, invoice -> {
+            Map<String, Object> changed = new HashMap<>(invoice);
+            changed.put("status", InvoiceStatus.PENDING_REVIEW.name());
+            return changed;
+        });
+        Map<String, Object> paid = new HashMap<>();
+        paid.put("customer", "Initech");
+        paid.put("amount", 5.0);
+        paid.put("date", "2025-01-01");
+        paid.put("status", InvoiceStatus.PAID.name());
+        invoiceStore.create(paid);
+
+        assertEquals(2, newOutbox().recover());
+
+        awaitStatus(pending, InvoiceStatus.NEW);
+        awaitStatus(underReview, InvoiceStatus.NEW);
+        verify(2, postRequestedFor(urlEqualTo("/api/process")));
+    }
+}
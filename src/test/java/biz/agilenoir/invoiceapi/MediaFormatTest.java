@@ -0,0 +1,42 @@
+package biz.agilenoir.invoiceapi;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for choosing the format of invoice requests and responses
+ */
+public class MediaFormatTest {
+
+    @Test
+    @DisplayName("JSON is chosen without an Accept header, for wildcards and for formats the service does not speak")
+    void testJsonIsTheDefault() {
+        assertEquals(MediaFormat.JSON, MediaFormat.negotiate(null));
+        assertEquals(MediaFormat.JSON, MediaFormat.negotiate(""));
+        assertEquals(MediaFormat.JSON, MediaFormat.negotiate("*/*"));
+        assertEquals(MediaFormat.JSON, MediaFormat.negotiate("application/*"));
+        assertEquals(MediaFormat.JSON, MediaFormat.negotiate("application/xml, text/html"));
+    }
+
+    @Test
+    @DisplayName("The acceptable format with the highest quality wins, and the first listed among equals")
+    void testQualityDecides() {
+        assertEquals(MediaFormat.CBOR, MediaFormat.negotiate("application/cbor"));
+        assertEquals(MediaFormat.SMILE, MediaFormat.negotiate("Application/X-Jackson-Smile"));
+        assertEquals(MediaFormat.CBOR, MediaFormat.negotiate("application/json;q=0.5, application/cbor"));
+        assertEquals(MediaFormat.SMILE, MediaFormat.negotiate("application/x-jackson-smile, application/cbor"));
+        assertEquals(MediaFormat.JSON, MediaFormat.negotiate("application/cbor;q=0, */*;q=0.1"));
+    }
+
+    @Test
+    @DisplayName("A request body is read as CBOR or Smile only when its Content-Type says so")
+    void testContentType() {
+        assertEquals(MediaFormat.CBOR, MediaFormat.ofContentType("application/cbor"));
+        assertEquals(MediaFormat.SMILE, MediaFormat.ofContentType("application/x-jackson-smile; charset=binary"));
+        assertEquals(MediaFormat.JSON, MediaFormat.ofContentType("application/json; charset=UTF-8"));
+        assertEquals(MediaFormat.JSON, MediaFormat.ofContentType("text/plain"));
+        assertEquals(MediaFormat.JSON, MediaFormat.ofContentType(null));
+    }
+}
@@ -0,0 +1,103 @@
+package biz.agilenoir.invoiceapi;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for reading request bodies into pooled buffers
+ */
+public class RequestBodyReaderTest {
+
+    private static RequestBodyReader reader(int bufferSize, int maxBytes) {
+        RequestBodyReader.Settings settings = new RequestBodyReader.Settings();
+        settings.setBufferSize(bufferSize);
+        settings.setMaxBytes(maxBytes);
+        settings.setPoolSize(2);
+        return new RequestBodyReader(settings);
+    }
+
+    /**
+     * A stream that hands out a few bytes per read, as a socket does
+     */
+    private static InputStream trickle(byte[] bytes) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+    }
+
+    private static String text(RequestBodyReader.Body body) {
+        return new String(body.getBuffer(), 0, body.getLength(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @DisplayName("A body that fits the buffer is read into a pooled buffer, which is reused once the body is closed")
+    void testBufferIsReused() throws IOException {
+        RequestBodyReader reader = reader(64, 1024);
+        byte[] first;
+        try (RequestBodyReader.Body body = reader.read(trickle("{\"customer\":\"Acme Corp\"}".getBytes(StandardCharsets.UTF_8)))) {
+            assertEquals("{\"customer\":\"Acme Corp\"}", text(body));
+            first = body.getBuffer();
+        }
+        assertEquals(1, reader.getPooled());
+
+        try (RequestBodyReader.Body body = reader.read(trickle("{}".getBytes(StandardCharsets.UTF_8)))) {
+            assertSame(first, body.getBuffer());
+            assertEquals("{}", text(body));
+            assertEquals(0, reader.getPooled());
+        }
+    }
+
+    @Test
+    @DisplayName("A body larger than the buffer is read whole, and its larger array is not pooled")
+    void testLargerBody() throws IOException {
+        RequestBodyReader reader = reader(8, 1024);
+        byte[] bytes = new byte[300];
+        Arrays.fill(bytes, (byte) 'x');
+        try (RequestBodyReader.Body body = reader.read(trickle(bytes))) {
+            assertEquals(300, body.getLength());
+            assertArrayEquals(bytes, Arrays.copyOf(body.getBuffer(), body.getLength()));
+        }
+        assertEquals(1, reader.getPooled());
+
+        try (RequestBodyReader.Body body = reader.read(trickle(new byte[0]))) {
+            assertTrue(body.isEmpty());
+            assertEquals(8, body.getBuffer().length);
+        }
+    }
+
+    @Test
+    @DisplayName("A body of exactly maxBytes is read, and a longer one fails without its buffer being lost")
+    void testMaxBytes() throws IOException {
+        RequestBodyReader reader = reader(4, 16);
+        try (RequestBodyReader.Body body = reader.read(trickle(new byte[16]))) {
+            assertEquals(16, body.getLength());
+        }
+
+        RequestBodyReader.BodyTooLargeException tooLarge = assertThrows(RequestBodyReader.BodyTooLargeException.class,
+                () -> reader.read(trickle(new byte[17])));
+        assertTrue(tooLarge.getMessage().contains("16"));
+        assertEquals(1, reader.getPooled());
+    }
+
+    @Test
+    @DisplayName("A closed body's buffer can no longer be used")
+    void testClosedBody() throws IOException {
+        RequestBodyReader reader = reader(16, 16);
+        RequestBodyReader.Body body = reader.read(trickle(new byte[3]));
+        body.close();
+        body.close();
+        assertThrows(IllegalStateException.class, body::getBuffer);
+        assertEquals(1, reader.getPooled());
+    }
+}
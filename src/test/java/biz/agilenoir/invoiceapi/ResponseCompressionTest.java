@@ -0,0 +1,141 @@
+package biz.agilenoir.invoiceapi;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for compressing response bodies
+ */
+public class ResponseCompressionTest {
+
+    private static ResponseCompression compression(int minBytes) {
+        ResponseCompression.Settings settings = new ResponseCompression.Settings();
+        settings.setMinBytes(minBytes);
+        return new ResponseCompression(settings);
+    }
+
+    private static byte[] invoiceList(int invoices) {
+        StringBuilder list = new StringBuilder("[");
+        for (int i = 0; i < invoices; i++) {
+            list.append(i == 0 ? "" : ",").append("{\"id\":\"INV-").append(i).append("\",\"customer\":\"Acme Corp\",\"amount\":100.0}");
+        }
+        return list.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A response that records how it was started and what was written to it
+     */
+    private static class RecordedResponse implements ResponseCompression.ResponseStart {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private ResponseCompression.ContentCoding coding;
+        private long length = -1;
+        private int starts;
+
+        @Override
+        public OutputStream start(ResponseCompression.ContentCoding coding, long length) {
+            this.coding = coding;
+            this.length = length;
+            starts++;
+            return body;
+        }
+    }
+
+    /**
+     * Write the bytes a few at a time, as a JSON generator flushing its buffer does
+     */
+    private static void writeInPieces(OutputStream out, byte[] bytes) throws IOException {
+        for (int offset = 0; offset < bytes.length; offset += 100) {
+            out.write(bytes, offset, Math.min(100, bytes.length - offset));
+        }
+        out.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    @DisplayName("The acceptable coding with the highest quality wins, and none is chosen without one")
+    void testNegotiate() {
+        ResponseCompression compression = compression(1024);
+        assertEquals(ResponseCompression.ContentCoding.GZIP, compression.negotiate("gzip, deflate, br"));
+        assertEquals(ResponseCompression.ContentCoding.DEFLATE, compression.negotiate("deflate, gzip"));
+        assertEquals(ResponseCompression.ContentCoding.DEFLATE, compression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(ResponseCompression.ContentCoding.GZIP, compression.negotiate("br, *"));
+        assertNull(compression.negotiate("gzip;q=0, identity"));
+        assertNull(compression.negotiate("br"));
+        assertNull(compression.negotiate(null));
+
+        ResponseCompression.Settings disabled = new ResponseCompression.Settings();
+        disabled.setEnabled(false);
+        assertNull(new ResponseCompression(disabled).negotiate("gzip"));
+    }
+
+    @Test
+    @DisplayName("A body shorter than minBytes is sent as it is, with its length")
+    void testShortBodyIsNotCompressed() throws IOException {
+        ResponseCompression compression = compression(1024);
+        RecordedResponse response = new RecordedResponse();
+        byte[] health = "{\"status\": \"UP\"}".getBytes(StandardCharsets.UTF_8);
+
+        writeInPieces(compression.open(ResponseCompression.ContentCoding.GZIP, response), health);
+
+        assertEquals(1, response.starts);
+        assertNull(response.coding);
+        assertEquals(health.length, response.length);
+        assertArrayEquals(health, response.body.toByteArray());
+        assertEquals(0, compression.getPooled());
+    }
+
+    @Test
+    @DisplayName("A longer body is streamed in chunks as gzip or deflate, and decompresses to what was written")
+    void testLongBodyIsCompressed() throws IOException {
+        ResponseCompression compression = compression(1024);
+        byte[] list = invoiceList(500);
+
+        RecordedResponse gzipped = new RecordedResponse();
+        writeInPieces(compression.open(ResponseCompression.ContentCoding.GZIP, gzipped), list);
+        assertEquals(ResponseCompression.ContentCoding.GZIP, gzipped.coding);
+        assertEquals(0, gzipped.length);
+        assertTrue(gzipped.body.size() < list.length / 5);
+        assertArrayEquals(list, readAll(new GZIPInputStream(new ByteArrayInputStream(gzipped.body.toByteArray()))));
+
+        RecordedResponse deflated = new RecordedResponse();
+        writeInPieces(compression.open(ResponseCompression.ContentCoding.DEFLATE, deflated), list);
+        assertEquals(ResponseCompression.ContentCoding.DEFLATE, deflated.coding);
+        assertArrayEquals(list, readAll(new InflaterInputStream(new ByteArrayInputStream(deflated.body.toByteArray()))));
+
+        RecordedResponse plain = new RecordedResponse();
+        writeInPieces(compression.open(null, plain), list);
+        assertNull(plain.coding);
+        assertEquals(0, plain.length);
+        assertArrayEquals(list, plain.body.toByteArray());
+    }
+
+    @Test
+    @DisplayName("Deflaters are handed back to the pool and reused for the next response")
+    void testDeflatersAreReused() throws IOException {
+        ResponseCompression compression = compression(16);
+        byte[] list = invoiceList(50);
+
+        for (int i = 0; i < 3; i++) {
+            RecordedResponse response = new RecordedResponse();
+            writeInPieces(compression.open(ResponseCompression.ContentCoding.GZIP, response), list);
+            assertArrayEquals(list, readAll(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+            assertEquals(1, compression.getPooled());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package biz.agilenoir.invoiceapi;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the serialized invoice cache
+ */
+public class SerializedInvoiceCacheTest {
+
+    private final AtomicInteger serializations = new AtomicInteger();
+
+    private SerializedInvoiceCache cache(long maxBytes) {
+        return new SerializedInvoiceCache(invoice -> {
+            serializations.incrementAndGet();
+            return invoice.toString().getBytes(StandardCharsets.UTF_8);
+        }, maxBytes);
+    }
+
+    @Test
+    @DisplayName("An invoice is encoded once and served from the cache after that")
+    void testCachedBody() {
+        SerializedInvoiceCache cache = cache(1024);
+        Map<String, Object> invoice = Map.of("id", "INV-1", "customer", "Acme Corp");
+
+        SerializedInvoiceCache.SerializedInvoice first = cache.get(invoice);
+        SerializedInvoiceCache.SerializedInvoice second = cache.get(invoice);
+
+        assertSame(first, second);
+        assertEquals(1, serializations.get());
+        assertTrue(first.getETag().startsWith("\"") && first.getETag().endsWith("\""));
+    }
+
+    @Test
+    @DisplayName("A replaced invoice is encoded again and gets a new ETag")
+    void testReplacedInvoiceIsStale() {
+        SerializedInvoiceCache cache = cache(1024);
+        SerializedInvoiceCache.SerializedInvoice before = cache.get(Map.of("id", "INV-1", "status", "NEW"));
+
+        SerializedInvoiceCache.SerializedInvoice after = cache.get(Map.of("id", "INV-1", "status", "PAID"));
+
+        assertEquals(2, serializations.get());
+        assertNotEquals(before.getETag(), after.getETag());
+        assertEquals(after.getBody().length, cache.getCachedBytes());
+    }
+
+    @Test
+    @DisplayName("The oldest entries are evicted to stay under the byte limit")
+    void testEvictionBySize() {
+        Map<String, Object> first = Map.of("id", "INV-1");
+        Map<String, Object> second = Map.of("id", "INV-2");
+        Map<String, Object> third = Map.of("id", "INV-3");
+        int entryBytes = first.toString().length();
+        SerializedInvoiceCache cache = cache(2L * entryBytes);
+
+        cache.get(first);
+        cache.get(second);
+        cache.get(third);
+        assertEquals(2L * entryBytes, cache.getCachedBytes());
+
+        cache.get(second);
+        cache.get(third);
+        assertEquals(3, serializations.get());
+        cache.get(first);
+        assertEquals(4, serializations.get());
+    }
+
+    @Test
+    @DisplayName("An invalidated entry is encoded again")
+    void testInvalidate() {
+        SerializedInvoiceCache cache = cache(1024);
+        Map<String, Object> invoice = Map.of("id", "INV-1");
+        cache.get(invoice);
+
+        cache.invalidate("INV-1");
+
+        assertEquals(0, cache.getCachedBytes());
+        cache.get(invoice);
+        assertEquals(2, serializations.get());
+    }
+
+    @Test
+    @DisplayName("An invoice that keeps changing does not grow the eviction order")
+    void testChurnDoesNotGrowEvictionOrder() {
+        SerializedInvoiceCache cache = cache(1024 * 1024);
+        SerializedInvoiceCache.SerializedInvoice last = null;
+        for (int i = 0; i < 10_000; i++) {
+            last = cache.get(Map.of("id", "INV-1", "amount", i));
+            if (i % 3 == 1) {
+                cache.invalidate("INV-1");
+            }
+        }
+
+        assertTrue(cache.getEvictionOrderLength() <= 2 + 64, "eviction order holds " + cache.getEvictionOrderLength());
+        assertEquals(last.getBody().length, cache.getCachedBytes());
+    }
+
+    @Test
+    @DisplayName("If-None-Match accepts lists, weak tags and the wildcard")
+    void testMatchesIfNoneMatch() {
+        String eTag = "\"abc\"";
+        assertTrue(SerializedInvoiceCache.matchesIfNoneMatch("\"abc\"", eTag));
+        assertTrue(SerializedInvoiceCache.matchesIfNoneMatch("\"xyz\", W/\"abc\"", eTag));
+        assertTrue(SerializedInvoiceCache.matchesIfNoneMatch("*", eTag));
+        assertFalse(SerializedInvoiceCache.matchesIfNoneMatch("\"xyz\"", eTag));
+        assertFalse(SerializedInvoiceCache.matchesIfNoneMatch(null, eTag));
+    }
+}
@@ -93,6 +93,18 @@ public class InvoiceSchemaTest {
             .body(matchesJsonSchemaInClasspath("schemas/invoice-list-schema.json"));
     }
 
+    @Test
+    @DisplayName("Validate Get Invoice Page Endpoint Response Against Schema")
+    void validateGetInvoicePageAgainstSchema() {
+        given()
+            .baseUri(BASE_URL)
+        .when()
+            .get("/api/invoices?limit=1")
+        .then()
+            .statusCode(200)
+            .body(matchesJsonSchemaInClasspath("schemas/invoice-list-schema.json"));
+    }
+
     @Test
     @DisplayName("Validate Get Invoice By ID Endpoint Response Against Schema")
     void validateGetInvoiceByIdAgainstSchema() {
@@ -105,6 +117,18 @@ public class InvoiceSchemaTest {
             .body(matchesJsonSchemaInClasspath("schemas/invoice-schema.json"));
     }
 
+    @Test
+    @DisplayName("Validate Invoice Summary Endpoint Response Against Schema")
+    void validateInvoiceSummaryAgainstSchema() {
+        given()
+            .baseUri(BASE_URL)
+        .when()
+            .get("/api/invoices/summary")
+        .then()
+            .statusCode(200)
+            .body(matchesJsonSchemaInClasspath("schemas/invoice-summary-schema.json"));
+    }
+
     @Test
     @DisplayName("Validate Create Invoice Endpoint Response Against Schema which depends on Abacus service.")
     void validateCreateInvoiceAgainstSchema() {
@@ -1,6 +1,10 @@
 package biz.agilenoir.invoiceapi.contract;
 
 import biz.agilenoir.invoiceapi.InvoiceMicroservice;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
@@ -9,7 +13,21 @@ import io.restassured.http.ContentType;
 import io.restassured.response.Response;
 import org.junit.jupiter.api.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
@@ -17,6 +35,10 @@ import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static io.restassured.RestAssured.*;
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * API Test Client using RestAssured
@@ -87,7 +109,28 @@ public class InvoiceTest {
             .then()
             .statusCode(200)
             .contentType(ContentType.JSON)
-            .body("status", equalTo("UP"));
+            .body("status", equalTo("UP"))
+            .body("abacus.circuitState", notNullValue())
+            .body("abacus.concurrencyLimit", greaterThan(0));
+    }
+
+    @Test
+    @DisplayName("Test metrics endpoint")
+    public void testMetricsEndpoint() {
+        System.out.println("\nTesting metrics endpoint:");
+        given().when().get("/api/invoices?id=INV-001").then().statusCode(200);
+
+        given()
+            .when()
+            .get("/api/metrics")
+            .then()
+            .statusCode(200)
+            .contentType(startsWith("text/plain"))
+            .body(containsString("# TYPE invoice_http_requests_total counter"))
+            .body(matchesPattern("(?s).*invoice_http_requests_total\\{method=\"GET\",route=\"/api/invoices\",status=\"200\"} [1-9].*"))
+            .body(containsString("invoice_http_request_duration_seconds_bucket{method=\"GET\",route=\"/api/invoices\",le=\"+Inf\"}"))
+            .body(matchesPattern("(?s).*invoice_store_invoices [1-9].*"))
+            .body(containsString("invoice_abacus_call_duration_seconds_count{outcome=\"ACCEPTED\"}"));
     }
 
     @Test
@@ -180,4 +223,604 @@ public class InvoiceTest {
                     .body("customer", equalTo("New Customer"))
                     .body("status", equalTo("NEW"));
     }
+
+    @Test
+    @DisplayName("Test create invoice rejected by Abacus (depends on Abacus)")
+    public void testCreateInvoiceRejectedByAbacus() {
+        System.out.println("\nTesting create invoice rejected by Abacus:");
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-12346\", \"status\": \"REJECTED\", \"message\": \"Invoice rejected\"}")));
+
+        String invoiceToCreate = """
+                {
+                "customer":"New Customer",
+                "amount":400.00,
+                "date":"2025-01-01"
+                }
+                """;
+        given()
+                    .when()
+                    .body(invoiceToCreate)
+                    .post("/api/invoices")
+                    .then()
+                    .statusCode(503)
+                    .contentType(ContentType.JSON)
+                    .body("error", notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test create a batch of invoices (depends on Abacus)")
+    public void testCreateInvoiceBatch() {
+        System.out.println("\nTesting create a batch of invoices:");
+        stubFor(post(urlEqualTo("/api/process/batch"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("[{\"transactionId\": \"TRX-1\", \"status\": \"ACCEPTED\"}," +
+                                " {\"transactionId\": \"TRX-2\", \"status\": \"REJECTED\"}]")));
+
+        String invoicesToCreate = """
+                [
+                {"customer":"Batch Customer","amount":100.00,"date":"2025-02-01"},
+                {"customer":"Rejected Customer","amount":200.00,"date":"2025-02-02"}
+                ]
+                """;
+        given()
+                    .when()
+                    .body(invoicesToCreate)
+                    .post("/api/invoices/batch")
+                    .then()
+                    .statusCode(200)
+                    .contentType(ContentType.JSON)
+                    .body("size()", equalTo(2))
+                    .body("[0].status", equalTo(201))
+                    .body("[0].invoice.customer", equalTo("Batch Customer"))
+                    .body("[0].invoice.id", notNullValue())
+                    .body("[1].status", equalTo(503))
+                    .body("[1].error", notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test create a batch of invoices with a malformed body")
+    public void testCreateInvoiceBatchMalformed() {
+        given()
+                    .when()
+                    .body("{\"customer\":\"Not an array\"}")
+                    .post("/api/invoices/batch")
+                    .then()
+                    .statusCode(400)
+                    .contentType(ContentType.JSON);
+    }
+
+    @Test
+    @DisplayName("Test a batch body is read up to its own limit, larger than a single invoice's")
+    public void testCreateInvoiceBatchTooLarge() {
+        // Longer than a single invoice may be, so this is parsed and refused for what it holds
+        given()
+                    .when()
+                    .body("[" + " ".repeat(70_000) + "{\"customer\":\"Padded Batch Customer\",\"date\":\"2025-01-01\"}]")
+                    .post("/api/invoices/batch")
+                    .then()
+                    .statusCode(400)
+                    .body("error", equalTo("[0].amount is required"));
+
+        given()
+                    .when()
+                    .body("[" + " ".repeat(1024 * 1024) + "]")
+                    .post("/api/invoices/batch")
+                    .then()
+                    .statusCode(413)
+                    .body("error", notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test non-ASCII and quoted customer names survive create, get and list (depends on Abacus)")
+    public void testCustomerNameEncoding() {
+        System.out.println("\nTesting customer name encoding:");
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(201)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-12347\", \"status\": \"ACCEPTED\", \"message\": \"Invoice processed successfully\"}")));
+        String customer = "Zoë \"Ünïcode\" Café";
+
+        String id = given()
+                    .contentType("application/json; charset=UTF-8")
+                    .body("{\"customer\":\"Zoë \\\"Ünïcode\\\" Café\",\"amount\":10.00,\"date\":\"2025-01-01\"}")
+                    .when()
+                    .post("/api/invoices")
+                    .then()
+                    .statusCode(201)
+                    .body("customer", equalTo(customer))
+                    .extract().path("id");
+
+        given()
+            .when()
+            .get("/api/invoices?id=" + id)
+            .then()
+            .statusCode(200)
+            .body("customer", equalTo(customer));
+
+        given()
+            .when()
+            .get("/api/invoices")
+            .then()
+            .statusCode(200)
+            .header("Transfer-Encoding", "chunked")
+            .body("find { it.id == '" + id + "' }.customer", equalTo(customer));
+    }
+
+    @Test
+    @DisplayName("Test page through invoices with a cursor")
+    public void testGetInvoicePages() {
+        System.out.println("\nTesting page through invoices:");
+
+        String nextCursor = given()
+            .when()
+            .get("/api/invoices?limit=1")
+            .then()
+            .statusCode(200)
+            .contentType(ContentType.JSON)
+            .body("invoices.size()", equalTo(1))
+            .body("invoices[0].id", equalTo("INV-001"))
+            .body("nextCursor", notNullValue())
+            .extract().path("nextCursor");
+
+        given()
+            .when()
+            .get("/api/invoices?limit=1&cursor=" + nextCursor)
+            .then()
+            .statusCode(200)
+            .body("invoices.size()", equalTo(1))
+            .body("invoices[0].id", equalTo("INV-002"));
+    }
+
+    @Test
+    @DisplayName("Test page request with an invalid limit or cursor")
+    public void testGetInvoicePageInvalid() {
+        given()
+            .when()
+            .get("/api/invoices?limit=0")
+            .then()
+            .statusCode(400)
+            .contentType(ContentType.JSON)
+            .body("error", notNullValue());
+
+        given()
+            .when()
+            .get("/api/invoices?cursor=not-a-cursor")
+            .then()
+            .statusCode(400);
+    }
+
+    @Test
+    @DisplayName("Test filter invoices by customer, status and date")
+    public void testGetFilteredInvoices() {
+        System.out.println("\nTesting filter invoices:");
+
+        given()
+            .queryParam("customer", "Globex Inc")
+            .queryParam("status", "PENDING")
+            .queryParam("dateFrom", "2023-01-01")
+            .queryParam("dateTo", "2023-03-31")
+            .when()
+            .get("/api/invoices")
+            .then()
+            .statusCode(200)
+            .contentType(ContentType.JSON)
+            .body("size()", equalTo(1))
+            .body("[0].id", equalTo("INV-002"));
+
+        given()
+            .when()
+            .get("/api/invoices?amountMin=1000")
+            .then()
+            .statusCode(200)
+            .body("findAll { it.id == 'INV-001' }.size()", equalTo(1))
+            .body("findAll { it.id == 'INV-002' }.size()", equalTo(0));
+
+        given()
+            .when()
+            .get("/api/invoices?dateFrom=yesterday")
+            .then()
+            .statusCode(400)
+            .body("error", notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test invoice summary by status, customer and month")
+    public void testGetSummary() {
+        System.out.println("\nTesting invoice summary:");
+
+        given()
+            .queryParam("customer", "Globex Inc")
+            .queryParam("dateTo", "2023-12-31")
+            .when()
+            .get("/api/invoices/summary")
+            .then()
+            .statusCode(200)
+            .contentType(ContentType.JSON)
+            .header("ETag", notNullValue())
+            .body("count", equalTo(1))
+            .body("totalAmount", equalTo(850.5f))
+            .body("byStatus.PENDING.count", equalTo(1))
+            .body("byCustomer.'Globex Inc'.totalAmount", equalTo(850.5f))
+            .body("byMonth.'2023-02'.count", equalTo(1));
+
+        given()
+            .when()
+            .get("/api/invoices/summary")
+            .then()
+            .statusCode(200)
+            .body("byCustomer.'Acme Corp'.totalAmount", equalTo(1250.0f))
+            .body("byMonth.'2023-01'.count", equalTo(1));
+
+        given()
+            .when()
+            .get("/api/invoices/summary?amountMin=lots")
+            .then()
+            .statusCode(400)
+            .body("error", notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test conditional GET with ETag and If-None-Match (depends on Abacus)")
+    public void testConditionalGet() {
+        System.out.println("\nTesting conditional GET:");
+
+        String invoiceETag = given()
+            .when()
+            .get("/api/invoices?id=INV-001")
+            .then()
+            .statusCode(200)
+            .header("ETag", notNullValue())
+            .extract().header("ETag");
+
+        given()
+            .header("If-None-Match", invoiceETag)
+            .when()
+            .get("/api/invoices?id=INV-001")
+            .then()
+            .statusCode(304)
+            .header("ETag", equalTo(invoiceETag));
+
+        String listETag = given()
+            .when()
+            .get("/api/invoices")
+            .then()
+            .statusCode(200)
+            .extract().header("ETag");
+
+        given()
+            .header("If-None-Match", listETag)
+            .when()
+            .get("/api/invoices")
+            .then()
+            .statusCode(304);
+
+        // A new invoice changes the list, so the old ETag no longer matches
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(201)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-12346\", \"status\": \"ACCEPTED\", \"message\": \"Invoice processed successfully\"}")));
+        given()
+            .when()
+            .body("{\"customer\":\"ETag Customer\",\"amount\":10.00,\"date\":\"2025-01-01\",\"status\":\"NEW\"}")
+            .post("/api/invoices")
+            .then()
+            .statusCode(201)
+            .header("ETag", notNullValue());
+
+        given()
+            .header("If-None-Match", listETag)
+            .when()
+            .get("/api/invoices")
+            .then()
+            .statusCode(200)
+            .header("ETag", not(equalTo(listETag)));
+    }
+
+    @Test
+    @DisplayName("Test a POST repeated with the same Idempotency-Key creates one invoice (depends on Abacus)")
+    public void testIdempotentCreateInvoice() {
+        System.out.println("\nTesting idempotent create invoice:");
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(201)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-IDEMPOTENT\", \"status\": \"ACCEPTED\"}")));
+        String invoiceToCreate = "{\"customer\":\"Idempotent Customer\",\"amount\":75.00,\"date\":\"2025-02-01\"}";
+
+        String createdId = given()
+            .header("Idempotency-Key", "test-key-1")
+            .body(invoiceToCreate)
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(201)
+            .extract().path("id");
+
+        given()
+            .header("Idempotency-Key", "test-key-1")
+            .body(invoiceToCreate)
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(201)
+            .header("Idempotent-Replayed", "true")
+            .body("id", equalTo(createdId));
+
+        WireMock.verify(1, WireMock.postRequestedFor(urlEqualTo("/api/process"))
+                .withRequestBody(WireMock.matchingJsonPath("$.customer", WireMock.equalTo("Idempotent Customer"))));
+
+        given()
+            .header("Idempotency-Key", "test-key-1")
+            .body("{\"customer\":\"Someone Else\",\"amount\":75.00,\"date\":\"2025-02-01\"}")
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(422);
+    }
+
+    @Test
+    @DisplayName("Test concurrent POSTs with the same Idempotency-Key wait for the first (depends on Abacus)")
+    public void testConcurrentIdempotentCreateInvoice() throws Exception {
+        System.out.println("\nTesting concurrent idempotent create invoice:");
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(201)
+                        .withFixedDelay(500)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-SLOW\", \"status\": \"ACCEPTED\"}")));
+        String invoiceToCreate = "{\"customer\":\"Concurrent Customer\",\"amount\":80.00,\"date\":\"2025-02-02\"}";
+
+        List<CompletableFuture<String>> creates = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            creates.add(CompletableFuture.supplyAsync(() -> given()
+                .header("Idempotency-Key", "test-key-concurrent")
+                .body(invoiceToCreate)
+                .when()
+                .post("/api/invoices")
+                .then()
+                .statusCode(201)
+                .extract().path("id")));
+        }
+
+        Set<String> createdIds = new HashSet<>();
+        for (CompletableFuture<String> create : creates) {
+            createdIds.add(create.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, createdIds.size());
+        WireMock.verify(1, WireMock.postRequestedFor(urlEqualTo("/api/process"))
+                .withRequestBody(WireMock.matchingJsonPath("$.customer", WireMock.equalTo("Concurrent Customer"))));
+    }
+
+    @Test
+    @DisplayName("Test a POST with Prefer: respond-async is accepted at once and sent to Abacus in the background (depends on Abacus)")
+    public void testCreateInvoiceAsync() throws Exception {
+        System.out.println("\nTesting asynchronous create invoice:");
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(201)
+                        .withFixedDelay(300)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-ASYNC\", \"status\": \"ACCEPTED\"}")));
+
+        Response accepted = given()
+            .header("Prefer", "respond-async")
+            .body("{\"customer\":\"Async Customer\",\"amount\":42.00,\"date\":\"2025-03-01\"}")
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(202)
+            .header("Preference-Applied", "respond-async")
+            .header("ETag", notNullValue())
+            .body("status", equalTo("PENDING_ABACUS"))
+            .extract().response();
+        String location = accepted.header("Location");
+        assertEquals("/api/invoices?id=" + accepted.path("id"), location);
+
+        String status = null;
+        for (int i = 0; i < 50 && !"NEW".equals(status); i++) {
+            Thread.sleep(100);
+            status = given().when().get(location).then().statusCode(200).extract().path("status");
+        }
+        given()
+            .when()
+            .get(location)
+            .then()
+            .statusCode(200)
+            .body("status", equalTo("NEW"))
+            .body("transactionId", equalTo("TRX-ASYNC"));
+
+        given()
+            .header("Prefer", "respond-async")
+            .body("{\"customer\":\"Async Customer\"}")
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(400)
+            .body("error", notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test create an invoice with a malformed or too large body")
+    public void testCreateInvoiceMalformed() {
+        System.out.println("\nTesting create invoice with a malformed body:");
+
+        given()
+            .body("{\"customer\": \"Broken")
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(400)
+            .contentType(ContentType.JSON)
+            .body("error", notNullValue());
+
+        given()
+            .body("{\"customer\":\"Typo Customer\",\"amuont\":10.00,\"date\":\"2025-01-01\"}")
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(400)
+            .body("error", equalTo("amuont is not a property of an invoice"));
+
+        given()
+            .body("{\"customer\":\"Amountless Customer\",\"date\":\"2025-01-01\"}")
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(400)
+            .body("error", equalTo("amount is required"));
+
+        given()
+            .body("[{\"customer\":\"Misdated Customer\",\"amount\":1,\"date\":\"2025-01-01\"},"
+                    + "{\"customer\":\"Misdated Customer\",\"amount\":1,\"date\":\"2025-02-30\"}]")
+            .when()
+            .post("/api/invoices/batch")
+            .then()
+            .statusCode(400)
+            .body("error", equalTo("[1].date must be a date as yyyy-mm-dd"));
+
+        // Refused before any call to Abacus
+        WireMock.verify(0, WireMock.postRequestedFor(urlEqualTo("/api/process"))
+                .withRequestBody(WireMock.matchingJsonPath("$.customer", WireMock.equalTo("Amountless Customer"))));
+        WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlMatching("/api/process.*"))
+                .withRequestBody(WireMock.containing("Misdated Customer")));
+
+        given()
+            .body("{\"customer\":\"" + "x".repeat(70_000) + "\",\"amount\":10.00,\"date\":\"2025-01-01\"}")
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(413)
+            .body("error", notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test get invoices as CBOR or Smile when the Accept header asks for them")
+    public void testGetInvoicesInBinaryFormats() throws IOException {
+        System.out.println("\nTesting get invoices as CBOR and Smile:");
+        ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+        ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+        Response jsonInvoice = given().when().get("/api/invoices?id=INV-001");
+        Response cborInvoice = given()
+            .header("Accept", "application/json;q=0.5, application/cbor")
+            .when()
+            .get("/api/invoices?id=INV-001");
+        cborInvoice.then()
+            .statusCode(200)
+            .contentType("application/cbor")
+            .header("Vary", containsString("Accept"));
+        JsonNode invoice = cborMapper.readTree(cborInvoice.asByteArray());
+        assertEquals("INV-001", invoice.get("id").asText());
+        assertEquals("Acme Corp", invoice.get("customer").asText());
+        assertTrue(cborInvoice.asByteArray().length < jsonInvoice.asByteArray().length);
+        assertNotEquals(jsonInvoice.header("ETag"), cborInvoice.header("ETag"));
+
+        given()
+            .header("Accept", "application/cbor")
+            .header("If-None-Match", cborInvoice.header("ETag"))
+            .when()
+            .get("/api/invoices?id=INV-001")
+            .then()
+            .statusCode(304);
+
+        Response jsonList = given().when().get("/api/invoices");
+        Response smileList = given()
+            .header("Accept", "application/x-jackson-smile")
+            .when()
+            .get("/api/invoices");
+        smileList.then()
+            .statusCode(200)
+            .contentType("application/x-jackson-smile");
+        JsonNode invoices = smileMapper.readTree(smileList.asByteArray());
+        assertEquals(jsonList.jsonPath().getList("$").size(), invoices.size());
+        assertNotEquals(jsonList.header("ETag"), smileList.header("ETag"));
+
+        Response cborSummary = given()
+            .header("Accept", "application/cbor")
+            .when()
+            .get("/api/invoices/summary");
+        cborSummary.then()
+            .statusCode(200)
+            .contentType("application/cbor");
+        assertTrue(cborMapper.readTree(cborSummary.asByteArray()).has("byStatus"));
+
+        // Formats the service does not speak fall back to JSON
+        given()
+            .header("Accept", "application/xml")
+            .when()
+            .get("/api/invoices?id=INV-001")
+            .then()
+            .statusCode(200)
+            .contentType(ContentType.JSON);
+    }
+
+    @Test
+    @DisplayName("Test create an invoice posted as CBOR (depends on Abacus)")
+    public void testCreateInvoiceAsCbor() throws IOException {
+        System.out.println("\nTesting create invoice posted as CBOR:");
+        ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+        stubFor(post(urlEqualTo("/api/process"))
+                .willReturn(aResponse()
+                        .withStatus(201)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"transactionId\": \"TRX-12347\", \"status\": \"ACCEPTED\", \"message\": \"Invoice processed successfully\"}")));
+
+        given()
+            .contentType("application/cbor")
+            .body(cborMapper.writeValueAsBytes(Map.of("customer", "Cbor Customer", "amount", 42.5, "date", "2025-03-01")))
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(201)
+            .contentType(ContentType.JSON)
+            .body("customer", equalTo("Cbor Customer"))
+            .body("amount", equalTo(42.5f));
+
+        given()
+            .contentType("application/cbor")
+            .body(cborMapper.writeValueAsBytes(Map.of("customer", "Cbor Customer", "date", "2025-03-01")))
+            .when()
+            .post("/api/invoices")
+            .then()
+            .statusCode(400)
+            .body("error", equalTo("amount is required"));
+    }
+
+    @Test
+    @DisplayName("Test long responses are gzipped for clients that accept it, and short ones are not")
+    public void testResponseCompression() throws Exception {
+        System.out.println("\nTesting response compression:");
+        HttpClient client = HttpClient.newHttpClient();
+
+        HttpResponse<byte[]> metrics = client.send(HttpRequest.newBuilder(URI.create(BASE_URL + "/api/metrics"))
+                .header("Accept-Encoding", "gzip, deflate").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, metrics.statusCode());
+        assertEquals("gzip", metrics.headers().firstValue("Content-Encoding").orElse(null));
+        assertTrue(metrics.headers().firstValue("Vary").orElse("").contains("Accept-Encoding"));
+        String text;
+        try (GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(metrics.body()))) {
+            text = new String(unzipped.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(text.contains("invoice_store_invoices"));
+        assertTrue(metrics.body().length < text.length());
+
+        HttpResponse<byte[]> health = client.send(HttpRequest.newBuilder(URI.create(BASE_URL + "/api/health"))
+                .header("Accept-Encoding", "gzip").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, health.statusCode());
+        assertFalse(health.headers().firstValue("Content-Encoding").isPresent());
+        assertTrue(new String(health.body(), StandardCharsets.UTF_8).contains("status"));
+
+        HttpResponse<byte[]> plainMetrics = client.send(HttpRequest.newBuilder(URI.create(BASE_URL + "/api/metrics")).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertFalse(plainMetrics.headers().firstValue("Content-Encoding").isPresent());
+        assertTrue(plainMetrics.headers().firstValue("Vary").orElse("").contains("Accept-Encoding"));
+    }
 }
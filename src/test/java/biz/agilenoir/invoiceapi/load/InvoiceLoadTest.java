@@ -0,0 +1,229 @@
+package biz.agilenoir.invoiceapi.load;
+
+import biz.agilenoir.invoiceapi.InvoiceMicroservice;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformerV2;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Load test of the invoice service at a fixed arrival rate, against a WireMock Abacus that can be made slow or failing.
+ * Runs only in the loadtest profile: {@code mvn -P loadtest test}. Tuned with system properties:
+ * <ul>
+ *     <li>{@code load.rate} requests per second (default 5000)</li>
+ *     <li>{@code load.warmupSeconds} (default 10) and {@code load.durationSeconds} (default 30)</li>
+ *     <li>{@code load.mix} the weight of each request kind (default getById:70,getPage:20,create:10)</li>
+ *     <li>{@code load.abacus.delayMillis} median Abacus latency (default 20), {@code load.abacus.delaySigma} its
+ *     log-normal spread (default 0, a fixed delay) and {@code load.abacus.errorRate} the share of Abacus calls
+ *     answered with a 503 (default 0)</li>
+ *     <li>{@code load.p99BudgetMillis} (default 100), {@code load.p999BudgetMillis} (default 250) and
+ *     {@code load.maxErrorRate} (default 0.001): the run fails if any of them is exceeded</li>
+ * </ul>
+ * The latency distribution of each request kind is written to target/load-test as an HdrHistogram .hgrm file.
+ */
+@Tag("load")
+public class InvoiceLoadTest {
+    private static final String INVOICE_REQUEST = "{\"customer\": \"Acme Corp\", \"amount\": 1250.0, \"date\": \"2023-01-15\", \"status\": \"NEW\"}";
+    private static final String ACCEPTED = "{\"transactionId\": \"TRX-LOAD\", \"status\": \"ACCEPTED\", \"message\": \"Invoice processed successfully\"}";
+    private static final Path REPORT_DIRECTORY = Path.of("target", "load-test");
+
+    private static WireMockServer abacus;
+    private static String baseUrl;
+
+    @BeforeAll
+    public static void setup() throws IOException {
+        double errorRate = doubleProperty("load.abacus.errorRate", 0);
+        abacus = new WireMockServer(WireMockConfiguration.options()
+                .dynamicPort()
+                .containerThreads(200)
+                .asynchronousResponseEnabled(true)
+                .asynchronousResponseThreads(50)
+                .disableRequestJournal()
+                .extensions(new AbacusFaults(errorRate)));
+        abacus.start();
+
+        long delayMillis = Long.getLong("load.abacus.delayMillis", 20);
+        double delaySigma = doubleProperty("load.abacus.delaySigma", 0);
+        ResponseDefinitionBuilder accepted = aResponse()
+                .withStatus(201)
+                .withHeader("Content-Type", "application/json")
+                .withBody(ACCEPTED);
+        if (delaySigma > 0) {
+            accepted.withLogNormalRandomDelay(delayMillis, delaySigma);
+        } else {
+            accepted.withFixedDelay((int) delayMillis);
+        }
+        abacus.stubFor(post(urlEqualTo("/api/process")).willReturn(accepted));
+        abacus.stubFor(post(urlEqualTo("/api/process/batch")).willReturn(accepted));
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String[] serviceConfiguration = new String[InvoiceMicroservice.ConfigurationArgumentIndices.ARRAY_SIZE];
+        serviceConfiguration[InvoiceMicroservice.ConfigurationArgumentIndices.INVOICE_SERVICE_PORT] = String.valueOf(port);
+        serviceConfiguration[InvoiceMicroservice.ConfigurationArgumentIndices.ABACUS_SERVICE_PORT] = String.valueOf(abacus.port());
+        InvoiceMicroservice.main(serviceConfiguration);
+        baseUrl = "http://localhost:" + port;
+    }
+
+    @AfterAll
+    public static void teardown() {
+        abacus.stop();
+    }
+
+    @Test
+    @DisplayName("The service answers a fixed arrival rate of GETs and POSTs within its latency budgets")
+    void testLatencyBudgets() throws Exception {
+        double rate = doubleProperty("load.rate", 5000);
+        Duration warmup = Duration.ofSeconds(Long.getLong("load.warmupSeconds", 10));
+        Duration duration = Duration.ofSeconds(Long.getLong("load.durationSeconds", 30));
+        double p99BudgetMillis = doubleProperty("load.p99BudgetMillis", 100);
+        double p999BudgetMillis = doubleProperty("load.p999BudgetMillis", 250);
+        double maxErrorRate = doubleProperty("load.maxErrorRate", 0.001);
+
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        List<OpenLoopLoadGenerator.Operation> operations = operations(System.getProperty("load.mix", "getById:70,getPage:20,create:10"));
+        System.out.printf("Sending %.0f requests/s for %s after a %s warmup%n", rate, duration, warmup);
+        OpenLoopLoadGenerator.Report report = new OpenLoopLoadGenerator(client, operations, rate).run(warmup, duration);
+
+        report.print(System.out);
+        writeHistograms(report);
+
+        Histogram overall = report.getOverall();
+        double p99Millis = overall.getValueAtPercentile(99) / 1000.0;
+        double p999Millis = overall.getValueAtPercentile(99.9) / 1000.0;
+        assertAll(
+                () -> assertTrue(report.getCompleted() > 0, "No requests were measured"),
+                () -> assertTrue(p99Millis <= p99BudgetMillis, "p99 of " + p99Millis + " ms is over the budget of " + p99BudgetMillis + " ms"),
+                () -> assertTrue(p999Millis <= p999BudgetMillis, "p99.9 of " + p999Millis + " ms is over the budget of " + p999BudgetMillis + " ms"),
+                () -> assertTrue(report.getErrorRate() <= maxErrorRate, "Error rate of " + report.getErrorRate() + " is over the budget of " + maxErrorRate));
+    }
+
+    /**
+     * @param mix Comma separated name:weight pairs
+     */
+    private static List<OpenLoopLoadGenerator.Operation> operations(String mix) {
+        List<OpenLoopLoadGenerator.Operation> operations = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split(":");
+            String name = nameAndWeight[0];
+            double weight = Double.parseDouble(nameAndWeight[1]);
+            switch (name) {
+                case "getById":
+                    operations.add(new OpenLoopLoadGenerator.Operation(name, weight, get("/api/invoices?id=INV-001"), 200));
+                    break;
+                case "getPage":
+                    operations.add(new OpenLoopLoadGenerator.Operation(name, weight, get("/api/invoices?limit=20"), 200));
+                    break;
+                case "create":
+                    HttpRequest create = HttpRequest.newBuilder(URI.create(baseUrl + "/api/invoices"))
+                            .header("Content-Type", "application/json")
+                            .timeout(Duration.ofSeconds(30))
+                            .POST(HttpRequest.BodyPublishers.ofString(INVOICE_REQUEST))
+                            .build();
+                    operations.add(new OpenLoopLoadGenerator.Operation(name, weight, create, 201));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + name + " in load.mix");
+            }
+        }
+        return operations;
+    }
+
+    private static HttpRequest get(String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + pathAndQuery)).timeout(Duration.ofSeconds(30)).GET().build();
+    }
+
+    private static void writeHistograms(OpenLoopLoadGenerator.Report report) throws IOException {
+        Files.createDirectories(REPORT_DIRECTORY);
+        for (OpenLoopLoadGenerator.Operation operation : report.getOperations()) {
+            writeHistogram(operation.getName(), operation.getLatencies());
+        }
+        writeHistogram("all", report.getOverall());
+        System.out.println("Latency distributions written to " + REPORT_DIRECTORY.toAbsolutePath());
+    }
+
+    private static void writeHistogram(String name, Histogram latencies) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(REPORT_DIRECTORY.resolve(name + ".hgrm")))) {
+            // Recorded in microseconds, written in milliseconds
+            latencies.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Answers a share of Abacus calls with a 503, and answers a batch with one response per invoice in it
+     */
+    private static class AbacusFaults implements ResponseDefinitionTransformerV2 {
+        private final double errorRate;
+
+        AbacusFaults(double errorRate) {
+            this.errorRate = errorRate;
+        }
+
+        @Override
+        public ResponseDefinition transform(ServeEvent serveEvent) {
+            ResponseDefinition response = serveEvent.getResponseDefinition();
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                return ResponseDefinitionBuilder.like(response).withStatus(503).withBody("").build();
+            }
+            if (serveEvent.getRequest().getUrl().endsWith("/batch")) {
+                int invoices = invoiceCount(serveEvent.getRequest().getBodyAsString());
+                StringBuilder body = new StringBuilder("[");
+                for (int i = 0; i < invoices; i++) {
+                    body.append(i == 0 ? "" : ",").append(ACCEPTED);
+                }
+                return ResponseDefinitionBuilder.like(response).withBody(body.append(']').toString()).build();
+            }
+            return response;
+        }
+
+        /**
+         * @return The number of invoices in a batch request, each of which has exactly one customer field
+         */
+        private static int invoiceCount(String batch) {
+            int count = 0;
+            for (int i = batch.indexOf("\"customer\""); i >= 0; i = batch.indexOf("\"customer\"", i + 1)) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public String getName() {
+            return "abacus-faults";
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package biz.agilenoir.invoiceapi.load;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests at a fixed arrival rate, whether or not earlier requests have been answered, and records their latencies.
+ * <p>
+ * Each request is sent from its own virtual thread at the time the schedule gives it. Its latency is measured from that
+ * scheduled time, not from when it was actually sent, so a stalled service or a late sender shows up in the latencies
+ * instead of quietly lowering the rate (coordinated omission).
+ */
+class OpenLoopLoadGenerator {
+    // Latencies from 1 microsecond to a minute, to 3 significant digits
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final HttpClient client;
+    private final List<Operation> operations;
+    private final double requestsPerSecond;
+
+    /**
+     * @param client The client that sends every request
+     * @param operations The kinds of request to send, each picked in proportion to its weight
+     * @param requestsPerSecond The arrival rate
+     */
+    OpenLoopLoadGenerator(HttpClient client, List<Operation> operations, double requestsPerSecond) {
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("At least one operation is needed");
+        }
+        if (!(requestsPerSecond > 0)) {
+            throw new IllegalArgumentException("requestsPerSecond must be above 0 but was " + requestsPerSecond);
+        }
+        this.client = client;
+        this.operations = operations;
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * Send requests for the warmup and then the measured duration, and wait for every answer.
+     * Only requests scheduled after the warmup are recorded.
+     */
+    Report run(Duration warmup, Duration duration) throws InterruptedException {
+        double totalWeight = operations.stream().mapToDouble(Operation::getWeight).sum();
+        SplittableRandom random = new SplittableRandom(42);
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+        long maxSendLagNanos = 0;
+
+        try (ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; ; i++) {
+                long scheduled = start + (long) (i * 1e9 / requestsPerSecond);
+                if (scheduled >= end) {
+                    break;
+                }
+                long wait;
+                while ((wait = scheduled - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                maxSendLagNanos = Math.max(maxSendLagNanos, System.nanoTime() - scheduled);
+                Operation operation = pick(random.nextDouble(totalWeight));
+                boolean measured = scheduled >= measureFrom;
+                senders.execute(() -> send(operation, scheduled, measured));
+            }
+        } // Waits for every request to be answered
+
+        return new Report(operations, duration, Duration.ofNanos(maxSendLagNanos));
+    }
+
+    private Operation pick(double point) {
+        for (Operation operation : operations) {
+            point -= operation.getWeight();
+            if (point < 0) {
+                return operation;
+            }
+        }
+        return operations.get(operations.size() - 1);
+    }
+
+    private void send(Operation operation, long scheduledNanos, boolean measured) {
+        boolean failed;
+        try {
+            HttpResponse<Void> response = client.send(operation.getRequest(), HttpResponse.BodyHandlers.discarding());
+            failed = response.statusCode() != operation.getExpectedStatus();
+        } catch (IOException e) {
+            failed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (measured) {
+            long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduledNanos);
+            operation.latencies.recordValue(Math.min(Math.max(latencyMicros, 1), HIGHEST_LATENCY_MICROS));
+            operation.completed.increment();
+            if (failed) {
+                operation.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * One kind of request in the mix, and what was recorded for it
+     */
+    static class Operation {
+        private final String name;
+        private final double weight;
+        private final HttpRequest request;
+        private final int expectedStatus;
+        private final Histogram latencies = new ConcurrentHistogram(1, HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * @param weight How often this request is sent, relative to the weights of the other operations
+         * @param expectedStatus The status of a successful answer. Any other status, or no answer, is an error.
+         */
+        Operation(String name, double weight, HttpRequest request, int expectedStatus) {
+            this.name = name;
+            this.weight = weight;
+            this.request = request;
+            this.expectedStatus = expectedStatus;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        double getWeight() {
+            return weight;
+        }
+
+        HttpRequest getRequest() {
+            return request;
+        }
+
+        int getExpectedStatus() {
+            return expectedStatus;
+        }
+
+        /**
+         * @return Latencies in microseconds, from the scheduled send time to the answer
+         */
+        Histogram getLatencies() {
+            return latencies;
+        }
+
+        long getCompleted() {
+            return completed.sum();
+        }
+
+        long getErrors() {
+            return errors.sum();
+        }
+    }
+
+    /**
+     * The latencies and throughput of a measured run
+     */
+    static class Report {
+        private final List<Operation> operations;
+        private final Histogram overall;
+        private final Duration duration;
+        private final Duration maxSendLag;
+
+        Report(List<Operation> operations, Duration duration, Duration maxSendLag) {
+            this.operations = new ArrayList<>(operations);
+            this.overall = new Histogram(1, HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+            operations.forEach(operation -> overall.add(operation.getLatencies()));
+            this.duration = duration;
+            this.maxSendLag = maxSendLag;
+        }
+
+        List<Operation> getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return Latencies in microseconds of every operation together
+         */
+        Histogram getOverall() {
+            return overall;
+        }
+
+        long getCompleted() {
+            return operations.stream().mapToLong(Operation::getCompleted).sum();
+        }
+
+        long getErrors() {
+            return operations.stream().mapToLong(Operation::getErrors).sum();
+        }
+
+        double getErrorRate() {
+            long completed = getCompleted();
+            return completed == 0 ? 0 : (double) getErrors() / completed;
+        }
+
+        /**
+         * @return Answered requests per second over the measured duration
+         */
+        double getThroughput() {
+            return getCompleted() / (duration.toNanos() / 1e9);
+        }
+
+        /**
+         * @return How far behind its schedule the generator sent a request at worst. If this is large, the
+         * machine running the generator could not keep up and the results say more about it than the service.
+         */
+        Duration getMaxSendLag() {
+            return maxSendLag;
+        }
+
+        void print(PrintStream out) {
+            out.printf("%-10s %10s %8s %10s %10s %10s %10s%n", "operation", "requests", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+            for (Operation operation : operations) {
+                printLine(out, operation.getName(), operation.getCompleted(), operation.getErrors(), operation.getLatencies());
+            }
+            printLine(out, "all", getCompleted(), getErrors(), overall);
+            out.printf("Throughput %.1f requests/s, sender lag at most %d ms%n", getThroughput(), maxSendLag.toMillis());
+        }
+
+        private static void printLine(PrintStream out, String name, long completed, long errors, Histogram latencies) {
+            out.printf("%-10s %10d %8d %10.2f %10.2f %10.2f %10.2f%n", name, completed, errors,
+                    latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                    latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxValue() / 1000.0);
+        }
+    }
+}
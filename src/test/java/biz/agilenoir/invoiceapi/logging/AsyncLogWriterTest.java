@@ -0,0 +1,171 @@
+package biz.agilenoir.invoiceapi.logging;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the asynchronous log writer and its loggers
+ */
+public class AsyncLogWriterTest {
+
+    private static AsyncLogWriter.Settings settings(LogLevel level, int bufferSize, AsyncLogWriter.Overflow overflow, OutputStream out) {
+        AsyncLogWriter.Settings settings = new AsyncLogWriter.Settings();
+        settings.setLevel(level);
+        settings.setBufferSize(bufferSize);
+        settings.setOverflow(overflow);
+        settings.setOut(new PrintStream(out, false, StandardCharsets.UTF_8));
+        return settings;
+    }
+
+    @Test
+    @DisplayName("Lines are written in order as logfmt, with their templates filled in and their stack traces")
+    void testWritesLines() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (AsyncLogWriter writer = new AsyncLogWriter(settings(LogLevel.INFO, 16, AsyncLogWriter.Overflow.BLOCK, out))) {
+            writer.publish(LogLevel.INFO, "Test", "Abacus call refused: {} after {} ms", new Object[]{"circuit open", 5}, null);
+            writer.publish(LogLevel.WARN, "Test", "A \"quoted\"\nline", null, new IllegalStateException("boom"));
+            writer.flush();
+
+            List<String> lines = out.toString(StandardCharsets.UTF_8).lines().toList();
+            assertTrue(lines.get(0).matches("time=\\S+Z level=INFO logger=Test thread=\\S+ msg=\"Abacus call refused: circuit open after 5 ms\""), lines.get(0));
+            assertTrue(lines.get(1).endsWith("level=WARN logger=Test thread=" + Thread.currentThread().getName() + " msg=\"A \\\"quoted\\\"\\nline\""), lines.get(1));
+            assertEquals("java.lang.IllegalStateException: boom", lines.get(2));
+        }
+    }
+
+    @Test
+    @DisplayName("A message below the level is never built")
+    void testDisabledLevelCostsNothing() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AtomicInteger built = new AtomicInteger();
+        try (AsyncLogWriter writer = new AsyncLogWriter(settings(LogLevel.INFO, 16, AsyncLogWriter.Overflow.BLOCK, out))) {
+            writer.publish(LogLevel.TRACE, "Test", (java.util.function.Supplier<String>) () -> "body " + built.incrementAndGet(), null, null);
+            writer.publish(LogLevel.DEBUG, "Test", "deserialized", null, null);
+            writer.flush();
+
+            assertFalse(writer.isEnabled(LogLevel.TRACE));
+            assertEquals(0, built.get());
+            assertEquals("", out.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    @DisplayName("When the buffer is full, DROP counts and reports the lost lines without making the caller wait")
+    void testDropOnOverflow() throws InterruptedException {
+        GatedOutputStream out = new GatedOutputStream();
+        try (AsyncLogWriter writer = new AsyncLogWriter(settings(LogLevel.INFO, 8, AsyncLogWriter.Overflow.DROP, out))) {
+            writer.publish(LogLevel.INFO, "Test", "first", null, null);
+            assertTrue(out.writing.await(5, TimeUnit.SECONDS)); // The writer is now stuck writing the first line
+            for (int i = 0; i < 100; i++) {
+                writer.publish(LogLevel.INFO, "Test", "line " + i, null, null);
+            }
+            assertEquals(92, writer.getDroppedLines());
+
+            out.gate.countDown();
+            writer.flush();
+            String written = out.toString();
+            assertTrue(written.contains("msg=\"line 7\""), written);
+            assertFalse(written.contains("msg=\"line 8\""), written);
+            assertTrue(written.contains("92 log lines dropped"), written);
+        }
+    }
+
+    @Test
+    @DisplayName("When the buffer is full, BLOCK waits for room and loses nothing")
+    void testBlockOnOverflow() throws InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int threads = 4;
+        int linesPerThread = 2_000;
+        try (AsyncLogWriter writer = new AsyncLogWriter(settings(LogLevel.INFO, 8, AsyncLogWriter.Overflow.BLOCK, out))) {
+            List<Thread> publishers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                publishers.add(Thread.ofPlatform().start(() -> {
+                    for (int i = 0; i < linesPerThread; i++) {
+                        writer.publish(LogLevel.INFO, "Test", "line {} {}", new Object[]{thread, i}, null);
+                    }
+                }));
+            }
+            for (Thread publisher : publishers) {
+                publisher.join();
+            }
+            writer.flush();
+
+            assertEquals(0, writer.getDroppedLines());
+            assertEquals(threads * linesPerThread, out.toString(StandardCharsets.UTF_8).lines().count());
+        }
+    }
+
+    @Test
+    @DisplayName("A sampled logger writes only its share of lines")
+    void testSampling() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Logging.configure(settings(LogLevel.INFO, 1024, AsyncLogWriter.Overflow.BLOCK, out));
+        try {
+            Logger logger = Logging.getLogger(AsyncLogWriterTest.class);
+            Logger none = logger.sampled(0);
+            Logger tenth = logger.sampled(0.1);
+            for (int i = 0; i < 2_000; i++) {
+                none.info("never");
+                tenth.info("sometimes");
+            }
+            logger.info("always");
+            Logging.flush();
+
+            String written = out.toString(StandardCharsets.UTF_8);
+            assertFalse(written.contains("never"));
+            assertFalse(none.isEnabled(LogLevel.INFO));
+            long sometimes = written.lines().filter(line -> line.contains("sometimes")).count();
+            assertTrue(sometimes > 100 && sometimes < 300, sometimes + " lines of 2000 at a 0.1 sample rate");
+            assertTrue(written.contains("logger=AsyncLogWriterTest"));
+            assertTrue(written.contains("msg=\"always\""));
+        } finally {
+            Logging.configure(new AsyncLogWriter.Settings());
+        }
+    }
+
+    /**
+     * Holds the writer thread in its first write until the gate opens
+     */
+    private static class GatedOutputStream extends OutputStream {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writing.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (this) {
+                written.write(b, off, len);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return written.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package biz.agilenoir.invoiceapi.metrics;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for recording service metrics and writing them in the Prometheus text format
+ */
+public class ServiceMetricsTest {
+
+    @Test
+    @DisplayName("Requests are counted by route and status, with their latencies and response bytes")
+    void testRequestMetrics() {
+        ServiceMetrics metrics = new ServiceMetrics(() -> 42);
+        ServiceMetrics.Route route = ServiceMetrics.Route.of("GET", "/api/invoices");
+        assertEquals(ServiceMetrics.Route.LIST_INVOICES, route);
+
+        metrics.requestStarted(route);
+        metrics.requestStarted(route);
+        metrics.requestStarted(route);
+        metrics.requestFinished(route, 200, TimeUnit.MICROSECONDS.toNanos(300), 100);
+        metrics.requestFinished(route, 404, TimeUnit.MILLISECONDS.toNanos(20), 30);
+        String text = metrics.toPrometheusText();
+
+        List<String> lines = text.lines().toList();
+        String labels = "method=\"GET\",route=\"/api/invoices\"";
+        assertTrue(lines.contains("invoice_http_requests_total{" + labels + ",status=\"200\"} 1"), text);
+        assertTrue(lines.contains("invoice_http_requests_total{" + labels + ",status=\"404\"} 1"), text);
+        assertTrue(lines.contains("invoice_http_request_duration_seconds_bucket{" + labels + ",le=\"0.0005\"} 1"), text);
+        assertTrue(lines.contains("invoice_http_request_duration_seconds_bucket{" + labels + ",le=\"0.01\"} 1"), text);
+        assertTrue(lines.contains("invoice_http_request_duration_seconds_bucket{" + labels + ",le=\"0.025\"} 2"), text);
+        assertTrue(lines.contains("invoice_http_request_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 2"), text);
+        assertTrue(lines.contains("invoice_http_request_duration_seconds_count{" + labels + "} 2"), text);
+        assertTrue(lines.contains("invoice_http_requests_in_flight{" + labels + "} 1"), text);
+        assertTrue(lines.contains("invoice_http_response_bytes_total{" + labels + "} 130"), text);
+        assertTrue(lines.contains("invoice_store_invoices 42"), text);
+        assertFalse(text.contains("status=\"500\""), text);
+    }
+
+    @Test
+    @DisplayName("Requests to unknown routes are counted together")
+    void testUnknownRoutes() {
+        assertEquals(ServiceMetrics.Route.OTHER, ServiceMetrics.Route.of("DELETE", "/api/invoices"));
+        assertEquals(ServiceMetrics.Route.OTHER, ServiceMetrics.Route.of("GET", "/api/invoices/INV-001"));
+        assertEquals(ServiceMetrics.Route.CREATE_INVOICE_BATCH, ServiceMetrics.Route.of("POST", "/api/invoices/batch"));
+    }
+
+    @Test
+    @DisplayName("Abacus calls are timed by the status Abacus answered with, or by why there was no answer")
+    void testAbacusOutcomes() {
+        ServiceMetrics metrics = new ServiceMetrics(() -> 0, () -> 7);
+        metrics.abacusCallFinished(ServiceMetrics.AbacusOutcome.ofStatus("ACCEPTED"), TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.abacusCallFinished(ServiceMetrics.AbacusOutcome.ofStatus("PENDING_REVIEW"), TimeUnit.SECONDS.toNanos(20));
+        metrics.abacusCallFinished(ServiceMetrics.AbacusOutcome.ofStatus("SOMETHING_NEW"), 1);
+        metrics.abacusCallFinished(ServiceMetrics.AbacusOutcome.UNAVAILABLE, 1);
+        List<String> lines = metrics.toPrometheusText().lines().toList();
+
+        assertTrue(lines.contains("invoice_abacus_call_duration_seconds_count{outcome=\"ACCEPTED\"} 1"));
+        assertTrue(lines.contains("invoice_abacus_call_duration_seconds_sum{outcome=\"ACCEPTED\"} 0.002"));
+        assertTrue(lines.contains("invoice_abacus_call_duration_seconds_bucket{outcome=\"PENDING_REVIEW\",le=\"10\"} 0"));
+        assertTrue(lines.contains("invoice_abacus_call_duration_seconds_bucket{outcome=\"PENDING_REVIEW\",le=\"+Inf\"} 1"));
+        assertTrue(lines.contains("invoice_abacus_call_duration_seconds_count{outcome=\"OTHER_STATUS\"} 1"));
+        assertTrue(lines.contains("invoice_abacus_call_duration_seconds_count{outcome=\"UNAVAILABLE\"} 1"));
+        assertTrue(lines.contains("invoice_abacus_call_duration_seconds_count{outcome=\"REJECTED\"} 0"));
+        assertTrue(lines.contains("invoice_abacus_calls_coalesced_total 7"));
+    }
+
+    @Test
+    @DisplayName("Requests recorded from many threads at once are all counted")
+    void testConcurrentRecording() throws InterruptedException {
+        ServiceMetrics metrics = new ServiceMetrics(() -> 0);
+        ServiceMetrics.Route route = ServiceMetrics.Route.CREATE_INVOICE;
+        int threads = 8;
+        int requestsPerThread = 10_000;
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            recorders.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < requestsPerThread; i++) {
+                    metrics.requestStarted(route);
+                    metrics.requestFinished(route, 201, i, 1);
+                }
+            }));
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        List<String> lines = metrics.toPrometheusText().lines().toList();
+
+        String labels = "method=\"POST\",route=\"/api/invoices\"";
+        int total = threads * requestsPerThread;
+        assertTrue(lines.contains("invoice_http_requests_total{" + labels + ",status=\"201\"} " + total));
+        assertTrue(lines.contains("invoice_http_request_duration_seconds_count{" + labels + "} " + total));
+        assertTrue(lines.contains("invoice_http_requests_in_flight{" + labels + "} 0"));
+        assertTrue(lines.contains("invoice_http_response_bytes_total{" + labels + "} " + total));
+    }
+}
@@ -0,0 +1,395 @@
+package biz.agilenoir.invoiceapi.store;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the concurrent invoice store
+ */
+public class ConcurrentInvoiceStoreTest {
+
+    private static Map<String, Object> invoice(String id, String customer) {
+        Map<String, Object> invoice = new HashMap<>();
+        if (id != null) {
+            invoice.put("id", id);
+        }
+        invoice.put("customer", customer);
+        invoice.put("amount", 100.0);
+        invoice.put("date", "2023-01-15");
+        invoice.put("status", "NEW");
+        return invoice;
+    }
+
+    @Test
+    @DisplayName("Created invoices continue the numbering of added invoices")
+    void testCreateAssignsNextId() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        store.add(invoice("INV-001", "Acme Corp"));
+        store.add(invoice("INV-002", "Globex Inc"));
+
+        Map<String, Object> created = store.create(invoice(null, "New Customer"));
+
+        assertEquals("INV-3", created.get("id"));
+        assertSame(created, store.findById("INV-3"));
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    @DisplayName("Adding a duplicate ID is refused")
+    void testAddDuplicateId() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        assertNotNull(store.add(invoice("INV-001", "Acme Corp")));
+        assertNull(store.add(invoice("INV-001", "Globex Inc")));
+        assertEquals("Acme Corp", store.findById("INV-001").get("customer"));
+    }
+
+    @Test
+    @DisplayName("Stored invoices cannot be changed by the caller")
+    void testStoredInvoicesAreReadOnly() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        Map<String, Object> original = invoice("INV-001", "Acme Corp");
+        Map<String, Object> stored = store.add(original);
+
+        original.put("customer", "Changed");
+
+        assertEquals("Acme Corp", store.findById("INV-001").get("customer"));
+        assertThrows(UnsupportedOperationException.class, () -> stored.put("status", "PAID"));
+    }
+
+    @Test
+    @DisplayName("Concurrent creates and reads neither lose nor duplicate invoices")
+    void testConcurrentCreatesAndReads() throws Exception {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        int writers = 8;
+        int invoicesPerWriter = 5_000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers * 2);
+        List<Future<List<String>>> createdIds = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+
+        for (int writer = 0; writer < writers; writer++) {
+            createdIds.add(executor.submit(() -> {
+                start.await();
+                List<String> ids = new ArrayList<>();
+                for (int i = 0; i < invoicesPerWriter; i++) {
+                    ids.add((String) store.create(invoice(null, "Customer")).get("id"));
+                }
+                return ids;
+            }));
+            readers.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < invoicesPerWriter; i++) {
+                    Map<String, Object> found = store.findById("INV-" + (i + 1));
+                    if (found != null) {
+                        assertEquals("INV-" + (i + 1), found.get("id"));
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+
+        Set<String> uniqueIds = new HashSet<>();
+        for (Future<List<String>> ids : createdIds) {
+            uniqueIds.addAll(ids.get(30, TimeUnit.SECONDS));
+        }
+        for (Future<?> reader : readers) {
+            reader.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        int expected = writers * invoicesPerWriter;
+        assertEquals(expected, uniqueIds.size());
+        assertEquals(expected, store.size());
+        assertEquals(expected, store.findAll().size());
+        for (String id : uniqueIds) {
+            assertNotNull(store.findById(id), id);
+        }
+    }
+
+    @Test
+    @DisplayName("Pages follow the cursor without skipping or repeating invoices")
+    void testPagesFollowCursor() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        for (int i = 0; i < 25; i++) {
+            store.create(invoice(null, "Customer " + i));
+        }
+
+        List<String> pagedIds = new ArrayList<>();
+        InvoiceQuery query = new InvoiceQuery();
+        query.setLimit(10);
+        int pages = 0;
+        do {
+            InvoicePage page = store.findPage(query);
+            page.getInvoices().forEach(invoice -> pagedIds.add((String) invoice.get("id")));
+            query.setCursor(page.getNextCursor());
+            pages++;
+        } while (query.getCursor() != null);
+
+        assertEquals(3, pages);
+        assertEquals(25, pagedIds.size());
+        assertEquals("INV-1", pagedIds.get(0));
+        assertEquals("INV-25", pagedIds.get(24));
+        assertEquals(25, new HashSet<>(pagedIds).size());
+    }
+
+    @Test
+    @DisplayName("A full last page has no next cursor")
+    void testExactLastPage() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        store.create(invoice(null, "A"));
+        store.create(invoice(null, "B"));
+        InvoiceQuery query = new InvoiceQuery();
+        query.setLimit(2);
+
+        InvoicePage page = store.findPage(query);
+
+        assertEquals(2, page.getInvoices().size());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    @DisplayName("An unknown cursor is refused")
+    void testInvalidCursor() {
+        InvoiceQuery query = new InvoiceQuery();
+        query.setCursor("%%%");
+        assertThrows(IllegalArgumentException.class, () -> new ConcurrentInvoiceStore().findPage(query));
+    }
+
+    private static Map<String, Object> invoice(String customer, String status, String date, double amount) {
+        Map<String, Object> invoice = invoice(null, customer);
+        invoice.put("status", status);
+        invoice.put("date", date);
+        invoice.put("amount", amount);
+        return invoice;
+    }
+
+    private static List<String> ids(Iterable<Map<String, Object>> invoices) {
+        List<String> ids = new ArrayList<>();
+        invoices.forEach(invoice -> ids.add((String) invoice.get("id")));
+        return ids;
+    }
+
+    @Test
+    @DisplayName("Filters combine customer, status, date range and amount range")
+    void testFilteredQuery() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        store.create(invoice("Globex Inc", "PENDING", "2023-01-10", 100.0));  // INV-1
+        store.create(invoice("Globex Inc", "PAID", "2023-02-10", 200.0));     // INV-2
+        store.create(invoice("Acme Corp", "PENDING", "2023-02-11", 300.0));   // INV-3
+        store.create(invoice("Globex Inc", "PENDING", "2023-03-31", 400.0));  // INV-4
+        store.create(invoice("Globex Inc", "PENDING", "2023-04-01", 500.0));  // INV-5
+
+        InvoiceQuery quarter = new InvoiceQuery();
+        quarter.setCustomer("Globex Inc");
+        quarter.setStatus("PENDING");
+        quarter.setDateFrom(LocalDate.of(2023, 1, 1));
+        quarter.setDateTo(LocalDate.of(2023, 3, 31));
+        assertEquals(List.of("INV-1", "INV-4"), ids(store.findMatching(quarter)));
+
+        quarter.setAmountMin(150.0);
+        assertEquals(List.of("INV-4"), ids(store.findMatching(quarter)));
+
+        InvoiceQuery datesOnly = new InvoiceQuery();
+        datesOnly.setDateFrom(LocalDate.of(2023, 2, 1));
+        datesOnly.setDateTo(LocalDate.of(2023, 3, 31));
+        assertEquals(List.of("INV-2", "INV-3", "INV-4"), ids(store.findMatching(datesOnly)));
+
+        InvoiceQuery unknownCustomer = new InvoiceQuery();
+        unknownCustomer.setCustomer("Initech");
+        assertEquals(List.of(), ids(store.findMatching(unknownCustomer)));
+    }
+
+    @Test
+    @DisplayName("Filtered pages follow the cursor")
+    void testFilteredPages() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        for (int i = 0; i < 30; i++) {
+            store.create(invoice(i % 3 == 0 ? "Globex Inc" : "Acme Corp", "PENDING", "2023-01-" + (10 + i % 20), i));
+        }
+        InvoiceQuery query = new InvoiceQuery();
+        query.setCustomer("Globex Inc");
+        query.setDateFrom(LocalDate.of(2023, 1, 10));
+        query.setLimit(4);
+
+        List<String> pagedIds = new ArrayList<>();
+        do {
+            InvoicePage page = store.findPage(query);
+            pagedIds.addAll(ids(page.getInvoices()));
+            query.setCursor(page.getNextCursor());
+        } while (query.getCursor() != null);
+
+        query.setCursor(null);
+        assertEquals(10, pagedIds.size());
+        assertEquals(ids(store.findMatching(query)), pagedIds);
+    }
+
+    @Test
+    @DisplayName("Indexes stay consistent with concurrent creates")
+    void testIndexesDuringConcurrentCreates() throws Exception {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        int writers = 4;
+        int invoicesPerWriter = 2_000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 1);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int writer = 0; writer < writers; writer++) {
+            String customer = "Customer " + writer;
+            writes.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < invoicesPerWriter; i++) {
+                    store.create(invoice(customer, i % 2 == 0 ? "PENDING" : "PAID", "2023-01-" + (10 + i % 20), i));
+                }
+                return null;
+            }));
+        }
+        InvoiceQuery pendingForOne = new InvoiceQuery();
+        pendingForOne.setCustomer("Customer 0");
+        pendingForOne.setStatus("PENDING");
+        Future<?> reader = executor.submit(() -> {
+            start.await();
+            for (int i = 0; i < 200; i++) {
+                for (Map<String, Object> found : store.findMatching(pendingForOne)) {
+                    assertEquals("Customer 0", found.get("customer"));
+                    assertEquals("PENDING", found.get("status"));
+                }
+            }
+            return null;
+        });
+        start.countDown();
+        for (Future<?> write : writes) {
+            write.get(30, TimeUnit.SECONDS);
+        }
+        reader.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertEquals(invoicesPerWriter / 2, ids(store.findMatching(pendingForOne)).size());
+        InvoiceQuery allDates = new InvoiceQuery();
+        allDates.setDateFrom(LocalDate.of(2023, 1, 1));
+        assertEquals(writers * invoicesPerWriter, ids(store.findMatching(allDates)).size());
+    }
+
+    @Test
+    @DisplayName("A summary totals invoices overall and by status, customer and month")
+    void testSummary() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        store.create(invoice("Globex Inc", "PENDING", "2023-01-10", 100.0));
+        store.create(invoice("Globex Inc", "PAID", "2023-02-10", 200.25));
+        store.create(invoice("Acme Corp", "PENDING", "2023-02-11", 300.0));
+        store.create(invoice("Globex Inc", "PENDING", "2023-03-31", 400.0));
+        store.create(invoice("Globex Inc", "PENDING", "2023-04-01", 500.0));
+
+        InvoiceSummary all = store.summarize(new InvoiceQuery());
+        assertEquals(5, all.getOverall().getCount());
+        assertEquals(150025, all.getOverall().getAmountCents());
+        assertEquals(List.of("PAID", "PENDING"), new ArrayList<>(all.getByStatus().keySet()));
+        assertEquals(4, all.getByStatus().get("PENDING").getCount());
+        assertEquals(1300.0, all.getByStatus().get("PENDING").getTotalAmount());
+        assertEquals(List.of("Acme Corp", "Globex Inc"), new ArrayList<>(all.getByCustomer().keySet()));
+        assertEquals(List.of("2023-01", "2023-02", "2023-03", "2023-04"), new ArrayList<>(all.getByMonth().keySet()));
+        assertEquals(50025, all.getByMonth().get("2023-02").getAmountCents());
+
+        InvoiceQuery globexFirstQuarter = new InvoiceQuery();
+        globexFirstQuarter.setCustomer("Globex Inc");
+        globexFirstQuarter.setDateTo(LocalDate.of(2023, 3, 31));
+        InvoiceSummary filtered = store.summarize(globexFirstQuarter);
+        assertEquals(3, filtered.getOverall().getCount());
+        assertEquals(70025, filtered.getOverall().getAmountCents());
+        assertEquals(List.of("Globex Inc"), new ArrayList<>(filtered.getByCustomer().keySet()));
+        assertEquals(List.of("2023-01", "2023-02", "2023-03"), new ArrayList<>(filtered.getByMonth().keySet()));
+
+        InvoiceQuery unknownCustomer = new InvoiceQuery();
+        unknownCustomer.setCustomer("Initech");
+        assertEquals(0, store.summarize(unknownCustomer).getOverall().getCount());
+        assertTrue(store.summarize(unknownCustomer).getByStatus().isEmpty());
+
+        store.clear();
+        assertEquals(0, store.summarize(new InvoiceQuery()).getOverall().getCount());
+        assertEquals(0, store.summarize(globexFirstQuarter).getOverall().getCount());
+    }
+
+    @Test
+    @DisplayName("An updated invoice keeps its ID and place, and moves between indexes and summary totals")
+    void testUpdate() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        store.create(invoice("Globex Inc", "PENDING_ABACUS", "2023-01-10", 100.0));
+        store.create(invoice("Acme Corp", "PENDING_ABACUS", "2023-02-10", 200.0));
+        long version = store.version();
+
+        Map<String, Object> updated = store.update("INV-1", invoice -> {
+            Map<String, Object> changed = new HashMap<>(invoice);
+            changed.put("status", "NEW");
+            changed.put("transactionId", "TRX-1");
+            return changed;
+        });
+
+        assertEquals("INV-1", updated.get("id"));
+        assertEquals("TRX-1", updated.get("transactionId"));
+        assertSame(updated, store.findById("INV-1"));
+        assertTrue(store.version() > version);
+        assertEquals(List.of("INV-1", "INV-2"), store.findAll().stream().map(invoice -> invoice.get("id")).toList());
+
+        InvoiceQuery pending = new InvoiceQuery();
+        pending.setStatus("PENDING_ABACUS");
+        assertEquals(List.of("INV-2"), ids(store.findMatching(pending)));
+        InvoiceQuery accepted = new InvoiceQuery();
+        accepted.setStatus("NEW");
+        assertEquals(List.of("INV-1"), ids(store.findMatching(accepted)));
+
+        InvoiceSummary all = store.summarize(new InvoiceQuery());
+        assertEquals(List.of("NEW", "PENDING_ABACUS"), new ArrayList<>(all.getByStatus().keySet()));
+        assertEquals(10000, all.getByStatus().get("NEW").getAmountCents());
+        assertEquals(1, store.summarize(accepted).getOverall().getCount());
+        assertEquals(20000, store.summarize(pending).getOverall().getAmountCents());
+
+        version = store.version();
+        assertSame(updated, store.update("INV-1", invoice -> invoice));
+        assertEquals(version, store.version(), "an unchanged invoice is not a change");
+        assertNull(store.update("INV-9", invoice -> invoice));
+    }
+
+    @Test
+    @DisplayName("A filtered summary split across fork-join tasks agrees with the matching invoices")
+    void testSummaryOverManyInvoices() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        for (int i = 0; i < 100_000; i++) {
+            store.create(invoice("Customer " + (i % 97), i % 3 == 0 ? "PAID" : "PENDING",
+                    LocalDate.of(2023, 1, 1).plusDays(i % 365).toString(), (i % 1000) + 0.99));
+        }
+
+        InvoiceQuery query = new InvoiceQuery();
+        query.setStatus("PENDING");
+        query.setDateFrom(LocalDate.of(2023, 3, 1));
+        query.setAmountMax(500.0);
+        InvoiceSummary summary = store.summarize(query);
+
+        long count = 0;
+        long cents = 0;
+        Map<String, Long> monthCounts = new HashMap<>();
+        for (Map<String, Object> invoice : store.findMatching(query)) {
+            count++;
+            cents += Math.round((Double) invoice.get("amount") * 100);
+            monthCounts.merge(((String) invoice.get("date")).substring(0, 7), 1L, Long::sum);
+        }
+        assertEquals(count, summary.getOverall().getCount());
+        assertEquals(cents, summary.getOverall().getAmountCents());
+        assertEquals(monthCounts.keySet(), summary.getByMonth().keySet());
+        monthCounts.forEach((month, monthCount) -> assertEquals(monthCount, summary.getByMonth().get(month).getCount()));
+        assertEquals(97, summary.getByCustomer().size());
+    }
+}
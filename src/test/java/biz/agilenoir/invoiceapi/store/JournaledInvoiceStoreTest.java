@@ -0,0 +1,368 @@
+package biz.agilenoir.invoiceapi.store;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the journaled invoice store and its recovery after a restart or a crash
+ */
+public class JournaledInvoiceStoreTest {
+    @TempDir
+    Path journalDirectory;
+
+    private static Map<String, Object> invoice(String customer, double amount) {
+        Map<String, Object> invoice = new HashMap<>();
+        invoice.put("customer", customer);
+        invoice.put("amount", amount);
+        invoice.put("date", "2023-01-15");
+        invoice.put("status", "NEW");
+        invoice.put("transactionId", null);
+        return invoice;
+    }
+
+    private static InvoiceJournal.Settings smallSegments(int snapshotEverySegments) {
+        InvoiceJournal.Settings settings = new InvoiceJournal.Settings();
+        settings.setSegmentBytes(4096);
+        settings.setSnapshotEverySegments(snapshotEverySegments);
+        return settings;
+    }
+
+    private JournaledInvoiceStore open(InvoiceJournal.Settings settings) throws IOException {
+        return new JournaledInvoiceStore(journalDirectory, settings, true);
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            return files.filter(file -> file.toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    @Test
+    @DisplayName("Invoices, their IDs and ID numbering survive a restart")
+    void testReopenRecoversInvoices() throws IOException {
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            Map<String, Object> added = new HashMap<>(invoice("Acme Corp", 1250.0));
+            added.put("id", "INV-001");
+            store.add(added);
+            store.create(invoice("Globex Inc", 850.5));
+        }
+
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            assertEquals(2, store.getRecoveredInvoices());
+            assertEquals(2, store.size());
+            assertEquals("Acme Corp", store.findById("INV-001").get("customer"));
+            Map<String, Object> created = store.findById("INV-2");
+            assertEquals(850.5, created.get("amount"));
+            assertTrue(created.containsKey("transactionId"));
+            assertNull(created.get("transactionId"));
+
+            assertEquals("INV-3", store.create(invoice("Initech", 10.0)).get("id"));
+        }
+    }
+
+    @Test
+    @DisplayName("Startup replays the newest snapshot and the records written after it")
+    void testSnapshotAndTail() throws IOException {
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            for (int i = 0; i < 100; i++) {
+                store.create(invoice("Customer " + i, i));
+            }
+            assertTrue(files(".segment").size() > 1);
+            store.snapshot();
+            assertEquals(1, files(".segment").size(), "segments covered by the snapshot are deleted");
+            for (int i = 100; i < 110; i++) {
+                store.create(invoice("Customer " + i, i));
+            }
+        }
+
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            assertEquals(110, store.size());
+            assertEquals("Customer 0", store.findById("INV-1").get("customer"));
+            assertEquals("Customer 109", store.findById("INV-110").get("customer"));
+            assertEquals("INV-111", store.create(invoice("Next", 1.0)).get("id"));
+        }
+    }
+
+    @Test
+    @DisplayName("Updates survive a restart, before and after a snapshot")
+    void testUpdatesSurviveRestart() throws IOException {
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            store.create(invoice("Acme Corp", 1.0));
+            store.create(invoice("Globex Inc", 2.0));
+            store.update("INV-1", invoice -> withStatus(invoice, "PENDING_REVIEW"));
+            store.snapshot();
+            store.update("INV-1", invoice -> withStatus(invoice, "NEW"));
+            store.update("INV-2", invoice -> withStatus(invoice, "REJECTED"));
+        }
+
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            assertEquals(2, store.size());
+            assertEquals(2, store.getRecoveredInvoices());
+            assertEquals("NEW", store.findById("INV-1").get("status"));
+            assertEquals("REJECTED", store.findById("INV-2").get("status"));
+            assertEquals(1, store.summarize(new InvoiceQuery()).getByStatus().get("NEW").getCount());
+            assertEquals("INV-3", store.create(invoice("Next", 1.0)).get("id"));
+        }
+    }
+
+    @Test
+    @DisplayName("Strings longer than 65535 UTF-8 bytes survive a restart, from the journal and from a snapshot")
+    void testLongStringsSurviveRestart() throws IOException {
+        String longCustomer = "Société Générale ".repeat(5000);
+        String longField = "é".repeat(70_000);
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            Map<String, Object> first = invoice(longCustomer, 1.0);
+            first.put(longField, longField);
+            store.create(first);
+            store.snapshot();
+            store.create(invoice(longCustomer, 2.0));
+        }
+
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            assertEquals(2, store.size());
+            assertEquals(longCustomer, store.findById("INV-1").get("customer"));
+            assertEquals(longField, store.findById("INV-1").get(longField));
+            assertEquals(longCustomer, store.findById("INV-2").get("customer"));
+        }
+    }
+
+    @Test
+    @DisplayName("An invoice the journal cannot take is not left in memory")
+    void testFailedAppendIsNotVisible() throws IOException {
+        String tooLong = "x".repeat(5000);
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            store.create(invoice("Acme Corp", 1.0));
+            long version = store.version();
+            assertThrows(IllegalArgumentException.class, () -> store.create(invoice(tooLong, 2.0)));
+            Map<String, Object> added = invoice("Globex Inc", 3.0);
+            added.put("id", "INV-X");
+            added.put("note", tooLong);
+            assertThrows(IllegalArgumentException.class, () -> store.add(added));
+
+            assertNull(store.findById("INV-2"));
+            assertNull(store.findById("INV-X"));
+            assertEquals(1, store.size());
+            assertEquals(1, store.findAll().size());
+            assertTrue(store.version() > version);
+            InvoiceQuery globex = new InvoiceQuery();
+            globex.setCustomer("Globex Inc");
+            assertTrue(store.findPage(globex).getInvoices().isEmpty());
+            assertEquals(0, store.summarize(globex).getOverall().getCount());
+            InvoiceSummary all = store.summarize(new InvoiceQuery());
+            assertEquals(1, all.getOverall().getCount());
+            assertEquals(100, all.getOverall().getAmountCents());
+            assertNull(all.getByCustomer().get(tooLong));
+            InvoiceQuery anyAmount = new InvoiceQuery();
+            anyAmount.setAmountMin(0.0);
+            assertEquals(1, store.summarize(anyAmount).getOverall().getCount());
+
+            added.remove("note");
+            assertNotNull(store.add(added), "the ID is free again");
+        }
+
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            assertEquals(2, store.size());
+            assertNull(store.findById("INV-2"));
+            assertEquals("Globex Inc", store.findById("INV-X").get("customer"));
+        }
+    }
+
+    private static Map<String, Object> withStatus(Map<String, Object> invoice, String status) {
+        Map<String, Object> changed = new HashMap<>(invoice);
+        changed.put("status", status);
+        return changed;
+    }
+
+    @Test
+    @DisplayName("Filling segments triggers snapshots in the background")
+    void testAutomaticSnapshot() throws Exception {
+        try (JournaledInvoiceStore store = open(smallSegments(2))) {
+            for (int i = 0; i < 500; i++) {
+                store.create(invoice("Customer " + i, i));
+            }
+        }
+        assertFalse(files(".snapshot").isEmpty());
+
+        try (JournaledInvoiceStore store = open(smallSegments(2))) {
+            assertEquals(500, store.size());
+            assertEquals(500, store.getRecoveredInvoices());
+            for (int i = 0; i < 500; i++) {
+                assertEquals("Customer " + i, store.findById("INV-" + (i + 1)).get("customer"));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("The segment a snapshot starts does not trigger another snapshot")
+    void testSnapshotsSettle() throws Exception {
+        try (JournaledInvoiceStore store = open(smallSegments(1))) {
+            for (int i = 0; i < 200; i++) {
+                store.create(invoice("Customer " + i, i));
+            }
+            Thread.sleep(200);
+            List<Path> snapshots = files(".snapshot");
+            List<Path> segments = files(".segment");
+            Thread.sleep(200);
+            assertEquals(snapshots, files(".snapshot"));
+            assertEquals(segments, files(".segment"));
+        }
+
+        try (JournaledInvoiceStore store = open(smallSegments(1))) {
+            assertEquals(200, store.size());
+        }
+    }
+
+    @Test
+    @DisplayName("A record torn by a crash is dropped, and appends continue after the last intact record")
+    void testTornTail() throws IOException {
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            store.create(invoice("Acme Corp", 1.0));
+            store.create(invoice("Globex Inc", 2.0));
+        }
+        Path segment = files(".segment").get(0);
+        long end;
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // Find the end of the records, then write half a record there
+            end = 0;
+            for (int length = file.readInt(); length != 0; length = file.readInt()) {
+                end += 8 + length;
+                file.seek(end);
+            }
+            file.seek(end);
+            file.writeInt(60);
+            file.writeInt(12345);
+            file.write(new byte[20]);
+        }
+
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            assertEquals(2, store.size());
+            store.create(invoice("Initech", 3.0));
+        }
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            assertEquals(3, store.size());
+            assertEquals("Initech", store.findById("INV-3").get("customer"));
+        }
+    }
+
+    @Test
+    @DisplayName("Clearing the store clears the journal")
+    void testClear() throws IOException {
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            for (int i = 0; i < 50; i++) {
+                store.create(invoice("Customer " + i, i));
+            }
+            store.snapshot();
+            store.clear();
+            store.create(invoice("After clear", 1.0));
+        }
+
+        try (JournaledInvoiceStore store = open(smallSegments(0))) {
+            assertEquals(1, store.size());
+            assertEquals("After clear", store.findById("INV-1").get("customer"));
+        }
+    }
+
+    @Test
+    @DisplayName("Concurrent writers all get their invoices on disk")
+    void testConcurrentSyncWrites() throws Exception {
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            try (ExecutorService writers = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < 1000; i++) {
+                    int n = i;
+                    writers.submit(() -> store.create(invoice("Customer " + n, n)));
+                }
+            }
+        }
+        try (JournaledInvoiceStore store = open(new InvoiceJournal.Settings())) {
+            assertEquals(1000, store.size());
+        }
+    }
+
+    /**
+     * Measures write throughput and startup time. Run with -Dinvoice.journal.measure=10000000 -Dtest=JournaledInvoiceStoreTest.
+     * Journal throughput and replay run at the full count. The store, which keeps every invoice on the heap, is
+     * measured at -Dinvoice.journal.measureStore invoices, 1,000,000 unless set; that needs about -DargLine=-Xmx3g.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "invoice.journal.measure", matches = "\\d+")
+    @DisplayName("Measure journal throughput and recovery time")
+    void measure() throws Exception {
+        int count = Integer.getInteger("invoice.journal.measure");
+        int storeCount = Integer.getInteger("invoice.journal.measureStore", 1_000_000);
+        Map<String, Object> sample = invoice("Acme Corp", 1250.0);
+        sample.put("id", "INV-1");
+
+        InvoiceJournal.Settings settings = new InvoiceJournal.Settings();
+        settings.setSnapshotEverySegments(0);
+        Path journalOnly = journalDirectory.resolve("journal");
+        long started = System.nanoTime();
+        try (InvoiceJournal journal = new InvoiceJournal(journalOnly, settings, List::of)) {
+            journal.open((invoiceSequence, invoice) -> { });
+            for (int i = 1; i <= count; i++) {
+                journal.append(i, sample);
+            }
+            journal.awaitDurable(count);
+        }
+        report("journal append, fsync in the background", count, started);
+
+        started = System.nanoTime();
+        AtomicLong replayed = new AtomicLong();
+        try (InvoiceJournal journal = new InvoiceJournal(journalOnly, settings, List::of)) {
+            journal.open((invoiceSequence, invoice) -> replayed.incrementAndGet());
+        }
+        assertEquals(count, replayed.get());
+        report("journal replay", count, started);
+
+        int syncCount = Math.min(count, 200_000);
+        Path synced = journalDirectory.resolve("synced");
+        started = System.nanoTime();
+        try (InvoiceJournal journal = new InvoiceJournal(synced, settings, List::of)) {
+            journal.open((invoiceSequence, invoice) -> { });
+            try (ExecutorService writers = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 1; i <= syncCount; i++) {
+                    int n = i;
+                    writers.submit(() -> {
+                        journal.awaitDurable(journal.append(n, sample));
+                        return null;
+                    });
+                }
+            }
+        }
+        report("journal append, each writer waits for its fsync (group commit)", syncCount, started);
+
+        Path storeDirectory = journalDirectory.resolve("store");
+        try (JournaledInvoiceStore store = new JournaledInvoiceStore(storeDirectory, new InvoiceJournal.Settings(), false)) {
+            started = System.nanoTime();
+            for (int i = 0; i < storeCount; i++) {
+                store.create(invoice("Customer " + (i % 1000), i));
+            }
+            report("store create", storeCount, started);
+        }
+        started = System.nanoTime();
+        try (JournaledInvoiceStore store = new JournaledInvoiceStore(storeDirectory, new InvoiceJournal.Settings(), false)) {
+            assertEquals(storeCount, store.size());
+            report("store startup from snapshot and tail", storeCount, started);
+        }
+    }
+
+    private static void report(String what, long count, long startedNanos) {
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        System.out.printf("%s: %,d invoices in %.2f s, %,.0f invoices/s%n", what, count, seconds, count / seconds);
+    }
+}
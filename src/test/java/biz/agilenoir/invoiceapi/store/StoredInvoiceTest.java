@@ -0,0 +1,190 @@
+package biz.agilenoir.invoiceapi.store;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the compact stored invoice and its heap footprint
+ */
+public class StoredInvoiceTest {
+    private static UnaryOperator<String> customerNames() {
+        Map<String, String> names = new ConcurrentHashMap<>();
+        return name -> {
+            String shared = names.putIfAbsent(name, name);
+            return shared == null ? name : shared;
+        };
+    }
+
+    /**
+     * The fields of a new invoice, built the way the invoice handler builds them
+     */
+    private static Map<String, Object> newInvoice(int n) {
+        Map<String, Object> invoice = new HashMap<>();
+        invoice.put("customer", "Customer " + (n % 1000));
+        invoice.put("amount", (n % 100_000) / 100.0);
+        invoice.put("date", String.valueOf(LocalDate.of(2023, 1, 1).plusDays(n % 730)));
+        invoice.put("status", "NEW");
+        return invoice;
+    }
+
+    @Test
+    @DisplayName("A stored invoice reads back the values it was built from")
+    void testReadsBackValues() {
+        Map<String, Object> fields = newInvoice(0);
+        fields.put("amount", 850.5);
+        StoredInvoice stored = StoredInvoice.of("INV-1", fields, customerNames());
+
+        assertEquals("INV-1", stored.get("id"));
+        assertEquals("Customer 0", stored.get("customer"));
+        assertEquals(850.5, stored.get("amount"));
+        assertEquals("2023-01-01", stored.get("date"));
+        assertEquals("NEW", stored.get("status"));
+        assertEquals(85050, stored.getAmountCents());
+        assertEquals(LocalDate.of(2023, 1, 1), stored.getDate());
+        assertEquals(InvoiceStatus.NEW, stored.getStatus());
+
+        Map<String, Object> expected = new HashMap<>(fields);
+        expected.put("id", "INV-1");
+        assertEquals(expected, stored);
+        assertEquals(expected.hashCode(), stored.hashCode());
+        assertThrows(UnsupportedOperationException.class, () -> stored.put("status", "PAID"));
+    }
+
+    @Test
+    @DisplayName("Amounts in whole cents read back as the same double")
+    void testAmountsReadBackExactly() {
+        UnaryOperator<String> customerNames = customerNames();
+        for (double amount : new double[]{0.0, 0.01, 0.1, 0.3, 1250.0, 19.99, -42.07, 123456789.12, 1e13}) {
+            Map<String, Object> fields = newInvoice(1);
+            fields.put("amount", amount);
+            StoredInvoice stored = StoredInvoice.of("INV-1", fields, customerNames);
+            assertTrue(stored.hasAmountCents(), "amount " + amount);
+            assertEquals(Double.valueOf(amount), stored.get("amount"));
+        }
+    }
+
+    @Test
+    @DisplayName("Values the compact fields cannot hold exactly, and other fields, are kept as they were")
+    void testKeepsOtherValues() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("id", "INV-7");
+        fields.put("customer", null);
+        fields.put("amount", 10.005);
+        fields.put("date", "2023-1-5");
+        fields.put("status", "DISPUTED");
+        fields.put("transactionId", "TRX-1");
+        fields.put("lines", 3);
+        StoredInvoice stored = StoredInvoice.of(fields, customerNames());
+
+        assertEquals(fields, stored);
+        assertTrue(stored.containsKey("customer"));
+        assertNull(stored.getCustomer());
+        assertFalse(stored.hasAmountCents());
+        assertNull(stored.getDate());
+        assertNull(stored.getStatus());
+
+        fields.put("amount", 100);
+        assertEquals(100, StoredInvoice.of(fields, customerNames()).get("amount"));
+        fields.put("amount", -0.0);
+        assertEquals(-0.0, StoredInvoice.of(fields, customerNames()).get("amount"));
+    }
+
+    @Test
+    @DisplayName("Fields iterate in the order created invoices have always been written")
+    void testFieldOrder() {
+        Map<String, Object> fields = newInvoice(2);
+        fields.put("transactionId", "TRX-1");
+        StoredInvoice stored = StoredInvoice.of("INV-2", fields, customerNames());
+
+        assertEquals(List.of("id", "date", "amount", "customer", "status", "transactionId"), new ArrayList<>(stored.keySet()));
+    }
+
+    @Test
+    @DisplayName("Invoices of the same customer share one name")
+    void testCustomerNamesAreShared() {
+        InvoiceStore store = new ConcurrentInvoiceStore();
+        Map<String, Object> first = store.create(newInvoice(5));
+        Map<String, Object> second = store.create(newInvoice(1005));
+
+        assertNotSame(newInvoice(5).get("customer"), newInvoice(1005).get("customer"));
+        assertSame(first.get("customer"), second.get("customer"));
+    }
+
+    @Test
+    @DisplayName("A new invoice is held in primitive fields and the ID and customer Strings, with no other objects")
+    void testCompactLayout() throws ReflectiveOperationException {
+        StoredInvoice stored = StoredInvoice.of("INV-3", newInvoice(3), customerNames());
+
+        for (Field field : StoredInvoice.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            field.setAccessible(true);
+            Object value = field.get(stored);
+            if (field.getType() == Object[].class) {
+                assertNull(value, field.getName() + " holds no fields of a new invoice");
+            } else {
+                assertTrue(field.getType().isPrimitive() || field.getType() == String.class,
+                        field.getName() + " is a " + field.getType().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Measures heap per invoice. Run with -Dinvoice.footprint.measure=200000 -Dtest=StoredInvoiceTest.
+     * The figures depend on the collector honouring System.gc(), so the test is not part of the default run.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "invoice.footprint.measure", matches = "\\d+")
+    @DisplayName("Report heap bytes per invoice, as a map and as a compact record")
+    void testHeapFootprint() {
+        Object[] invoices = new Object[Integer.getInteger("invoice.footprint.measure")];
+
+        long before = usedHeap();
+        for (int i = 0; i < invoices.length; i++) {
+            // How the store kept an invoice before: an unmodifiable copy of the fields with the ID first
+            Map<String, Object> copy = new LinkedHashMap<>();
+            copy.put("id", "INV-" + i);
+            copy.putAll(newInvoice(i));
+            invoices[i] = Collections.unmodifiableMap(copy);
+        }
+        long mapBytes = (usedHeap() - before) / invoices.length;
+
+        Arrays.fill(invoices, null);
+        UnaryOperator<String> customerNames = customerNames();
+        before = usedHeap();
+        for (int i = 0; i < invoices.length; i++) {
+            invoices[i] = StoredInvoice.of("INV-" + i, newInvoice(i), customerNames);
+        }
+        long compactBytes = (usedHeap() - before) / invoices.length;
+
+        System.out.println("Heap per invoice, including its ID: " + mapBytes + " bytes as a map, "
+                + compactBytes + " bytes as a compact record");
+        assertNotNull(invoices[invoices.length - 1]); // Keeps the invoices reachable until measured
+        assertTrue(compactBytes * 2 < mapBytes, compactBytes + " bytes is not less than half of " + mapBytes);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,96 @@
+package biz.agilenoir.invoiceapi.validation;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for checking request bodies against a schema compiled from the OpenAPI spec while they are parsed
+ */
+public class RequestSchemaTest {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static RequestSchema invoiceRequest;
+
+    @BeforeAll
+    static void compile() throws IOException {
+        try (InputStream spec = RequestSchemaTest.class.getResourceAsStream("/InvoiceAPISpec.yaml")) {
+            invoiceRequest = RequestSchema.fromOpenApi(spec, "InvoiceRequest");
+        }
+    }
+
+    private static Map<String, Object> read(String body) throws IOException {
+        try (JsonParser parser = invoiceRequest.validate(objectMapper.createParser(body))) {
+            return objectMapper.readValue(parser, Map.class);
+        }
+    }
+
+    private static String refusal(String body) {
+        return assertThrows(InvalidRequestException.class, () -> read(body)).getMessage();
+    }
+
+    @Test
+    @DisplayName("A valid invoice request is read unchanged, with properties the schema does not declare")
+    void testValid() throws IOException {
+        Map<String, Object> invoice = read("{\"customer\": \"Acme Corp\", \"amount\": 1250, \"date\": \"2024-02-29\","
+                + " \"status\": \"NEW\", \"notes\": {\"lines\": [1, 2]}}");
+
+        assertEquals("Acme Corp", invoice.get("customer"));
+        assertEquals(1250, invoice.get("amount"));
+        assertEquals(Map.of("lines", List.of(1, 2)), invoice.get("notes"));
+    }
+
+    @Test
+    @DisplayName("Each broken rule of the InvoiceRequest schema is refused with the property and the rule")
+    void testRefusals() {
+        assertEquals("amount is required", refusal("{\"customer\": \"Acme Corp\", \"date\": \"2024-01-01\"}"));
+        assertEquals("amount must be a number", refusal("{\"customer\": \"Acme Corp\", \"amount\": \"lots\", \"date\": \"2024-01-01\"}"));
+        assertEquals("customer must not be null", refusal("{\"customer\": null, \"amount\": 1, \"date\": \"2024-01-01\"}"));
+        assertEquals("customer must be a string", refusal("{\"customer\": 7, \"amount\": 1, \"date\": \"2024-01-01\"}"));
+        assertEquals("customer must not be an object", refusal("{\"customer\": {\"name\": \"Acme\"}, \"amount\": 1, \"date\": \"2024-01-01\"}"));
+        assertEquals("date must be a date as yyyy-mm-dd", refusal("{\"customer\": \"Acme Corp\", \"amount\": 1, \"date\": \"2023-02-29\"}"));
+        assertEquals("date must be a date as yyyy-mm-dd", refusal("{\"customer\": \"Acme Corp\", \"amount\": 1, \"date\": \"01/02/2023\"}"));
+        assertEquals("Request body must be a JSON object", refusal("[{\"customer\": \"Acme Corp\"}]"));
+    }
+
+    @Test
+    @DisplayName("Each element of an array is checked, and a refusal names the element")
+    void testValidateEach() throws IOException {
+        String body = "[{\"customer\": \"A\", \"amount\": 1, \"date\": \"2024-01-01\"}, {\"customer\": \"B\", \"date\": \"2024-01-01\"}]";
+        try (JsonParser parser = invoiceRequest.validateEach(objectMapper.createParser(body))) {
+            InvalidRequestException refused = InvalidRequestException.find(
+                    assertThrows(IOException.class, () -> objectMapper.readValue(parser, List.class)));
+            assertNotNull(refused);
+            assertEquals("[1].amount is required", refused.getMessage());
+        }
+
+        try (JsonParser parser = invoiceRequest.validateEach(objectMapper.createParser("[{\"customer\": \"A\", \"amount\": 1, \"date\": \"2024-01-01\"}, 5]"))) {
+            assertEquals("[1] must be a JSON object",
+                    InvalidRequestException.find(assertThrows(IOException.class, () -> objectMapper.readValue(parser, List.class))).getMessage());
+        }
+    }
+
+    @Test
+    @DisplayName("A schema with a keyword that is not compiled is refused when it is compiled")
+    void testUnsupportedKeyword() throws IOException {
+        JsonNode pattern = objectMapper.readTree("{\"type\": \"object\", \"properties\": {\"id\": {\"type\": \"string\", \"pattern\": \"^INV\"}}}");
+        IllegalArgumentException refused = assertThrows(IllegalArgumentException.class, () -> RequestSchema.compile("Pattern", pattern));
+        assertTrue(refused.getMessage().contains("pattern"), refused.getMessage());
+
+        JsonNode minimum = objectMapper.readTree("{\"properties\": {\"amount\": {\"type\": \"number\", \"minimum\": 0}}, \"required\": [\"amount\"]}");
+        RequestSchema compiled = RequestSchema.compile("Minimum", minimum);
+        try (JsonParser parser = compiled.validate(objectMapper.createParser("{\"amount\": -1}"))) {
+            assertEquals("amount must be at least 0.0",
+                    assertThrows(InvalidRequestException.class, () -> objectMapper.readValue(parser, Map.class)).getMessage());
+        }
+    }
+}